@@ -0,0 +1,87 @@
+package proxy.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import proxy.api.MessageRejectedException;
+import proxy.api.ServiceRetry;
+import proxy.impl.AsyncProxy;
+import proxy.impl.AsyncProxyConfig;
+import proxy.impl.BatchPolicy;
+import proxy.model.Message;
+import proxy.model.ServiceResponse;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Пропускная способность {@link AsyncProxy#message(Message)} при конкуренции нескольких потоков-отправителей.
+ * Сервис отвечает мгновенно, поэтому измеряется накладной расход очереди и сборки батчей. Количество
+ * потоков-отправителей задается опцией JMH {@code -t}.
+ *
+ * @author rushan
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(4)
+@Fork(1)
+public class AsyncProxyBenchmark {
+
+    private static final byte[] DATA = new byte[128];
+
+    @Param({"LINKED", "RING"})
+    private AsyncProxyConfig.QueueType queueType;
+
+    @Param({"4"})
+    private int ioThreads;
+
+    private AsyncProxy proxy;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        ServiceRetry echo = messages -> {
+            List<ServiceResponse> responses = new ArrayList<>(messages.size());
+            for (Message message : messages) {
+                responses.add(ServiceResponse.ok(message.getData()));
+            }
+            return responses;
+        };
+        proxy = new AsyncProxy(echo, new AsyncProxyConfig()
+                .ioThreads(ioThreads)
+                .messageQueueLimit(10_000)
+                .batchPolicy(BatchPolicy.immediate(1000))
+                .queueType(queueType));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        proxy.dispose();
+    }
+
+    @Benchmark
+    public void message(Blackhole blackhole) {
+        try {
+            blackhole.consume(proxy.message(new Message(Instant.now(), DATA)));
+        } catch (MessageRejectedException e) {
+            // Очередь заполнена - отправители обгоняют io-потоки
+            blackhole.consume(e);
+        }
+    }
+}
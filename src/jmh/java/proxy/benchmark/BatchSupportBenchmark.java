@@ -0,0 +1,99 @@
+package proxy.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import proxy.impl.BatchResponseDecoder;
+import proxy.impl.BatchSupport;
+import proxy.model.Message;
+import proxy.model.ServiceResponse;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Кодирование батча и разбор батч-ответа в зависимости от размера сообщений и батча.
+ *
+ * @author rushan
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BatchSupportBenchmark {
+
+    @Param({"16", "1024", "16384"})
+    private int messageSize;
+
+    @Param({"10", "1000"})
+    private int batchSize;
+
+    private final BatchSupport batchSupport = new BatchSupport();
+
+    private List<Message> messages;
+    private ServiceResponse batchResponse;
+
+    @Setup
+    public void setup() {
+        messages = new ArrayList<>(batchSize);
+        for (int i = 0; i < batchSize; i++) {
+            byte[] data = new byte[messageSize];
+            ThreadLocalRandom.current().nextBytes(data);
+            messages.add(new Message(Instant.now(), data));
+        }
+
+        // Батч-ответ того же размера, что и запрос
+        ByteBuffer response = ByteBuffer.allocate(batchSize * (messageSize + Integer.BYTES));
+        for (Message message : messages) {
+            response.putInt(message.getData().length);
+            response.put(message.getData());
+        }
+        batchResponse = ServiceResponse.ok(response.array());
+    }
+
+    @Benchmark
+    public byte[] toBatchBuffer() {
+        return batchSupport.toBatchBuffer(messages);
+    }
+
+    /**
+     * Gather-кодирование, без копирования данных сообщений
+     */
+    @Benchmark
+    public ByteBuffer[] toBatchBodyBuffers() {
+        return batchSupport.toBatchBody(messages).toBuffers();
+    }
+
+    @Benchmark
+    public List<ServiceResponse> splitBatch() {
+        return batchSupport.splitBatch(batchResponse);
+    }
+
+    /**
+     * Потоковый разбор того же ответа
+     */
+    @Benchmark
+    public int decodeBatch(Blackhole blackhole) throws IOException {
+        BatchResponseDecoder decoder = new BatchResponseDecoder(batchSize, (index, response) -> blackhole.consume(response));
+        decoder.onStatus(batchResponse.getStatus());
+        decoder.onContent(ByteBuffer.wrap(batchResponse.getData()));
+        decoder.finish();
+        return decoder.getCount();
+    }
+}
@@ -0,0 +1,129 @@
+package proxy.benchmark;
+
+import com.sun.net.httpserver.HttpServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import proxy.Proxy;
+import proxy.util.Util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Полный путь сообщения: HTTP запрос клиента в {@link proxy.web.MessageServlet}, батч через
+ * {@link proxy.impl.ServiceRetrySupport} к локальному сервису-заглушке, ответ клиенту. Заглушка отвечает на
+ * каждое сообщение его же данными.
+ *
+ * @author rushan
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(16)
+@Fork(1)
+public class EndToEndBenchmark {
+
+    private static final int PROXY_PORT = 18180;
+    private static final int SERVICE_PORT = 18280;
+
+    @Param({"blocking", "pooled"})
+    private String serviceCall;
+
+    @Param({"128"})
+    private int messageSize;
+
+    private HttpServer service;
+    private ExecutorService serviceExecutor;
+    private Proxy proxy;
+    private URL proxyUrl;
+    private byte[] data;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, InterruptedException {
+        serviceExecutor = Executors.newFixedThreadPool(4);
+        service = startEchoService(SERVICE_PORT, serviceExecutor);
+
+        Map<String, String> args = new HashMap<>();
+        args.put("port", String.valueOf(PROXY_PORT));
+        args.put("serviceUrl", "http://localhost:" + SERVICE_PORT + "/sendMessage");
+        args.put("serviceCall", serviceCall);
+        args.put("maxJettyThreads", "32");
+        proxy = new Proxy(args);
+        proxy.start();
+
+        proxyUrl = new URL("http://localhost:" + PROXY_PORT + Proxy.PROXY_DEFAULT_PATH);
+        data = new byte[messageSize];
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        proxy.dispose();
+        service.stop(0);
+        serviceExecutor.shutdownNow();
+    }
+
+    @Benchmark
+    public int message() throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) proxyUrl.openConnection();
+        connection.setDoOutput(true);
+        connection.setRequestMethod("POST");
+        connection.setFixedLengthStreamingMode(data.length);
+        try (OutputStream os = connection.getOutputStream()) {
+            os.write(data);
+        }
+        // Тело читается полностью, чтобы соединение вернулось в keep-alive пул
+        try (InputStream is = connection.getInputStream()) {
+            return Util.readMessageBody(is, Integer.MAX_VALUE).length;
+        }
+    }
+
+    /**
+     * Сервис-заглушка: на каждое сообщение батча отвечает его данными
+     */
+    private static HttpServer startEchoService(int port, ExecutorService executor) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(port), 1024);
+        server.createContext("/sendMessage", exchange -> {
+            ByteBuffer input = ByteBuffer.wrap(Util.readMessageBody(exchange.getRequestBody(), Integer.MAX_VALUE));
+            ByteBuffer output = ByteBuffer.allocate(input.remaining());
+            while (input.remaining() > 0) {
+                input.getLong();
+                int len = input.getInt();
+                output.putInt(len);
+                output.put(input.array(), input.position(), len);
+                input.position(input.position() + len);
+            }
+
+            exchange.sendResponseHeaders(200, output.position());
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(output.array(), 0, output.position());
+            }
+        });
+        server.setExecutor(executor);
+        server.start();
+        return server;
+    }
+}
@@ -0,0 +1,134 @@
+package proxy.benchmark;
+
+import com.sun.net.httpserver.HttpServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import proxy.Proxy;
+import proxy.util.Util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Сравнение обычных и виртуальных потоков ({@code -threads virtual}) с блокирующим клиентом сервиса, который
+ * отвечает с задержкой {@code serviceDelayMs}. Батч из одного сообщения, поэтому пропускная способность
+ * определяется количеством одновременных вызовов сервиса: на обычных потоках - количеством io-потоков, на
+ * виртуальных - количеством клиентов.
+ *
+ * <p>Вариант {@code virtual} требует Java 21+.
+ *
+ * @author rushan
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Threads(256)
+@Fork(1)
+public class ThreadModeBenchmark {
+
+    private static final int PROXY_PORT = 18181;
+    private static final int SERVICE_PORT = 18281;
+
+    @Param({Proxy.THREADS_PLATFORM, Proxy.THREADS_VIRTUAL})
+    private String threads;
+
+    @Param({"20"})
+    private int serviceDelayMs;
+
+    private HttpServer service;
+    private ExecutorService serviceExecutor;
+    private Proxy proxy;
+    private URL proxyUrl;
+    private final byte[] data = new byte[128];
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, InterruptedException {
+        serviceExecutor = Executors.newCachedThreadPool();
+        service = startSlowService(SERVICE_PORT, serviceExecutor, serviceDelayMs);
+
+        Map<String, String> args = new HashMap<>();
+        args.put("port", String.valueOf(PROXY_PORT));
+        args.put("serviceUrl", "http://localhost:" + SERVICE_PORT + "/sendMessage");
+        args.put("serviceCall", Proxy.SERVICE_CALL_BLOCKING);
+        args.put("threads", threads);
+        args.put("batchSize", "1");
+        proxy = new Proxy(args);
+        proxy.start();
+
+        proxyUrl = new URL("http://localhost:" + PROXY_PORT + Proxy.PROXY_DEFAULT_PATH);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        proxy.dispose();
+        service.stop(0);
+        serviceExecutor.shutdownNow();
+    }
+
+    @Benchmark
+    public int message() throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) proxyUrl.openConnection();
+        connection.setDoOutput(true);
+        connection.setRequestMethod("POST");
+        connection.setFixedLengthStreamingMode(data.length);
+        try (OutputStream os = connection.getOutputStream()) {
+            os.write(data);
+        }
+        try (InputStream is = connection.getInputStream()) {
+            return Util.readMessageBody(is, Integer.MAX_VALUE).length;
+        }
+    }
+
+    /**
+     * Сервис-заглушка: отвечает через {@code delayMs} на каждое сообщение батча пустыми данными
+     */
+    private static HttpServer startSlowService(int port, ExecutorService executor, int delayMs) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(port), 4096);
+        server.createContext("/sendMessage", exchange -> {
+            byte[] input = Util.readMessageBody(exchange.getRequestBody(), Integer.MAX_VALUE);
+            try {
+                Thread.sleep(delayMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            // Заголовок батча: 8 байт id и 4 байта длины на сообщение, в ответе - только длина
+            int count = 0;
+            for (int pos = 0; pos < input.length; count++) {
+                int len = ((input[pos + 8] & 0xFF) << 24) | ((input[pos + 9] & 0xFF) << 16)
+                        | ((input[pos + 10] & 0xFF) << 8) | (input[pos + 11] & 0xFF);
+                pos += 12 + len;
+            }
+            byte[] output = new byte[count * 4];
+            exchange.sendResponseHeaders(200, output.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(output);
+            }
+        });
+        server.setExecutor(executor);
+        server.start();
+        return server;
+    }
+}
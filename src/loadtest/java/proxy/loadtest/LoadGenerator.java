@@ -0,0 +1,248 @@
+package proxy.loadtest;
+
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.api.Request;
+import org.eclipse.jetty.client.api.Response;
+import org.eclipse.jetty.client.api.Result;
+import org.eclipse.jetty.client.util.BytesContentProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import proxy.metrics.Histogram;
+import proxy.util.Util;
+import proxy.web.MessageServlet;
+
+import java.math.BigDecimal;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Генератор нагрузки на работающий прокси с открытой моделью: сообщения отправляются с постоянной частотой
+ * {@code rate} в секунду независимо от того, получены ли ответы на предыдущие. Задержка отсчитывается от
+ * запланированного, а не фактического момента отправки, поэтому отставание генератора (например, из-за паузы GC)
+ * учитывается в задержке, а не скрывает ее (coordinated omission).
+ *
+ * <p>Каждые {@code reportSec} секунд и по окончании выводятся пропускная способность (успешные ответы в
+ * секунду), доля отклоненных сообщений (503, по причинам из {@link MessageServlet#REASON_HEADER}) и квантили
+ * задержки успешных ответов. Ответы на сообщения, запланированные в первые {@code warmupSec} секунд, в итог не
+ * входят.
+ *
+ * <p>Если ответов ждут уже {@code maxInFlight} сообщений, новые не отправляются и учитываются как пропущенные -
+ * генератор не должен становиться узким местом из-за неограниченного роста числа запросов.
+ *
+ * @author rushan
+ */
+public class LoadGenerator {
+
+    private static final Logger log = LoggerFactory.getLogger(LoadGenerator.class);
+
+    public static final String URL_DEFAULT = "http://localhost:8080/message";
+
+    private static final String NO_REASON = "none";
+
+    private final String url;
+    private final double rate;
+    private final long durationNanos;
+    private final long warmupNanos;
+    private final long timeoutMs;
+    private final int maxInFlight;
+    private final long reportPeriodNanos;
+    private final int clientIds;
+    private final String clientIdHeader;
+    private final byte[] data;
+
+    private final HttpClient httpClient;
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private volatile Stats interval = new Stats();
+    private final Stats total = new Stats();
+
+    public static void main(String[] argv) throws Exception {
+        Map<String, String> args = Util.readArguments(argv);
+
+        LoadGenerator generator = new LoadGenerator(args);
+        try {
+            generator.run();
+        } finally {
+            generator.stop();
+        }
+    }
+
+    public LoadGenerator(Map<String, String> args) {
+        url = args.getOrDefault("url", URL_DEFAULT);
+        rate = Optional.ofNullable(args.get("rate")).map(Double::parseDouble).orElse(1000.0);
+        durationNanos = TimeUnit.SECONDS.toNanos(
+                Optional.ofNullable(args.get("durationSec")).map(Long::parseLong).orElse(60L));
+        warmupNanos = TimeUnit.SECONDS.toNanos(
+                Optional.ofNullable(args.get("warmupSec")).map(Long::parseLong).orElse(10L));
+        timeoutMs = Optional.ofNullable(args.get("timeoutMs")).map(Long::parseLong).orElse(30_000L);
+        maxInFlight = Optional.ofNullable(args.get("maxInFlight")).map(Integer::parseInt).orElse(100_000);
+        reportPeriodNanos = TimeUnit.SECONDS.toNanos(
+                Optional.ofNullable(args.get("reportSec")).map(Long::parseLong).orElse(5L));
+        // Число разных идентификаторов клиента: для справедливой и сегментированной очередей прокси
+        clientIds = Optional.ofNullable(args.get("clientIds")).map(Integer::parseInt).orElse(0);
+        clientIdHeader = args.getOrDefault("clientIdHeader", MessageServlet.CLIENT_ID_HEADER);
+        int messageSize = Optional.ofNullable(args.get("messageSize")).map(Integer::parseInt).orElse(128);
+        int maxConnections = Optional.ofNullable(args.get("maxConnections")).map(Integer::parseInt).orElse(1024);
+
+        if (rate <= 0) {
+            throw new IllegalArgumentException("Expected positive rate, but got " + rate);
+        }
+        data = new byte[messageSize];
+        ThreadLocalRandom.current().nextBytes(data);
+
+        httpClient = new HttpClient();
+        httpClient.setName("load-generator");
+        httpClient.setMaxConnectionsPerDestination(maxConnections);
+        httpClient.setMaxRequestsQueuedPerDestination(maxInFlight);
+        httpClient.setFollowRedirects(false);
+        try {
+            httpClient.start();
+        } catch (Exception e) {
+            throw new IllegalStateException("Failed to start http client", e);
+        }
+    }
+
+    /**
+     * Отправляет сообщения в течение {@code durationSec} и ждет ответов на отправленные
+     */
+    public void run() throws InterruptedException {
+        log.info("Sending {} messages/s of {} bytes to {} for {} s (warmup {} s)", rate, data.length, url,
+                TimeUnit.NANOSECONDS.toSeconds(durationNanos), TimeUnit.NANOSECONDS.toSeconds(warmupNanos));
+
+        long start = System.nanoTime();
+        long nextReport = start + reportPeriodNanos;
+        for (long i = 0; ; i++) {
+            long elapsed = (long) (i * TimeUnit.SECONDS.toNanos(1) / rate);
+            if (elapsed >= durationNanos) {
+                break;
+            }
+            long scheduledAt = start + elapsed;
+            long now;
+            while ((now = System.nanoTime()) < scheduledAt) {
+                LockSupport.parkNanos(scheduledAt - now);
+            }
+            if (now - nextReport >= 0) {
+                report("Last " + TimeUnit.NANOSECONDS.toSeconds(reportPeriodNanos) + " s", swapInterval(),
+                        reportPeriodNanos);
+                nextReport += reportPeriodNanos;
+            }
+            send(i, scheduledAt, elapsed >= warmupNanos);
+        }
+
+        // Ответы на последние сообщения приходят не позже таймаута запроса
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        while (inFlight.get() > 0 && System.nanoTime() - deadline < 0) {
+            Thread.sleep(10);
+        }
+        report("Total", total, durationNanos - warmupNanos);
+    }
+
+    public void stop() throws Exception {
+        httpClient.stop();
+    }
+
+    private void send(long index, long scheduledAt, boolean measured) {
+        if (inFlight.get() >= maxInFlight) {
+            interval.dropped.increment();
+            if (measured) {
+                total.dropped.increment();
+            }
+            return;
+        }
+        inFlight.incrementAndGet();
+
+        Request request = httpClient.newRequest(url)
+                .method("POST")
+                .timeout(timeoutMs, TimeUnit.MILLISECONDS)
+                .content(new BytesContentProvider(data), "application/octet-stream");
+        if (clientIds > 0) {
+            request.header(clientIdHeader, "client-" + index % clientIds);
+        }
+        // Тело ответа не нужно - jetty его отбрасывает
+        request.send(result -> {
+            inFlight.decrementAndGet();
+            long latency = System.nanoTime() - scheduledAt;
+            // Промежуточный итог - по времени получения ответа, общий - по времени отправки
+            interval.record(result, latency);
+            if (measured) {
+                total.record(result, latency);
+            }
+        });
+    }
+
+    private Stats swapInterval() {
+        Stats result = interval;
+        interval = new Stats();
+        return result;
+    }
+
+    private void report(String title, Stats stats, long periodNanos) {
+        double seconds = Math.max(periodNanos, 1) / (double) TimeUnit.SECONDS.toNanos(1);
+        long ok = stats.latency.getCount();
+        long rejected = stats.rejected.sum();
+        long completed = ok + rejected + stats.timeouts.sum() + stats.errors.sum();
+        long sent = completed + stats.dropped.sum();
+
+        StringBuilder quantiles = new StringBuilder();
+        for (double quantile : Histogram.QUANTILES) {
+            String percentile = BigDecimal.valueOf(Math.round(quantile * 1000) / 10.0).stripTrailingZeros()
+                    .toPlainString();
+            quantiles.append(String.format(" p%s %.2f", percentile, stats.latency.getQuantile(quantile) / 1_000_000.0));
+        }
+        log.info("{}: {} ok/s, rejected {}%, timeouts {}, errors {}, dropped {}, in flight {}; latency ms:{} max {}",
+                title, String.format("%.0f", ok / seconds),
+                String.format("%.2f", sent > 0 ? 100.0 * rejected / sent : 0),
+                stats.timeouts.sum(), stats.errors.sum(), stats.dropped.sum(), inFlight.get(), quantiles,
+                String.format("%.2f", stats.maxLatency.get() / 1_000_000.0));
+        if (rejected > 0) {
+            log.info("{}: rejected by reason {}", title, stats.rejectedByReason);
+        }
+    }
+
+    /**
+     * Результаты за период
+     */
+    private static class Stats {
+
+        final Histogram latency = new Histogram();
+        final LongAccumulator maxLatency = new LongAccumulator(Math::max, 0);
+        final LongAdder rejected = new LongAdder();
+        final Map<String, LongAdder> rejectedByReason = new ConcurrentHashMap<>();
+        final LongAdder timeouts = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        final LongAdder dropped = new LongAdder();
+
+        void record(Result result, long latencyNanos) {
+            Response response = result.getResponse();
+            int status = response != null ? response.getStatus() : 0;
+            if (result.isFailed() && status == 0) {
+                // Таймаут запроса или ошибка соединения
+                if (result.getFailure() instanceof TimeoutException) {
+                    timeouts.increment();
+                } else {
+                    errors.increment();
+                }
+            } else if (status >= 200 && status < 300) {
+                latency.record(latencyNanos);
+                maxLatency.accumulate(latencyNanos);
+            } else if (status == 503) {
+                rejected.increment();
+                String reason = response.getHeaders().get(MessageServlet.REASON_HEADER);
+                rejectedByReason.computeIfAbsent(reason != null ? reason : NO_REASON, r -> new LongAdder())
+                        .increment();
+            } else if (status == 504) {
+                timeouts.increment();
+            } else {
+                errors.increment();
+            }
+        }
+    }
+}
@@ -0,0 +1,336 @@
+package proxy.loadtest;
+
+import org.eclipse.jetty.http2.server.HTTP2CServerConnectionFactory;
+import org.eclipse.jetty.server.Connector;
+import org.eclipse.jetty.server.HttpConfiguration;
+import org.eclipse.jetty.server.HttpConnectionFactory;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import proxy.impl.BatchCompression;
+import proxy.util.Util;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Сервис-заглушка для нагрузочного тестирования прокси. Принимает батчи в формате {@link proxy.impl.BatchSupport}
+ * (в том числе сжатые) и отвечает на каждое сообщение его же данными.
+ *
+ * <p>Поведение настраивается аргументами:
+ * <ul>
+ *     <li>{@code latencyMs}, {@code latencyJitterMs} - задержка ответа на батч: постоянная и случайная
+ *     равномерно распределенная добавка;</li>
+ *     <li>{@code nanosPerByte} - дополнительная задержка на каждый байт тела батча;</li>
+ *     <li>{@code errorRate} - доля батчей (от 0 до 1), на которые сервис отвечает 500;</li>
+ *     <li>{@code outages} - расписание недоступности: {@code <начало, с>:<длительность, с>} через запятую,
+ *     от запуска заглушки. Если задан {@code outagePeriodSec}, расписание повторяется с этим периодом. Во время
+ *     недоступности сервис отвечает 503 сразу или, при {@code outageMode hang}, только после ее окончания.</li>
+ * </ul>
+ *
+ * <p>Задержка не занимает поток jetty: запрос переводится в асинхронный режим, а ответ пишется по таймеру.
+ *
+ * @author rushan
+ */
+public class StubService {
+
+    private static final Logger log = LoggerFactory.getLogger(StubService.class);
+
+    public static final int PORT_DEFAULT = 8280;
+    public static final String PATH_DEFAULT = "/sendMessage";
+
+    public static final String OUTAGE_MODE_ERROR = "error";
+    public static final String OUTAGE_MODE_HANG = "hang";
+
+    private static final int BATCH_HEADER_SIZE = 12;
+
+    private final Server server;
+    private final ScheduledExecutorService scheduler;
+
+    private final long latencyNanos;
+    private final long latencyJitterNanos;
+    private final double nanosPerByte;
+    private final double errorRate;
+    private final OutageSchedule outages;
+    private final boolean outageHang;
+    private final long reportPeriodSec;
+
+    private final long startNanos = System.nanoTime();
+
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder messages = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder outageResponses = new LongAdder();
+
+    public static void main(String[] argv) throws Exception {
+        Map<String, String> args = Util.readArguments(argv);
+
+        StubService service = new StubService(args);
+        service.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(service::stop));
+        service.join();
+    }
+
+    public StubService(Map<String, String> args) {
+        int port = Optional.ofNullable(args.get("port")).map(Integer::parseInt).orElse(PORT_DEFAULT);
+        String path = args.getOrDefault("path", PATH_DEFAULT);
+        int threads = Optional.ofNullable(args.get("threads")).map(Integer::parseInt).orElse(200);
+
+        latencyNanos = TimeUnit.MILLISECONDS.toNanos(
+                Optional.ofNullable(args.get("latencyMs")).map(Long::parseLong).orElse(0L));
+        latencyJitterNanos = TimeUnit.MILLISECONDS.toNanos(
+                Optional.ofNullable(args.get("latencyJitterMs")).map(Long::parseLong).orElse(0L));
+        nanosPerByte = Optional.ofNullable(args.get("nanosPerByte")).map(Double::parseDouble).orElse(0.0);
+        errorRate = Optional.ofNullable(args.get("errorRate")).map(Double::parseDouble).orElse(0.0);
+        outages = OutageSchedule.parse(args.getOrDefault("outages", ""),
+                Optional.ofNullable(args.get("outagePeriodSec")).map(Long::parseLong).orElse(0L));
+        String outageMode = args.getOrDefault("outageMode", OUTAGE_MODE_ERROR);
+        if (!OUTAGE_MODE_ERROR.equals(outageMode) && !OUTAGE_MODE_HANG.equals(outageMode)) {
+            throw new IllegalArgumentException("Unknown outage mode: " + outageMode + ". Expected "
+                    + OUTAGE_MODE_ERROR + " or " + OUTAGE_MODE_HANG);
+        }
+        outageHang = OUTAGE_MODE_HANG.equals(outageMode);
+        reportPeriodSec = Optional.ofNullable(args.get("reportSec")).map(Long::parseLong).orElse(10L);
+
+        scheduler = Executors.newScheduledThreadPool(1, r -> {
+            Thread thread = new Thread(r, "stub-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        server = new Server(new QueuedThreadPool(threads, Math.min(threads, 8)));
+        // Прокси может вызывать сервис как по HTTP/1.1, так и по HTTP/2 без TLS
+        HttpConfiguration httpConfig = new HttpConfiguration();
+        ServerConnector connector = new ServerConnector(server, new HttpConnectionFactory(httpConfig),
+                new HTTP2CServerConnectionFactory(httpConfig));
+        connector.setPort(port);
+        server.setConnectors(new Connector[] { connector });
+
+        ServletContextHandler context = new ServletContextHandler();
+        context.addServlet(new ServletHolder(new BatchServlet()), path);
+        server.setHandler(context);
+
+        log.info("Stub service on port {}, path {}: latency {} ms (+{} ms jitter), {} ns per byte, error rate {}, "
+                        + "outages {} ({})", port, path, TimeUnit.NANOSECONDS.toMillis(latencyNanos),
+                TimeUnit.NANOSECONDS.toMillis(latencyJitterNanos), nanosPerByte, errorRate, outages, outageMode);
+    }
+
+    public void start() throws Exception {
+        server.start();
+        if (reportPeriodSec > 0) {
+            scheduler.scheduleAtFixedRate(this::report, reportPeriodSec, reportPeriodSec, TimeUnit.SECONDS);
+        }
+    }
+
+    public void join() throws InterruptedException {
+        server.join();
+    }
+
+    public void stop() {
+        scheduler.shutdownNow();
+        try {
+            server.stop();
+        } catch (Exception e) {
+            log.error("Failed to stop stub service", e);
+        }
+        report();
+    }
+
+    private void report() {
+        log.info("Batches: {}, messages: {}, errors: {}, outage responses: {}",
+                batches.sum(), messages.sum(), errors.sum(), outageResponses.sum());
+    }
+
+    private class BatchServlet extends HttpServlet {
+
+        @Override
+        protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+            long receivedAt = System.nanoTime();
+            byte[] body;
+            try (InputStream is = BatchCompression.decompressing(req.getInputStream(),
+                    req.getHeader(BatchCompression.CONTENT_ENCODING)))
+            {
+                body = Util.readMessageBody(is, Integer.MAX_VALUE);
+            }
+            batches.increment();
+
+            long outageLeft = outages.remainingNanos(receivedAt - startNanos);
+            if (outageLeft > 0) {
+                outageResponses.increment();
+                respond(req, resp, outageHang ? outageLeft : 0, HttpServletResponse.SC_SERVICE_UNAVAILABLE, null);
+                return;
+            }
+
+            byte[] response = echo(body);
+            if (response == null) {
+                resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+                return;
+            }
+
+            long delay = latencyNanos + (long) (nanosPerByte * body.length);
+            if (latencyJitterNanos > 0) {
+                delay += ThreadLocalRandom.current().nextLong(latencyJitterNanos + 1);
+            }
+            if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+                errors.increment();
+                respond(req, resp, delay, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, null);
+                return;
+            }
+            respond(req, resp, delay, HttpServletResponse.SC_OK, response);
+        }
+
+        /**
+         * Пишет ответ сразу или через {@code delayNanos}, не занимая поток jetty на время задержки
+         */
+        private void respond(HttpServletRequest req, HttpServletResponse resp, long delayNanos, int status,
+                             byte[] data) throws IOException
+        {
+            if (delayNanos <= 0) {
+                write(resp, status, data);
+                return;
+            }
+            AsyncContext asyncContext = req.startAsync();
+            // Время ответа ограничивает прокси своим таймаутом чтения
+            asyncContext.setTimeout(0);
+            scheduler.schedule(() -> asyncContext.start(() -> {
+                try {
+                    write(resp, status, data);
+                } catch (IOException e) {
+                    log.debug("Failed to write stub response", e);
+                } finally {
+                    asyncContext.complete();
+                }
+            }), delayNanos, TimeUnit.NANOSECONDS);
+        }
+
+        private void write(HttpServletResponse resp, int status, byte[] data) throws IOException {
+            resp.setStatus(status);
+            if (data == null) {
+                return;
+            }
+            resp.setContentLength(data.length);
+            try (OutputStream os = resp.getOutputStream()) {
+                os.write(data);
+            }
+        }
+
+        /**
+         * Ответ на батч: для каждого сообщения 4 байта размер и его данные. Если батч обрезан - null.
+         */
+        private byte[] echo(byte[] body) {
+            ByteBuffer input = ByteBuffer.wrap(body);
+            // Заголовок ответа короче заголовка сообщения, поэтому ответ не больше батча
+            ByteBuffer output = ByteBuffer.allocate(body.length);
+            int count = 0;
+            while (input.hasRemaining()) {
+                if (input.remaining() < BATCH_HEADER_SIZE) {
+                    return null;
+                }
+                input.getLong();
+                int length = input.getInt();
+                if (length < 0 || length > input.remaining()) {
+                    return null;
+                }
+                output.putInt(length);
+                output.put(body, input.position(), length);
+                input.position(input.position() + length);
+                count++;
+            }
+            messages.add(count);
+            return Arrays.copyOf(output.array(), output.position());
+        }
+    }
+
+    /**
+     * Расписание недоступности сервиса
+     */
+    static class OutageSchedule {
+
+        private final long[] starts;
+        private final long[] ends;
+        private final long periodNanos;
+
+        private OutageSchedule(long[] starts, long[] ends, long periodNanos) {
+            this.starts = starts;
+            this.ends = ends;
+            this.periodNanos = periodNanos;
+        }
+
+        /**
+         * @param spec {@code <начало, с>:<длительность, с>} через запятую, пустая строка - без недоступности
+         * @param periodSec период повторения расписания, 0 - без повторения
+         */
+        static OutageSchedule parse(String spec, long periodSec) {
+            List<long[]> windows = new ArrayList<>();
+            for (String part : spec.split(",")) {
+                if (part.trim().isEmpty()) {
+                    continue;
+                }
+                String[] bounds = part.trim().split(":");
+                if (bounds.length != 2) {
+                    throw new IllegalArgumentException("Invalid outage: " + part + ". Expected <start>:<duration>");
+                }
+                long start = TimeUnit.SECONDS.toNanos(Long.parseLong(bounds[0]));
+                long duration = TimeUnit.SECONDS.toNanos(Long.parseLong(bounds[1]));
+                windows.add(new long[] { start, start + duration });
+            }
+            long[] starts = new long[windows.size()];
+            long[] ends = new long[windows.size()];
+            for (int i = 0; i < windows.size(); i++) {
+                starts[i] = windows.get(i)[0];
+                ends[i] = windows.get(i)[1];
+            }
+            return new OutageSchedule(starts, ends, TimeUnit.SECONDS.toNanos(periodSec));
+        }
+
+        /**
+         * @param elapsedNanos время от запуска сервиса
+         * @return сколько еще продлится текущая недоступность или 0, если сервис доступен
+         */
+        long remainingNanos(long elapsedNanos) {
+            long time = periodNanos > 0 ? elapsedNanos % periodNanos : elapsedNanos;
+            for (int i = 0; i < starts.length; i++) {
+                if (time >= starts[i] && time < ends[i]) {
+                    return ends[i] - time;
+                }
+            }
+            return 0;
+        }
+
+        @Override
+        public String toString() {
+            if (starts.length == 0) {
+                return "none";
+            }
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < starts.length; i++) {
+                sb.append(i > 0 ? "," : "").append(TimeUnit.NANOSECONDS.toSeconds(starts[i])).append(':')
+                        .append(TimeUnit.NANOSECONDS.toSeconds(ends[i] - starts[i]));
+            }
+            if (periodNanos > 0) {
+                sb.append(" every ").append(TimeUnit.NANOSECONDS.toSeconds(periodNanos)).append(" s");
+            }
+            return sb.toString();
+        }
+    }
+}
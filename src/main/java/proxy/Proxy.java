@@ -2,15 +2,36 @@ package proxy;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import proxy.api.MessageProxy;
 import proxy.api.ServiceCall;
 import proxy.api.ServiceRetry;
 import proxy.impl.AsyncProxy;
+import proxy.impl.AsyncProxyConfig;
+import proxy.impl.Backoff;
+import proxy.impl.BatchCompression;
+import proxy.impl.BatchPolicy;
 import proxy.impl.BlockingHttpCall;
+import proxy.impl.LoadBalancedCall;
+import proxy.impl.CircuitBreaker;
+import proxy.impl.CollapsingProxy;
+import proxy.impl.ExecutorServiceCall;
 import proxy.impl.NoServiceCall;
+import proxy.impl.PooledHttpCall;
+import proxy.impl.RetryBudget;
+import proxy.impl.RingBufferQueue;
 import proxy.impl.ServiceRetrySupport;
+import proxy.impl.ShardKeys;
+import proxy.util.ByteBufferPool;
 import proxy.util.Util;
+import proxy.util.VirtualThreads;
+import proxy.web.MessageServlet;
 import proxy.web.WebServer;
 
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Optional;
 
@@ -21,17 +42,66 @@ public class Proxy {
     public static final int SERVICE_WAIT_TIME_MS_DEFAULT = 10_000;
     public static final int TIME_BETWEEN_SERVICE_CALL_MS_DEFAULT = 100;
 
+    public static final int CIRCUIT_FAILURE_THRESHOLD_DEFAULT = 10;
+    public static final long CIRCUIT_OPEN_MS_DEFAULT = 1_000;
+    public static final long CIRCUIT_RAMP_UP_MS_DEFAULT = 5_000;
+
+    public static final double RETRY_BACKOFF_MULTIPLIER_DEFAULT = 2;
+    public static final double RETRY_JITTER_DEFAULT = 0.5;
+    public static final double RETRY_BUDGET_RATIO_DEFAULT = 0.2;
+    public static final int RETRY_BUDGET_MIN_PER_SECOND_DEFAULT = 10;
+
     public static final int MAX_JETTY_THREADS = 8;
     public static final int MIN_JETTY_THREADS = 2;
 
     public static final int SERVICE_CALL_IO_THREADS_DEFAULT = 4;
 
+    /**
+     * Максимальное количество батчей, одновременно отправленных сервису, для неблокирующего клиента
+     */
+    public static final int MAX_IN_FLIGHT_BATCHES_DEFAULT = 64;
+
+    public static final String SERVICE_CALL_BLOCKING = "blocking";
+    public static final String SERVICE_CALL_POOLED = "pooled";
+    public static final String SERVICE_CALL_HTTP2 = "http2";
+
+    public static final String THREADS_PLATFORM = "platform";
+    public static final String THREADS_VIRTUAL = "virtual";
+
+    /**
+     * Максимальное количество батчей "в полете" и потоков jetty на виртуальных потоках: блокирующий вызов
+     * сервиса занимает только виртуальный поток, поэтому ограничение задает лишь защиту от перегрузки
+     */
+    public static final int VIRTUAL_MAX_IN_FLIGHT_BATCHES_DEFAULT = 4_096;
+    public static final int VIRTUAL_MAX_JETTY_THREADS = 10_000;
+
+    /**
+     * Время исключения экземпляра сервиса из балансировки после коммуникационной ошибки
+     */
+    public static final long EJECT_TIME_MS_DEFAULT = 5_000;
+
+    /**
+     * Минимальный размер батча, который сжимается при отправке сервису
+     */
+    public static final long COMPRESSION_THRESHOLD_DEFAULT = 64 * 1024;
+
+    /**
+     * Интервал, в течение которого время ожидания в очереди должно хотя бы раз опуститься до codelTargetMs
+     */
+    public static final long CODEL_INTERVAL_MS_DEFAULT = 100;
+
+    public static final int RESPONSE_CACHE_MAX_ENTRIES_DEFAULT = 10_000;
+    public static final long RESPONSE_CACHE_MAX_BYTES_DEFAULT = 16 * 1024 * 1024;
+
     private static final int SERVICE_CALL_QUEUE_MAX_SIZE_DEFAULT = 10_000;
 
     private static final Logger log = LoggerFactory.getLogger(Proxy.class);
     public static final String PROXY_DEFAULT_PATH = "/message";
 
+    private final ServiceCall serviceCall;
+    private final ServiceRetry serviceRetry;
     private final AsyncProxy asyncProxy;
+    private final MessageProxy messageProxy;
     private final WebServer webServer;
 
     public static void main(String[] argv) {
@@ -48,15 +118,44 @@ public class Proxy {
 
         // Реализуем корректное завершение процесса, что позволит, например, корректно завершаться при SIGTERM
         Runtime.getRuntime().addShutdownHook(new Thread(proxy::dispose));
+
+        // Виртуальные потоки - daemon, поэтому процесс не должен завершаться вместе с main
+        try {
+            proxy.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 
     public Proxy(Map<String, String> args) {
 
+        // Адрес сервиса или несколько адресов его экземпляров через запятую
         String serviceUrl = args.get("serviceUrl");
 
+        // Потоки io, вызовов сервиса и jetty: platform - обычные, virtual - виртуальные (Java 21+)
+        String threads = args.getOrDefault("threads", THREADS_PLATFORM);
+        boolean virtual = THREADS_VIRTUAL.equals(threads);
+        if (!virtual && !THREADS_PLATFORM.equals(threads)) {
+            throw new IllegalArgumentException("Unknown threads mode: " + threads);
+        }
+        if (virtual && !VirtualThreads.isAvailable()) {
+            throw new IllegalArgumentException("Virtual threads require Java 21 or later, but running on "
+                    + System.getProperty("java.version"));
+        }
+
         int batchSize = Optional.ofNullable(args.get("batchSize")).map(Integer::parseInt)
                 .orElse(BATCH_SIZE_DEFAULT);
 
+        // Максимальный размер батча в байтах. Если 0 - не ограничен.
+        long maxBatchBytes = Optional.ofNullable(args.get("maxBatchBytes")).map(Long::parseLong).orElse(0L);
+
+        // Максимальное время ожидания сообщений для неполного батча в мс. Если 0 - батч отправляется сразу.
+        long lingerMs = Optional.ofNullable(args.get("lingerMs")).map(Long::parseLong).orElse(0L);
+
+        // Целевая латентность в мс - ограничивает ожидание неполного батча с учетом времени ответа сервиса.
+        // Если 0 - не учитывается.
+        long targetLatencyMs = Optional.ofNullable(args.get("targetLatencyMs")).map(Long::parseLong).orElse(0L);
+
         // Количество ретраев сервисе без ожидания
         int serviceWaitThreshold = Optional.ofNullable(args.get("serviceWaitThreshold")).map(Integer::parseInt)
                 .orElse(SERVICE_WAIT_THRESHOLD_DEFAULT);
@@ -69,36 +168,217 @@ public class Proxy {
         int timeBetweenServiceCallMs = Optional.ofNullable(args.get("timeBetweenServiceCallMs")).map(Integer::parseInt)
                 .orElse(TIME_BETWEEN_SERVICE_CALL_MS_DEFAULT);
 
+        // Количество неудачных попыток подряд (всех io-потоков), после которого вызовы сервиса прекращаются.
+        // Если 0 - автомат защиты не используется.
+        int circuitFailureThreshold = Optional.ofNullable(args.get("circuitFailureThreshold")).map(Integer::parseInt)
+                .orElse(CIRCUIT_FAILURE_THRESHOLD_DEFAULT);
+
+        // Время до пробного вызова после прекращения вызовов
+        long circuitOpenMs = Optional.ofNullable(args.get("circuitOpenMs")).map(Long::parseLong)
+                .orElse(CIRCUIT_OPEN_MS_DEFAULT);
+
+        // Время постепенного восстановления нагрузки на сервис после успешного пробного вызова
+        long circuitRampUpMs = Optional.ofNullable(args.get("circuitRampUpMs")).map(Long::parseLong)
+                .orElse(CIRCUIT_RAMP_UP_MS_DEFAULT);
+
+        // Рост задержки между попытками после порога, 1 - постоянная задержка
+        double retryBackoffMultiplier = Optional.ofNullable(args.get("retryBackoffMultiplier"))
+                .map(Double::parseDouble).orElse(RETRY_BACKOFF_MULTIPLIER_DEFAULT);
+
+        // Максимальная задержка между попытками. Если 0 - ограничена только временем ожидания сервиса.
+        long retryMaxDelayMs = Optional.ofNullable(args.get("retryMaxDelayMs")).map(Long::parseLong).orElse(0L);
+
+        // Доля задержки, на которую она случайно уменьшается
+        double retryJitter = Optional.ofNullable(args.get("retryJitter")).map(Double::parseDouble)
+                .orElse(RETRY_JITTER_DEFAULT);
+
+        // Допустимое отношение повторных попыток к первым (по всем батчам). Если 0 - не ограничено.
+        double retryBudgetRatio = Optional.ofNullable(args.get("retryBudgetRatio")).map(Double::parseDouble)
+                .orElse(RETRY_BUDGET_RATIO_DEFAULT);
+
+        // Количество повторных попыток в секунду, разрешенных сверх бюджета
+        int retryBudgetMinPerSecond = Optional.ofNullable(args.get("retryBudgetMinPerSecond")).map(Integer::parseInt)
+                .orElse(RETRY_BUDGET_MIN_PER_SECOND_DEFAULT);
+
         int minJettyThreads = Optional.ofNullable(args.get("minJettyThreads")).map(Integer::parseInt)
                 .orElse(MIN_JETTY_THREADS);
         int maxJettyThreads = Optional.ofNullable(args.get("maxJettyThreads")).map(Integer::parseInt)
-                .orElse(MAX_JETTY_THREADS);
+                .orElse(virtual ? VIRTUAL_MAX_JETTY_THREADS : MAX_JETTY_THREADS);
 
         int port = Optional.ofNullable(args.get("port")).map(Integer::parseInt).orElse(8080);
 
         String proxyPath = args.getOrDefault("proxyPath", PROXY_DEFAULT_PATH);
 
+        // Максимальный размер тела запроса клиента в байтах
+        int maxMessageSize = Optional.ofNullable(args.get("maxMessageSize")).map(Integer::parseInt)
+                .orElse(MessageServlet.MESSAGE_MAX_SIZE_BYTES);
+
         int ioThreads = Optional.ofNullable(args.get("ioThreads")).map(Integer::parseInt)
                 .orElse(SERVICE_CALL_IO_THREADS_DEFAULT);
         int maxMessageQueueSize = Optional.ofNullable(args.get("maxMessageQueueSize")).map(Integer::parseInt)
                 .orElse(SERVICE_CALL_QUEUE_MAX_SIZE_DEFAULT);
 
-        ServiceCall serviceCall = serviceUrl != null
-                ? new BlockingHttpCall(serviceUrl, serviceWaitTimeMs, serviceWaitTimeMs)
-                : new NoServiceCall();
+        // Максимальный суммарный размер сообщений в очереди и у сервиса в байтах. По умолчанию - четверть heap.
+        // Если 0 - не ограничен.
+        long maxQueueBytes = Optional.ofNullable(args.get("maxQueueBytes")).map(Long::parseLong)
+                .orElse(Runtime.getRuntime().maxMemory() / 4);
+
+        // Доли заполненности heap: выше heapHighWatermark лимит maxQueueBytes снижается, ниже heapLowWatermark -
+        // восстанавливается. Если 0 - заполненность heap не учитывается.
+        double heapHighWatermark = Optional.ofNullable(args.get("heapHighWatermark")).map(Double::parseDouble)
+                .orElse(0.0);
+        double heapLowWatermark = Optional.ofNullable(args.get("heapLowWatermark")).map(Double::parseDouble)
+                .orElse(heapHighWatermark * 0.8);
+
+        // Каталог очереди на диске для сообщений, не поместившихся в память, и снимка очереди при остановке.
+        // Если не задан - такие сообщения отклоняются.
+        String spillDir = args.get("spillDir");
+        // Максимальный размер очереди на диске в байтах. Если 0 - не ограничен.
+        long maxSpillBytes = Optional.ofNullable(args.get("maxSpillBytes")).map(Long::parseLong).orElse(0L);
+
+        // Реализация очереди сообщений: linked - LinkedBlockingQueue, ring - неблокирующий кольцевой буфер,
+        // fair - отдельная очередь для каждого клиента (заголовок X-Client-Id или адрес) с равной долей в батчах,
+        // sharded - очередь на каждый io-поток с доставкой сообщений одного ключа (shardKey) по порядку
+        AsyncProxyConfig.QueueType queueType = AsyncProxyConfig.QueueType.valueOf(
+                args.getOrDefault("queue", "linked").toUpperCase(Locale.ROOT));
+
+        // Максимальное количество сообщений одного клиента в очереди fair. По умолчанию - четверть очереди.
+        int maxClientQueueSize = Optional.ofNullable(args.get("maxClientQueueSize")).map(Integer::parseInt)
+                .orElse(Math.max(1, maxMessageQueueSize / 4));
+
+        // Веса клиентов в очереди fair в формате client1:2,client2:3. Вес остальных - 1.
+        Map<String, Integer> clientWeights = new HashMap<>();
+        for (String weight : args.getOrDefault("clientWeights", "").split(",")) {
+            int separator = weight.lastIndexOf(':');
+            if (separator > 0) {
+                clientWeights.put(weight.substring(0, separator).trim(),
+                        Integer.parseInt(weight.substring(separator + 1).trim()));
+            }
+        }
+
+        // Заголовок запроса с идентификатором клиента. Если в запросе не задан - адрес клиента.
+        String clientIdHeader = args.getOrDefault("clientIdHeader", MessageServlet.CLIENT_ID_HEADER);
+
+        // Ключ порядка доставки в очереди sharded: client - идентификатор клиента, body:<offset>:<length> - байты
+        // тела сообщения
+        String shardKey = args.getOrDefault("shardKey", "client");
+
+        // Допустимое время ожидания в перегруженной очереди в мс - сообщения, ждавшие дольше, сбрасываются
+        // с ответом 503. Если 0 - сообщения из очереди не сбрасываются.
+        long codelTargetMs = Optional.ofNullable(args.get("codelTargetMs")).map(Long::parseLong).orElse(0L);
+        long codelIntervalMs = Optional.ofNullable(args.get("codelIntervalMs")).map(Long::parseLong)
+                .orElse(CODEL_INTERVAL_MS_DEFAULT);
 
-        ServiceRetry serviceRetry = new ServiceRetrySupport(serviceCall,
+        // Пул буферов тел сообщений и ответов сервиса: прямые (вне heap) или обычные буферы, максимальный размер
+        // буфера, возвращаемого в пул, и максимальный суммарный размер свободных буферов в пуле
+        boolean bufferPoolDirect = Boolean.parseBoolean(args.getOrDefault("bufferPoolDirect", "false"));
+        int bufferPoolMaxPooledSize = Optional.ofNullable(args.get("bufferPoolMaxPooledSize")).map(Integer::parseInt)
+                .orElse(ByteBufferPool.MAX_POOLED_SIZE_DEFAULT);
+        long bufferPoolMaxBytes = Optional.ofNullable(args.get("bufferPoolMaxBytes")).map(Long::parseLong)
+                .orElse(ByteBufferPool.MAX_POOLED_BYTES_DEFAULT);
+        ByteBufferPool.setDefault(new ByteBufferPool(bufferPoolDirect, bufferPoolMaxPooledSize, bufferPoolMaxBytes));
+
+        // Ожидание io-потоков на пустой очереди ring: park, spin (spin-then-park) или yield
+        String waitStrategyName = args.getOrDefault("waitStrategy", "park").toUpperCase(Locale.ROOT);
+        RingBufferQueue.WaitStrategy waitStrategy = "SPIN".equals(waitStrategyName)
+                ? RingBufferQueue.WaitStrategy.SPIN_THEN_PARK
+                : RingBufferQueue.WaitStrategy.valueOf(waitStrategyName);
+
+        // Тип клиента сервиса: blocking - HttpURLConnection на каждый батч, pooled - неблокирующий jetty клиент
+        // с пулом keep-alive соединений, http2 - неблокирующий jetty клиент, батчи передаются параллельно по одному
+        // соединению HTTP/2 без TLS (h2c)
+        String serviceCallType = args.getOrDefault("serviceCall", SERVICE_CALL_BLOCKING);
+        boolean http2 = SERVICE_CALL_HTTP2.equals(serviceCallType);
+        boolean pooled = http2 || SERVICE_CALL_POOLED.equals(serviceCallType);
+        if (!pooled && !SERVICE_CALL_BLOCKING.equals(serviceCallType)) {
+            throw new IllegalArgumentException("Unknown service call type: " + serviceCallType);
+        }
+
+        // Для блокирующего клиента на обычных потоках количество батчей "в полете" ограничено количеством
+        // io-потоков
+        int maxInFlightBatches = Optional.ofNullable(args.get("maxInFlightBatches")).map(Integer::parseInt)
+                .orElse(virtual ? VIRTUAL_MAX_IN_FLIGHT_BATCHES_DEFAULT
+                        : pooled ? MAX_IN_FLIGHT_BATCHES_DEFAULT : ioThreads);
+        // Подстраивать количество батчей "в полете" и размер батча под время ответа сервиса (в пределах
+        // maxInFlightBatches и batchSize)
+        boolean adaptiveLimit = Boolean.parseBoolean(args.getOrDefault("adaptiveLimit", "false"));
+
+        // Выбор экземпляра сервиса для батча: least-outstanding или peak-ewma
+        LoadBalancedCall.Strategy balancer = LoadBalancedCall.Strategy.valueOf(
+                args.getOrDefault("balancer", "least-outstanding").replace('-', '_').toUpperCase(Locale.ROOT));
+        long ejectTimeMs = Optional.ofNullable(args.get("ejectTimeMs")).map(Long::parseLong)
+                .orElse(EJECT_TIME_MS_DEFAULT);
+
+        // Уровень сжатия батчей (deflate) от 1 до 9. Если 0 - батчи не сжимаются.
+        int compressionLevel = Optional.ofNullable(args.get("compressionLevel")).map(Integer::parseInt).orElse(0);
+        long compressionThreshold = Optional.ofNullable(args.get("compressionThreshold")).map(Long::parseLong)
+                .orElse(COMPRESSION_THRESHOLD_DEFAULT);
+        BatchCompression compression = compressionLevel > 0
+                ? new BatchCompression(compressionLevel, compressionThreshold)
+                : null;
+
+        if (serviceUrl == null) {
+            serviceCall = new NoServiceCall();
+        } else {
+            List<ServiceCall> endpoints = new ArrayList<>();
+            for (String url : serviceUrl.split(",")) {
+                endpoints.add(pooled
+                        ? new PooledHttpCall(url.trim(), serviceWaitTimeMs, serviceWaitTimeMs, maxInFlightBatches,
+                                compression, http2)
+                        : new BlockingHttpCall(url.trim(), serviceWaitTimeMs, serviceWaitTimeMs, compression));
+            }
+            ServiceCall call = endpoints.size() == 1
+                    ? endpoints.get(0)
+                    : LoadBalancedCall.create(endpoints, balancer, ejectTimeMs);
+            // Блокирующие вызовы - каждый в своем виртуальном потоке, не занимая io-потоки
+            serviceCall = virtual && !pooled
+                    ? new ExecutorServiceCall(call, VirtualThreads.executor("service-call-"))
+                    : call;
+        }
+
+        serviceRetry = new ServiceRetrySupport(serviceCall,
                 serviceWaitThreshold,
                 serviceWaitTimeMs,
-                timeBetweenServiceCallMs);
+                timeBetweenServiceCallMs,
+                circuitFailureThreshold > 0
+                        ? new CircuitBreaker(circuitFailureThreshold, circuitOpenMs, circuitRampUpMs)
+                        : null,
+                new Backoff(retryBackoffMultiplier, retryMaxDelayMs, retryJitter),
+                retryBudgetRatio > 0 ? new RetryBudget(retryBudgetRatio, retryBudgetMinPerSecond) : null,
+                maxMessageSize);
+
+        asyncProxy = new AsyncProxy(serviceRetry, new AsyncProxyConfig()
+                .ioThreads(ioThreads)
+                .messageQueueLimit(maxMessageQueueSize)
+                .batchPolicy(new BatchPolicy(batchSize, maxBatchBytes, lingerMs, targetLatencyMs))
+                .maxInFlightBatches(maxInFlightBatches)
+                .adaptiveLimit(adaptiveLimit)
+                .ioThreadFactory(virtual ? VirtualThreads.factory("proxy-io-") : Thread::new)
+                .queueType(queueType)
+                .fairQueue(maxClientQueueSize, clientWeights)
+                .shardKey(ShardKeys.parse(shardKey))
+                .codel(codelTargetMs, codelIntervalMs)
+                .waitStrategy(waitStrategy)
+                .maxQueueBytes(maxQueueBytes)
+                .heapWatermarks(heapLowWatermark, heapHighWatermark)
+                .spill(spillDir != null ? Paths.get(spillDir) : null, maxSpillBytes));
 
-        asyncProxy = new AsyncProxy(
-                serviceRetry,
-                ioThreads,
-                maxMessageQueueSize,
-                batchSize);
+        // Одинаковые сообщения, ожидающие ответа сервиса, отправляются один раз
+        boolean collapseMessages = Boolean.parseBoolean(args.getOrDefault("collapseMessages", "false"));
+        // Время жизни успешных ответов в кэше по телу сообщения в мс. Если 0 - ответы не кэшируются.
+        long responseCacheTtlMs = Optional.ofNullable(args.get("responseCacheTtlMs")).map(Long::parseLong)
+                .orElse(0L);
+        int responseCacheMaxEntries = Optional.ofNullable(args.get("responseCacheMaxEntries"))
+                .map(Integer::parseInt).orElse(RESPONSE_CACHE_MAX_ENTRIES_DEFAULT);
+        long responseCacheMaxBytes = Optional.ofNullable(args.get("responseCacheMaxBytes")).map(Long::parseLong)
+                .orElse(RESPONSE_CACHE_MAX_BYTES_DEFAULT);
+        messageProxy = collapseMessages || responseCacheTtlMs > 0
+                ? new CollapsingProxy(asyncProxy, collapseMessages, responseCacheTtlMs, responseCacheMaxEntries,
+                        responseCacheMaxBytes)
+                : asyncProxy;
 
-        webServer = new WebServer(port, proxyPath, minJettyThreads, maxJettyThreads, asyncProxy);
+        webServer = new WebServer(port, proxyPath, minJettyThreads, maxJettyThreads, messageProxy, maxMessageSize,
+                virtual ? VirtualThreads.factory("jetty-") : null, clientIdHeader);
     }
 
     public void start() throws InterruptedException {
@@ -110,6 +390,13 @@ public class Proxy {
         }
     }
 
+    /**
+     * Ожидает остановки web сервера.
+     */
+    public void join() throws InterruptedException {
+        webServer.join();
+    }
+
     public void dispose() {
         log.info("Disposing proxy");
 
@@ -126,5 +413,19 @@ public class Proxy {
         } catch (InterruptedException e) {
             log.error("Failed to wait for async proxy disposing. The shutdown thread was interrupted");
         }
+
+        close(this.messageProxy);
+        close(this.serviceRetry);
+        close(this.serviceCall);
+    }
+
+    private static void close(Object resource) {
+        if (resource instanceof AutoCloseable) {
+            try {
+                ((AutoCloseable) resource).close();
+            } catch (Exception e) {
+                log.error("Failed to close {}", resource, e);
+            }
+        }
     }
 }
@@ -0,0 +1,50 @@
+package proxy.api;
+
+import proxy.model.BatchBody;
+import proxy.model.ServiceResponse;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Асинхронный вызов сервиса. В отличие от {@link ServiceCall} не занимает вызывающий поток на время
+ * обращения к сервису, результат (или ошибка) будет доставлен в будущем.
+ *
+ * <p>Коммуникационные ошибки должны завершать футуру исключением {@link java.io.IOException} - по аналогии с
+ * {@link ServiceCall#call(byte[])}, только такие ошибки будут ретраиться.
+ *
+ * @author rushan
+ */
+@FunctionalInterface
+public interface AsyncServiceCall {
+    CompletableFuture<ServiceResponse> callAsync(byte[] data);
+
+    /**
+     * Асинхронный вызов с батч-телом, см. {@link ServiceCall#call(BatchBody)}.
+     */
+    default CompletableFuture<ServiceResponse> callAsync(BatchBody body) {
+        return callAsync(body.toByteArray());
+    }
+
+    /**
+     * Асинхронный вызов с потоковой передачей ответа, см. {@link ServiceCall#call(BatchBody, BatchResponseConsumer)}.
+     * Футура завершается после передачи в {@code consumer} последней части ответа.
+     */
+    default CompletableFuture<Void> callAsync(BatchBody body, BatchResponseConsumer consumer) {
+        return callAsync(body).thenCompose(response -> {
+            CompletableFuture<Void> result = new CompletableFuture<>();
+            try {
+                consumer.onStatus(response.getStatus());
+                consumer.onContent(response.getPayload());
+                result.complete(null);
+            } catch (IOException e) {
+                // Ошибка статуса или разбора ответа - как коммуникационная, без обертки
+                result.completeExceptionally(e);
+            } finally {
+                response.release();
+            }
+            return result;
+        });
+    }
+}
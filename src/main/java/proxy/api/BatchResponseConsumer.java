@@ -0,0 +1,30 @@
+package proxy.api;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Получатель батч-ответа сервиса по мере его поступления из сети: сначала статус, затем тело частями.
+ *
+ * <p>Буфер, переданный в {@link #onContent(ByteBuffer)}, действителен только во время вызова - получатель
+ * должен забрать из него данные до возврата.
+ *
+ * @author rushan
+ */
+public interface BatchResponseConsumer {
+
+    /**
+     * @throws IOException если статус не успешный - тело ответа не батч-ответ (например, страница ошибки прокси
+     *                     или балансировщика перед сервисом)
+     */
+    void onStatus(int status) throws IOException;
+
+    /**
+     * Размер тела ответа, если он известен до получения тела. Вызывается до {@link #onStatus(int)}, но не
+     * вызывается для сжатого ответа - размер сжатого тела ничего не говорит о размере данных.
+     */
+    default void onContentLength(long contentLength) {
+    }
+
+    void onContent(ByteBuffer chunk) throws IOException;
+}
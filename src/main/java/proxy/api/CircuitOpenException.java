@@ -0,0 +1,13 @@
+package proxy.api;
+
+/**
+ * Вызов сервиса не выполнялся: цепь разомкнута после серии неудачных вызовов, сервис считается недоступным.
+ *
+ * @author rushan
+ */
+public class CircuitOpenException extends ServiceNotAvailableException {
+
+    public CircuitOpenException(long timeMs, int retryCount, Throwable cause) {
+        super(timeMs, retryCount, cause);
+    }
+}
@@ -0,0 +1,46 @@
+package proxy.api;
+
+import proxy.model.Message;
+import proxy.model.ServiceResponse;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Асинхронная отправка сообщения клиента проксируемому сервису.
+ *
+ * @author rushan
+ */
+@FunctionalInterface
+public interface MessageProxy {
+
+    /**
+     * Отправить асинхронно сообщение проксируемому сервису.
+     *
+     * @param message сообщение, которое должно быть отправлено проксируемому сервису
+     * @return будущий результат с ответом сервиса
+     * @throws MessageRejectedException если сообщение отклонено из-за превышения размеров очереди
+     */
+    CompletableFuture<ServiceResponse> message(Message message) throws MessageRejectedException;
+
+    /**
+     * Отправить асинхронно пакет сообщений. Пакет не отклоняется целиком: футура отклоненного сообщения
+     * завершается {@link MessageRejectedException}.
+     *
+     * @return футуры ответов в порядке сообщений
+     */
+    default List<CompletableFuture<ServiceResponse>> messages(List<Message> messages) {
+        List<CompletableFuture<ServiceResponse>> futures = new ArrayList<>(messages.size());
+        for (Message message : messages) {
+            try {
+                futures.add(message(message));
+            } catch (MessageRejectedException e) {
+                CompletableFuture<ServiceResponse> rejected = new CompletableFuture<>();
+                rejected.completeExceptionally(e);
+                futures.add(rejected);
+            }
+        }
+        return futures;
+    }
+}
@@ -0,0 +1,12 @@
+package proxy.api;
+
+/**
+ * Сообщение уже принятое в очередь сброшено до отправки сервису: очередь перегружена и сообщение ждало в ней
+ * слишком долго (см. {@link proxy.impl.CoDel}). В отличие от {@link MessageRejectedException}, которым сообщение
+ * отклоняется при приеме, завершает футуру сообщения.
+ */
+public class MessageShedException extends MessageRejectedException {
+    public MessageShedException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,21 @@
+package proxy.api;
+
+import proxy.model.ServiceResponse;
+
+/**
+ * Получатель ответов на отдельные сообщения батча. Вызывается сразу, как только ответ на сообщение полностью
+ * получен от сервиса, не дожидаясь остальной части батч-ответа.
+ *
+ * <p>При повторной отправке батча (retry) ответ на одно и то же сообщение может быть доставлен повторно.
+ *
+ * @author rushan
+ */
+@FunctionalInterface
+public interface ResponseListener {
+
+    /**
+     * @param index    индекс сообщения в батче
+     * @param response ответ сервиса на это сообщение
+     */
+    void onResponse(int index, ServiceResponse response);
+}
@@ -1,8 +1,10 @@
 package proxy.api;
 
+import proxy.model.BatchBody;
 import proxy.model.ServiceResponse;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * Синхронный вызов сервиса.
@@ -10,4 +12,26 @@ import java.io.IOException;
 @FunctionalInterface
 public interface ServiceCall {
     ServiceResponse call(byte[] data) throws IOException;
+
+    /**
+     * Вызов с батч-телом. Реализация по умолчанию собирает тело в один массив, реализации, умеющие потоковую
+     * отправку, должны переопределить этот метод. Тело может быть передано повторно при retry.
+     */
+    default ServiceResponse call(BatchBody body) throws IOException {
+        return call(body.toByteArray());
+    }
+
+    /**
+     * Вызов с потоковой передачей ответа в {@code consumer} по мере его получения. Реализация по умолчанию
+     * дожидается всего ответа и передает его одной частью.
+     */
+    default void call(BatchBody body, BatchResponseConsumer consumer) throws IOException {
+        ServiceResponse response = call(body);
+        try {
+            consumer.onStatus(response.getStatus());
+            consumer.onContent(response.getPayload());
+        } finally {
+            response.release();
+        }
+    }
 }
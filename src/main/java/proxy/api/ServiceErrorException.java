@@ -0,0 +1,22 @@
+package proxy.api;
+
+/**
+ * Сервис ответил статусом ошибки, который не исправится повторной отправкой того же запроса (например, 400 -
+ * неправильно сформирован запрос, 401 - нужен корректный токен). Не коммуникационная ошибка: вызов не ретраится,
+ * а сервис считается доступным.
+ *
+ * @author rushan
+ */
+public class ServiceErrorException extends RuntimeException {
+
+    private final int status;
+
+    public ServiceErrorException(int status, String message) {
+        super(message);
+        this.status = status;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+}
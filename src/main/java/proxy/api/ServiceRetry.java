@@ -5,6 +5,7 @@ import proxy.model.ServiceResponse;
 
 import java.io.IOException;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * @author rushan
@@ -12,4 +13,39 @@ import java.util.List;
 @FunctionalInterface
 public interface ServiceRetry {
     List<ServiceResponse> call(List<Message> messages) throws IOException, ServiceNotAvailableException;
+
+    /**
+     * Асинхронный вариант {@link #call(List)}. Реализация по умолчанию выполняет синхронный вызов в текущем потоке
+     * и возвращает уже завершенную футуру.
+     */
+    default CompletableFuture<List<ServiceResponse>> callAsync(List<Message> messages) {
+        CompletableFuture<List<ServiceResponse>> result = new CompletableFuture<>();
+        try {
+            result.complete(call(messages));
+        } catch (Exception e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    /**
+     * Асинхронный вызов, при котором ответы на отдельные сообщения передаются в {@code listener} по мере их
+     * получения. Футура завершается, когда получен весь батч-ответ. Реализация по умолчанию передает ответы
+     * только после получения всего батча.
+     */
+    default CompletableFuture<Void> callAsync(List<Message> messages, ResponseListener listener) {
+        return callAsync(messages).thenAccept(responses -> {
+            for (int i = 0; i < responses.size(); i++) {
+                listener.onResponse(i, responses.get(i));
+            }
+        });
+    }
+
+    /**
+     * Доступен ли сервис по результатам последних вызовов. Используется, чтобы не отправлять сервису отложенные
+     * сообщения, пока он недоступен. Реализация по умолчанию считает сервис всегда доступным.
+     */
+    default boolean isServiceAvailable() {
+        return true;
+    }
 }
@@ -0,0 +1,189 @@
+package proxy.impl;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Адаптивное ограничение количества батчей, одновременно отправленных сервису, и целевого размера батча по
+ * времени ответа сервиса (градиентный алгоритм, аналогичный Gradient2 из Netflix concurrency-limits).
+ *
+ * <p>Время ответа на каждый батч сравнивается с долгосрочным скользящим средним. Пока оно не превышает среднее
+ * более чем в {@link #RTT_TOLERANCE} раз, лимит растет примерно на корень из текущего значения за батч, а при
+ * полных батчах растет и их размер. Когда время ответа растет - сервис начинает копить очередь - лимит
+ * уменьшается пропорционально росту (но не более чем вдвое за раз), а размер батча - в {@link #BACKOFF_RATIO} раз.
+ * Ошибка вызова уменьшает оба значения в {@link #BACKOFF_RATIO} раз. Изменения лимита сглаживаются
+ * ({@link #SMOOTHING}).
+ *
+ * <p>Вызывается один раз на батч, поэтому состояние защищено обычной блокировкой.
+ *
+ * @author rushan
+ */
+public class AdaptiveLimiter {
+
+    /**
+     * Во сколько раз время ответа может превышать долгосрочное среднее без снижения лимита
+     */
+    public static final double RTT_TOLERANCE = 1.5;
+
+    /**
+     * Множитель лимита и размера батча при росте времени ответа или ошибке
+     */
+    public static final double BACKOFF_RATIO = 0.9;
+
+    /**
+     * Вес нового значения лимита
+     */
+    public static final double SMOOTHING = 0.2;
+
+    /**
+     * Количество батчей, за которое в основном формируется долгосрочное среднее времени ответа
+     */
+    private static final int LONG_RTT_WINDOW = 100;
+    private static final double LONG_RTT_ALPHA = 2.0 / (LONG_RTT_WINDOW + 1);
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final int minBatchSize;
+    private final int maxBatchSize;
+    private final int batchSizeStep;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition slotAvailable = lock.newCondition();
+
+    private double limit;
+    private int inFlight;
+    private volatile int batchSize;
+    private double longRttNanos;
+
+    /**
+     * @param minLimit     минимальное количество батчей "в полете"
+     * @param maxLimit     максимальное количество батчей "в полете"
+     * @param minBatchSize минимальный целевой размер батча
+     * @param maxBatchSize максимальный целевой размер батча
+     */
+    public AdaptiveLimiter(int minLimit, int maxLimit, int minBatchSize, int maxBatchSize) {
+        if (minLimit < 1 || maxLimit < minLimit || minBatchSize < 1 || maxBatchSize < minBatchSize) {
+            throw new IllegalArgumentException("Expected 1 <= min <= max, but got limits " + minLimit + ".." + maxLimit
+                    + " and batch sizes " + minBatchSize + ".." + maxBatchSize);
+        }
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.minBatchSize = minBatchSize;
+        this.maxBatchSize = maxBatchSize;
+        this.batchSizeStep = Math.max(1, maxBatchSize / 64);
+
+        // Начинаем с малых значений - лимиты вырастут до возможностей сервиса
+        this.limit = minLimit;
+        this.batchSize = Math.max(minBatchSize, Math.min(maxBatchSize, batchSizeStep));
+    }
+
+    /**
+     * Ожидает, пока количество батчей "в полете" не станет меньше лимита, и занимает место под батч.
+     */
+    public void acquire() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (inFlight >= (int) limit) {
+                slotAvailable.await();
+            }
+            inFlight++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Освобождает место, если батч так и не был отправлен.
+     */
+    public void release() {
+        lock.lock();
+        try {
+            inFlight--;
+            slotAvailable.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Освобождает место батча и учитывает результат его отправки.
+     *
+     * @param rttNanos время от отправки батча до получения ответа
+     * @param size     количество сообщений в батче
+     * @param success  false, если вызов сервиса завершился ошибкой
+     */
+    public void onBatchCompleted(long rttNanos, int size, boolean success) {
+        lock.lock();
+        try {
+            inFlight--;
+            if (success) {
+                update(rttNanos, size);
+            } else {
+                limit = Math.max(minLimit, limit * BACKOFF_RATIO);
+                batchSize = Math.max(minBatchSize, (int) (batchSize * BACKOFF_RATIO));
+            }
+            slotAvailable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void update(long rttNanos, int size) {
+        double rtt = Math.max(rttNanos, 1);
+        if (longRttNanos == 0) {
+            longRttNanos = rtt;
+        } else {
+            longRttNanos += LONG_RTT_ALPHA * (rtt - longRttNanos);
+            // Время ответа заметно снизилось - быстрее забываем прежние высокие значения
+            if (longRttNanos / rtt > 2) {
+                longRttNanos *= 0.95;
+            }
+        }
+
+        double gradient = Math.max(0.5, Math.min(1.0, RTT_TOLERANCE * longRttNanos / rtt));
+        double newLimit = limit * gradient + Math.sqrt(limit);
+        limit = Math.max(minLimit, Math.min(maxLimit, limit * (1 - SMOOTHING) + newLimit * SMOOTHING));
+
+        if (gradient < 1.0) {
+            batchSize = Math.max(minBatchSize, (int) (batchSize * BACKOFF_RATIO));
+        } else if (size >= batchSize) {
+            // Растем только на полных батчах - иначе сообщений не хватает и размер не ограничивает пропускную
+            // способность
+            batchSize = Math.min(maxBatchSize, batchSize + batchSizeStep);
+        }
+    }
+
+    /**
+     * Текущий лимит количества батчей "в полете".
+     */
+    public int getLimit() {
+        lock.lock();
+        try {
+            return (int) limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getInFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Текущий целевой размер батча.
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    @Override
+    public String toString() {
+        return "AdaptiveLimiter{limit=" + minLimit + ".." + maxLimit
+                + ", batchSize=" + minBatchSize + ".." + maxBatchSize + "}";
+    }
+}
@@ -0,0 +1,265 @@
+package proxy.impl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * Допуск сообщений в прокси по суммарному размеру в байтах: учитываются сообщения в очереди и отправленные
+ * сервису, но еще не получившие ответ. Ограничение по количеству сообщений не защищает от переполнения памяти
+ * крупными сообщениями и при этом излишне строго к мелким.
+ *
+ * <p>Дополнительно лимит может динамически снижаться при нехватке памяти: если заполненность heap (после сборки
+ * мусора) превысила {@code highWatermark}, лимит уменьшается вдвое от занятого сообщениями объема, и так после
+ * каждой следующей сборки, пока заполненность не опустится ниже {@code lowWatermark} - тогда лимит
+ * восстанавливается. Заполненность после сборки мусора между сборками не меняется, поэтому повторно лимит снижается
+ * только если с прошлого снижения прошла хотя бы одна сборка. Лимит не опускается ниже размера самого крупного из
+ * допущенных сообщений - иначе при устаревшей оценке заполненности прокси перестал бы принимать сообщения совсем.
+ * Проверки выполняются при допуске сообщений не чаще {@link #HEAP_CHECK_INTERVAL_MS}, а превышение верхней отметки
+ * дополнительно отслеживается уведомлениями {@link MemoryPoolMXBean} о порогах заполненности.
+ *
+ * @author rushan
+ */
+public class AdmissionControl implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(AdmissionControl.class);
+
+    /**
+     * Минимальный интервал между проверками заполненности heap
+     */
+    public static final long HEAP_CHECK_INTERVAL_MS = 100;
+
+    private final long maxBytes;
+    private final double highWatermark;
+    private final double lowWatermark;
+    private final DoubleSupplier heapUsage;
+    private final LongSupplier gcCount;
+
+    private final AtomicLong usedBytes = new AtomicLong();
+    private final AtomicLong largestMessage = new AtomicLong();
+    private volatile long limit;
+    private long tightenedAtGcCount = -1;
+    private final AtomicLong nextHeapCheck = new AtomicLong(System.nanoTime());
+
+    private final List<MemoryPoolMXBean> heapPools = new ArrayList<>();
+    private final NotificationListener thresholdListener = this::onThresholdExceeded;
+
+    /**
+     * Допуск только по суммарному размеру сообщений.
+     *
+     * @param maxBytes максимальный суммарный размер сообщений, если 0 - не ограничен
+     */
+    public AdmissionControl(long maxBytes) {
+        this(maxBytes, 0, 0, null);
+    }
+
+    /**
+     * Допуск по суммарному размеру сообщений с учетом заполненности heap, определяемой по {@link MemoryPoolMXBean}.
+     *
+     * @param maxBytes      максимальный суммарный размер сообщений, если 0 - не ограничен
+     * @param highWatermark доля заполненности heap, при превышении которой лимит снижается, если 0 - heap
+     *                      не учитывается
+     * @param lowWatermark  доля заполненности heap, ниже которой лимит восстанавливается
+     */
+    public AdmissionControl(long maxBytes, double highWatermark, double lowWatermark) {
+        this(maxBytes, highWatermark, lowWatermark, null);
+    }
+
+    /**
+     * @param heapUsage источник доли заполненности heap, если null - используются {@link MemoryPoolMXBean}
+     */
+    public AdmissionControl(long maxBytes, double highWatermark, double lowWatermark, DoubleSupplier heapUsage) {
+        this(maxBytes, highWatermark, lowWatermark, heapUsage, null);
+    }
+
+    /**
+     * @param heapUsage источник доли заполненности heap, если null - используются {@link MemoryPoolMXBean}
+     * @param gcCount   число сборок мусора, после которых обновляется {@code heapUsage}. Если null: для
+     *                  {@link MemoryPoolMXBean} - число сборок по {@link GarbageCollectorMXBean} их пулов, для
+     *                  заданного {@code heapUsage} - каждая проверка считается новым измерением
+     */
+    public AdmissionControl(long maxBytes, double highWatermark, double lowWatermark, DoubleSupplier heapUsage,
+                            LongSupplier gcCount)
+    {
+        if (highWatermark > 0 && (lowWatermark <= 0 || lowWatermark > highWatermark || highWatermark >= 1)) {
+            throw new IllegalArgumentException("Expected 0 < lowWatermark <= highWatermark < 1, but got "
+                    + lowWatermark + " and " + highWatermark);
+        }
+        this.maxBytes = maxBytes > 0 ? maxBytes : Long.MAX_VALUE;
+        this.limit = this.maxBytes;
+        this.highWatermark = highWatermark;
+        this.lowWatermark = lowWatermark;
+
+        if (highWatermark > 0 && heapUsage == null) {
+            registerHeapPools();
+            this.heapUsage = this::heapPoolsUsage;
+            this.gcCount = gcCount != null ? gcCount : this::heapPoolsGcCount;
+        } else {
+            this.heapUsage = heapUsage;
+            this.gcCount = gcCount != null ? gcCount : new AtomicLong()::incrementAndGet;
+        }
+    }
+
+    /**
+     * Резервирует место под сообщение.
+     *
+     * @return false, если сообщение превысит текущий лимит
+     */
+    public boolean tryAcquire(long bytes) {
+        checkHeap(false);
+
+        long current;
+        do {
+            current = usedBytes.get();
+            if (current + bytes > limit) {
+                return false;
+            }
+        } while (!usedBytes.compareAndSet(current, current + bytes));
+
+        if (heapUsage != null && bytes > largestMessage.get()) {
+            largestMessage.accumulateAndGet(bytes, Math::max);
+        }
+        return true;
+    }
+
+    /**
+     * Освобождает место, зарезервированное {@link #tryAcquire(long)}.
+     */
+    public void release(long bytes) {
+        usedBytes.addAndGet(-bytes);
+    }
+
+    public long getUsedBytes() {
+        return usedBytes.get();
+    }
+
+    /**
+     * Текущий лимит, с учетом снижения при нехватке памяти.
+     */
+    public long getLimit() {
+        return limit;
+    }
+
+    private void checkHeap(boolean force) {
+        if (heapUsage == null) {
+            return;
+        }
+        long now = System.nanoTime();
+        long next = nextHeapCheck.get();
+        if (!force && now - next < 0) {
+            return;
+        }
+        // Проверку выполняет только один поток
+        if (!nextHeapCheck.compareAndSet(next, now + TimeUnit.MILLISECONDS.toNanos(HEAP_CHECK_INTERVAL_MS))) {
+            return;
+        }
+
+        double usage = heapUsage.getAsDouble();
+        if (usage >= highWatermark) {
+            // Заполненность та же, что при прошлом снижении, - лимит уже учитывает ее
+            long collections = gcCount.getAsLong();
+            if (collections == tightenedAtGcCount) {
+                return;
+            }
+            long tightened = Math.max(Math.min(limit, usedBytes.get()) / 2, largestMessage.get());
+            if (tightened > 0 && tightened < limit) {
+                tightenedAtGcCount = collections;
+                log.warn("Heap usage {}% is above the high watermark. Admission limit is tightened to {} bytes",
+                        Math.round(usage * 100), tightened);
+                limit = tightened;
+            }
+        } else if (usage < lowWatermark && limit != maxBytes) {
+            log.info("Heap usage {}% is below the low watermark. Admission limit is restored", Math.round(usage * 100));
+            limit = maxBytes;
+        }
+    }
+
+    private void registerHeapPools() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            // Учитываем только пулы с известным максимумом, поддерживающие порог заполненности после сборки мусора,
+            // - обычно это пул старого поколения
+            if (pool.getType() == MemoryType.HEAP && pool.isCollectionUsageThresholdSupported()
+                    && pool.getUsage().getMax() > 0)
+            {
+                pool.setCollectionUsageThreshold((long) (pool.getUsage().getMax() * highWatermark));
+                heapPools.add(pool);
+            }
+        }
+        if (heapPools.isEmpty()) {
+            log.warn("No heap memory pools with collection usage threshold support. Heap usage is not controlled");
+            return;
+        }
+        ((NotificationEmitter) ManagementFactory.getMemoryMXBean())
+                .addNotificationListener(thresholdListener, null, null);
+    }
+
+    /**
+     * Максимальная заполненность среди пулов heap после последней сборки мусора
+     */
+    private double heapPoolsUsage() {
+        double result = 0;
+        for (MemoryPoolMXBean pool : heapPools) {
+            MemoryUsage usage = pool.getCollectionUsage();
+            if (usage != null && usage.getMax() > 0) {
+                result = Math.max(result, (double) usage.getUsed() / usage.getMax());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Суммарное число сборок мусора, затрагивающих контролируемые пулы heap
+     */
+    private long heapPoolsGcCount() {
+        long result = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            for (String poolName : collector.getMemoryPoolNames()) {
+                if (heapPools.stream().anyMatch(pool -> pool.getName().equals(poolName))) {
+                    result += Math.max(collector.getCollectionCount(), 0);
+                    break;
+                }
+            }
+        }
+        return result;
+    }
+
+    private void onThresholdExceeded(Notification notification, Object handback) {
+        if (MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED.equals(notification.getType())) {
+            checkHeap(true);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (!heapPools.isEmpty()) {
+            try {
+                ((NotificationEmitter) ManagementFactory.getMemoryMXBean())
+                        .removeNotificationListener(thresholdListener);
+            } catch (ListenerNotFoundException e) {
+                log.warn("Heap usage listener is already removed");
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "AdmissionControl{maxBytes=" + (maxBytes != Long.MAX_VALUE ? maxBytes : "unlimited")
+                + (highWatermark > 0 ? ", heapWatermarks=" + lowWatermark + "/" + highWatermark : "") + "}";
+    }
+}
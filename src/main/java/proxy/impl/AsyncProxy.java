@@ -2,78 +2,162 @@ package proxy.impl;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import proxy.api.MessageProxy;
 import proxy.api.MessageRejectedException;
+import proxy.api.MessageShedException;
+import proxy.api.ResponseListener;
+import proxy.api.ServiceNotAvailableException;
 import proxy.api.ServiceRetry;
+import proxy.metrics.Counter;
+import proxy.metrics.Gauge;
+import proxy.metrics.Histogram;
+import proxy.metrics.MetricsRegistry;
 import proxy.model.Message;
 import proxy.model.ServiceResponse;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
 import java.util.stream.Collectors;
 
 /**
  * Асинхронный прокси, доставляющая сообщения {@link proxy.model.Message} до проксируемого сервиса. Сообщения
  * посылаются в батч-пакетах.
  *
- * <p>Гарантированную доставку сообщений реализовать невозможно в принципе, если пропускная
- * способность проксируемого сервиса уступает скорости поступления сообщений. Если сообщений в среднем поступает
- * больше, чем обрабатывается, то без отклонений (reject) некоторых из входящих соединений (до уравнивания этих двух
- * показателей) размер очереди будет расти, пока не достигнет пределов памяти (а если сохранять на диск, то пределов
- * емкости дисков). Увеличение допустимых размеров этой очереди лишь усугубит проблему - проксируемый сервис никогда не
- * обработает накопленные сообщения (это может произойти только лишь при увеличении ресурсов, выделяемых сервису),
- * таким образом латентность будет расти до бесконечности. Таким образом, необходимо отклонять входящие сообщения
- * после достижения некоторых предельных размеров очереди. Работая на пределе длины очереди, прокся будет давать
- * постоянную латентность, пропорциональную длине очереди. Поэтому более умная реализация прокси, наверное, умела
- * бы в нужные моменты реджектить все сообщения в очереди. Этим самым мы бы отменили некоторые более старые сообщения
- * в пользу более новых и сократили бы латентность.
+ * <p>Если сервис не успевает обрабатывать поступающие сообщения, очередь растет, а с ней и латентность, поэтому
+ * очередь ограничена: сообщение сверх лимита отклоняется с {@link MessageRejectedException}. Лимит задается
+ * количеством сообщений и, при необходимости, их суммарным размером ({@link AdmissionControl}). Сообщения, слишком
+ * долго ждавшие в перегруженной очереди, сбрасываются с {@link MessageShedException} ({@link CoDel}), а отмененные
+ * клиентом или истекшие ({@link Message#getDeadline()}) не включаются в батч.
  *
- * При отклонении сообщения генерируется исключение {@link MessageRejectedException}.
+ * <p>Реализацию очереди выбирает {@link AsyncProxyConfig.QueueType}. Io-потоки забирают из нее сообщения и
+ * собирают батчи по {@link BatchPolicy}. Количество батчей, одновременно отправленных сервису, ограничено
+ * {@link #inFlightBatches} или подстраивается под время ответа сервиса ({@link AdaptiveLimiter}).
+ * С {@link ShardedQueue} каждый io-поток отправляет следующий батч своего сегмента только после завершения
+ * предыдущего, так что сообщения одного ключа доставляются по порядку.
+ *
+ * <p>Если задан каталог очереди на диске ({@link DiskSpillQueue}), то сообщения, не поместившиеся в память или
+ * поступившие, пока сервис недоступен, не отклоняются, а дописываются на диск и возвращаются в очередь в памяти,
+ * когда она пуста и сервис доступен. Очередь в памяти при остановке сохраняется в снимок.
+ *
+ * <p>Размеры очередей, время ожидания в очереди, размеры батчей и время их обработки сервисом публикуются
+ * в {@link MetricsRegistry#getDefault()}.
  *
  * @author rushan
  */
-public class AsyncProxy {
+public class AsyncProxy implements MessageProxy {
 
     private static final Logger log = LoggerFactory.getLogger(AsyncProxy.class);
 
     private final BlockingQueue<MessageTask> messageQueue;
 
-    private static class MessageTask {
-        private final Message message;
-        private final CompletableFuture<ServiceResponse> future;
-
-        private MessageTask(Message message, CompletableFuture<ServiceResponse> future) {
-            this.message = message;
-            this.future = future;
-        }
-
-        public Message getMessage() {
-            return message;
-        }
-
-        public CompletableFuture<ServiceResponse> getFuture() {
-            return future;
-        }
-    }
+    /**
+     * Интервал проверки очереди на диске io-потоком, ожидающим сообщений
+     */
+    private static final long SPILL_POLL_INTERVAL_MS = 100;
 
-    private final int batchSize;
+    private final BatchPolicy batchPolicy;
     private final int messageQueueLimit;
 
     private final ServiceRetry serviceRetry;
     private final List<Thread> ioThreads;
+    private final Semaphore inFlightBatches;
+    private final AdaptiveLimiter adaptiveLimiter;
+    private final CoDel codel;
+    private final AdmissionControl admissionControl;
+
+    /**
+     * Очередь на диске, если null - сообщения, не поместившиеся в очередь в памяти, отклоняются
+     */
+    private final SpillSupport spill;
+
+    private final MetricsRegistry metrics = MetricsRegistry.getDefault();
+    private final Map<String, Gauge> gauges = new HashMap<>();
+    private final Counter acceptedMessages = metrics.counter("proxy_messages_total",
+            "Messages accepted by the proxy");
+    private final Counter rejectedByQueue = metrics.counter("proxy_rejected_total{reason=\"queue\"}",
+            "Messages rejected by the proxy");
+    private final Counter rejectedByBytes = metrics.counter("proxy_rejected_total{reason=\"bytes\"}",
+            "Messages rejected by the proxy");
+    private final Counter droppedMessages = metrics.counter("proxy_dropped_total",
+            "Cancelled or expired messages that were not sent to the service");
+    private final Counter shedMessages = metrics.counter("proxy_shed_total",
+            "Messages shed from the overloaded queue before sending to the service");
+    private final Counter failedBatches = metrics.counter("proxy_batch_failures_total",
+            "Batches completed with an error");
+    private final Histogram queueWait = metrics.histogram("proxy_queue_wait_seconds",
+            "Time from message acceptance to batch sending", Histogram.NANOS_TO_SECONDS);
+    private final Histogram batchSize = metrics.histogram("proxy_batch_size",
+            "Messages per batch", 1);
+    private final Histogram batchBytes = metrics.histogram("proxy_batch_bytes",
+            "Batch body size in bytes", 1);
+    private final Histogram batchLatency = metrics.histogram("proxy_batch_seconds",
+            "Time from batch sending to the complete service response, retries included",
+            Histogram.NANOS_TO_SECONDS);
 
     public AsyncProxy(ServiceRetry serviceRetry, int ioThreads, int messageQueueLimit, int batchSize) {
+        this(serviceRetry, ioThreads, messageQueueLimit, batchSize, ioThreads);
+    }
+
+    public AsyncProxy(ServiceRetry serviceRetry, int ioThreads, int messageQueueLimit, int batchSize,
+                      int maxInFlightBatches)
+    {
+        this(serviceRetry, ioThreads, messageQueueLimit, BatchPolicy.immediate(batchSize), maxInFlightBatches);
+    }
+
+    public AsyncProxy(ServiceRetry serviceRetry, int ioThreads, int messageQueueLimit, BatchPolicy batchPolicy,
+                      int maxInFlightBatches)
+    {
+        this(serviceRetry, new AsyncProxyConfig()
+                .ioThreads(ioThreads)
+                .messageQueueLimit(messageQueueLimit)
+                .batchPolicy(batchPolicy)
+                .maxInFlightBatches(maxInFlightBatches));
+    }
+
+    public AsyncProxy(ServiceRetry serviceRetry, AsyncProxyConfig config) {
         this.serviceRetry = serviceRetry;
-        this.batchSize = batchSize;
-        this.messageQueueLimit = messageQueueLimit;
+        this.batchPolicy = config.getBatchPolicy();
+        this.messageQueueLimit = config.getMessageQueueLimit();
+        this.inFlightBatches = new Semaphore(config.getMaxInFlightBatches());
+        this.adaptiveLimiter = config.isAdaptiveLimit()
+                ? new AdaptiveLimiter(1, config.getMaxInFlightBatches(), 1, batchPolicy.getMaxBatchSize())
+                : null;
+        this.codel = config.getCodelTargetMs() > 0
+                ? new CoDel(config.getCodelTargetMs(), config.getCodelIntervalMs())
+                : null;
+        this.admissionControl = config.getMaxQueueBytes() > 0 || config.getHeapHighWatermark() > 0
+                ? new AdmissionControl(config.getMaxQueueBytes(), config.getHeapHighWatermark(),
+                        config.getHeapLowWatermark())
+                : null;
 
-        this.messageQueue = new LinkedBlockingQueue<>(messageQueueLimit);
+        this.messageQueue = MessageQueues.create(config);
 
-        this.ioThreads = new ArrayList<>(ioThreads);
-        for (int i = 0; i < ioThreads; i++) {
-            Thread ioThread = new Thread(this::executeInIoThread);
+        if (config.getSpillDirectory() != null) {
+            try {
+                this.spill = new SpillSupport(config.getSpillDirectory(), config.getSpillSegmentSize(),
+                        config.getMaxSpillBytes());
+                spill.restoreSnapshot(messageQueue);
+            } catch (IOException e) {
+                throw new IllegalStateException("Failed to open spill queue " + config.getSpillDirectory(), e);
+            }
+        } else {
+            this.spill = null;
+        }
+
+        int ioThreadCount = config.getIoThreads();
+        this.ioThreads = new ArrayList<>(ioThreadCount);
+        for (int i = 0; i < ioThreadCount; i++) {
+            int shard = i;
+            Thread ioThread = config.getIoThreadFactory().newThread(() -> executeInIoThread(shard));
             this.ioThreads.add(ioThread);
         }
 
@@ -81,10 +165,51 @@ public class AsyncProxy {
             ioThread.start();
         }
 
-        log.info("Async Proxy: ioThreads = {}, batchSize = {}", ioThreads, batchSize);
+        int maxInFlightBatches = config.getMaxInFlightBatches();
+        gauge("proxy_queue_size", "Messages in the in-memory queue", messageQueue::size);
+        if (messageQueue instanceof FairQueue) {
+            gauge("proxy_queue_clients", "Clients with messages in the in-memory queue",
+                    ((FairQueue<MessageTask>) messageQueue)::getLaneCount);
+        }
+        if (messageQueue instanceof ShardedQueue) {
+            gauge("proxy_queue_moved_keys", "Message keys moved to another io thread by work stealing",
+                    ((ShardedQueue<MessageTask>) messageQueue)::getMovedCount);
+        }
+        if (adaptiveLimiter != null) {
+            gauge("proxy_in_flight_batches", "Batches sent to the service and not completed yet",
+                    adaptiveLimiter::getInFlight);
+            gauge("proxy_in_flight_limit", "Adaptive limit of batches sent to the service",
+                    adaptiveLimiter::getLimit);
+            gauge("proxy_target_batch_size", "Adaptive target batch size", adaptiveLimiter::getBatchSize);
+        } else {
+            gauge("proxy_in_flight_batches", "Batches sent to the service and not completed yet",
+                    () -> maxInFlightBatches - inFlightBatches.availablePermits());
+        }
+        if (admissionControl != null) {
+            gauge("proxy_queued_bytes", "Bytes of queued and in-flight messages", admissionControl::getUsedBytes);
+        }
+        if (spill != null) {
+            gauge("proxy_spill_queue_size", "Messages in the disk spill queue", spill::size);
+        }
+
+        log.info("Async Proxy: ioThreads = {}, {}, maxInFlightBatches = {}, queue = {}, admission = {}, spill = {}, "
+                        + "shedding = {}",
+                config.getIoThreads(), batchPolicy,
+                adaptiveLimiter != null ? adaptiveLimiter : config.getMaxInFlightBatches(), messageQueue,
+                admissionControl != null ? admissionControl : "by queue size", spill, codel);
+    }
+
+    /**
+     * Измерители удаляются из реестра в {@link #dispose()}, чтобы не удерживать остановленный прокси
+     */
+    private void gauge(String name, String help, LongSupplier value) {
+        gauges.put(name, metrics.gauge(name, help, value));
     }
 
     public synchronized void dispose() throws InterruptedException {
+        gauges.forEach(metrics::remove);
+        gauges.clear();
+
         for (Thread ioThread : this.ioThreads) {
             ioThread.interrupt();
         }
@@ -94,48 +219,263 @@ public class AsyncProxy {
         for (Thread ioThread : this.ioThreads) {
             ioThread.join();
         }
+
+        if (admissionControl != null) {
+            admissionControl.close();
+        }
+
+        if (spill != null) {
+            spill.close(messageQueue, this::dropExpired);
+        }
     }
 
-    private void executeInIoThread() {
+    private void executeInIoThread(int index) {
+        // Сегментированная очередь: свой сегмент и батчи по одному, чтобы сохранить порядок по ключу
+        ShardedQueue<MessageTask> sharded = messageQueue instanceof ShardedQueue
+                ? (ShardedQueue<MessageTask>) messageQueue
+                : null;
+        BlockingQueue<MessageTask> queue = sharded != null ? sharded.shard(index) : messageQueue;
+
+        // Сообщение, не поместившееся в предыдущий батч по размеру в байтах - оно будет первым в следующем
+        MessageTask carried = null;
+
         while (!Thread.currentThread().isInterrupted()) {
             List<MessageTask> tasks = new ArrayList<>();
             MessageTask firstTask;
+            try {
+                // Не забираем сообщения из очереди, пока не освободится место для еще одного батча
+                acquireBatchSlot();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                continue;
+            }
             try {
                 // блокируемся в синхронном ожидании для извлечения первой таски
-                firstTask = messageQueue.take();
+                firstTask = carried != null ? carried : nextTask(queue);
             } catch (InterruptedException e) {
                 // Если попросили остановиться во время блокирующего ожидания - останавливаемся
                 // через восстановление статуса interrupt и проверки в условии - чтобы была одна точка выхода из потока
+                releaseBatchSlot();
                 Thread.currentThread().interrupt();
                 continue;
             }
+            if (drop(firstTask)) {
+                carried = null;
+                releaseBatchSlot();
+                if (sharded != null) {
+                    sharded.endBatch(index, null);
+                }
+                continue;
+            }
             tasks.add(firstTask);
-            // неблокирующим образом вытаскиваем остальные имеющиеся таски количеством не более batchSize - 1
-            messageQueue.drainTo(tasks, this.batchSize - 1);
+            carried = assembleBatch(tasks, queue);
 
-            List<Message> batch = tasks.stream().map(MessageTask::getMessage).collect(Collectors.toList());
-            List<ServiceResponse> batchResult;
-            try {
-                batchResult = this.serviceRetry.call(batch);
-                // по контракту call размер batchResult совпадает с batch
+            CompletableFuture<Void> sent = sendBatch(tasks);
+            if (sharded != null) {
+                awaitBatch(sent);
+                sharded.endBatch(index, carried);
+            }
+        }
+
+        if (carried != null) {
+            if (spill != null) {
+                spill.addLeftover(carried);
+            } else {
+                carried.getFuture().completeExceptionally(new ServiceNotAvailableException(0, 0, null));
+                carried.getMessage().release();
+            }
+        }
+
+        log.info("The io thread is interrupted");
+    }
+
+    private MessageTask nextTask(BlockingQueue<MessageTask> queue) throws InterruptedException {
+        if (spill == null) {
+            return queue.take();
+        }
+
+        while (true) {
+            MessageTask task = queue.poll();
+            if (task != null) {
+                return task;
+            }
+            if (!spill.isEmpty() && serviceRetry.isServiceAvailable()) {
+                spill.refill(messageQueue);
+            }
+            task = queue.poll(SPILL_POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+            if (task != null) {
+                return task;
+            }
+        }
+    }
+
+    /**
+     * Ожидает завершения батча, включая повторные попытки
+     */
+    private static void awaitBatch(CompletableFuture<Void> sent) {
+        try {
+            sent.get();
+        } catch (ExecutionException e) {
+            // Ошибка батча уже обработана при его завершении
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Добирает в батч сообщения из очереди согласно {@link #batchPolicy}: пока батч не заполнен, забирает
+     * имеющиеся сообщения, а если очередь пуста - ожидает новые до момента, когда батч должен быть отправлен.
+     *
+     * @return сообщение, не поместившееся в батч по размеру, или null
+     */
+    private MessageTask assembleBatch(List<MessageTask> tasks, BlockingQueue<MessageTask> queue) {
+        long bytes = tasks.get(0).getSize();
+        long deadline = batchPolicy.flushDeadline(tasks.get(0).getEnqueuedAt());
+        int maxBatchSize = adaptiveLimiter != null ? adaptiveLimiter.getBatchSize() : batchPolicy.getMaxBatchSize();
+
+        while (tasks.size() < maxBatchSize && !batchPolicy.isFull(tasks.size(), bytes)) {
+            MessageTask next;
+            if (!batchPolicy.isBytesLimited()) {
+                // неблокирующим образом вытаскиваем остальные имеющиеся таски - размер в байтах не проверяется,
+                // поэтому можно забрать сразу все
+                int size = tasks.size();
+                if (queue.drainTo(tasks, maxBatchSize - size) > 0) {
+                    // Отмененные и истекшие отбрасываем, на их место добираем следующие
+                    tasks.subList(size, tasks.size()).removeIf(this::drop);
+                    continue;
+                }
+                next = null;
+            } else {
+                next = queue.poll();
+            }
 
-            } catch (Exception e) {
-                for (MessageTask task : tasks) {
-                    // Завершаем футуру ошибкой
-                    task.getFuture().completeExceptionally(e);
+            if (next == null) {
+                long wait = deadline - System.nanoTime();
+                if (wait <= 0) {
+                    break;
                 }
+                try {
+                    next = queue.poll(wait, TimeUnit.NANOSECONDS);
+                } catch (InterruptedException e) {
+                    // Отправим то, что уже набрано, и остановимся на следующей итерации
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                if (next == null) {
+                    break;
+                }
+            }
+
+            if (drop(next)) {
                 continue;
             }
+            if (bytes + next.getSize() > batchPolicy.getMaxBatchBytes()) {
+                return next;
+            }
+            tasks.add(next);
+            bytes += next.getSize();
+        }
+        return null;
+    }
 
-            for (int i = 0; i < batchResult.size(); i++) {
-                MessageTask task = tasks.get(i);
-                ServiceResponse response = batchResult.get(i);
-                // Завершаем футуру результатом из батч-ответа
-                task.getFuture().complete(response);
+    private void acquireBatchSlot() throws InterruptedException {
+        if (adaptiveLimiter != null) {
+            adaptiveLimiter.acquire();
+        } else {
+            inFlightBatches.acquire();
+        }
+    }
+
+    private void releaseBatchSlot() {
+        if (adaptiveLimiter != null) {
+            adaptiveLimiter.release();
+        } else {
+            inFlightBatches.release();
+        }
+    }
+
+    /**
+     * Сообщение отменено, истекло или сброшено из перегруженной очереди и не должно отправляться сервису
+     */
+    private boolean drop(MessageTask task) {
+        if (dropExpired(task)) {
+            return true;
+        }
+        if (codel != null && codel.shouldShed(System.nanoTime() - task.getEnqueuedAt())) {
+            shedMessages.inc();
+            task.getFuture().completeExceptionally(new MessageShedException(
+                    "The message is shed - the message queue is overloaded"));
+            task.getMessage().release();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Сообщение отменено или истекло. В отличие от {@link #drop(MessageTask)}, не учитывается в {@link CoDel} и не
+     * сбрасывается из-за перегрузки очереди.
+     */
+    private boolean dropExpired(MessageTask task) {
+        if (task.isLive()) {
+            return false;
+        }
+        droppedMessages.inc();
+        task.getMessage().release();
+        return true;
+    }
+
+    /**
+     * @return завершается после обработки ответа или ошибки батча
+     */
+    private CompletableFuture<Void> sendBatch(List<MessageTask> tasks) {
+        List<Message> batch = tasks.stream().map(MessageTask::getMessage).collect(Collectors.toList());
+        long sentAt = System.nanoTime();
+        long bytes = 0;
+        for (MessageTask task : tasks) {
+            queueWait.record(sentAt - task.getEnqueuedAt());
+            bytes += task.getSize();
+        }
+        batchSize.record(tasks.size());
+        batchBytes.record(bytes);
+        // Футуры сообщений завершаются по мере получения ответов на них, не дожидаясь всего батч-ответа
+        ResponseListener listener = (index, response) -> {
+            if (!tasks.get(index).getFuture().complete(response)) {
+                // Ответ уже не нужен - клиент отменил сообщение
+                response.release();
             }
+        };
+        CompletableFuture<Void> call;
+        try {
+            call = this.serviceRetry.callAsync(batch, listener);
+        } catch (Throwable e) {
+            // Синхронная ошибка вызова обрабатывается как неуспешный батч - иначе слот батча не освободится
+            call = new CompletableFuture<>();
+            call.completeExceptionally(e);
         }
+        return call
+                .whenComplete((v, ex) -> {
+                    long latency = System.nanoTime() - sentAt;
+                    if (adaptiveLimiter != null) {
+                        adaptiveLimiter.onBatchCompleted(latency, tasks.size(), ex == null);
+                    } else {
+                        inFlightBatches.release();
+                    }
+                    batchLatency.record(latency);
+                    if (ex != null) {
+                        failedBatches.inc();
+                        // Сообщения с диска, не доставленные из-за недоступности сервиса, снова дописываются на диск
+                        MessageTask.failTasks(spill != null ? spill.respill(tasks, ex) : tasks, ex);
+                    } else {
+                        batchPolicy.onBatchCompleted(latency);
+                    }
+                    MessageTask.releaseMessages(tasks);
+                });
+    }
 
-        log.info("The io thread is interrupted");
+    private CompletableFuture<ServiceResponse> acceptSpilled(MessageTask task) throws MessageRejectedException {
+        spill.spill(task);
+        acceptedMessages.inc();
+        return task.getFuture();
     }
 
     /**
@@ -145,14 +485,111 @@ public class AsyncProxy {
      * @return будущий результат с ответом сервиса
      * @throws MessageRejectedException если сообщение отклонено из-за превышения размеров очереди
      */
+    @Override
     public CompletableFuture<ServiceResponse> message(Message message) throws MessageRejectedException {
 
         MessageTask task = new MessageTask(message, new CompletableFuture<>());
+        if (spill != null && (!spill.isEmpty() || !serviceRetry.isServiceAvailable())) {
+            // Пока на диске есть сообщения, новые тоже пишутся туда, чтобы сохранить порядок. Пока сервис недоступен,
+            // сообщения сразу пишутся на диск, а не ждут в памяти заведомо неудачной отправки
+            return acceptSpilled(task);
+        }
+
+        int size = task.getSize();
+        if (admissionControl != null && !admissionControl.tryAcquire(size)) {
+            if (spill != null) {
+                return acceptSpilled(task);
+            }
+            rejectedByBytes.inc();
+            throw bytesLimitReached();
+        }
+        // Очередь держит свою ссылку на данные сообщения, пока оно не будет отправлено или отброшено
+        message.retain();
         if (!this.messageQueue.offer(task)) {
+            message.release();
+            if (admissionControl != null) {
+                admissionControl.release(size);
+            }
+            if (spill != null) {
+                return acceptSpilled(task);
+            }
             // Не будем обрабатывать сообщения, превышающие лимит размера очереди, чтобы предотвратить рост латентности
-            throw new MessageRejectedException("The message is rejected - the message queue is reach the limit "
-                    + this.messageQueueLimit);
+            rejectedByQueue.inc();
+            throw queueFull();
         }
+        onAccepted(task);
         return task.getFuture();
     }
+
+    /**
+     * Отправить асинхронно пакет сообщений. Принятые сообщения добавляются в очередь одной операцией
+     * ({@link BulkQueue#offerAll(List)}), не поместившиеся - отклоняются. С очередью на диске сообщения
+     * принимаются по одному, как в {@link #message(Message)}: пока на диске есть сообщения, новые пишутся туда же.
+     */
+    @Override
+    public List<CompletableFuture<ServiceResponse>> messages(List<Message> messages) {
+        if (spill != null) {
+            return MessageProxy.super.messages(messages);
+        }
+
+        List<CompletableFuture<ServiceResponse>> futures = new ArrayList<>(messages.size());
+        List<MessageTask> tasks = new ArrayList<>(messages.size());
+        for (Message message : messages) {
+            MessageTask task = new MessageTask(message, new CompletableFuture<>());
+            futures.add(task.getFuture());
+            if (admissionControl != null && !admissionControl.tryAcquire(task.getSize())) {
+                rejectedByBytes.inc();
+                task.getFuture().completeExceptionally(bytesLimitReached());
+                continue;
+            }
+            message.retain();
+            tasks.add(task);
+        }
+
+        int offered = offerAll(tasks);
+        for (int i = 0; i < tasks.size(); i++) {
+            MessageTask task = tasks.get(i);
+            if (i < offered) {
+                onAccepted(task);
+                continue;
+            }
+            task.getMessage().release();
+            if (admissionControl != null) {
+                admissionControl.release(task.getSize());
+            }
+            rejectedByQueue.inc();
+            task.getFuture().completeExceptionally(queueFull());
+        }
+        return futures;
+    }
+
+    private int offerAll(List<MessageTask> tasks) {
+        if (messageQueue instanceof BulkQueue) {
+            return ((BulkQueue<MessageTask>) messageQueue).offerAll(tasks);
+        }
+        int n = 0;
+        while (n < tasks.size() && messageQueue.offer(tasks.get(n))) {
+            n++;
+        }
+        return n;
+    }
+
+    private void onAccepted(MessageTask task) {
+        acceptedMessages.inc();
+        if (admissionControl != null) {
+            // Сообщение перестает занимать место, когда на него получен ответ или ошибка
+            int size = task.getSize();
+            task.getFuture().whenComplete((r, ex) -> admissionControl.release(size));
+        }
+    }
+
+    private MessageRejectedException queueFull() {
+        return new MessageRejectedException("The message is rejected - the message queue is reach the limit "
+                + this.messageQueueLimit);
+    }
+
+    private MessageRejectedException bytesLimitReached() {
+        return new MessageRejectedException("The message is rejected - the queued messages size is reach the limit "
+                + admissionControl.getLimit() + " bytes");
+    }
 }
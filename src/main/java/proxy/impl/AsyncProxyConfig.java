@@ -0,0 +1,259 @@
+package proxy.impl;
+
+import proxy.model.Message;
+
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.Function;
+
+/**
+ * Настройки {@link AsyncProxy}. Значения по умолчанию соответствуют поведению прокси без дополнительных
+ * механизмов: батч отправляется сразу, очередь - {@link java.util.concurrent.LinkedBlockingQueue}.
+ *
+ * @author rushan
+ */
+public class AsyncProxyConfig {
+
+    /**
+     * Реализация очереди сообщений.
+     */
+    public enum QueueType {
+        /**
+         * {@link java.util.concurrent.LinkedBlockingQueue}
+         */
+        LINKED,
+        /**
+         * {@link RingBufferQueue}
+         */
+        RING,
+        /**
+         * {@link FairQueue} - отдельная полоса для каждого клиента ({@link proxy.model.Message#getClientId()})
+         */
+        FAIR,
+        /**
+         * {@link ShardedQueue} - сегмент на каждый io-поток, сообщения одного ключа ({@link #getShardKey()})
+         * доставляются по порядку
+         */
+        SHARDED
+    }
+
+    private int ioThreads = 1;
+    private int messageQueueLimit = 10_000;
+    private BatchPolicy batchPolicy = BatchPolicy.immediate(10_000);
+    private int maxInFlightBatches = -1;
+    private QueueType queueType = QueueType.LINKED;
+    private RingBufferQueue.WaitStrategy waitStrategy = RingBufferQueue.WaitStrategy.PARK;
+    private long maxQueueBytes;
+    private double heapHighWatermark;
+    private double heapLowWatermark;
+    private Path spillDirectory;
+    private long maxSpillBytes;
+    private int spillSegmentSize = DiskSpillQueue.SEGMENT_SIZE_DEFAULT;
+    private boolean adaptiveLimit;
+    private ThreadFactory ioThreadFactory = Thread::new;
+    private int maxClientQueueSize;
+    private Map<String, Integer> clientWeights = Collections.emptyMap();
+    private long codelTargetMs;
+    private long codelIntervalMs;
+    private Function<Message, String> shardKey = ShardKeys.client();
+
+    public int getIoThreads() {
+        return ioThreads;
+    }
+
+    public AsyncProxyConfig ioThreads(int ioThreads) {
+        this.ioThreads = ioThreads;
+        return this;
+    }
+
+    public int getMessageQueueLimit() {
+        return messageQueueLimit;
+    }
+
+    public AsyncProxyConfig messageQueueLimit(int messageQueueLimit) {
+        this.messageQueueLimit = messageQueueLimit;
+        return this;
+    }
+
+    public BatchPolicy getBatchPolicy() {
+        return batchPolicy;
+    }
+
+    public AsyncProxyConfig batchPolicy(BatchPolicy batchPolicy) {
+        this.batchPolicy = batchPolicy;
+        return this;
+    }
+
+    /**
+     * Максимальное количество батчей, одновременно отправленных сервису. По умолчанию равно количеству io-потоков.
+     */
+    public int getMaxInFlightBatches() {
+        return maxInFlightBatches > 0 ? maxInFlightBatches : ioThreads;
+    }
+
+    public AsyncProxyConfig maxInFlightBatches(int maxInFlightBatches) {
+        this.maxInFlightBatches = maxInFlightBatches;
+        return this;
+    }
+
+    public QueueType getQueueType() {
+        return queueType;
+    }
+
+    public AsyncProxyConfig queueType(QueueType queueType) {
+        this.queueType = queueType;
+        return this;
+    }
+
+    /**
+     * Стратегия ожидания io-потоков на пустой очереди, только для {@link QueueType#RING}.
+     */
+    public RingBufferQueue.WaitStrategy getWaitStrategy() {
+        return waitStrategy;
+    }
+
+    public AsyncProxyConfig waitStrategy(RingBufferQueue.WaitStrategy waitStrategy) {
+        this.waitStrategy = waitStrategy;
+        return this;
+    }
+
+    /**
+     * Максимальный суммарный размер сообщений в очереди и в отправленных батчах. Если 0 - не ограничен.
+     */
+    public long getMaxQueueBytes() {
+        return maxQueueBytes;
+    }
+
+    public AsyncProxyConfig maxQueueBytes(long maxQueueBytes) {
+        this.maxQueueBytes = maxQueueBytes;
+        return this;
+    }
+
+    public double getHeapHighWatermark() {
+        return heapHighWatermark;
+    }
+
+    public double getHeapLowWatermark() {
+        return heapLowWatermark;
+    }
+
+    /**
+     * Доли заполненности heap, между которыми лимит {@link #getMaxQueueBytes()} снижается (см.
+     * {@link AdmissionControl}). Если {@code high} равно 0 - заполненность heap не учитывается.
+     */
+    public AsyncProxyConfig heapWatermarks(double low, double high) {
+        this.heapLowWatermark = low;
+        this.heapHighWatermark = high;
+        return this;
+    }
+
+    /**
+     * Каталог очереди на диске ({@link DiskSpillQueue}) для сообщений, не поместившихся в память, и снимка очереди
+     * при остановке. Если null - сообщения сверх лимитов отклоняются, а очередь при остановке теряется.
+     */
+    public Path getSpillDirectory() {
+        return spillDirectory;
+    }
+
+    /**
+     * Максимальный размер очереди на диске. Если 0 - не ограничен.
+     */
+    public long getMaxSpillBytes() {
+        return maxSpillBytes;
+    }
+
+    public AsyncProxyConfig spill(Path spillDirectory, long maxSpillBytes) {
+        this.spillDirectory = spillDirectory;
+        this.maxSpillBytes = maxSpillBytes;
+        return this;
+    }
+
+    public int getSpillSegmentSize() {
+        return spillSegmentSize;
+    }
+
+    public AsyncProxyConfig spillSegmentSize(int spillSegmentSize) {
+        this.spillSegmentSize = spillSegmentSize;
+        return this;
+    }
+
+    public boolean isAdaptiveLimit() {
+        return adaptiveLimit;
+    }
+
+    /**
+     * Подстраивать количество батчей "в полете" (до {@link #getMaxInFlightBatches()}) и размер батча (до
+     * максимального по {@link BatchPolicy}) под время ответа сервиса, см. {@link AdaptiveLimiter}.
+     */
+    public AsyncProxyConfig adaptiveLimit(boolean adaptiveLimit) {
+        this.adaptiveLimit = adaptiveLimit;
+        return this;
+    }
+
+    public ThreadFactory getIoThreadFactory() {
+        return ioThreadFactory;
+    }
+
+    /**
+     * Фабрика io-потоков. По умолчанию - обычные потоки, на Java 21+ можно использовать виртуальные, см.
+     * {@link proxy.util.VirtualThreads#factory(String)}.
+     */
+    public AsyncProxyConfig ioThreadFactory(ThreadFactory ioThreadFactory) {
+        this.ioThreadFactory = ioThreadFactory;
+        return this;
+    }
+
+    /**
+     * Максимальное количество сообщений одного клиента в очереди, только для {@link QueueType#FAIR}. По умолчанию
+     * не ограничено отдельно от всей очереди.
+     */
+    public int getMaxClientQueueSize() {
+        return maxClientQueueSize > 0 ? maxClientQueueSize : messageQueueLimit;
+    }
+
+    /**
+     * Веса клиентов по идентификатору, только для {@link QueueType#FAIR}. Для отсутствующих - 1.
+     */
+    public Map<String, Integer> getClientWeights() {
+        return clientWeights;
+    }
+
+    public AsyncProxyConfig fairQueue(int maxClientQueueSize, Map<String, Integer> clientWeights) {
+        this.maxClientQueueSize = maxClientQueueSize;
+        this.clientWeights = clientWeights;
+        return this;
+    }
+
+    /**
+     * Допустимое время ожидания сообщения в перегруженной очереди, см. {@link CoDel}. Если 0 - сообщения из очереди
+     * не сбрасываются.
+     */
+    public long getCodelTargetMs() {
+        return codelTargetMs;
+    }
+
+    public long getCodelIntervalMs() {
+        return codelIntervalMs;
+    }
+
+    public AsyncProxyConfig codel(long targetMs, long intervalMs) {
+        this.codelTargetMs = targetMs;
+        this.codelIntervalMs = intervalMs;
+        return this;
+    }
+
+    /**
+     * Ключ, сообщения с которым доставляются в порядке поступления, только для {@link QueueType#SHARDED}. По
+     * умолчанию - идентификатор клиента, см. {@link ShardKeys}.
+     */
+    public Function<Message, String> getShardKey() {
+        return shardKey;
+    }
+
+    public AsyncProxyConfig shardKey(Function<Message, String> shardKey) {
+        this.shardKey = shardKey;
+        return this;
+    }
+}
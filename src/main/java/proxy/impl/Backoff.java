@@ -0,0 +1,59 @@
+package proxy.impl;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Задержка перед повторной попыткой вызова сервиса: экспоненциальный рост от базовой задержки с ограничением сверху
+ * и случайным уменьшением (jitter), чтобы повторные попытки разных батчей не приходились на один момент.
+ *
+ * @author rushan
+ */
+public class Backoff {
+
+    private final double multiplier;
+    private final long maxDelayMs;
+    private final double jitter;
+
+    /**
+     * @param multiplier во сколько раз растет задержка с каждой попыткой, 1 - постоянная задержка
+     * @param maxDelayMs максимальная задержка, если 0 - не ограничена
+     * @param jitter     доля задержки (от 0 до 1), на которую она может быть случайно уменьшена
+     */
+    public Backoff(double multiplier, long maxDelayMs, double jitter) {
+        if (multiplier < 1) {
+            throw new IllegalArgumentException("Multiplier must be at least 1: " + multiplier);
+        }
+        if (jitter < 0 || jitter > 1) {
+            throw new IllegalArgumentException("Jitter must be between 0 and 1: " + jitter);
+        }
+        this.multiplier = multiplier;
+        this.maxDelayMs = maxDelayMs;
+        this.jitter = jitter;
+    }
+
+    /**
+     * Постоянная задержка без jitter.
+     */
+    public static Backoff fixed() {
+        return new Backoff(1, 0, 0);
+    }
+
+    /**
+     * @param baseDelayMs задержка перед первой повторной попыткой
+     * @param retry       номер повторной попытки с задержкой, начиная с 0
+     * @param limitMs     ограничение задержки, если не задано {@code maxDelayMs}
+     */
+    public long delayMs(long baseDelayMs, int retry, long limitMs) {
+        double delay = baseDelayMs * Math.pow(multiplier, retry);
+        delay = Math.min(delay, maxDelayMs > 0 ? maxDelayMs : limitMs);
+        if (jitter > 0) {
+            delay -= delay * jitter * ThreadLocalRandom.current().nextDouble();
+        }
+        return (long) delay;
+    }
+
+    @Override
+    public String toString() {
+        return "Backoff{multiplier=" + multiplier + ", maxDelayMs=" + maxDelayMs + ", jitter=" + jitter + "}";
+    }
+}
@@ -0,0 +1,251 @@
+package proxy.impl;
+
+import proxy.api.BatchResponseConsumer;
+import proxy.model.BatchBody;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * Сжатие батчей, отправляемых сервису, и распаковка его ответов ({@code Content-Encoding: deflate}). Используются
+ * только {@link Deflater} и {@link Inflater} из JDK.
+ *
+ * <p>Батчи меньше {@code threshold} байт не сжимаются - для них затраты CPU не окупаются. Тело батча сжимается
+ * потоково, по мере записи сообщений, поэтому несжатая копия всего батча не создается.
+ *
+ * <p>{@link Deflater} создается один раз на поток и переиспользуется, так как его создание дорого (выделение
+ * памяти zlib вне heap). {@link Inflater} создается на каждый ответ и освобождается по его завершении.
+ *
+ * <p>Поврежденный сжатый ответ завершает вызов {@link UncheckedIOException}, а не {@link IOException}: это не
+ * коммуникационная ошибка, и повторная отправка батча не поможет.
+ *
+ * @author rushan
+ */
+public class BatchCompression {
+
+    public static final String CONTENT_ENCODING = "Content-Encoding";
+    public static final String ACCEPT_ENCODING = "Accept-Encoding";
+    public static final String DEFLATE = "deflate";
+
+    /**
+     * Статус, которым сервис отвечает на сжатое тело, если не поддерживает сжатие
+     */
+    public static final int SC_UNSUPPORTED_MEDIA_TYPE = 415;
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private final int level;
+    private final long threshold;
+
+    private final ThreadLocal<Deflater> deflaters;
+
+    /**
+     * @param level     уровень сжатия от 1 (быстрее) до 9 (лучше сжатие)
+     * @param threshold минимальный размер батча в байтах, начиная с которого он сжимается
+     */
+    public BatchCompression(int level, long threshold) {
+        if (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Compression level must be between 1 and 9: " + level);
+        }
+        this.level = level;
+        this.threshold = threshold;
+        this.deflaters = ThreadLocal.withInitial(() -> new Deflater(level));
+    }
+
+    public boolean shouldCompress(long length) {
+        return length >= threshold;
+    }
+
+    /**
+     * Поток, сжимающий записанные в него данные в {@code os}. После записи всех данных нужно вызвать
+     * {@link DeflaterOutputStream#finish()}; закрывать {@code os} при этом вызывающий должен сам.
+     */
+    public DeflaterOutputStream compressing(OutputStream os) {
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        return new DeflaterOutputStream(os, deflater, BUFFER_SIZE);
+    }
+
+    /**
+     * Сжимает тело батча в буфер. Несжатое тело целиком не материализуется.
+     */
+    public ByteBuffer compress(BatchBody body) throws IOException {
+        ExposedByteArrayOutputStream bos = new ExposedByteArrayOutputStream(
+                (int) Math.min(Integer.MAX_VALUE - 8, Math.max(body.getLength() / 8, BUFFER_SIZE)));
+        DeflaterOutputStream dos = compressing(bos);
+        body.writeTo(dos);
+        dos.finish();
+        return bos.toByteBuffer();
+    }
+
+    public static boolean isCompressed(String contentEncoding) {
+        return contentEncoding != null && DEFLATE.equalsIgnoreCase(contentEncoding.trim());
+    }
+
+    /**
+     * Распаковывает поток ответа, если он сжат. {@link Inflater} освобождается при закрытии потока.
+     */
+    public static InputStream decompressing(InputStream is, String contentEncoding) {
+        return isCompressed(contentEncoding) ? new DecompressingInputStream(is) : is;
+    }
+
+    /**
+     * Распаковывает тело ответа, если оно сжато.
+     */
+    public static byte[] decompress(byte[] data, String contentEncoding) throws IOException {
+        if (!isCompressed(contentEncoding)) {
+            return data;
+        }
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(Math.max(data.length * 4, BUFFER_SIZE));
+        try (DecompressingConsumer consumer = decompressing(new BatchResponseConsumer() {
+            @Override
+            public void onStatus(int status) {
+            }
+
+            @Override
+            public void onContent(ByteBuffer chunk) {
+                bos.write(chunk.array(), chunk.arrayOffset() + chunk.position(), chunk.remaining());
+            }
+        })) {
+            consumer.onContent(ByteBuffer.wrap(data));
+        }
+        return bos.toByteArray();
+    }
+
+    /**
+     * Получатель, распаковывающий части сжатого ответа и передающий распакованные данные в {@code consumer}.
+     * Должен быть закрыт по завершении ответа, в том числе при обрыве или отмене.
+     */
+    public static DecompressingConsumer decompressing(BatchResponseConsumer consumer) {
+        return new DecompressingConsumer(consumer);
+    }
+
+    /**
+     * Поврежденные сжатые данные. Не {@link IOException}: повторная отправка батча получит тот же ответ, а
+     * экземпляр сервиса, ответивший им, доступен - его не нужно исключать из балансировки.
+     */
+    private static UncheckedIOException corrupted(String details) {
+        return new UncheckedIOException(new ZipException("Invalid compressed service response: " + details));
+    }
+
+    /**
+     * Распаковка частей ответа, см. {@link #decompressing(BatchResponseConsumer)}
+     */
+    public static class DecompressingConsumer implements BatchResponseConsumer, AutoCloseable {
+
+        private final BatchResponseConsumer consumer;
+        private final Inflater inflater = new Inflater();
+        private final byte[] out = new byte[BUFFER_SIZE];
+        private byte[] in = new byte[0];
+        private boolean ended;
+
+        private DecompressingConsumer(BatchResponseConsumer consumer) {
+            this.consumer = consumer;
+        }
+
+        @Override
+        public void onStatus(int status) throws IOException {
+            consumer.onStatus(status);
+        }
+
+        @Override
+        public synchronized void onContent(ByteBuffer chunk) throws IOException {
+            if (ended) {
+                return;
+            }
+            int len = chunk.remaining();
+            if (chunk.hasArray()) {
+                inflater.setInput(chunk.array(), chunk.arrayOffset() + chunk.position(), len);
+            } else {
+                // В Java 8 Inflater принимает только массив
+                if (in.length < len) {
+                    in = new byte[Math.max(len, BUFFER_SIZE)];
+                }
+                chunk.duplicate().get(in, 0, len);
+                inflater.setInput(in, 0, len);
+            }
+            chunk.position(chunk.limit());
+
+            try {
+                int n;
+                while ((n = inflater.inflate(out)) > 0) {
+                    consumer.onContent(ByteBuffer.wrap(out, 0, n));
+                }
+            } catch (DataFormatException e) {
+                close();
+                throw corrupted(e.getMessage());
+            }
+            if (inflater.finished()) {
+                close();
+            }
+        }
+
+        /**
+         * Освобождает память zlib вне heap, не дожидаясь финализации. Может вызываться из другого потока, например,
+         * при обрыве ответа по таймауту.
+         */
+        @Override
+        public synchronized void close() {
+            if (!ended) {
+                ended = true;
+                inflater.end();
+            }
+        }
+    }
+
+    /**
+     * {@link InflaterInputStream} со своим {@link Inflater} не освобождает его при закрытии - освобождаем сами
+     */
+    private static class DecompressingInputStream extends InflaterInputStream {
+
+        private DecompressingInputStream(InputStream is) {
+            super(is, new Inflater(), BUFFER_SIZE);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            try {
+                return super.read(b, off, len);
+            } catch (ZipException e) {
+                throw corrupted(e.getMessage());
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                inf.end();
+            }
+        }
+    }
+
+    /**
+     * Отдает накопленные данные без копирования
+     */
+    private static class ExposedByteArrayOutputStream extends ByteArrayOutputStream {
+        private ExposedByteArrayOutputStream(int size) {
+            super(size);
+        }
+
+        private ByteBuffer toByteBuffer() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "BatchCompression{level=" + level + ", threshold=" + threshold + "}";
+    }
+}
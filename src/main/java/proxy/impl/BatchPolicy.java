@@ -0,0 +1,102 @@
+package proxy.impl;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Политика формирования батчей: когда отправлять неполный батч.
+ *
+ * <p>Батч отправляется сразу, как только набрано {@link #getMaxBatchSize()} сообщений или
+ * {@link #getMaxBatchBytes()} байт. Неполный батч ожидает новых сообщений не дольше {@code lingerMs} с момента
+ * поступления самого старого сообщения в батче. Если задана целевая латентность {@code targetLatencyMs}, то
+ * ожидание дополнительно ограничено так, чтобы с учетом времени ответа сервиса (скользящее среднее по
+ * отправленным батчам) сообщение уложилось в целевую латентность. Чем дольше ожидание - тем полнее батчи и
+ * меньше запросов к сервису, но выше латентность.
+ *
+ * <p>Политика с нулевыми {@code lingerMs} и {@code targetLatencyMs} отправляет все, что есть в очереди, без
+ * ожидания.
+ *
+ * @author rushan
+ */
+public class BatchPolicy {
+
+    /**
+     * Вес нового замера во времени ответа сервиса
+     */
+    private static final double RTT_EWMA_ALPHA = 0.2;
+
+    private final int maxBatchSize;
+    private final long maxBatchBytes;
+    private final long lingerNanos;
+    private final long targetLatencyNanos;
+
+    private volatile long rttEwmaNanos;
+
+    public BatchPolicy(int maxBatchSize, long maxBatchBytes, long lingerMs, long targetLatencyMs) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be positive: " + maxBatchSize);
+        }
+        this.maxBatchSize = maxBatchSize;
+        this.maxBatchBytes = maxBatchBytes > 0 ? maxBatchBytes : Long.MAX_VALUE;
+        this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMs);
+        this.targetLatencyNanos = TimeUnit.MILLISECONDS.toNanos(targetLatencyMs);
+    }
+
+    /**
+     * Политика без ожидания и без ограничения размера батча в байтах.
+     */
+    public static BatchPolicy immediate(int maxBatchSize) {
+        return new BatchPolicy(maxBatchSize, 0, 0, 0);
+    }
+
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    public long getMaxBatchBytes() {
+        return maxBatchBytes;
+    }
+
+    public boolean isBytesLimited() {
+        return maxBatchBytes != Long.MAX_VALUE;
+    }
+
+    /**
+     * Батч заполнен и должен быть отправлен.
+     */
+    public boolean isFull(int count, long bytes) {
+        return count >= maxBatchSize || bytes >= maxBatchBytes;
+    }
+
+    /**
+     * Момент (в терминах {@link System#nanoTime()}), после которого неполный батч должен быть отправлен.
+     *
+     * @param oldestEnqueuedAt время поступления в очередь самого старого сообщения в батче
+     */
+    public long flushDeadline(long oldestEnqueuedAt) {
+        long wait = lingerNanos > 0 ? lingerNanos : (targetLatencyNanos > 0 ? Long.MAX_VALUE : 0);
+        if (targetLatencyNanos > 0) {
+            wait = Math.min(wait, Math.max(0, targetLatencyNanos - rttEwmaNanos));
+        }
+        return oldestEnqueuedAt + wait;
+    }
+
+    /**
+     * Учитывает время ответа сервиса на отправленный батч.
+     */
+    public void onBatchCompleted(long rttNanos) {
+        long current = rttEwmaNanos;
+        rttEwmaNanos = current == 0 ? rttNanos : (long) (current + RTT_EWMA_ALPHA * (rttNanos - current));
+    }
+
+    public long getRttEwmaNanos() {
+        return rttEwmaNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "BatchPolicy{maxBatchSize=" + maxBatchSize
+                + ", maxBatchBytes=" + (isBytesLimited() ? maxBatchBytes : "unlimited")
+                + ", lingerMs=" + TimeUnit.NANOSECONDS.toMillis(lingerNanos)
+                + ", targetLatencyMs=" + TimeUnit.NANOSECONDS.toMillis(targetLatencyNanos) + "}";
+    }
+}
@@ -0,0 +1,151 @@
+package proxy.impl;
+
+import proxy.api.BatchResponseConsumer;
+import proxy.api.ResponseListener;
+import proxy.model.ServiceResponse;
+import proxy.util.ByteBufferPool;
+import proxy.util.PooledBuffer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Потоковый разбор батч-ответа сервиса: последовательность фреймов вида 4 байта размер + данные. Каждый фрейм
+ * передается в {@link ResponseListener} сразу после получения его последнего байта, тело ответа целиком в памяти
+ * не накапливается.
+ *
+ * <p>Данные ответов копируются в буферы из {@link ByteBufferPool} - ответ освобождает получатель, см.
+ * {@link ServiceResponse#release()}.
+ *
+ * <p>Размер фрейма берется из тела ответа, поэтому до выделения буфера он проверяется: не больше
+ * {@code maxMessageSize} и не больше оставшейся части тела, если известен его размер. Иначе, например, 4 байта
+ * {@code <htm} страницы ошибки были бы прочитаны как размер в сотни мегабайт. Ответ с неуспешным статусом не
+ * разбирается вовсе.
+ *
+ * <p>Экземпляр рассчитан на разбор одного ответа, для повторной попытки нужно создать новый.
+ *
+ * @author rushan
+ */
+public class BatchResponseDecoder implements BatchResponseConsumer {
+
+    private static final int LENGTH_SIZE = 4;
+
+    private final int expectedCount;
+    private final ResponseListener listener;
+    private final ByteBufferPool bufferPool;
+    private final int maxMessageSize;
+
+    private int status;
+    private int index;
+
+    /**
+     * Размер тела ответа или -1, если неизвестен, и количество уже полученных байт тела
+     */
+    private long contentLength = -1;
+    private long received;
+
+    /**
+     * Размер фрейма может прийти в разных частях тела, поэтому накапливаем его побайтно
+     */
+    private int length;
+    private int lengthRead;
+
+    private PooledBuffer frame;
+    private ByteBuffer frameBuffer;
+
+    public BatchResponseDecoder(int expectedCount, ResponseListener listener) {
+        this(expectedCount, listener, ByteBufferPool.getDefault());
+    }
+
+    public BatchResponseDecoder(int expectedCount, ResponseListener listener, ByteBufferPool bufferPool) {
+        this(expectedCount, listener, bufferPool, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param maxMessageSize максимальный размер ответа на одно сообщение
+     */
+    public BatchResponseDecoder(int expectedCount, ResponseListener listener, ByteBufferPool bufferPool,
+                                int maxMessageSize)
+    {
+        this.expectedCount = expectedCount;
+        this.listener = listener;
+        this.bufferPool = bufferPool;
+        this.maxMessageSize = maxMessageSize;
+    }
+
+    @Override
+    public void onContentLength(long contentLength) {
+        this.contentLength = contentLength;
+    }
+
+    @Override
+    public void onStatus(int status) throws IOException {
+        if (status < 200 || status >= 300) {
+            throw new IOException("Unexpected service response status: " + status);
+        }
+        this.status = status;
+    }
+
+    @Override
+    public void onContent(ByteBuffer chunk) throws IOException {
+        while (chunk.hasRemaining()) {
+            if (frame == null) {
+                while (lengthRead < LENGTH_SIZE && chunk.hasRemaining()) {
+                    length = (length << 8) | (chunk.get() & 0xFF);
+                    lengthRead++;
+                    received++;
+                }
+                if (lengthRead < LENGTH_SIZE) {
+                    return;
+                }
+                if (length < 0 || length > maxMessageSize) {
+                    throw new IOException("Unexpected service response. Invalid message length: " + length);
+                }
+                if (contentLength >= 0 && length > contentLength - received) {
+                    throw new IOException("Unexpected service response. Message length " + length
+                            + " exceeds the rest of the response: " + (contentLength - received));
+                }
+                if (index >= expectedCount) {
+                    throw new IllegalStateException("Unexpected service response. The response result size is not match to batch size");
+                }
+                frame = bufferPool.acquire(length);
+                frameBuffer = frame.buffer();
+                length = 0;
+                lengthRead = 0;
+            }
+
+            int count = Math.min(chunk.remaining(), frameBuffer.remaining());
+            ByteBuffer part = chunk.duplicate();
+            part.limit(part.position() + count);
+            frameBuffer.put(part);
+            chunk.position(chunk.position() + count);
+            received += count;
+
+            if (!frameBuffer.hasRemaining()) {
+                PooledBuffer data = frame;
+                frame = null;
+                frameBuffer = null;
+                listener.onResponse(index++, ServiceResponse.response(status, data));
+            }
+        }
+    }
+
+    /**
+     * Проверяет, что ответ получен полностью и количество ответов совпадает с размером батча.
+     */
+    public void finish() {
+        if (frame != null || lengthRead != 0) {
+            throw new IllegalStateException("Unexpected service response. The last message is truncated");
+        }
+        if (index != expectedCount) {
+            throw new IllegalStateException("Unexpected service response. The response result size is not match to batch size");
+        }
+    }
+
+    /**
+     * Количество полностью полученных ответов.
+     */
+    public int getCount() {
+        return index;
+    }
+}
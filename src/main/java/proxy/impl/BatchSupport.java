@@ -1,5 +1,6 @@
 package proxy.impl;
 
+import proxy.model.BatchBody;
 import proxy.model.Message;
 import proxy.model.ServiceResponse;
 
@@ -14,6 +15,13 @@ import java.util.List;
  */
 public class BatchSupport {
 
+    /**
+     * Создает из списка сообщений тело батча для отправки в сервис без копирования данных сообщений.
+     */
+    public BatchBody toBatchBody(List<Message> messages) {
+        return new BatchBody(messages);
+    }
+
     /**
      * Создает из списка сообщение батч-буффер для отправки в сервис.
      */
@@ -26,15 +34,15 @@ public class BatchSupport {
         int initialAllocate = 0;
         for (Message m : messages) {
             // размер данных + 4 байта на размер сообщения + 8 байт на timestamp
-            initialAllocate += m.getData().length + 12;
+            initialAllocate += m.getSize() + 12;
         }
 
         ByteBuffer buff = ByteBuffer.allocate(initialAllocate);
 
         for (Message message : messages) {
-            byte[] data = message.getData();
+            ByteBuffer data = message.getPayload();
             buff.putLong(message.getReceivedAt().toEpochMilli());
-            buff.putInt(data.length);
+            buff.putInt(data.remaining());
             buff.put(data);
         }
 
@@ -1,25 +1,55 @@
 package proxy.impl;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import proxy.api.BatchResponseConsumer;
 import proxy.api.ServiceCall;
+import proxy.model.BatchBody;
 import proxy.model.ServiceResponse;
 import proxy.util.Util;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.zip.DeflaterOutputStream;
 
 /**
+ * Синхронный вызов сервиса через {@link HttpURLConnection}, по соединению на батч.
+ *
+ * <p>Если задано {@link BatchCompression}, то тело батча сжимается при записи в соединение (тогда оно передается
+ * chunked, так как размер заранее неизвестен), а сервису сообщается, что ответ тоже можно сжать. Если сервис
+ * отвечает на сжатое тело 415, то батч сразу переотправляется без сжатия, и далее сжатие не используется.
+ *
  * @author rushan
  */
 public class BlockingHttpCall implements ServiceCall {
 
+    private static final Logger log = LoggerFactory.getLogger(BlockingHttpCall.class);
+
+    /**
+     * Размер буфера чтения ответа при потоковом разборе
+     */
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+
     private final URL serviceUrl;
     private final int connectTimeout;
     private final int readTimeout;
 
+    private final BatchCompression compression;
+    private volatile boolean compressionSupported = true;
+
     public BlockingHttpCall(String serviceUrl, int connectTimeout, int readTimeout) {
+        this(serviceUrl, connectTimeout, readTimeout, null);
+    }
+
+    /**
+     * @param compression сжатие батчей, если null - не используется
+     */
+    public BlockingHttpCall(String serviceUrl, int connectTimeout, int readTimeout, BatchCompression compression) {
         try {
             this.serviceUrl = new URL(serviceUrl);
         } catch (MalformedURLException e) {
@@ -27,23 +57,95 @@ public class BlockingHttpCall implements ServiceCall {
         }
         this.connectTimeout = connectTimeout;
         this.readTimeout = readTimeout;
+        this.compression = compression;
     }
 
     @Override
     public ServiceResponse call(byte[] data) throws IOException {
+        return post(data.length, os -> os.write(data));
+    }
+
+    /**
+     * Тело батча пишется в соединение потоково, без сборки в один массив.
+     */
+    @Override
+    public ServiceResponse call(BatchBody body) throws IOException {
+        return post(body.getLength(), body::writeTo);
+    }
+
+    /**
+     * Ответ передается в {@code consumer} частями по мере чтения из соединения.
+     */
+    @Override
+    public void call(BatchBody body, BatchResponseConsumer consumer) throws IOException {
+        HttpURLConnection httpCon = send(body.getLength(), body::writeTo);
+        try (InputStream is = BatchCompression.decompressing(httpCon.getInputStream(), httpCon.getContentEncoding())) {
+            if (!BatchCompression.isCompressed(httpCon.getContentEncoding())) {
+                consumer.onContentLength(httpCon.getContentLengthLong());
+            }
+            consumer.onStatus(httpCon.getResponseCode());
+
+            byte[] buf = new byte[READ_BUFFER_SIZE];
+            ByteBuffer chunk = ByteBuffer.wrap(buf);
+            int len;
+            while ((len = is.read(buf)) != -1) {
+                chunk.clear();
+                chunk.limit(len);
+                consumer.onContent(chunk);
+            }
+        }
+    }
 
+    private ServiceResponse post(long length, BodyWriter writer) throws IOException {
+        HttpURLConnection httpCon = send(length, writer);
+        byte[] body;
+        try (InputStream is = BatchCompression.decompressing(httpCon.getInputStream(), httpCon.getContentEncoding())) {
+            body = Util.readMessageBody(is, Integer.MAX_VALUE);
+        }
+        int status = httpCon.getResponseCode();
+        return ServiceResponse.response(status, body);
+    }
+
+    private HttpURLConnection send(long length, BodyWriter writer) throws IOException {
         HttpURLConnection httpCon = (HttpURLConnection) this.serviceUrl.openConnection();
         httpCon.setDoOutput(true);
         httpCon.setRequestMethod("POST");
         httpCon.setConnectTimeout(this.connectTimeout);
         httpCon.setReadTimeout(this.readTimeout);
+        if (this.compression != null) {
+            httpCon.setRequestProperty(BatchCompression.ACCEPT_ENCODING, BatchCompression.DEFLATE);
+        }
+        boolean compressed = this.compression != null && this.compressionSupported
+                && this.compression.shouldCompress(length);
+        if (!compressed) {
+            // Без этого HttpURLConnection накапливает все тело в памяти, чтобы вычислить Content-Length
+            httpCon.setFixedLengthStreamingMode(length);
+            try (OutputStream os = httpCon.getOutputStream()) {
+                writer.write(os);
+            }
+            return httpCon;
+        }
+
+        // Размер сжатого тела заранее неизвестен
+        httpCon.setRequestProperty(BatchCompression.CONTENT_ENCODING, BatchCompression.DEFLATE);
+        httpCon.setChunkedStreamingMode(0);
         try (OutputStream os = httpCon.getOutputStream()) {
-            os.write(data);
+            DeflaterOutputStream dos = this.compression.compressing(os);
+            writer.write(dos);
+            dos.finish();
+        }
+        if (httpCon.getResponseCode() == BatchCompression.SC_UNSUPPORTED_MEDIA_TYPE) {
+            log.warn("Service {} does not accept compressed batches. Compression is disabled", this.serviceUrl);
+            this.compressionSupported = false;
+            httpCon.disconnect();
+            return send(length, writer);
         }
+        return httpCon;
+    }
 
-        byte[] body = Util.readMessageBody(httpCon.getInputStream(), Integer.MAX_VALUE);
-        int status = httpCon.getResponseCode();
-        return ServiceResponse.response(status, body);
+    @FunctionalInterface
+    private interface BodyWriter {
+        void write(OutputStream os) throws IOException;
     }
 
     @Override
@@ -0,0 +1,21 @@
+package proxy.impl;
+
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Очередь, добавляющая несколько элементов за одну операцию - парная к {@link #drainTo(java.util.Collection, int)}.
+ * Например, сообщения пакета клиента добавляются одним захватом блокировки или одной CAS операцией, а не по одному.
+ *
+ * @author rushan
+ */
+public interface BulkQueue<E> extends BlockingQueue<E> {
+
+    /**
+     * Добавляет элементы по порядку, пока они помещаются в очередь. Элементы после первого не поместившегося не
+     * добавляются.
+     *
+     * @return количество добавленных элементов - они составляют начало списка
+     */
+    int offerAll(List<? extends E> elements);
+}
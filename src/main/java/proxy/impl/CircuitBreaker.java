@@ -0,0 +1,174 @@
+package proxy.impl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Автомат защиты (circuit breaker) вызовов сервиса, общий для всех потоков, отправляющих батчи.
+ *
+ * <ul>
+ * <li>{@link State#CLOSED} - вызовы разрешены. После {@code failureThreshold} неудачных попыток подряд (от любых
+ * потоков) цепь размыкается.</li>
+ * <li>{@link State#OPEN} - вызовы запрещены, вызывающий сразу получает отказ вместо повторных попыток. Через
+ * {@code openTimeMs} цепь переходит в полуоткрытое состояние.</li>
+ * <li>{@link State#HALF_OPEN} - разрешен единственный пробный вызов. При его успехе цепь замыкается, при неудаче -
+ * снова размыкается. Результаты других вызовов, завершившихся в это время, не учитываются.</li>
+ * </ul>
+ *
+ * <p>После замыкания нагрузка на сервис восстанавливается постепенно: в течение {@code rampUpMs} разрешается
+ * доля вызовов, линейно растущая от {@link #MIN_RAMP_UP_FRACTION} до 1. Иначе накопленные за время недоступности
+ * сообщения разом обрушатся на только что поднявшийся сервис.
+ *
+ * @author rushan
+ */
+public class CircuitBreaker {
+
+    private static final Logger log = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    /**
+     * Доля разрешенных вызовов в начале восстановления нагрузки
+     */
+    public static final double MIN_RAMP_UP_FRACTION = 0.1;
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    /**
+     * Разрешение на попытку вызова. У пробного вызова полуоткрытой цепи - свое разрешение: замыкает или снова
+     * размыкает цепь только его результат, а не результаты вызовов, начатых до размыкания.
+     */
+    public static final class Permit {
+
+        private static final Permit REGULAR = new Permit();
+
+        private Permit() {
+        }
+    }
+
+    private final int failureThreshold;
+    private final long openTimeNanos;
+    private final long rampUpNanos;
+
+    private final AtomicReference<State> state = new AtomicReference<>(State.CLOSED);
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    /**
+     * Разрешение выполняющегося пробного вызова
+     */
+    private final AtomicReference<Permit> probe = new AtomicReference<>();
+    private volatile long openedAt;
+    private volatile long closedAt;
+
+    /**
+     * @param failureThreshold количество неудачных попыток подряд, после которого цепь размыкается
+     * @param openTimeMs       время в разомкнутом состоянии до пробного вызова
+     * @param rampUpMs         время восстановления нагрузки после замыкания, если 0 - сразу полная нагрузка
+     */
+    public CircuitBreaker(int failureThreshold, long openTimeMs, long rampUpMs) {
+        if (failureThreshold < 1) {
+            throw new IllegalArgumentException("Failure threshold must be positive: " + failureThreshold);
+        }
+        this.failureThreshold = failureThreshold;
+        this.openTimeNanos = TimeUnit.MILLISECONDS.toNanos(openTimeMs);
+        this.rampUpNanos = TimeUnit.MILLISECONDS.toNanos(rampUpMs);
+        this.closedAt = System.nanoTime() - this.rampUpNanos;
+    }
+
+    /**
+     * Разрешение на попытку вызова. Если получено, то результат попытки должен быть передан в
+     * {@link #onSuccess(Permit)} или {@link #onFailure(Permit)} вместе с разрешением.
+     *
+     * @return null, если цепь разомкнута, пробный вызов уже выполняется другим потоком или вызов не прошел
+     * ограничение нагрузки при восстановлении (в этом случае {@link #getState()} вернет {@link State#CLOSED})
+     */
+    public Permit tryAcquire() {
+        switch (getState()) {
+            case CLOSED:
+                long elapsed = System.nanoTime() - closedAt;
+                if (elapsed >= rampUpNanos) {
+                    return Permit.REGULAR;
+                }
+                double fraction = Math.max(MIN_RAMP_UP_FRACTION, (double) elapsed / rampUpNanos);
+                return ThreadLocalRandom.current().nextDouble() < fraction ? Permit.REGULAR : null;
+            case HALF_OPEN:
+                Permit permit = new Permit();
+                return probe.compareAndSet(null, permit) ? permit : null;
+            default:
+                return null;
+        }
+    }
+
+    public void onSuccess(Permit permit) {
+        if (permit != Permit.REGULAR) {
+            if (permit != null && probe.get() == permit) {
+                consecutiveFailures.set(0);
+                closedAt = System.nanoTime();
+                state.set(State.CLOSED);
+                probe.set(null);
+                log.info("Probe call is succeeded. Circuit is closed");
+            }
+            return;
+        }
+        // Успех вызова, начатого до размыкания, не замыкает цепь
+        if (state.get() == State.CLOSED) {
+            consecutiveFailures.set(0);
+        }
+    }
+
+    public void onFailure(Permit permit) {
+        if (permit != Permit.REGULAR) {
+            if (permit != null && probe.get() == permit) {
+                open(State.HALF_OPEN);
+                probe.set(null);
+            }
+            return;
+        }
+        if (state.get() == State.CLOSED && consecutiveFailures.incrementAndGet() >= failureThreshold) {
+            open(State.CLOSED);
+        }
+    }
+
+    private void open(State from) {
+        openedAt = System.nanoTime();
+        if (state.compareAndSet(from, State.OPEN)) {
+            consecutiveFailures.set(0);
+            log.warn("Circuit is opened after failed service calls. Calls are rejected for {}ms",
+                    TimeUnit.NANOSECONDS.toMillis(openTimeNanos));
+        }
+    }
+
+    /**
+     * Текущее состояние. Разомкнутая цепь переходит в полуоткрытое состояние при первом запросе состояния после
+     * истечения времени ожидания.
+     */
+    public State getState() {
+        State current = state.get();
+        if (current == State.OPEN && System.nanoTime() - openedAt >= openTimeNanos) {
+            if (state.compareAndSet(State.OPEN, State.HALF_OPEN)) {
+                log.info("Circuit is half-open. Waiting for a probe call");
+            }
+            return state.get();
+        }
+        return current;
+    }
+
+    /**
+     * Можно ли отправлять сервису новые вызовы: цепь замкнута или готова к пробному вызову.
+     */
+    public boolean isCallPermitted() {
+        State current = getState();
+        return current == State.CLOSED || (current == State.HALF_OPEN && probe.get() == null);
+    }
+
+    @Override
+    public String toString() {
+        return "CircuitBreaker{failureThreshold=" + failureThreshold
+                + ", openTimeMs=" + TimeUnit.NANOSECONDS.toMillis(openTimeNanos)
+                + ", rampUpMs=" + TimeUnit.NANOSECONDS.toMillis(rampUpNanos) + "}";
+    }
+}
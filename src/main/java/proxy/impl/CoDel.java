@@ -0,0 +1,76 @@
+package proxy.impl;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Управление задержкой в очереди по мотивам CoDel (controlled delay): учитывается время ожидания сообщений в
+ * очереди (sojourn time) на момент извлечения. Если в течение целого интервала {@code interval} минимальное время
+ * ожидания превышало {@code target}, то очередь считается перегруженной - она не успевает опустошаться, и ее длина
+ * только добавляет задержку. Пока очередь перегружена, сообщения, ждавшие дольше {@code target}, сбрасываются с
+ * головы очереди, не дожидаясь отправки. Так задержка остается ограниченной при длительной перегрузке, а
+ * кратковременные всплески, которые очередь успевает разобрать, сообщения не теряют.
+ *
+ * <p>Вызывается io-потоками на каждое извлеченное сообщение, состояние защищено монитором - захват почти всегда
+ * без конкуренции.
+ *
+ * @author rushan
+ */
+public class CoDel {
+
+    private final long targetNanos;
+    private final long intervalNanos;
+
+    private long intervalEnd;
+    private long minSojournNanos = Long.MAX_VALUE;
+    private boolean overloaded;
+
+    /**
+     * @param targetMs   допустимое время ожидания в очереди
+     * @param intervalMs интервал, за который минимальное время ожидания должно опуститься до {@code targetMs}
+     */
+    public CoDel(long targetMs, long intervalMs) {
+        if (targetMs <= 0 || intervalMs <= 0) {
+            throw new IllegalArgumentException("Expected positive target and interval, but got " + targetMs
+                    + " ms and " + intervalMs + " ms");
+        }
+        this.targetNanos = TimeUnit.MILLISECONDS.toNanos(targetMs);
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMs);
+        this.intervalEnd = System.nanoTime() + intervalNanos;
+    }
+
+    /**
+     * Учитывает время ожидания извлеченного сообщения.
+     *
+     * @return true, если сообщение нужно сбросить
+     */
+    public boolean shouldShed(long sojournNanos) {
+        return shouldShed(sojournNanos, System.nanoTime());
+    }
+
+    /**
+     * @param now текущее время в терминах {@link System#nanoTime()}
+     */
+    public synchronized boolean shouldShed(long sojournNanos, long now) {
+        if (now - intervalEnd >= 0) {
+            // Интервал закончился: перегрузка, если ни одно сообщение за интервал не уложилось в target.
+            // Если сообщений за интервал не было, то очередь была пуста.
+            overloaded = minSojournNanos != Long.MAX_VALUE && minSojournNanos > targetNanos;
+            minSojournNanos = Long.MAX_VALUE;
+            intervalEnd = now + intervalNanos;
+        }
+        if (sojournNanos < minSojournNanos) {
+            minSojournNanos = sojournNanos;
+        }
+        return overloaded && sojournNanos > targetNanos;
+    }
+
+    public synchronized boolean isOverloaded() {
+        return overloaded;
+    }
+
+    @Override
+    public String toString() {
+        return "CoDel{targetMs=" + TimeUnit.NANOSECONDS.toMillis(targetNanos)
+                + ", intervalMs=" + TimeUnit.NANOSECONDS.toMillis(intervalNanos) + "}";
+    }
+}
@@ -0,0 +1,255 @@
+package proxy.impl;
+
+import proxy.api.MessageProxy;
+import proxy.api.MessageRejectedException;
+import proxy.metrics.Counter;
+import proxy.metrics.Gauge;
+import proxy.metrics.MetricsRegistry;
+import proxy.model.Message;
+import proxy.model.ServiceResponse;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Слой перед {@link MessageProxy}, сокращающий количество одинаковых сообщений, отправляемых сервису (например,
+ * повторы и heartbeat устройств):
+ * <ul>
+ *     <li>сообщение с тем же телом, что и у сообщения, ожидающего ответа сервиса, не отправляется - его отправитель
+ *     получит тот же ответ;</li>
+ *     <li>успешные (2xx) ответы сервиса сохраняются в {@link ResponseCache}, и на сообщение с тем же телом ответ
+ *     дается сразу из кэша.</li>
+ * </ul>
+ *
+ * <p>Каждый отправитель получает свою футуру, поэтому отмена по таймауту одного клиента не затрагивает остальных.
+ * Сообщение, ожидающее ответа, отменяется, только когда отменили все его отправители. Срок сообщения
+ * ({@link Message#getDeadline()}) - срок первого отправителя.
+ *
+ * <p>Тела сравниваются полностью, хэш тела используется только для поиска. Общие и кэшированные ответы хранятся
+ * вне пула буферов ({@link ServiceResponse#copy()}).
+ *
+ * <p>Измерители кэша удаляются из реестра метрик в {@link #close()}.
+ *
+ * @author rushan
+ */
+public class CollapsingProxy implements MessageProxy, AutoCloseable {
+
+    private static final String CACHE_ENTRIES_GAUGE = "proxy_response_cache_entries";
+    private static final String CACHE_BYTES_GAUGE = "proxy_response_cache_bytes";
+
+    /**
+     * Тело сообщения как ключ
+     */
+    private static final class BodyKey {
+        private final byte[] data;
+        private final int hash;
+
+        private BodyKey(byte[] data) {
+            this.data = data;
+            this.hash = Arrays.hashCode(data);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof BodyKey && hash == ((BodyKey) o).hash && Arrays.equals(data, ((BodyKey) o).data);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * Сообщение, ожидающее ответа сервиса, и его отправители
+     */
+    private static class InFlight {
+        private final CompletableFuture<ServiceResponse> shared = new CompletableFuture<>();
+        /**
+         * Количество неотменивших отправителей. После достижения 0 к сообщению больше нельзя присоединиться.
+         */
+        private final AtomicInteger waiters = new AtomicInteger(1);
+        private volatile CompletableFuture<ServiceResponse> upstream;
+
+        private boolean join() {
+            while (true) {
+                int count = waiters.get();
+                if (count <= 0) {
+                    return false;
+                }
+                if (waiters.compareAndSet(count, count + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * Футура отправителя, завершаемая вместе с общей
+         */
+        private CompletableFuture<ServiceResponse> attach() {
+            CompletableFuture<ServiceResponse> caller = new CompletableFuture<>();
+            shared.whenComplete((response, ex) -> {
+                if (ex != null) {
+                    caller.completeExceptionally(ex);
+                } else {
+                    caller.complete(response);
+                }
+            });
+            caller.whenComplete((response, ex) -> {
+                if (caller.isCancelled()) {
+                    leave();
+                }
+            });
+            return caller;
+        }
+
+        private void leave() {
+            if (waiters.decrementAndGet() == 0) {
+                CompletableFuture<ServiceResponse> sent = upstream;
+                if (sent != null) {
+                    sent.cancel(false);
+                }
+            }
+        }
+    }
+
+    private final MessageProxy proxy;
+    private final boolean collapse;
+    private final ResponseCache<BodyKey> cache;
+    private final ConcurrentHashMap<BodyKey, InFlight> inFlight = new ConcurrentHashMap<>();
+
+    private final MetricsRegistry metrics = MetricsRegistry.getDefault();
+    private final Counter collapsed = metrics.counter("proxy_collapsed_total",
+            "Messages answered together with an identical in-flight message");
+    private final Counter cacheHits = metrics.counter("proxy_response_cache_hits_total",
+            "Messages answered from the response cache");
+    private final Gauge cacheEntries;
+    private final Gauge cacheBytes;
+
+    /**
+     * @param collapse        объединять одинаковые сообщения, ожидающие ответа
+     * @param cacheTtlMs      время жизни ответа в кэше. Если 0 - ответы не кэшируются.
+     * @param cacheMaxEntries максимальное количество ответов в кэше
+     * @param cacheMaxBytes   максимальный суммарный размер тел сообщений и ответов в кэше
+     */
+    public CollapsingProxy(MessageProxy proxy, boolean collapse, long cacheTtlMs, int cacheMaxEntries,
+                           long cacheMaxBytes)
+    {
+        this.proxy = proxy;
+        this.collapse = collapse;
+        this.cache = cacheTtlMs > 0 ? new ResponseCache<>(cacheTtlMs, cacheMaxEntries, cacheMaxBytes) : null;
+        if (cache != null) {
+            this.cacheEntries = metrics.gauge(CACHE_ENTRIES_GAUGE, "Responses in the response cache", cache::size);
+            this.cacheBytes = metrics.gauge(CACHE_BYTES_GAUGE, "Response cache size in bytes", cache::getBytes);
+        } else {
+            this.cacheEntries = null;
+            this.cacheBytes = null;
+        }
+    }
+
+    @Override
+    public CompletableFuture<ServiceResponse> message(Message message) throws MessageRejectedException {
+        BodyKey key = new BodyKey(message.getData());
+        if (cache != null) {
+            ServiceResponse cached = cache.get(key);
+            if (cached != null) {
+                cacheHits.inc();
+                return CompletableFuture.completedFuture(cached);
+            }
+        }
+
+        if (!collapse) {
+            CompletableFuture<ServiceResponse> upstream = proxy.message(message);
+            if (cache == null) {
+                return upstream;
+            }
+            // Получатель освобождает ответ в своем обработчике завершения, а обработчики одной футуры выполняются в
+            // обратном порядке регистрации - поэтому ответ кэшируется до того, как будет передан получателю
+            CompletableFuture<ServiceResponse> caller = new CompletableFuture<>();
+            upstream.whenComplete((response, ex) -> {
+                if (ex != null) {
+                    caller.completeExceptionally(ex instanceof CompletionException ? ex.getCause() : ex);
+                    return;
+                }
+                cacheResponse(key, response);
+                if (!caller.complete(response)) {
+                    // Получатель уже отменил ожидание
+                    response.release();
+                }
+            });
+            caller.whenComplete((response, ex) -> {
+                if (caller.isCancelled()) {
+                    upstream.cancel(false);
+                }
+            });
+            return caller;
+        }
+
+        InFlight entry = new InFlight();
+        while (true) {
+            InFlight existing = inFlight.putIfAbsent(key, entry);
+            if (existing == null) {
+                break;
+            }
+            if (existing.join()) {
+                collapsed.inc();
+                return existing.attach();
+            }
+            // Все отправители ожидающего сообщения его отменили - отправляем заново
+            inFlight.remove(key, existing);
+        }
+
+        CompletableFuture<ServiceResponse> caller = entry.attach();
+        CompletableFuture<ServiceResponse> upstream;
+        try {
+            upstream = proxy.message(message);
+        } catch (MessageRejectedException | RuntimeException e) {
+            // Присоединившиеся за это время отправители получат тот же отказ
+            inFlight.remove(key, entry);
+            entry.shared.completeExceptionally(e);
+            throw e;
+        }
+        entry.upstream = upstream;
+        if (entry.waiters.get() <= 0) {
+            upstream.cancel(false);
+        }
+        upstream.whenComplete((response, ex) -> {
+            inFlight.remove(key, entry);
+            if (ex != null) {
+                entry.shared.completeExceptionally(ex instanceof CompletionException ? ex.getCause() : ex);
+            } else {
+                // Ответ получат несколько отправителей - нужна копия вне пула буферов
+                ServiceResponse copy = response.copy();
+                if (copy != response) {
+                    response.release();
+                }
+                cacheResponse(key, copy);
+                entry.shared.complete(copy);
+            }
+        });
+        return caller;
+    }
+
+    private void cacheResponse(BodyKey key, ServiceResponse response) {
+        if (cache != null && response.getStatus() >= 200 && response.getStatus() < 300) {
+            // Ответ с буфером из пула освободит получатель - в кэше нужна копия
+            cache.put(key, key.data.length, response.copy());
+        }
+    }
+
+    @Override
+    public void close() {
+        if (cache != null) {
+            metrics.remove(CACHE_ENTRIES_GAUGE, cacheEntries);
+            metrics.remove(CACHE_BYTES_GAUGE, cacheBytes);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "CollapsingProxy{collapse=" + collapse + ", cache=" + cache + ", proxy=" + proxy + "}";
+    }
+}
@@ -0,0 +1,476 @@
+package proxy.impl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import proxy.model.Message;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Очередь сообщений на диске - второй уровень очереди {@link AsyncProxy}, куда попадают сообщения, не поместившиеся
+ * в очередь в памяти. Позволяет пережить длительную недоступность сервиса без большого heap.
+ *
+ * <p>Сообщения дописываются в отображенные в память (mmap) файлы-сегменты фиксированного размера. Формат записи:
+ * 4 байта длина данных + 1 (0 - запись отсутствует, -1 - конец сегмента), 4 байта CRC32, 8 байт timestamp, данные.
+ * Длина пишется последней, CRC32 покрывает timestamp и данные. Прочитанные сегменты удаляются.
+ *
+ * <p>Запись на диск выполняется группами (group commit): фоновый поток раз в {@code flushIntervalMs} сбрасывает
+ * измененные сегменты и позицию чтения, поэтому добавление сообщения не ждет диска. При аварийном завершении могут
+ * быть потеряны сообщения, добавленные за последний интервал, - при восстановлении чтение остановится на первой
+ * неполной или поврежденной записи. Позиция чтения сохраняется в момент извлечения, то есть извлеченные сообщения
+ * при повторном запуске не восстанавливаются.
+ *
+ * <p>К каждому сообщению может быть привязан объект, хранящийся только в памяти (например, футура ответа клиенту).
+ * У сообщений, восстановленных после перезапуска, привязанный объект равен null.
+ *
+ * @author rushan
+ */
+public class DiskSpillQueue<T> implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(DiskSpillQueue.class);
+
+    public static final int SEGMENT_SIZE_DEFAULT = 64 * 1024 * 1024;
+    public static final long FLUSH_INTERVAL_MS_DEFAULT = 10;
+
+    /**
+     * Длина + CRC32 + timestamp
+     */
+    private static final int RECORD_HEADER_SIZE = 16;
+    private static final int END_OF_SEGMENT = -1;
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".dat";
+    private static final String META_FILE = "spill.meta";
+
+    /**
+     * Признак отсутствия привязанного объекта, так как {@link ArrayDeque} не хранит null
+     */
+    private static final Object NO_ATTACHMENT = new Object();
+
+    /**
+     * Извлеченное из очереди сообщение
+     */
+    public static class Entry<T> {
+        private final Message message;
+        private final T attachment;
+
+        private Entry(Message message, T attachment) {
+            this.message = message;
+            this.attachment = attachment;
+        }
+
+        public Message getMessage() {
+            return message;
+        }
+
+        public T getAttachment() {
+            return attachment;
+        }
+    }
+
+    private static class Segment {
+        private final long seq;
+        private final Path path;
+        private final MappedByteBuffer buffer;
+        /**
+         * Позиция после последней записи
+         */
+        private int writeOffset;
+        /**
+         * Запись в сегмент завершена
+         */
+        private boolean sealed;
+
+        private Segment(long seq, Path path, MappedByteBuffer buffer) {
+            this.seq = seq;
+            this.path = path;
+            this.buffer = buffer;
+        }
+
+        private int capacity() {
+            return buffer.capacity();
+        }
+    }
+
+    private final Path directory;
+    private final int segmentSize;
+    private final long maxDiskBytes;
+
+    /**
+     * Сегменты от самого старого к самому новому. Чтение идет из первого, запись - в последний.
+     */
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+    private final ArrayDeque<Object> attachments = new ArrayDeque<>();
+    private final List<Segment> dirtySegments = new ArrayList<>();
+    private final FileChannel metaChannel;
+    private final Thread flusher;
+
+    private int readOffset;
+    private long count;
+    private long restoredCount;
+    private long diskBytes;
+    private long nextSeq;
+    private boolean metaDirty;
+    private boolean closed;
+
+    public DiskSpillQueue(Path directory, long maxDiskBytes) throws IOException {
+        this(directory, SEGMENT_SIZE_DEFAULT, maxDiskBytes, FLUSH_INTERVAL_MS_DEFAULT);
+    }
+
+    /**
+     * @param directory       каталог сегментов. Если в нем есть сегменты предыдущего запуска, сообщения из них
+     *                        восстанавливаются
+     * @param segmentSize     размер сегмента в байтах
+     * @param maxDiskBytes    максимальный суммарный размер сегментов, если 0 - не ограничен
+     * @param flushIntervalMs интервал сброса изменений на диск
+     */
+    public DiskSpillQueue(Path directory, int segmentSize, long maxDiskBytes, long flushIntervalMs)
+            throws IOException
+    {
+        this.directory = Files.createDirectories(directory);
+        this.segmentSize = segmentSize;
+        this.maxDiskBytes = maxDiskBytes > 0 ? maxDiskBytes : Long.MAX_VALUE;
+        this.metaChannel = FileChannel.open(directory.resolve(META_FILE),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        recover();
+
+        this.flusher = new Thread(() -> runFlusher(flushIntervalMs), "spill-flusher");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    /**
+     * Добавляет сообщение в конец очереди.
+     *
+     * @return false, если превышен допустимый размер очереди на диске или очередь закрыта
+     */
+    public synchronized boolean append(Message message, T attachment) throws IOException {
+        if (closed) {
+            return false;
+        }
+        ByteBuffer data = message.getPayload();
+        int length = data.remaining();
+        int recordSize = RECORD_HEADER_SIZE + length;
+
+        Segment segment = segments.peekLast();
+        if (segment == null || segment.sealed || segment.capacity() - segment.writeOffset < recordSize) {
+            if (segment != null && count == 0) {
+                // Единственный сегмент прочитан полностью - он больше не нужен
+                removeFirstSegment();
+                segment = null;
+            }
+            // Сегмент должен вместить запись и признак конца сегмента
+            int size = Math.max(segmentSize, recordSize + Integer.BYTES);
+            if (diskBytes + size > maxDiskBytes) {
+                return false;
+            }
+            if (segment != null && !segment.sealed) {
+                seal(segment);
+            }
+            segment = createSegment(size);
+        }
+
+        ByteBuffer buffer = segment.buffer;
+        int offset = segment.writeOffset;
+        buffer.putLong(offset + 8, message.getReceivedAt().toEpochMilli());
+        ByteBuffer dataBuffer = buffer.duplicate();
+        dataBuffer.position(offset + RECORD_HEADER_SIZE);
+        dataBuffer.put(data);
+        buffer.putInt(offset + 4, crc(buffer, offset, length));
+        // Длина - последней: запись без длины при восстановлении считается отсутствующей
+        buffer.putInt(offset, length + 1);
+
+        segment.writeOffset += recordSize;
+        markDirty(segment);
+        attachments.add(attachment != null ? attachment : NO_ATTACHMENT);
+        count++;
+        return true;
+    }
+
+    /**
+     * Извлекает сообщение из начала очереди.
+     *
+     * @return сообщение или null, если очередь пуста
+     */
+    public synchronized Entry<T> poll() throws IOException {
+        Entry<T> entry = peek();
+        if (entry != null) {
+            commitPoll();
+        }
+        return entry;
+    }
+
+    /**
+     * Читает сообщение из начала очереди, не извлекая его: сообщение остается в очереди (и на диске), пока не будет
+     * вызван {@link #commitPoll()}. Так потребитель, которому некуда передать сообщение, не меняет порядок очереди.
+     *
+     * @return сообщение или null, если очередь пуста
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized Entry<T> peek() throws IOException {
+        Segment segment = head();
+        if (segment == null) {
+            return null;
+        }
+        ByteBuffer buffer = segment.buffer;
+        int dataLength = buffer.getInt(readOffset) - 1;
+        long receivedAt = buffer.getLong(readOffset + 8);
+        byte[] data = new byte[dataLength];
+        ByteBuffer dataBuffer = buffer.duplicate();
+        dataBuffer.position(readOffset + RECORD_HEADER_SIZE);
+        dataBuffer.get(data);
+
+        Object attachment = restoredCount > 0 ? null : attachments.peek();
+        return new Entry<>(new Message(Instant.ofEpochMilli(receivedAt), data),
+                attachment == NO_ATTACHMENT ? null : (T) attachment);
+    }
+
+    /**
+     * Извлекает сообщение из начала очереди, прочитанное {@link #peek()}.
+     *
+     * @throws IllegalStateException если очередь пуста
+     */
+    public synchronized void commitPoll() throws IOException {
+        Segment segment = head();
+        if (segment == null) {
+            throw new IllegalStateException("The spill queue is empty");
+        }
+        readOffset += RECORD_HEADER_SIZE + segment.buffer.getInt(readOffset) - 1;
+        metaDirty = true;
+        count--;
+        if (restoredCount > 0) {
+            restoredCount--;
+        } else {
+            attachments.poll();
+        }
+    }
+
+    /**
+     * Сегмент с первым сообщением очереди, начинающимся с {@link #readOffset}, или null, если очередь пуста.
+     * Полностью прочитанные сегменты удаляются.
+     */
+    private Segment head() throws IOException {
+        while (count > 0) {
+            Segment segment = segments.getFirst();
+            if (readOffset < segment.writeOffset) {
+                return segment;
+            }
+            // Сегмент прочитан полностью. Так как очередь не пуста, он не последний
+            removeFirstSegment();
+        }
+        return null;
+    }
+
+    public synchronized boolean isEmpty() {
+        return count == 0;
+    }
+
+    public synchronized long size() {
+        return count;
+    }
+
+    /**
+     * Сбрасывает изменения на диск. Вызывается фоновым потоком, но может быть вызван и явно.
+     */
+    public void flush() throws IOException {
+        List<Segment> toForce;
+        long readSeq;
+        int readPosition;
+        boolean writeMeta;
+        synchronized (this) {
+            toForce = new ArrayList<>(dirtySegments);
+            dirtySegments.clear();
+            Segment first = segments.peekFirst();
+            readSeq = first != null ? first.seq : nextSeq;
+            readPosition = first != null ? readOffset : 0;
+            writeMeta = metaDirty;
+            metaDirty = false;
+        }
+
+        // Сброс выполняется вне блокировки, чтобы не задерживать добавление и извлечение сообщений
+        for (Segment segment : toForce) {
+            segment.buffer.force();
+        }
+        if (writeMeta) {
+            ByteBuffer meta = ByteBuffer.allocate(Long.BYTES + Integer.BYTES);
+            meta.putLong(readSeq).putInt(readPosition).flip();
+            metaChannel.write(meta, 0);
+            metaChannel.force(false);
+        }
+    }
+
+    private void runFlusher(long flushIntervalMs) {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                TimeUnit.MILLISECONDS.sleep(flushIntervalMs);
+                flush();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException e) {
+                log.error("Failed to flush spill queue {}. Details: {}", directory, e.getMessage(), e);
+            }
+        }
+    }
+
+    private void recover() throws IOException {
+        long readSeq = -1;
+        int readPosition = 0;
+        if (metaChannel.size() >= Long.BYTES + Integer.BYTES) {
+            ByteBuffer meta = ByteBuffer.allocate(Long.BYTES + Integer.BYTES);
+            metaChannel.read(meta, 0);
+            meta.flip();
+            readSeq = meta.getLong();
+            readPosition = meta.getInt();
+        }
+
+        List<Long> seqs = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                seqs.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+            }
+        }
+        seqs.sort(null);
+
+        for (long seq : seqs) {
+            Path path = segmentPath(seq);
+            if (seq < readSeq) {
+                // Сегмент был прочитан полностью, но не удален
+                Files.delete(path);
+                continue;
+            }
+            Segment segment = new Segment(seq, path, map(path, Files.size(path)));
+            int offset = seq == readSeq ? readPosition : 0;
+            if (segments.isEmpty()) {
+                readOffset = offset;
+            }
+            segment.writeOffset = scan(segment, offset);
+            segments.add(segment);
+            diskBytes += segment.capacity();
+            nextSeq = seq + 1;
+        }
+
+        // Запись возможна только в последний сегмент
+        for (Segment segment : segments) {
+            segment.sealed = segment != segments.getLast();
+        }
+
+        restoredCount = count;
+        if (count > 0) {
+            log.info("Restored {} messages from spill queue {}", count, directory);
+        }
+    }
+
+    /**
+     * Подсчитывает целые записи сегмента, начиная с {@code offset}.
+     *
+     * @return позиция после последней целой записи
+     */
+    private int scan(Segment segment, int offset) {
+        ByteBuffer buffer = segment.buffer;
+        while (segment.capacity() - offset >= RECORD_HEADER_SIZE) {
+            int length = buffer.getInt(offset);
+            if (length <= 0 || length - 1 > segment.capacity() - offset - RECORD_HEADER_SIZE
+                    || buffer.getInt(offset + 4) != crc(buffer, offset, length - 1))
+            {
+                break;
+            }
+            offset += RECORD_HEADER_SIZE + length - 1;
+            count++;
+        }
+        return offset;
+    }
+
+    private static int crc(ByteBuffer buffer, int offset, int dataLength) {
+        ByteBuffer record = buffer.duplicate();
+        record.position(offset + 8);
+        record.limit(offset + RECORD_HEADER_SIZE + dataLength);
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        return (int) crc.getValue();
+    }
+
+    private Segment createSegment(int size) throws IOException {
+        long seq = nextSeq++;
+        Path path = segmentPath(seq);
+        Segment segment = new Segment(seq, path, map(path, size));
+        if (segments.isEmpty()) {
+            readOffset = 0;
+        }
+        segments.add(segment);
+        diskBytes += size;
+        metaDirty = true;
+        return segment;
+    }
+
+    private void seal(Segment segment) {
+        if (segment.capacity() - segment.writeOffset >= Integer.BYTES) {
+            segment.buffer.putInt(segment.writeOffset, END_OF_SEGMENT);
+        }
+        segment.sealed = true;
+        markDirty(segment);
+    }
+
+    private void removeFirstSegment() throws IOException {
+        Segment segment = segments.removeFirst();
+        dirtySegments.remove(segment);
+        diskBytes -= segment.capacity();
+        readOffset = 0;
+        metaDirty = true;
+        // Отображение в память освободится сборщиком мусора
+        Files.deleteIfExists(segment.path);
+    }
+
+    private void markDirty(Segment segment) {
+        if (!dirtySegments.contains(segment)) {
+            dirtySegments.add(segment);
+        }
+    }
+
+    private Path segmentPath(long seq) {
+        return directory.resolve(String.format("%s%019d%s", SEGMENT_PREFIX, seq, SEGMENT_SUFFIX));
+    }
+
+    private static MappedByteBuffer map(Path path, long size) throws IOException {
+        try (FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE))
+        {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            closed = true;
+        }
+        flusher.interrupt();
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+        metaChannel.close();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "DiskSpillQueue{directory=" + directory + ", size=" + count + ", diskBytes=" + diskBytes
+                + ", maxDiskBytes=" + (maxDiskBytes != Long.MAX_VALUE ? maxDiskBytes : "unlimited") + "}";
+    }
+}
@@ -0,0 +1,104 @@
+package proxy.impl;
+
+import proxy.api.AsyncServiceCall;
+import proxy.api.BatchResponseConsumer;
+import proxy.api.ServiceCall;
+import proxy.model.BatchBody;
+import proxy.model.ServiceResponse;
+import proxy.util.Util;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Асинхронный вызов поверх синхронного: каждый вызов {@link ServiceCall} выполняется в {@code executor}, а
+ * вызывающий поток сразу получает футуру. С executor'ом виртуальных потоков ({@link proxy.util.VirtualThreads})
+ * количество одновременных блокирующих вызовов сервиса ограничено только количеством батчей "в полете", а не
+ * количеством io-потоков.
+ *
+ * <p>Коммуникационные ошибки завершают футуру тем же {@link IOException}, поэтому ретраи работают так же, как для
+ * синхронного вызова.
+ *
+ * @author rushan
+ */
+public class ExecutorServiceCall implements ServiceCall, AsyncServiceCall, AutoCloseable {
+
+    private final ServiceCall serviceCall;
+    private final ExecutorService executor;
+
+    public ExecutorServiceCall(ServiceCall serviceCall, ExecutorService executor) {
+        this.serviceCall = serviceCall;
+        this.executor = executor;
+    }
+
+    /**
+     * Вызов сервиса в {@code executor}
+     */
+    @FunctionalInterface
+    private interface Call<T> {
+        T call() throws IOException;
+    }
+
+    private <T> CompletableFuture<T> submit(Call<T> call) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                try {
+                    future.complete(call.call());
+                } catch (Throwable e) {
+                    // Включая Error, иначе футура никогда не завершится
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    @Override
+    public ServiceResponse call(byte[] data) throws IOException {
+        return serviceCall.call(data);
+    }
+
+    @Override
+    public ServiceResponse call(BatchBody body) throws IOException {
+        return serviceCall.call(body);
+    }
+
+    @Override
+    public void call(BatchBody body, BatchResponseConsumer consumer) throws IOException {
+        serviceCall.call(body, consumer);
+    }
+
+    @Override
+    public CompletableFuture<ServiceResponse> callAsync(byte[] data) {
+        return submit(() -> serviceCall.call(data));
+    }
+
+    @Override
+    public CompletableFuture<ServiceResponse> callAsync(BatchBody body) {
+        return submit(() -> serviceCall.call(body));
+    }
+
+    @Override
+    public CompletableFuture<Void> callAsync(BatchBody body, BatchResponseConsumer consumer) {
+        return submit(() -> {
+            serviceCall.call(body, consumer);
+            return null;
+        });
+    }
+
+    @Override
+    public void close() throws IOException {
+        executor.shutdown();
+        Util.close(serviceCall);
+    }
+
+    @Override
+    public String toString() {
+        return "ExecutorServiceCall{" + serviceCall + "}";
+    }
+}
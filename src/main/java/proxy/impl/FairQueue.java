@@ -0,0 +1,384 @@
+package proxy.impl;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
+
+/**
+ * Ограниченная очередь с отдельной полосой (FIFO) для каждого клиента и извлечением по алгоритму deficit round
+ * robin: полосы обходятся по кругу, каждая при своей очереди получает {@code quantum * weight} байт кредита и
+ * отдает элементы, пока их стоимость его не превысит. Неизрасходованный кредит переносится на следующий круг, у
+ * опустевшей полосы обнуляется. Так клиенты делят пропускную способность пропорционально весам независимо от
+ * размера и частоты их сообщений, а порядок сообщений одного клиента сохраняется.
+ *
+ * <p>Кроме общего ограничения {@code capacity}, у каждой полосы есть свое - {@code laneCapacity}, поэтому всплеск
+ * одного клиента не вытесняет остальных из очереди.
+ *
+ * <p>Все операции выполняются под одной блокировкой, как в {@link java.util.concurrent.ArrayBlockingQueue}.
+ * Полоса существует, только пока в ней есть элементы. Итератор слабо согласованный - обходит снятую под блокировкой
+ * копию полос в порядке обслуживания и удаляет элементы из очереди, если они еще там.
+ *
+ * @author rushan
+ */
+public class FairQueue<E> extends AbstractQueue<E> implements BulkQueue<E> {
+
+    /**
+     * Кредит полосы с весом 1 за круг по умолчанию, в единицах стоимости элементов
+     */
+    public static final int QUANTUM_DEFAULT = 16 * 1024;
+
+    private static class Lane<E> {
+        private final String key;
+        private final int quantum;
+        private final ArrayDeque<E> elements = new ArrayDeque<>();
+        private long deficit;
+        private boolean credited;
+
+        private Lane(String key, int quantum) {
+            this.key = key;
+            this.quantum = quantum;
+        }
+    }
+
+    private final int capacity;
+    private final int laneCapacity;
+    private final int quantum;
+    private final Function<? super E, String> keyFunction;
+    private final ToIntFunction<? super E> costFunction;
+    private final Map<String, Integer> weights;
+
+    private final Map<String, Lane<E>> lanes = new HashMap<>();
+    private final ArrayDeque<Lane<E>> activeLanes = new ArrayDeque<>();
+    private int count;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+
+    /**
+     * @param capacity     максимальное количество элементов во всех полосах
+     * @param laneCapacity максимальное количество элементов в одной полосе
+     * @param quantum      кредит полосы с весом 1 за круг
+     * @param keyFunction  ключ полосы элемента (null - общая полоса)
+     * @param costFunction стоимость элемента, например, размер в байтах
+     * @param weights      веса полос по ключу, для отсутствующих - 1
+     */
+    public FairQueue(int capacity, int laneCapacity, int quantum, Function<? super E, String> keyFunction,
+                     ToIntFunction<? super E> costFunction, Map<String, Integer> weights)
+    {
+        if (capacity <= 0 || laneCapacity <= 0 || quantum <= 0) {
+            throw new IllegalArgumentException("Expected positive capacity, lane capacity and quantum, but got "
+                    + capacity + ", " + laneCapacity + ", " + quantum);
+        }
+        this.capacity = capacity;
+        this.laneCapacity = laneCapacity;
+        this.quantum = quantum;
+        this.keyFunction = keyFunction;
+        this.costFunction = costFunction;
+        this.weights = weights != null ? weights : Collections.emptyMap();
+    }
+
+    @Override
+    public boolean offer(E e) {
+        lock.lock();
+        try {
+            return enqueue(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Все элементы добавляются под одной блокировкой
+     */
+    @Override
+    public int offerAll(List<? extends E> elements) {
+        lock.lock();
+        try {
+            int n = 0;
+            while (n < elements.size() && enqueue(elements.get(n))) {
+                n++;
+            }
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean enqueue(E e) {
+        if (count >= capacity) {
+            return false;
+        }
+        String key = key(e);
+        Lane<E> lane = lanes.get(key);
+        if (lane == null) {
+            lane = new Lane<>(key, quantum * Math.max(1, weights.getOrDefault(key, 1)));
+            lanes.put(key, lane);
+            activeLanes.addLast(lane);
+        } else if (lane.elements.size() >= laneCapacity) {
+            return false;
+        }
+        lane.elements.addLast(e);
+        count++;
+        notEmpty.signal();
+        return true;
+    }
+
+    private String key(E e) {
+        String key = keyFunction.apply(e);
+        return key != null ? key : "";
+    }
+
+    /**
+     * Следующий элемент по deficit round robin, вызывается под блокировкой на непустой очереди.
+     */
+    private E dequeue() {
+        int rotated = 0;
+        while (true) {
+            Lane<E> lane = activeLanes.peekFirst();
+            if (!lane.credited) {
+                lane.deficit += lane.quantum;
+                lane.credited = true;
+            }
+            E head = lane.elements.peekFirst();
+            int cost = costFunction.applyAsInt(head);
+            if (cost > lane.deficit) {
+                // Кредит полосы на этом круге исчерпан - очередь следующей
+                lane.credited = false;
+                activeLanes.addLast(activeLanes.pollFirst());
+                if (++rotated == activeLanes.size()) {
+                    skipIdleRounds();
+                    rotated = 0;
+                }
+                continue;
+            }
+            lane.deficit -= cost;
+            lane.elements.pollFirst();
+            if (lane.elements.isEmpty()) {
+                activeLanes.pollFirst();
+                lanes.remove(lane.key);
+            }
+            count--;
+            notFull.signalAll();
+            return head;
+        }
+    }
+
+    /**
+     * Ни одна полоса не отдала элемент за полный круг - головные элементы больше нескольких квантов. Вместо обхода
+     * кругов по одному сразу начисляет всем полосам кредит за круги до того, на котором первая из них сможет
+     * отдать свой элемент; этот последний круг проходит как обычно. Порядок извлечения тот же.
+     */
+    private void skipIdleRounds() {
+        long rounds = Long.MAX_VALUE;
+        for (Lane<E> lane : activeLanes) {
+            long needed = costFunction.applyAsInt(lane.elements.peekFirst()) - lane.deficit;
+            rounds = Math.min(rounds, (needed + lane.quantum - 1) / lane.quantum);
+        }
+        for (Lane<E> lane : activeLanes) {
+            lane.deficit += (rounds - 1) * lane.quantum;
+        }
+    }
+
+    @Override
+    public E poll() {
+        lock.lock();
+        try {
+            return count > 0 ? dequeue() : null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public E take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (count == 0) {
+                notEmpty.await();
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (count == 0) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> c, int maxElements) {
+        lock.lock();
+        try {
+            int n = Math.min(count, maxElements);
+            for (int i = 0; i < n; i++) {
+                c.add(dequeue());
+            }
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Ожидает места в очереди. Если заполнена полоса элемента, а не вся очередь - ждет, пока освободится любое
+     * место, и пробует снова. Поэтому при извлечении будятся все ожидающие писатели: разбуженный один мог бы
+     * оказаться писателем в еще заполненную полосу, а тот, кому место освободилось, остался бы ждать.
+     */
+    @Override
+    public void put(E e) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (!enqueue(e)) {
+                notFull.await();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (!enqueue(e)) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                nanos = notFull.awaitNanos(nanos);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public E peek() {
+        lock.lock();
+        try {
+            Lane<E> lane = activeLanes.peekFirst();
+            return lane != null ? lane.elements.peekFirst() : null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Количество непустых полос
+     */
+    public int getLaneCount() {
+        lock.lock();
+        try {
+            return lanes.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Количество элементов в полосе
+     */
+    public int getLaneSize(String key) {
+        lock.lock();
+        try {
+            Lane<E> lane = lanes.get(key == null ? "" : key);
+            return lane != null ? lane.elements.size() : 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return capacity - size();
+    }
+
+    @Override
+    public Iterator<E> iterator() {
+        lock.lock();
+        try {
+            List<E> snapshot = new ArrayList<>(count);
+            for (Lane<E> lane : activeLanes) {
+                snapshot.addAll(lane.elements);
+            }
+            return new SnapshotIterator<>(snapshot, this::removeElement);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Удаляет именно этот элемент, если он еще в очереди. Опустевшая полоса удаляется вместе с кредитом.
+     */
+    private void removeElement(E e) {
+        lock.lock();
+        try {
+            Lane<E> lane = lanes.get(key(e));
+            if (lane == null) {
+                return;
+            }
+            for (Iterator<E> it = lane.elements.iterator(); it.hasNext(); ) {
+                if (it.next() == e) {
+                    it.remove();
+                    if (lane.elements.isEmpty()) {
+                        activeLanes.remove(lane);
+                        lanes.remove(lane.key);
+                    }
+                    count--;
+                    notFull.signalAll();
+                    return;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "FairQueue{capacity=" + capacity + ", laneCapacity=" + laneCapacity + ", quantum=" + quantum
+                + ", weights=" + weights + "}";
+    }
+}
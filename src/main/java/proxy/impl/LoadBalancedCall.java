@@ -0,0 +1,319 @@
+package proxy.impl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import proxy.api.AsyncServiceCall;
+import proxy.api.BatchResponseConsumer;
+import proxy.api.ServiceCall;
+import proxy.metrics.Counter;
+import proxy.metrics.Gauge;
+import proxy.metrics.MetricsRegistry;
+import proxy.model.BatchBody;
+import proxy.model.ServiceResponse;
+import proxy.util.Util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Вызов одного из нескольких экземпляров сервиса. Экземпляр выбирается для каждого батча из двух случайных
+ * (power of two choices) по меньшей стоимости, которую определяет {@link Strategy}. Так нагрузка распределяется
+ * почти так же хорошо, как при выборе лучшего из всех, но без общего упорядоченного состояния.
+ *
+ * <p>После коммуникационной ошибки ({@link IOException}) экземпляр исключается из выбора на {@code ejectTimeMs} -
+ * повторная попытка уйдет на другой экземпляр. Если исключены все, то выбирается тот, чье исключение закончится
+ * раньше всех.
+ *
+ * <p>Асинхронный режим ({@link AsyncServiceCall}) поддерживается, только если его поддерживают все экземпляры -
+ * см. {@link #create(List, Strategy, long)}.
+ *
+ * @author rushan
+ */
+public class LoadBalancedCall implements ServiceCall, AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(LoadBalancedCall.class);
+
+    /**
+     * Время, за которое влияние замера времени ответа на оценку уменьшается в e раз
+     */
+    public static final long EWMA_DECAY_MS = 10_000;
+
+    /**
+     * Оценка времени ответа экземпляра, которому отправлены батчи, но замеров по нему еще нет
+     */
+    private static final long UNKNOWN_LATENCY_PENALTY_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    public enum Strategy {
+        /**
+         * Экземпляр с меньшим количеством батчей, ожидающих ответа
+         */
+        LEAST_OUTSTANDING,
+        /**
+         * Экземпляр с меньшим ожидаемым временем ответа: скользящее среднее времени ответа, мгновенно
+         * поднимающееся до пиковых значений, с учетом батчей, ожидающих ответа
+         */
+        PEAK_EWMA
+    }
+
+    /**
+     * Экземпляр сервиса и статистика его вызовов
+     */
+    private static class Endpoint {
+        private final ServiceCall call;
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private final Counter ejections;
+
+        private double ewmaNanos;
+        private long lastSampleAt = System.nanoTime();
+        private volatile long ejectedUntil;
+
+        private Endpoint(ServiceCall call, Counter ejections) {
+            this.call = call;
+            this.ejections = ejections;
+        }
+
+        private boolean isEjected(long now) {
+            return now - ejectedUntil < 0;
+        }
+
+        private synchronized void onLatency(long rttNanos) {
+            long now = System.nanoTime();
+            if (rttNanos > ewmaNanos) {
+                ewmaNanos = rttNanos;
+            } else {
+                double w = Math.exp(-(double) (now - lastSampleAt) / TimeUnit.MILLISECONDS.toNanos(EWMA_DECAY_MS));
+                ewmaNanos = ewmaNanos * w + rttNanos * (1 - w);
+            }
+            lastSampleAt = now;
+        }
+
+        /**
+         * Оценка со временем затухает и без новых замеров, чтобы медленный экземпляр снова получил батчи и его
+         * оценка обновилась.
+         */
+        private synchronized double latencyNanos(long now) {
+            double w = Math.exp(-(double) (now - lastSampleAt) / TimeUnit.MILLISECONDS.toNanos(EWMA_DECAY_MS));
+            return ewmaNanos * w;
+        }
+    }
+
+    private final List<Endpoint> endpoints = new ArrayList<>();
+    /**
+     * Измерители экземпляров по имени, удаляются из реестра в {@link #close()}
+     */
+    private final Map<String, Gauge> gauges = new HashMap<>();
+    private final Strategy strategy;
+    private final long ejectTimeNanos;
+
+    /**
+     * Балансировщик, асинхронный, если все экземпляры поддерживают {@link AsyncServiceCall}.
+     */
+    public static LoadBalancedCall create(List<ServiceCall> calls, Strategy strategy, long ejectTimeMs) {
+        for (ServiceCall call : calls) {
+            if (!(call instanceof AsyncServiceCall)) {
+                return new LoadBalancedCall(calls, strategy, ejectTimeMs);
+            }
+        }
+        return new Async(calls, strategy, ejectTimeMs);
+    }
+
+    public LoadBalancedCall(List<ServiceCall> calls, Strategy strategy, long ejectTimeMs) {
+        if (calls.isEmpty()) {
+            throw new IllegalArgumentException("At least one service endpoint is expected");
+        }
+        MetricsRegistry metrics = MetricsRegistry.getDefault();
+        for (ServiceCall call : calls) {
+            String label = "{endpoint=\"" + call + "\"}";
+            Endpoint endpoint = new Endpoint(call, metrics.counter("proxy_upstream_ejections_total" + label,
+                    "Service endpoint ejections after communication errors"));
+            String gaugeName = "proxy_upstream_outstanding" + label;
+            gauges.put(gaugeName, metrics.gauge(gaugeName, "Batches sent to the service endpoint",
+                    endpoint.outstanding::get));
+            endpoints.add(endpoint);
+        }
+        this.strategy = strategy;
+        this.ejectTimeNanos = TimeUnit.MILLISECONDS.toNanos(ejectTimeMs);
+    }
+
+    private Endpoint select() {
+        int size = endpoints.size();
+        if (size == 1) {
+            return endpoints.get(0);
+        }
+        long now = System.nanoTime();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int first = random.nextInt(size);
+        int second = random.nextInt(size - 1);
+        if (second >= first) {
+            second++;
+        }
+        Endpoint a = endpoints.get(first);
+        Endpoint b = endpoints.get(second);
+
+        boolean aEjected = a.isEjected(now);
+        boolean bEjected = b.isEjected(now);
+        if (aEjected || bEjected) {
+            if (!aEjected) {
+                return a;
+            }
+            if (!bEjected) {
+                return b;
+            }
+            return selectAvailable(now);
+        }
+        return cost(a, now) <= cost(b, now) ? a : b;
+    }
+
+    /**
+     * Оба случайных экземпляра исключены - ищем среди всех.
+     */
+    private Endpoint selectAvailable(long now) {
+        Endpoint result = null;
+        for (Endpoint endpoint : endpoints) {
+            if (!endpoint.isEjected(now)) {
+                if (result == null || cost(endpoint, now) < cost(result, now)) {
+                    result = endpoint;
+                }
+            } else if (result == null || (result.isEjected(now) && endpoint.ejectedUntil - result.ejectedUntil < 0)) {
+                result = endpoint;
+            }
+        }
+        return result;
+    }
+
+    private double cost(Endpoint endpoint, long now) {
+        int outstanding = endpoint.outstanding.get();
+        if (strategy == Strategy.LEAST_OUTSTANDING) {
+            return outstanding;
+        }
+        double latency = endpoint.latencyNanos(now);
+        if (latency == 0 && outstanding > 0) {
+            latency = UNKNOWN_LATENCY_PENALTY_NANOS;
+        }
+        return latency * (outstanding + 1);
+    }
+
+    private void onCompleted(Endpoint endpoint, long startTime, Throwable failure) {
+        endpoint.outstanding.decrementAndGet();
+        Throwable cause = failure instanceof CompletionException && failure.getCause() != null
+                ? failure.getCause() : failure;
+        if (cause instanceof IOException) {
+            if (endpoints.size() > 1) {
+                endpoint.ejectedUntil = System.nanoTime() + ejectTimeNanos;
+                endpoint.ejections.inc();
+                log.warn("Service endpoint {} is ejected for {}ms after failure: {}", endpoint.call,
+                        TimeUnit.NANOSECONDS.toMillis(ejectTimeNanos), cause.getMessage());
+            }
+        } else if (cause == null) {
+            endpoint.onLatency(System.nanoTime() - startTime);
+        }
+    }
+
+    @FunctionalInterface
+    private interface EndpointCall<T> {
+        T call(ServiceCall call) throws IOException;
+    }
+
+    private <T> T dispatch(EndpointCall<T> call) throws IOException {
+        Endpoint endpoint = select();
+        endpoint.outstanding.incrementAndGet();
+        long startTime = System.nanoTime();
+        Throwable failure = null;
+        try {
+            return call.call(endpoint.call);
+        } catch (IOException | RuntimeException e) {
+            failure = e;
+            throw e;
+        } finally {
+            onCompleted(endpoint, startTime, failure);
+        }
+    }
+
+    @Override
+    public ServiceResponse call(byte[] data) throws IOException {
+        return dispatch(call -> call.call(data));
+    }
+
+    @Override
+    public ServiceResponse call(BatchBody body) throws IOException {
+        return dispatch(call -> call.call(body));
+    }
+
+    @Override
+    public void call(BatchBody body, BatchResponseConsumer consumer) throws IOException {
+        dispatch(call -> {
+            call.call(body, consumer);
+            return null;
+        });
+    }
+
+    @Override
+    public void close() throws IOException {
+        gauges.forEach(MetricsRegistry.getDefault()::remove);
+        for (Endpoint endpoint : endpoints) {
+            Util.close(endpoint.call);
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder result = new StringBuilder(strategy.name()).append('[');
+        for (int i = 0; i < endpoints.size(); i++) {
+            result.append(i > 0 ? ", " : "").append(endpoints.get(i).call);
+        }
+        return result.append(']').toString();
+    }
+
+    /**
+     * Балансировщик асинхронных экземпляров сервиса.
+     */
+    public static class Async extends LoadBalancedCall implements AsyncServiceCall {
+
+        public Async(List<ServiceCall> calls, Strategy strategy, long ejectTimeMs) {
+            super(calls, strategy, ejectTimeMs);
+            for (ServiceCall call : calls) {
+                if (!(call instanceof AsyncServiceCall)) {
+                    throw new IllegalArgumentException("Service endpoint " + call + " does not support async calls");
+                }
+            }
+        }
+
+        private <T> CompletableFuture<T> dispatchAsync(Function<AsyncServiceCall, CompletableFuture<T>> call) {
+            Endpoint endpoint = super.select();
+            endpoint.outstanding.incrementAndGet();
+            long startTime = System.nanoTime();
+            CompletableFuture<T> result;
+            try {
+                result = call.apply((AsyncServiceCall) endpoint.call);
+            } catch (RuntimeException e) {
+                super.onCompleted(endpoint, startTime, e);
+                throw e;
+            }
+            return result.whenComplete((r, ex) -> super.onCompleted(endpoint, startTime, ex));
+        }
+
+        @Override
+        public CompletableFuture<ServiceResponse> callAsync(byte[] data) {
+            return dispatchAsync(call -> call.callAsync(data));
+        }
+
+        @Override
+        public CompletableFuture<ServiceResponse> callAsync(BatchBody body) {
+            return dispatchAsync(call -> call.callAsync(body));
+        }
+
+        @Override
+        public CompletableFuture<Void> callAsync(BatchBody body, BatchResponseConsumer consumer) {
+            return dispatchAsync(call -> call.callAsync(body, consumer));
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package proxy.impl;
+
+import proxy.model.Message;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Function;
+
+/**
+ * Создает очередь сообщений {@link AsyncProxy} по {@link AsyncProxyConfig#getQueueType()}.
+ *
+ * @author rushan
+ */
+final class MessageQueues {
+
+    private MessageQueues() {
+    }
+
+    static BlockingQueue<MessageTask> create(AsyncProxyConfig config) {
+        int limit = config.getMessageQueueLimit();
+        switch (config.getQueueType()) {
+            case RING:
+                return new RingBufferQueue<>(limit, config.getWaitStrategy());
+            case FAIR:
+                // Сообщения клиентов делят батчи по размеру: стоимость сообщения - его размер в батче
+                return new FairQueue<>(limit, config.getMaxClientQueueSize(), FairQueue.QUANTUM_DEFAULT,
+                        task -> task.getMessage().getClientId(), MessageTask::getSize, config.getClientWeights());
+            case SHARDED:
+                // Сегмент на каждый io-поток
+                Function<Message, String> shardKey = config.getShardKey();
+                return new ShardedQueue<>(limit, config.getIoThreads(), task -> shardKey.apply(task.getMessage()));
+            case LINKED:
+            default:
+                return new LinkedBlockingQueue<>(limit);
+        }
+    }
+}
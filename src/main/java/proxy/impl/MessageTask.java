@@ -0,0 +1,96 @@
+package proxy.impl;
+
+import proxy.model.BatchBody;
+import proxy.model.Message;
+import proxy.model.ServiceResponse;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Сообщение в очереди {@link AsyncProxy} вместе с футурой его отправителя.
+ *
+ * @author rushan
+ */
+class MessageTask {
+    private final Message message;
+    private final CompletableFuture<ServiceResponse> future;
+    private final long enqueuedAt = System.nanoTime();
+    private final boolean spilled;
+
+    MessageTask(Message message, CompletableFuture<ServiceResponse> future) {
+        this(message, future, false);
+    }
+
+    MessageTask(Message message, CompletableFuture<ServiceResponse> future, boolean spilled) {
+        this.message = message;
+        this.future = future;
+        this.spilled = spilled;
+    }
+
+    public Message getMessage() {
+        return message;
+    }
+
+    public CompletableFuture<ServiceResponse> getFuture() {
+        return future;
+    }
+
+    /**
+     * Время поступления в очередь, в терминах {@link System#nanoTime()}
+     */
+    public long getEnqueuedAt() {
+        return enqueuedAt;
+    }
+
+    /**
+     * Размер сообщения в батче
+     */
+    public int getSize() {
+        return message.getSize() + BatchBody.HEADER_SIZE;
+    }
+
+    /**
+     * Ответ на сообщение еще нужен клиенту. Сообщение с истекшим сроком отменяется.
+     */
+    public boolean isLive() {
+        if (future.isDone()) {
+            // Отменено клиентом
+            return false;
+        }
+        if (message.isExpired()) {
+            future.cancel(false);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Сообщение прошло через очередь на диске
+     */
+    public boolean isSpilled() {
+        return spilled;
+    }
+
+    /**
+     * Отдает ссылки очереди на данные сообщений, которые больше не будут отправляться
+     */
+    static void releaseMessages(List<MessageTask> tasks) {
+        for (MessageTask task : tasks) {
+            task.getMessage().release();
+        }
+    }
+
+    static void failTasks(List<MessageTask> tasks, Throwable ex) {
+        Throwable cause = unwrap(ex);
+        for (MessageTask task : tasks) {
+            // Завершаем футуру ошибкой. Футуры, получившие ответ до ошибки, останутся завершенными успешно
+            task.getFuture().completeExceptionally(cause);
+        }
+    }
+
+    static Throwable unwrap(Throwable ex) {
+        return ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+    }
+}
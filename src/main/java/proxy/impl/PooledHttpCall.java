@@ -0,0 +1,390 @@
+package proxy.impl;
+
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.api.ContentProvider;
+import org.eclipse.jetty.client.api.Request;
+import org.eclipse.jetty.client.api.Response;
+import org.eclipse.jetty.client.api.Result;
+import org.eclipse.jetty.client.util.BufferingResponseListener;
+import org.eclipse.jetty.client.util.ByteBufferContentProvider;
+import org.eclipse.jetty.client.util.BytesContentProvider;
+import org.eclipse.jetty.http.HttpHeader;
+import org.eclipse.jetty.http2.client.HTTP2Client;
+import org.eclipse.jetty.http2.client.http.HttpClientTransportOverHTTP2;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import proxy.api.AsyncServiceCall;
+import proxy.api.BatchResponseConsumer;
+import proxy.api.ServiceCall;
+import proxy.api.ServiceErrorException;
+import proxy.model.BatchBody;
+import proxy.model.ServiceResponse;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Неблокирующий вызов сервиса поверх jetty {@link HttpClient}. Соединения с сервисом переиспользуются (keep-alive
+ * пул), поэтому батч не платит за установку нового TCP соединения, а вызывающий поток не ждет ответа сервиса.
+ *
+ * <p>Размер пула соединений ограничен {@code maxInFlight} - это максимальное количество батчей, одновременно
+ * отправленных сервису. Запросы сверх этого количества ждут свободного соединения во внутренней очереди клиента.
+ *
+ * <p>Если включен HTTP/2 (h2c - без TLS, с предварительным знанием о поддержке сервисом), то все батчи
+ * передаются параллельными потоками (streams) одного соединения. Дополнительное соединение открывается, только
+ * если исчерпан лимит потоков, объявленный сервисом.
+ *
+ * <p>Если задано {@link BatchCompression}, то тело батча перед отправкой сжимается в один буфер (несжатое тело
+ * целиком не материализуется), а ответ распаковывается по мере получения. Если сервис отвечает на сжатое тело 415,
+ * то батч сразу переотправляется без сжатия, и далее сжатие не используется.
+ *
+ * <p>Ответ 5xx, 408 или 429 завершает вызов {@link IOException} - сервис или его экземпляр не справился с запросом,
+ * такие ошибки ретраятся и учитываются автоматом защиты и балансировщиком. Остальные ответы 4xx завершают вызов
+ * {@link ServiceErrorException}: сервис ответил, а повтор того же батча получит тот же отказ.
+ *
+ * @author rushan
+ */
+public class PooledHttpCall implements ServiceCall, AsyncServiceCall, AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(PooledHttpCall.class);
+
+    private static final String CONTENT_TYPE = "application/octet-stream";
+
+    /**
+     * Минимальный лимит параллельных потоков HTTP/2 соединения, рекомендуемый RFC 7540 - соединений с сервисом
+     * не нужно больше, чем батчей "в полете" на это количество
+     */
+    private static final int HTTP2_MIN_STREAMS_PER_CONNECTION = 100;
+
+    /**
+     * Статусы ответа, начиная с которого вызов считается неуспешным
+     */
+    private static final int SC_ERROR = 400;
+    private static final int SC_SERVER_ERROR = 500;
+    private static final int SC_REQUEST_TIMEOUT = 408;
+    private static final int SC_TOO_MANY_REQUESTS = 429;
+
+    private final URI serviceUrl;
+    private final int readTimeout;
+    private final HttpClient httpClient;
+
+    private final BatchCompression compression;
+    private volatile boolean compressionSupported = true;
+
+    public PooledHttpCall(String serviceUrl, int connectTimeout, int readTimeout, int maxInFlight) {
+        this(serviceUrl, connectTimeout, readTimeout, maxInFlight, null);
+    }
+
+    /**
+     * @param compression сжатие батчей, если null - не используется
+     */
+    public PooledHttpCall(String serviceUrl, int connectTimeout, int readTimeout, int maxInFlight,
+                          BatchCompression compression)
+    {
+        this(serviceUrl, connectTimeout, readTimeout, maxInFlight, compression, false);
+    }
+
+    /**
+     * @param http2 HTTP/2 без TLS (h2c) вместо HTTP/1.1
+     */
+    public PooledHttpCall(String serviceUrl, int connectTimeout, int readTimeout, int maxInFlight,
+                          BatchCompression compression, boolean http2)
+    {
+        try {
+            this.serviceUrl = new URI(serviceUrl);
+        } catch (URISyntaxException e) {
+            throw new IllegalArgumentException("Failed to parse provided url:" + serviceUrl);
+        }
+        this.readTimeout = readTimeout;
+        this.compression = compression;
+
+        if (http2) {
+            HttpClientTransportOverHTTP2 transport = new HttpClientTransportOverHTTP2(new HTTP2Client());
+            // Сервис по http:// - сразу HTTP/2 без согласования протокола
+            transport.setUseALPN(false);
+            this.httpClient = new HttpClient(transport, null);
+            // Батчи - потоки одного соединения, пул соединений растет, только если их больше лимита потоков
+            // сервиса. Предел батчей "в полете" задает прокси.
+            this.httpClient.setMaxConnectionsPerDestination(Math.max(1,
+                    (maxInFlight + HTTP2_MIN_STREAMS_PER_CONNECTION - 1) / HTTP2_MIN_STREAMS_PER_CONNECTION));
+        } else {
+            this.httpClient = new HttpClient();
+            // Один батч на одно соединение (HTTP/1.1), поэтому размер пула и есть предел батчей "в полете"
+            this.httpClient.setMaxConnectionsPerDestination(maxInFlight);
+        }
+        this.httpClient.setName("service-call");
+        this.httpClient.setConnectTimeout(connectTimeout);
+        this.httpClient.setFollowRedirects(false);
+        this.httpClient.setMaxRequestsQueuedPerDestination(Math.max(maxInFlight, 1024));
+
+        try {
+            this.httpClient.start();
+        } catch (Exception e) {
+            throw new IllegalStateException("Failed to start http client", e);
+        }
+    }
+
+    @Override
+    public CompletableFuture<ServiceResponse> callAsync(byte[] data) {
+        return send(new BytesContentProvider(data), false, null);
+    }
+
+    /**
+     * Заголовки и данные сообщений передаются клиенту списком буферов (gather-запись), единый буфер батча
+     * не создается.
+     */
+    @Override
+    public CompletableFuture<ServiceResponse> callAsync(BatchBody body) {
+        if (!shouldCompress(body)) {
+            return send(new ByteBufferContentProvider(body.toBuffers()), false, null);
+        }
+        try {
+            return send(new ByteBufferContentProvider(compression.compress(body)), true, () -> callAsync(body));
+        } catch (IOException e) {
+            return failed(e);
+        }
+    }
+
+    /**
+     * Части ответа передаются в {@code consumer} прямо из сетевых буферов клиента, по мере их получения.
+     */
+    @Override
+    public CompletableFuture<Void> callAsync(BatchBody body, BatchResponseConsumer consumer) {
+        boolean compressed = shouldCompress(body);
+        ContentProvider content;
+        try {
+            content = compressed
+                    ? new ByteBufferContentProvider(compression.compress(body))
+                    : new ByteBufferContentProvider(body.toBuffers());
+        } catch (IOException e) {
+            return failed(e);
+        }
+
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        newRequest(content, compressed)
+                .send(new Response.Listener.Adapter() {
+                    // Ошибка статуса или разбора ответа - передается как есть, без приведения к IOException
+                    private Throwable consumerFailure;
+                    private BatchResponseConsumer target = consumer;
+                    private BatchCompression.DecompressingConsumer decompressing;
+                    private boolean compressionRejected;
+
+                    @Override
+                    public void onHeaders(Response response) {
+                        if (compressed && response.getStatus() == BatchCompression.SC_UNSUPPORTED_MEDIA_TYPE) {
+                            compressionRejected = true;
+                            return;
+                        }
+                        if (isError(response.getStatus())) {
+                            // Тело ошибки пропускается без разрыва соединения, вызов завершится в onComplete
+                            consumerFailure = statusException(response.getStatus());
+                            return;
+                        }
+                        if (BatchCompression.isCompressed(response.getHeaders().get(BatchCompression.CONTENT_ENCODING))) {
+                            decompressing = BatchCompression.decompressing(consumer);
+                            target = decompressing;
+                        } else {
+                            // -1, если размер не указан (chunked)
+                            target.onContentLength(response.getHeaders()
+                                    .getLongField(HttpHeader.CONTENT_LENGTH.asString()));
+                        }
+                        try {
+                            target.onStatus(response.getStatus());
+                        } catch (Throwable e) {
+                            consumerFailure = e;
+                            response.abort(e);
+                        }
+                    }
+
+                    @Override
+                    public void onContent(Response response, ByteBuffer content) {
+                        if (compressionRejected || consumerFailure != null) {
+                            return;
+                        }
+                        try {
+                            target.onContent(content);
+                        } catch (Throwable e) {
+                            consumerFailure = e;
+                            response.abort(e);
+                        }
+                    }
+
+                    @Override
+                    public void onComplete(Result r) {
+                        if (decompressing != null) {
+                            // В том числе при обрыве или отмене ответа
+                            decompressing.close();
+                        }
+                        if (compressionRejected) {
+                            onCompressionRejected();
+                            pipe(callAsync(body, consumer), result);
+                        } else if (consumerFailure != null) {
+                            result.completeExceptionally(consumerFailure);
+                        } else if (r.isFailed()) {
+                            result.completeExceptionally(toIOException(r.getFailure()));
+                        } else {
+                            result.complete(null);
+                        }
+                    }
+                });
+
+        return result;
+    }
+
+    /**
+     * @param uncompressed повторная отправка без сжатия, если сервис не принял сжатое тело
+     */
+    private CompletableFuture<ServiceResponse> send(ContentProvider content, boolean compressed,
+                                                    Supplier<CompletableFuture<ServiceResponse>> uncompressed)
+    {
+        CompletableFuture<ServiceResponse> result = new CompletableFuture<>();
+
+        newRequest(content, compressed)
+                .send(new BufferingResponseListener(Integer.MAX_VALUE) {
+                    @Override
+                    public void onComplete(Result r) {
+                        if (r.isFailed()) {
+                            result.completeExceptionally(toIOException(r.getFailure()));
+                            return;
+                        }
+                        Response response = r.getResponse();
+                        if (compressed && response.getStatus() == BatchCompression.SC_UNSUPPORTED_MEDIA_TYPE) {
+                            onCompressionRejected();
+                            pipe(uncompressed.get(), result);
+                            return;
+                        }
+                        if (isError(response.getStatus())) {
+                            result.completeExceptionally(statusException(response.getStatus()));
+                            return;
+                        }
+                        try {
+                            byte[] data = BatchCompression.decompress(getContent(),
+                                    response.getHeaders().get(BatchCompression.CONTENT_ENCODING));
+                            result.complete(ServiceResponse.response(response.getStatus(), data));
+                        } catch (IOException e) {
+                            result.completeExceptionally(e);
+                        }
+                    }
+                });
+
+        return result;
+    }
+
+    private Request newRequest(ContentProvider content, boolean compressed) {
+        Request request = this.httpClient.POST(this.serviceUrl)
+                // Аналог read timeout у HttpURLConnection - максимальное время без активности в соединении
+                .idleTimeout(this.readTimeout, TimeUnit.MILLISECONDS)
+                .content(content, CONTENT_TYPE);
+        if (this.compression != null) {
+            request.header(BatchCompression.ACCEPT_ENCODING, BatchCompression.DEFLATE);
+        }
+        if (compressed) {
+            request.header(BatchCompression.CONTENT_ENCODING, BatchCompression.DEFLATE);
+        }
+        return request;
+    }
+
+    private boolean shouldCompress(BatchBody body) {
+        return this.compression != null && this.compressionSupported && this.compression.shouldCompress(body.getLength());
+    }
+
+    private void onCompressionRejected() {
+        if (this.compressionSupported) {
+            log.warn("Service {} does not accept compressed batches. Compression is disabled", this.serviceUrl);
+            this.compressionSupported = false;
+        }
+    }
+
+    private static boolean isError(int status) {
+        return status >= SC_ERROR;
+    }
+
+    /**
+     * Повтор может помочь только при ошибке сервиса или явной просьбе повторить позже
+     */
+    private Exception statusException(int status) {
+        String message = "Server returned HTTP response code: " + status + " for URL: " + this.serviceUrl;
+        if (status >= SC_SERVER_ERROR || status == SC_REQUEST_TIMEOUT || status == SC_TOO_MANY_REQUESTS) {
+            return new IOException(message);
+        }
+        return new ServiceErrorException(status, message);
+    }
+
+    private static <T> CompletableFuture<T> failed(Throwable e) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        result.completeExceptionally(e);
+        return result;
+    }
+
+    private static <T> void pipe(CompletableFuture<T> source, CompletableFuture<T> target) {
+        source.whenComplete((r, ex) -> {
+            if (ex != null) {
+                target.completeExceptionally(ex);
+            } else {
+                target.complete(r);
+            }
+        });
+    }
+
+    @Override
+    public ServiceResponse call(byte[] data) throws IOException {
+        return await(callAsync(data));
+    }
+
+    @Override
+    public ServiceResponse call(BatchBody body) throws IOException {
+        return await(callAsync(body));
+    }
+
+    @Override
+    public void call(BatchBody body, BatchResponseConsumer consumer) throws IOException {
+        await(callAsync(body, consumer));
+    }
+
+    private static <T> T await(CompletableFuture<T> response) throws IOException {
+        try {
+            return response.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("The service call is interrupted");
+        } catch (ExecutionException e) {
+            // Ошибки разбора ответа пробрасываем как есть, коммуникационные уже приведены к IOException
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw toIOException(e.getCause());
+        }
+    }
+
+    /**
+     * Все ошибки клиента (таймауты, ошибки соединения, разрешения имен) считаем коммуникационными, чтобы они
+     * ретраились так же, как и у {@link BlockingHttpCall}.
+     */
+    private static IOException toIOException(Throwable failure) {
+        if (failure instanceof IOException) {
+            return (IOException) failure;
+        }
+        return new IOException(failure.getMessage(), failure);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            this.httpClient.stop();
+        } catch (Exception e) {
+            throw toIOException(e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return this.serviceUrl.toString();
+    }
+}
@@ -0,0 +1,109 @@
+package proxy.impl;
+
+import proxy.model.ServiceResponse;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Кэш недавних ответов сервиса по телу сообщения с ограничением времени жизни, количества записей и суммарного
+ * размера (тело сообщения и ответа). При превышении ограничений вытесняются давно не использованные записи (LRU).
+ * Записи с истекшим сроком удаляются при обращении к ним.
+ *
+ * <p>Все операции выполняются под монитором кэша - они короткие и не выделяют памяти, кроме новой записи.
+ *
+ * @author rushan
+ */
+public class ResponseCache<K> {
+
+    private static class Entry {
+        private final ServiceResponse response;
+        private final long expiresAt;
+        private final long bytes;
+
+        private Entry(ServiceResponse response, long expiresAt, long bytes) {
+            this.response = response;
+            this.expiresAt = expiresAt;
+            this.bytes = bytes;
+        }
+    }
+
+    private final long ttlNanos;
+    private final int maxEntries;
+    private final long maxBytes;
+
+    private final LinkedHashMap<K, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+
+    /**
+     * @param ttlMs      время жизни записи
+     * @param maxEntries максимальное количество записей
+     * @param maxBytes   максимальный суммарный размер записей
+     */
+    public ResponseCache(long ttlMs, int maxEntries, long maxBytes) {
+        if (ttlMs <= 0 || maxEntries <= 0 || maxBytes <= 0) {
+            throw new IllegalArgumentException("Expected positive ttl and limits, but got ttl " + ttlMs
+                    + " ms, " + maxEntries + " entries, " + maxBytes + " bytes");
+        }
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMs);
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return ответ или null, если его нет в кэше или срок его жизни истек
+     */
+    public synchronized ServiceResponse get(K key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (System.nanoTime() - entry.expiresAt >= 0) {
+            remove(key);
+            return null;
+        }
+        return entry.response;
+    }
+
+    /**
+     * @param keyBytes размер ключа, учитывается в ограничении размера
+     */
+    public synchronized void put(K key, int keyBytes, ServiceResponse response) {
+        long size = keyBytes + response.getSize();
+        if (size > maxBytes) {
+            return;
+        }
+        remove(key);
+        entries.put(key, new Entry(response, System.nanoTime() + ttlNanos, size));
+        bytes += size;
+
+        Iterator<Map.Entry<K, Entry>> eldest = entries.entrySet().iterator();
+        while (entries.size() > maxEntries || bytes > maxBytes) {
+            bytes -= eldest.next().getValue().bytes;
+            eldest.remove();
+        }
+    }
+
+    private void remove(K key) {
+        Entry removed = entries.remove(key);
+        if (removed != null) {
+            bytes -= removed.bytes;
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    @Override
+    public String toString() {
+        return "ResponseCache{ttlMs=" + TimeUnit.NANOSECONDS.toMillis(ttlNanos) + ", maxEntries=" + maxEntries
+                + ", maxBytes=" + maxBytes + "}";
+    }
+}
@@ -0,0 +1,98 @@
+package proxy.impl;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Общее ограничение количества повторных попыток вызова сервиса долей от количества первых попыток. Каждый новый
+ * вызов пополняет бюджет на {@code ratio} попытки, каждая повторная попытка расходует одну. Так при массовых ошибках
+ * нагрузка на сервис растет не более чем в (1 + ratio) раз, а не в количество попыток на батч.
+ *
+ * <p>Чтобы при малом потоке батчей повторные попытки были возможны, дополнительно разрешается
+ * {@code minRetriesPerSecond} попыток в секунду сверх бюджета. Накопленный бюджет ограничен
+ * {@link #MAX_BALANCE_CALLS} вызовами - долгий период без ошибок не должен разрешать последующий шквал попыток.
+ *
+ * @author rushan
+ */
+public class RetryBudget {
+
+    /**
+     * Количество последних вызовов, пополнение от которых может быть накоплено
+     */
+    public static final int MAX_BALANCE_CALLS = 1000;
+
+    /**
+     * Бюджет хранится в тысячных долях попытки
+     */
+    private static final long SCALE = 1000;
+
+    private final double ratio;
+    private final long deposit;
+    private final long maxBalance;
+    private final int minRetriesPerSecond;
+
+    private final AtomicLong balance = new AtomicLong();
+    private final AtomicLong reserveSecond = new AtomicLong();
+    private final AtomicInteger reserveUsed = new AtomicInteger();
+
+    /**
+     * @param ratio               допустимое отношение повторных попыток к первым
+     * @param minRetriesPerSecond количество попыток в секунду, разрешенных независимо от бюджета
+     */
+    public RetryBudget(double ratio, int minRetriesPerSecond) {
+        if (ratio < 0) {
+            throw new IllegalArgumentException("Retry ratio must not be negative: " + ratio);
+        }
+        this.ratio = ratio;
+        this.deposit = Math.round(ratio * SCALE);
+        this.maxBalance = Math.max(deposit * MAX_BALANCE_CALLS, SCALE);
+        this.minRetriesPerSecond = minRetriesPerSecond;
+    }
+
+    /**
+     * Учитывает первую попытку вызова.
+     */
+    public void onCall() {
+        long current;
+        do {
+            current = balance.get();
+            if (current >= maxBalance) {
+                return;
+            }
+        } while (!balance.compareAndSet(current, Math.min(maxBalance, current + deposit)));
+    }
+
+    /**
+     * Резервирует повторную попытку.
+     *
+     * @return false, если бюджет исчерпан
+     */
+    public boolean tryRetry() {
+        long current;
+        do {
+            current = balance.get();
+            if (current < SCALE) {
+                return tryReserve();
+            }
+        } while (!balance.compareAndSet(current, current - SCALE));
+        return true;
+    }
+
+    private boolean tryReserve() {
+        if (minRetriesPerSecond <= 0) {
+            return false;
+        }
+        long second = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime());
+        long current = reserveSecond.get();
+        if (current != second && reserveSecond.compareAndSet(current, second)) {
+            reserveUsed.set(0);
+        }
+        return reserveUsed.incrementAndGet() <= minRetriesPerSecond;
+    }
+
+    @Override
+    public String toString() {
+        return "RetryBudget{ratio=" + ratio + ", minRetriesPerSecond=" + minRetriesPerSecond + "}";
+    }
+}
@@ -0,0 +1,399 @@
+package proxy.impl;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Ограниченная неблокирующая (lock-free) очередь на кольцевом буфере для нескольких писателей и нескольких
+ * читателей (алгоритм Д. Вьюкова). Все ячейки выделяются при создании, добавление и извлечение элемента не
+ * создают объектов и не захватывают блокировок - только одна CAS операция над позицией записи или чтения.
+ *
+ * <p>{@link #drainTo(Collection, int)} забирает сразу все готовые элементы (но не более заданного количества)
+ * одной CAS операцией, {@link #offerAll(List)} так же занимает сразу все нужные свободные ячейки.
+ *
+ * <p>Ожидание читателей в {@link #take()} и {@link #poll(long, TimeUnit)} определяется {@link WaitStrategy}.
+ * Писатели будят спящих читателей только если такие есть, поэтому при непрерывном потоке сообщений добавление
+ * обходится без системных вызовов.
+ *
+ * <p>Итератор слабо согласованный - обходит снимок опубликованных на момент его создания элементов, не захватывая
+ * ячеек. Удаление через итератор не поддерживается: ячейку из середины кольца нельзя освободить раньше
+ * предшествующих.
+ *
+ * @author rushan
+ */
+public class RingBufferQueue<E> extends AbstractQueue<E> implements BulkQueue<E> {
+
+    /**
+     * Стратегия ожидания читателя на пустой очереди.
+     */
+    public enum WaitStrategy {
+        /**
+         * Сразу засыпать до появления элемента. Минимальная загрузка CPU, но выше задержка передачи.
+         */
+        PARK(0, 0),
+        /**
+         * Некоторое время активно опрашивать очередь, затем уступать процессор и только потом засыпать.
+         */
+        SPIN_THEN_PARK(100, 100),
+        /**
+         * Никогда не засыпать, уступая процессор между опросами. Минимальная задержка передачи ценой
+         * постоянной загрузки CPU.
+         */
+        YIELD(0, Integer.MAX_VALUE);
+
+        private final int spins;
+        private final int yields;
+
+        WaitStrategy(int spins, int yields) {
+            this.spins = spins;
+            this.yields = yields;
+        }
+    }
+
+    /**
+     * Пауза писателя при ожидании места в очереди в {@link #put(Object)}
+     */
+    private static final long PRODUCER_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    private static final int WAITING = 0;
+    private static final int SIGNALLED = 1;
+    private static final int CANCELLED = 2;
+
+    /**
+     * Спящий читатель
+     */
+    private static final class Waiter {
+        private final Thread thread = Thread.currentThread();
+        private final AtomicInteger state = new AtomicInteger(WAITING);
+    }
+
+    /**
+     * Выравнивание, чтобы позиции записи и чтения не попадали в одну кэш-линию
+     */
+    @SuppressWarnings("unused")
+    private static final class PaddedAtomicLong extends AtomicLong {
+        private long p1, p2, p3, p4, p5, p6, p7;
+    }
+
+    private final int capacity;
+    private final WaitStrategy waitStrategy;
+
+    private final AtomicReferenceArray<E> buffer;
+
+    /**
+     * Номер "круга" ячейки: ячейка свободна для записи на позиции pos, если sequence == pos, и содержит элемент
+     * для чтения на позиции pos, если sequence == pos + 1
+     */
+    private final AtomicLongArray sequences;
+
+    private final AtomicLong enqueuePos = new PaddedAtomicLong();
+    private final AtomicLong dequeuePos = new PaddedAtomicLong();
+
+    private final ConcurrentLinkedQueue<Waiter> waiters = new ConcurrentLinkedQueue<>();
+
+    public RingBufferQueue(int capacity, WaitStrategy waitStrategy) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+        this.waitStrategy = waitStrategy;
+        this.buffer = new AtomicReferenceArray<>(capacity);
+        this.sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    private int index(long pos) {
+        return (int) (pos % capacity);
+    }
+
+    @Override
+    public boolean offer(E e) {
+        if (e == null) {
+            throw new NullPointerException();
+        }
+
+        long pos = enqueuePos.get();
+        int idx;
+        for (;;) {
+            idx = index(pos);
+            long diff = sequences.get(idx) - pos;
+            if (diff == 0) {
+                if (enqueuePos.compareAndSet(pos, pos + 1)) {
+                    break;
+                }
+                pos = enqueuePos.get();
+            } else if (diff < 0) {
+                // Ячейка еще не освобождена читателем с предыдущего круга - очередь заполнена
+                return false;
+            } else {
+                pos = enqueuePos.get();
+            }
+        }
+
+        buffer.lazySet(idx, e);
+        // Публикация элемента для читателей
+        sequences.set(idx, pos + 1);
+
+        signalConsumer();
+        return true;
+    }
+
+    @Override
+    public int offerAll(List<? extends E> elements) {
+        for (E e : elements) {
+            if (e == null) {
+                throw new NullPointerException();
+            }
+        }
+
+        long pos;
+        int count;
+        do {
+            pos = enqueuePos.get();
+            count = 0;
+            // Считаем подряд идущие свободные ячейки
+            while (count < elements.size() && count < capacity && sequences.get(index(pos + count)) == pos + count) {
+                count++;
+            }
+            if (count == 0) {
+                return 0;
+            }
+        } while (!enqueuePos.compareAndSet(pos, pos + count));
+
+        // Захваченные ячейки принадлежат только текущему потоку - публикуем элементы по порядку
+        for (int i = 0; i < count; i++) {
+            int idx = index(pos + i);
+            buffer.lazySet(idx, elements.get(i));
+            sequences.set(idx, pos + i + 1);
+        }
+
+        for (int i = 0; i < count && !waiters.isEmpty(); i++) {
+            signalConsumer();
+        }
+        return count;
+    }
+
+    @Override
+    public E poll() {
+        long pos = dequeuePos.get();
+        int idx;
+        for (;;) {
+            idx = index(pos);
+            long diff = sequences.get(idx) - (pos + 1);
+            if (diff == 0) {
+                if (dequeuePos.compareAndSet(pos, pos + 1)) {
+                    break;
+                }
+                pos = dequeuePos.get();
+            } else if (diff < 0) {
+                // Элемент в ячейке еще не опубликован - очередь пуста
+                return null;
+            } else {
+                pos = dequeuePos.get();
+            }
+        }
+        return release(idx, pos);
+    }
+
+    /**
+     * Забирает элемент из занятой текущим потоком ячейки и освобождает ее для следующего круга записи.
+     */
+    private E release(int idx, long pos) {
+        E e = buffer.get(idx);
+        buffer.lazySet(idx, null);
+        sequences.set(idx, pos + capacity);
+        return e;
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> c, int maxElements) {
+        if (c == this) {
+            throw new IllegalArgumentException();
+        }
+        if (maxElements <= 0) {
+            return 0;
+        }
+
+        long pos;
+        int count;
+        do {
+            pos = dequeuePos.get();
+            count = 0;
+            // Считаем подряд идущие опубликованные элементы
+            while (count < maxElements && count < capacity && sequences.get(index(pos + count)) == pos + count + 1) {
+                count++;
+            }
+            if (count == 0) {
+                return 0;
+            }
+        } while (!dequeuePos.compareAndSet(pos, pos + count));
+
+        // Захваченные ячейки принадлежат только текущему потоку - их можно забирать без CAS
+        for (int i = 0; i < count; i++) {
+            c.add(release(index(pos + i), pos + i));
+        }
+        return count;
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public E take() throws InterruptedException {
+        return await(false, 0);
+    }
+
+    @Override
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        return await(true, unit.toNanos(timeout));
+    }
+
+    private E await(boolean timed, long nanos) throws InterruptedException {
+        long deadline = timed ? System.nanoTime() + nanos : 0;
+        int spins = waitStrategy.spins;
+        int yields = waitStrategy.yields;
+
+        for (;;) {
+            E e = poll();
+            if (e != null) {
+                return e;
+            }
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            long remaining = timed ? deadline - System.nanoTime() : Long.MAX_VALUE;
+            if (remaining <= 0) {
+                return null;
+            }
+
+            if (spins > 0) {
+                spins--;
+                continue;
+            }
+            if (yields > 0) {
+                if (yields != Integer.MAX_VALUE) {
+                    yields--;
+                }
+                Thread.yield();
+                continue;
+            }
+
+            Waiter waiter = new Waiter();
+            waiters.offer(waiter);
+            // Повторная проверка после регистрации: писатель, опубликовавший элемент до регистрации,
+            // мог не увидеть нас среди ожидающих
+            e = poll();
+            if (e == null) {
+                if (timed) {
+                    LockSupport.parkNanos(this, remaining);
+                } else {
+                    LockSupport.park(this);
+                }
+            }
+
+            if (waiter.state.compareAndSet(WAITING, CANCELLED)) {
+                waiters.remove(waiter);
+            } else if (e != null) {
+                // Нас разбудили, но элемент уже получен - передаем сигнал другому ожидающему
+                signalConsumer();
+            }
+            if (e != null) {
+                return e;
+            }
+        }
+    }
+
+    private void signalConsumer() {
+        Waiter waiter;
+        while ((waiter = waiters.poll()) != null) {
+            if (waiter.state.compareAndSet(WAITING, SIGNALLED)) {
+                LockSupport.unpark(waiter.thread);
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void put(E e) throws InterruptedException {
+        while (!offer(e)) {
+            LockSupport.parkNanos(this, PRODUCER_PARK_NANOS);
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+    }
+
+    @Override
+    public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!offer(e)) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            LockSupport.parkNanos(this, Math.min(remaining, PRODUCER_PARK_NANOS));
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public E peek() {
+        long pos = dequeuePos.get();
+        int idx = index(pos);
+        // Элемент может быть забран другим читателем сразу после проверки - тогда вернется null
+        return sequences.get(idx) == pos + 1 ? buffer.get(idx) : null;
+    }
+
+    @Override
+    public int size() {
+        long size = enqueuePos.get() - dequeuePos.get();
+        return (int) Math.max(0, Math.min(size, capacity));
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return capacity - size();
+    }
+
+    @Override
+    public Iterator<E> iterator() {
+        List<E> snapshot = new ArrayList<>();
+        long pos = dequeuePos.get();
+        long end = Math.min(enqueuePos.get(), pos + capacity);
+        for (; pos < end; pos++) {
+            int idx = index(pos);
+            if (sequences.get(idx) != pos + 1) {
+                // Элемент уже забран читателем или еще не опубликован писателем
+                continue;
+            }
+            E e = buffer.get(idx);
+            // Ячейка могла освободиться и занята заново, пока читали элемент
+            if (e != null && sequences.get(idx) == pos + 1) {
+                snapshot.add(e);
+            }
+        }
+        return new SnapshotIterator<>(snapshot, null);
+    }
+
+    @Override
+    public String toString() {
+        return "RingBufferQueue{capacity=" + capacity + ", size=" + size() + ", waitStrategy=" + waitStrategy + "}";
+    }
+}
@@ -2,23 +2,71 @@ package proxy.impl;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import proxy.api.AsyncServiceCall;
+import proxy.api.CircuitOpenException;
+import proxy.api.ResponseListener;
 import proxy.api.ServiceCall;
 import proxy.api.ServiceNotAvailableException;
 import proxy.api.ServiceRetry;
+import proxy.metrics.Counter;
+import proxy.metrics.Gauge;
+import proxy.metrics.Histogram;
+import proxy.metrics.MetricsRegistry;
+import proxy.model.BatchBody;
 import proxy.model.Message;
 import proxy.model.ServiceResponse;
+import proxy.util.ByteBufferPool;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 /**
  * Инициирует вызов сервиса с повторными попытками (retry), если сервис недоступен, то есть если
  * генерируется исключение {@link ServiceNotAvailableException}. Повторные попытки будут
  * продолжаться в течение {@link #serviceWaitTimeMs}. Если сервис просто возвращает ошибку - то retry не будет.
  *
+ * <p>Ожидание между попытками не занимает поток: повторные попытки запускаются по таймеру {@link #retryScheduler}.
+ * Если вызов сервиса поддерживает асинхронный режим ({@link AsyncServiceCall}), то {@link #callAsync(List)} вообще
+ * не занимает вызывающий поток. Синхронная первая попытка выполняется в вызывающем потоке, а повторные попытки после
+ * задержки - в {@link #blockingRetryExecutor}, так что неудачный батч не задерживает отправку остальных.
+ *
+ * <p>Задержка после порога растет по {@link Backoff}, а общее количество повторных попыток может быть ограничено
+ * долей от первых попыток ({@link RetryBudget}) - при массовых ошибках это не дает повторам умножать нагрузку на
+ * сервис.
+ *
+ * <p>Ответ сервиса при асинхронном вызове разбирается потоково ({@link BatchResponseDecoder}), без накопления
+ * всего батч-ответа в памяти.
+ *
+ * <p>Время попыток, количество ошибок и повторов публикуются в {@link MetricsRegistry#getDefault()}.
+ *
+ * <p>Повторные попытки прекращаются досрочно, если у всех сообщений батча истек срок ({@link Message#isExpired()}) -
+ * их клиенты уже не ждут ответа.
+ *
+ * <p>После исчерпания попыток сервис считается недоступным ({@link #isServiceAvailable()}) до успешного вызова,
+ * но не дольше {@link #serviceWaitTimeMs} - после этого можно снова пробовать его вызвать.
+ *
+ * <p>Если задан {@link CircuitBreaker}, то он общий для всех вызовов: при разомкнутой цепи попытки не выполняются и
+ * вызов сразу завершается {@link CircuitOpenException}, а пока нагрузка на сервис восстанавливается после
+ * замыкания, не прошедшие ограничение попытки откладываются, как при ошибке. Доступность сервиса в этом случае
+ * определяет состояние цепи.
+ *
  * @author rushan
  */
-public class ServiceRetrySupport implements ServiceRetry {
+public class ServiceRetrySupport implements ServiceRetry, AutoCloseable {
+
+    private static final String CIRCUIT_STATE_GAUGE = "proxy_circuit_state";
 
     private final Logger log = LoggerFactory.getLogger(ServiceRetrySupport.class);
 
@@ -30,58 +78,420 @@ public class ServiceRetrySupport implements ServiceRetry {
 
     private final BatchSupport batchSupport = new BatchSupport();
 
+    private final ScheduledExecutorService retryScheduler;
+    private final ExecutorService blockingRetryExecutor;
+    private volatile boolean closed;
+
+    /**
+     * Отложенные попытки, ожидающие таймера: при закрытии они выполняются сразу и завершают свои вызовы.
+     * {@link ScheduledExecutorService#shutdownNow()} для этого не подходит - он возвращает обертки задач, запуск
+     * которых после остановки планировщика ничего не выполняет.
+     */
+    private final Set<PendingRetry> pendingRetries = ConcurrentHashMap.newKeySet();
+
+    private final Backoff backoff;
+    private final RetryBudget retryBudget;
+
+    private final CircuitBreaker circuitBreaker;
+
+    /**
+     * Максимальный размер ответа сервиса на одно сообщение
+     */
+    private final int maxMessageSize;
+
+    /**
+     * Момент, когда сервис был признан недоступным, или 0, если последний вызов успешен
+     */
+    private volatile long unavailableSince;
+
+    private final MetricsRegistry metrics = MetricsRegistry.getDefault();
+    private final Histogram callLatency = metrics.histogram("proxy_upstream_call_seconds",
+            "Duration of a single service call attempt", Histogram.NANOS_TO_SECONDS);
+    private final Counter callErrors = metrics.counter("proxy_upstream_errors_total",
+            "Service call attempts failed with a communication error");
+    private final Counter retries = metrics.counter("proxy_upstream_retries_total",
+            "Repeated service call attempts");
+    private final Counter notAvailable = metrics.counter("proxy_upstream_not_available_total",
+            "Batches failed because the service was not available");
+    private final Counter circuitRejected = metrics.counter("proxy_circuit_rejected_total",
+            "Batches failed fast because the circuit was open");
+    private final Counter retryBudgetExhausted = metrics.counter("proxy_upstream_retry_budget_exhausted_total",
+            "Batches failed without retry because the retry budget was exhausted");
+
+    /**
+     * Состояние автомата защиты, удаляется из реестра при закрытии
+     */
+    private final Gauge circuitState;
+
     public ServiceRetrySupport(ServiceCall serviceCall, int threshold, int timeBetweenCallMs, int serviceWaitTimeMs) {
+        this(serviceCall, threshold, timeBetweenCallMs, serviceWaitTimeMs, null);
+    }
+
+    /**
+     * @param circuitBreaker автомат защиты вызовов сервиса, если null - не используется
+     */
+    public ServiceRetrySupport(ServiceCall serviceCall, int threshold, int timeBetweenCallMs, int serviceWaitTimeMs,
+                               CircuitBreaker circuitBreaker)
+    {
+        this(serviceCall, threshold, timeBetweenCallMs, serviceWaitTimeMs, circuitBreaker, Backoff.fixed(), null);
+    }
+
+    /**
+     * @param backoff     рост задержки между попытками после порога
+     * @param retryBudget ограничение общего количества повторных попыток, если null - не ограничено
+     */
+    public ServiceRetrySupport(ServiceCall serviceCall, int threshold, int timeBetweenCallMs, int serviceWaitTimeMs,
+                               CircuitBreaker circuitBreaker, Backoff backoff, RetryBudget retryBudget)
+    {
+        this(serviceCall, threshold, timeBetweenCallMs, serviceWaitTimeMs, circuitBreaker, backoff, retryBudget,
+                Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param maxMessageSize максимальный размер ответа сервиса на одно сообщение - больший размер фрейма в
+     *                       батч-ответе считается ошибкой ответа
+     */
+    public ServiceRetrySupport(ServiceCall serviceCall, int threshold, int timeBetweenCallMs, int serviceWaitTimeMs,
+                               CircuitBreaker circuitBreaker, Backoff backoff, RetryBudget retryBudget,
+                               int maxMessageSize)
+    {
+        this.maxMessageSize = maxMessageSize;
         this.serviceCall = serviceCall;
         this.threshold = threshold;
         this.timeBetweenCallMs = timeBetweenCallMs;
         this.serviceWaitTimeMs = serviceWaitTimeMs;
+        this.circuitBreaker = circuitBreaker;
+        this.backoff = backoff;
+        this.retryBudget = retryBudget;
+        this.circuitState = circuitBreaker != null
+                ? metrics.gauge(CIRCUIT_STATE_GAUGE, "Circuit breaker state: 0 - closed, 1 - open, 2 - half-open",
+                        () -> circuitBreaker.getState().ordinal())
+                : null;
+
+        this.retryScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "service-retry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.blockingRetryExecutor = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "service-retry-call");
+            thread.setDaemon(true);
+            return thread;
+        });
     }
 
+    /**
+     * Вызывающий поток ожидает результат, но сам повторные попытки не выполняет.
+     */
     @Override
     public List<ServiceResponse> call(List<Message> messages) throws IOException, ServiceNotAvailableException {
-        byte[] batchData = batchSupport.toBatchBuffer(messages);
-        ServiceResponse batchResponse = callService(batchData);
+        // Тело батча не материализуется и переотправляется при повторных попытках как есть
+        BatchBody batchBody = batchSupport.toBatchBody(messages);
+        CompletableFuture<ServiceResponse> result = callService(blocking(() -> serviceCall.call(batchBody)), true,
+                messages);
+        ServiceResponse batchResponse;
+        try {
+            batchResponse = result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            result.cancel(false);
+            throw new ServiceNotAvailableException(0, 0, e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof ServiceNotAvailableException) {
+                throw (ServiceNotAvailableException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+        return splitBatch(batchResponse, messages.size());
+    }
+
+    @Override
+    public CompletableFuture<List<ServiceResponse>> callAsync(List<Message> messages) {
+        ServiceResponse[] responses = new ServiceResponse[messages.size()];
+        return callAsync(messages, (index, response) -> responses[index] = response)
+                .thenApply(v -> Arrays.asList(responses));
+    }
+
+    /**
+     * Батч-ответ разбирается потоково: ответ на каждое сообщение передается в {@code listener}, как только
+     * получен его последний байт. Если вызов сервиса синхронный, то первая попытка выполняется в текущем потоке.
+     */
+    @Override
+    public CompletableFuture<Void> callAsync(List<Message> messages, ResponseListener listener) {
+        BatchBody batchBody = batchSupport.toBatchBody(messages);
+
+        if (!(this.serviceCall instanceof AsyncServiceCall)) {
+            return callService(blocking(() -> {
+                // На каждую попытку - новый разбор ответа
+                BatchResponseDecoder decoder = newDecoder(messages.size(), listener);
+                serviceCall.call(batchBody, decoder);
+                decoder.finish();
+                return null;
+            }), true, messages);
+        }
+
+        AsyncServiceCall asyncCall = (AsyncServiceCall) this.serviceCall;
+        return callService(() -> {
+            BatchResponseDecoder decoder = newDecoder(messages.size(), listener);
+            return asyncCall.callAsync(batchBody, decoder).thenRun(decoder::finish);
+        }, false, messages);
+    }
+
+    private BatchResponseDecoder newDecoder(int batchSize, ResponseListener listener) {
+        return new BatchResponseDecoder(batchSize, listener, ByteBufferPool.getDefault(), maxMessageSize);
+    }
+
+    private List<ServiceResponse> splitBatch(ServiceResponse batchResponse, int batchSize) {
         List<ServiceResponse> result = batchSupport.splitBatch(batchResponse);
-        if (result.size() != messages.size()) {
+        if (result.size() != batchSize) {
             throw new RuntimeException("Unexpected service response. The response result size is not match to batch size");
         }
         return result;
     }
 
-    private ServiceResponse callService(byte[] data) throws ServiceNotAvailableException {
-        long startTime = System.currentTimeMillis();
-        long waitTime;
-        Exception last;
-        int count = 0;
-        do {
+    /**
+     * Одна попытка синхронного вызова сервиса.
+     */
+    @FunctionalInterface
+    private interface Attempt<T> {
+        T call() throws IOException;
+    }
+
+    private static <T> Supplier<CompletableFuture<T>> blocking(Attempt<T> attempt) {
+        return () -> {
+            CompletableFuture<T> future = new CompletableFuture<>();
             try {
-                return serviceCall.call(data);
-            } catch (IOException e) {
-                // Ретраим только в случае коммуникационых ошибок (ConnectException, UnknownHostException,
-                // SocketTimeoutException, SocketException...).
-                // Если вызов прошел успешно со статусом, отличным от 200, то ретраить смысла нет, так как потребуется
-                // скорее всего изменение запроса от клиента или невозможности такого запроса. Например, 401 может
-                // требовать предоставить корректный токен, 400 - неправильно сформирован запрос и т.д.
-                last = e;
-                log.error("Service call {} is failed. Details: {}", serviceCall, e.getMessage());
-
-                // Задержка только в случаях превышения threshold
-                if (++count > threshold - 1) {
-                    try {
-                        long sleepTime = Math.min(this.serviceWaitTimeMs, this.timeBetweenCallMs);
-                        log.debug("Perform sleep on {}ms", sleepTime);
-
-                        // Никакого "busy wait", как пишет idea, не будет. Начиная с версии ядра linux 2.x sleep
-                        // реализован путем хинтов планировщику.
-                        Thread.sleep(sleepTime);
-                    } catch (InterruptedException interruptedException) {
-                        Thread.currentThread().interrupt();
-                    }
-                }
+                future.complete(attempt.call());
+            } catch (IOException | RuntimeException e) {
+                future.completeExceptionally(e);
             }
-        } while ((waitTime = System.currentTimeMillis() - startTime) < this.serviceWaitTimeMs
-                && !Thread.currentThread().isInterrupted());
+            return future;
+        };
+    }
 
-        throw new ServiceNotAvailableException(waitTime, count, last);
+    /**
+     * @param blocking попытка выполняется синхронно - повторные попытки с задержкой выполняются в
+     *                 {@link #blockingRetryExecutor}, а не в потоке таймера
+     */
+    private <T> CompletableFuture<T> callService(Supplier<CompletableFuture<T>> attempt, boolean blocking,
+                                                 List<Message> messages)
+    {
+        if (retryBudget != null) {
+            retryBudget.onCall();
+        }
+        CompletableFuture<T> result = new CompletableFuture<>();
+        callService(attempt, blocking, messages, System.currentTimeMillis(), 0, result);
+        return result;
+    }
+
+    private <T> void callService(Supplier<CompletableFuture<T>> attempt, boolean blocking, List<Message> messages,
+                                 long startTime, int count, CompletableFuture<T> result)
+    {
+        if (result.isDone()) {
+            // Отменен вызывающим
+            return;
+        }
+        CircuitBreaker.Permit permit = circuitBreaker != null ? circuitBreaker.tryAcquire() : null;
+        if (circuitBreaker != null && permit == null) {
+            long waitTime = System.currentTimeMillis() - startTime;
+            if (circuitBreaker.getState() != CircuitBreaker.State.CLOSED) {
+                circuitRejected.inc();
+                result.completeExceptionally(new CircuitOpenException(waitTime, count, null));
+            } else {
+                // Нагрузка на сервис восстанавливается - откладываем попытку
+                scheduleRetry(attempt, blocking, messages, startTime, count, result, Math.max(1, retryDelayMs()),
+                        null);
+            }
+            return;
+        }
+
+        if (count > 0) {
+            retries.inc();
+        }
+        long attemptStart = System.nanoTime();
+        attempt.get().whenComplete((response, ex) -> {
+            callLatency.record(System.nanoTime() - attemptStart);
+            if (ex == null) {
+                onServiceAvailable(permit);
+                result.complete(response);
+                return;
+            }
+
+            Throwable cause = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+            if (!(cause instanceof IOException)) {
+                // Сервис ответил - для автомата защиты это успешный вызов
+                onServiceAvailable(permit);
+                result.completeExceptionally(cause);
+                return;
+            }
+
+            // Ретраим только в случае коммуникационых ошибок (ConnectException, UnknownHostException,
+            // SocketTimeoutException, SocketException...).
+            // Если вызов прошел успешно со статусом, отличным от 200, то ретраить смысла нет, так как потребуется
+            // скорее всего изменение запроса от клиента или невозможности такого запроса. Например, 401 может
+            // требовать предоставить корректный токен, 400 - неправильно сформирован запрос и т.д.
+            onCallFailed(permit);
+            log.error("Service call {} is failed. Details: {}", serviceCall, cause.getMessage());
+
+            int attemptCount = count + 1;
+            if (retryBudget != null && !retryBudget.tryRetry()) {
+                retryBudgetExhausted.inc();
+                result.completeExceptionally(new ServiceNotAvailableException(
+                        System.currentTimeMillis() - startTime, attemptCount, cause));
+                return;
+            }
+
+            // Задержка только в случаях превышения threshold
+            long delay = attemptCount > threshold - 1
+                    ? backoff.delayMs(retryDelayMs(), attemptCount - Math.max(threshold, 1), this.serviceWaitTimeMs)
+                    : 0;
+            scheduleRetry(attempt, blocking, messages, startTime, attemptCount, result, delay, cause);
+        });
+    }
+
+    /**
+     * Откладывает следующую попытку на {@code delay} мс. Поток, выполнивший неудачную попытку, на время ожидания
+     * не занимается.
+     */
+    private <T> void scheduleRetry(Supplier<CompletableFuture<T>> attempt, boolean blocking, List<Message> messages,
+                                   long startTime, int count, CompletableFuture<T> result, long delay, Throwable cause)
+    {
+        Runnable retry = () -> {
+            long waitTime = System.currentTimeMillis() - startTime;
+            if (this.closed || allExpired(messages)) {
+                result.completeExceptionally(new ServiceNotAvailableException(waitTime, count, cause));
+            } else if (waitTime < this.serviceWaitTimeMs) {
+                callService(attempt, blocking, messages, startTime, count, result);
+            } else {
+                onServiceNotAvailable();
+                result.completeExceptionally(new ServiceNotAvailableException(waitTime, count, cause));
+            }
+        };
+
+        if (delay == 0 && blocking) {
+            // Без задержки синхронная попытка повторяется в том же потоке
+            retry.run();
+            return;
+        }
+        PendingRetry pending = new PendingRetry(retry, blocking
+                ? () -> runBlockingRetry(retry, result, startTime, count, cause)
+                : retry);
+        this.pendingRetries.add(pending);
+        try {
+            this.retryScheduler.schedule(pending, delay, TimeUnit.MILLISECONDS);
+        } catch (RuntimeException e) {
+            // Планировщик остановлен - больше не ретраим
+            this.pendingRetries.remove(pending);
+            result.completeExceptionally(new ServiceNotAvailableException(
+                    System.currentTimeMillis() - startTime, count, cause));
+        }
+    }
+
+    /**
+     * Отложенная попытка. Выполняется один раз: по таймеру или при закрытии, смотря что наступит раньше.
+     */
+    private final class PendingRetry implements Runnable {
+
+        private final Runnable retry;
+        private final Runnable onTimer;
+
+        private PendingRetry(Runnable retry, Runnable onTimer) {
+            this.retry = retry;
+            this.onTimer = onTimer;
+        }
+
+        @Override
+        public void run() {
+            if (pendingRetries.remove(this)) {
+                onTimer.run();
+            }
+        }
+
+        /**
+         * При закрытии попытка не выполняется - {@code retry} видит {@code closed} и завершает вызов ошибкой
+         */
+        private void runNow() {
+            if (pendingRetries.remove(this)) {
+                retry.run();
+            }
+        }
+    }
+
+    private void runBlockingRetry(Runnable retry, CompletableFuture<?> result, long startTime, int count,
+                                  Throwable cause)
+    {
+        try {
+            this.blockingRetryExecutor.execute(retry);
+        } catch (RuntimeException e) {
+            result.completeExceptionally(new ServiceNotAvailableException(
+                    System.currentTimeMillis() - startTime, count, cause));
+        }
+    }
+
+    private long retryDelayMs() {
+        return Math.min(this.serviceWaitTimeMs, this.timeBetweenCallMs);
+    }
+
+    private static boolean allExpired(List<Message> messages) {
+        for (Message message : messages) {
+            if (!message.isExpired()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void onServiceAvailable(CircuitBreaker.Permit permit) {
+        if (circuitBreaker != null) {
+            circuitBreaker.onSuccess(permit);
+        }
+        if (this.unavailableSince != 0) {
+            log.info("Service {} is available again", serviceCall);
+            this.unavailableSince = 0;
+        }
+    }
+
+    private void onCallFailed(CircuitBreaker.Permit permit) {
+        callErrors.inc();
+        if (circuitBreaker != null) {
+            circuitBreaker.onFailure(permit);
+        }
+    }
+
+    private void onServiceNotAvailable() {
+        notAvailable.inc();
+        // Отсчет следующей проверки доступности - от последней неудачи
+        this.unavailableSince = System.currentTimeMillis();
+    }
+
+    @Override
+    public boolean isServiceAvailable() {
+        if (circuitBreaker != null) {
+            return circuitBreaker.isCallPermitted();
+        }
+        long since = this.unavailableSince;
+        return since == 0 || System.currentTimeMillis() - since >= this.serviceWaitTimeMs;
+    }
+
+    @Override
+    public void close() {
+        this.closed = true;
+        if (this.circuitState != null) {
+            metrics.remove(CIRCUIT_STATE_GAUGE, this.circuitState);
+        }
+        this.retryScheduler.shutdownNow();
+        // Отложенные попытки выполняются сразу и завершают свои вызовы ошибкой. Попытка, добавленная после
+        // этого обхода, не будет принята остановленным планировщиком и завершится ошибкой в scheduleRetry.
+        for (PendingRetry retry : new ArrayList<>(this.pendingRetries)) {
+            retry.runNow();
+        }
+        this.blockingRetryExecutor.shutdown();
     }
 }
@@ -0,0 +1,61 @@
+package proxy.impl;
+
+import proxy.model.Message;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Function;
+
+/**
+ * Ключи сообщений для {@link ShardedQueue}: сообщения с одинаковым ключом доставляются сервису в порядке
+ * поступления.
+ *
+ * @author rushan
+ */
+public final class ShardKeys {
+
+    private ShardKeys() {
+    }
+
+    /**
+     * Идентификатор клиента ({@link Message#getClientId()}) - заголовок запроса или адрес клиента
+     */
+    public static Function<Message, String> client() {
+        return Message::getClientId;
+    }
+
+    /**
+     * Байты тела сообщения с {@code offset} длиной {@code length}, например, идентификатор устройства в
+     * заголовке сообщения. У более короткого сообщения ключ - имеющиеся байты из этого диапазона.
+     */
+    public static Function<Message, String> bodyRange(int offset, int length) {
+        if (offset < 0 || length <= 0) {
+            throw new IllegalArgumentException("Expected non-negative offset and positive length, but got "
+                    + offset + ", " + length);
+        }
+        return message -> {
+            ByteBuffer payload = message.getPayload();
+            int from = Math.min(offset, payload.remaining());
+            int to = (int) Math.min((long) offset + length, payload.remaining());
+            byte[] key = new byte[to - from];
+            payload.position(payload.position() + from);
+            payload.get(key);
+            // Каждый байт - один символ, разные байты дают разные ключи
+            return new String(key, StandardCharsets.ISO_8859_1);
+        };
+    }
+
+    /**
+     * Разбор ключа из настроек: {@code client} или {@code body:<offset>:<length>}
+     */
+    public static Function<Message, String> parse(String spec) {
+        if ("client".equals(spec)) {
+            return client();
+        }
+        String[] parts = spec.split(":");
+        if (parts.length == 3 && "body".equals(parts[0])) {
+            return bodyRange(Integer.parseInt(parts[1]), Integer.parseInt(parts[2]));
+        }
+        throw new IllegalArgumentException("Unknown shard key: " + spec + ". Expected client or body:<offset>:<length>");
+    }
+}
@@ -0,0 +1,689 @@
+package proxy.impl;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * Ограниченная очередь из нескольких сегментов, у каждого сегмента - свой потребитель ({@link #shard(int)}).
+ * Элементы группируются по ключу, группа целиком находится в одном сегменте - по умолчанию выбранном по хэшу
+ * ключа. Поэтому элементы одного ключа забирает один потребитель в порядке поступления, а писатели разных
+ * сегментов не конкурируют за одну блокировку.
+ *
+ * <p>Внутри сегмента группы обслуживаются по кругу, по одному элементу. Потребитель, у которого сегмент пуст,
+ * переносит к себе (work stealing) целую группу из самого заполненного сегмента. Переносятся только группы,
+ * элементы которых сейчас не обрабатываются: забранные потребителем элементы считаются обрабатываемыми до
+ * {@link #endBatch(int, Object)}. Так элементы одного ключа не обрабатываются двумя потребителями одновременно.
+ * Перенесенная группа остается в новом сегменте, пока в ней есть необработанные элементы.
+ *
+ * <p>Очередь целиком ({@link #poll()}, {@link #drainTo(Collection)}) забирает элементы из всех сегментов без учета
+ * обработки - например, для снимка очереди при остановке. Ожидание в {@link #take()} самой очереди и
+ * в {@link #put(Object)} - периодический опрос. Итератор слабо согласованный - обходит снимки сегментов, каждый
+ * снятый под блокировкой своего сегмента, и удаляет элементы из очереди, если они еще там.
+ *
+ * @author rushan
+ */
+public class ShardedQueue<E> extends AbstractQueue<E> implements BulkQueue<E> {
+
+    /**
+     * Интервал, с которым ожидающий потребитель проверяет, нет ли групп для переноса, если его об этом не
+     * известили
+     */
+    static final long STEAL_CHECK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private static final long PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    private static class Group<E> {
+        private final String key;
+        private final ArrayDeque<E> elements = new ArrayDeque<>();
+        /**
+         * Количество забранных потребителем и еще не обработанных элементов
+         */
+        private int inProgress;
+
+        private Group(String key) {
+            this.key = key;
+        }
+    }
+
+    private final int capacity;
+    private final Function<? super E, String> keyFunction;
+    private final List<Shard> shards;
+    /**
+     * Ключи групп, находящихся не в своем сегменте по хэшу, с номером текущего сегмента
+     */
+    private final ConcurrentHashMap<String, Integer> moved = new ConcurrentHashMap<>();
+    private final AtomicInteger count = new AtomicInteger();
+
+    /**
+     * @param capacity    максимальное количество элементов во всех сегментах
+     * @param shardCount  количество сегментов (потребителей)
+     * @param keyFunction ключ группы элемента (null - общая группа)
+     */
+    public ShardedQueue(int capacity, int shardCount, Function<? super E, String> keyFunction) {
+        if (capacity <= 0 || shardCount <= 0) {
+            throw new IllegalArgumentException("Expected positive capacity and shard count, but got "
+                    + capacity + ", " + shardCount);
+        }
+        this.capacity = capacity;
+        this.keyFunction = keyFunction;
+        this.shards = new ArrayList<>(shardCount);
+        for (int i = 0; i < shardCount; i++) {
+            shards.add(new Shard(i));
+        }
+    }
+
+    /**
+     * Представление очереди для потребителя сегмента {@code index}: извлечение - из этого сегмента (с переносом
+     * групп из других, если он пуст), добавление - в сегмент по ключу элемента.
+     */
+    public BlockingQueue<E> shard(int index) {
+        return shards.get(index);
+    }
+
+    /**
+     * Элементы, забранные потребителем сегмента после предыдущего вызова, обработаны - их группы можно переносить
+     * в другие сегменты. Группа элемента {@code carried} остается занятой: он забран, но еще не обработан.
+     */
+    public void endBatch(int index, E carried) {
+        Shard shard = shards.get(index);
+        boolean stealable;
+        shard.lock.lock();
+        try {
+            stealable = shard.endBatch(carried != null ? key(carried) : null);
+        } finally {
+            shard.lock.unlock();
+        }
+        if (stealable) {
+            signalIdle(shard);
+        }
+    }
+
+    public int getShardCount() {
+        return shards.size();
+    }
+
+    public int getShardSize(int index) {
+        return shards.get(index).size;
+    }
+
+    /**
+     * Количество групп, перенесенных в другой сегмент и еще не обработанных
+     */
+    public int getMovedCount() {
+        return moved.size();
+    }
+
+    private String key(E e) {
+        String key = keyFunction.apply(e);
+        return key != null ? key : "";
+    }
+
+    private int home(String key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        return (h & Integer.MAX_VALUE) % shards.size();
+    }
+
+    private int route(String key) {
+        Integer index = moved.get(key);
+        return index != null ? index : home(key);
+    }
+
+    @Override
+    public boolean offer(E e) {
+        if (count.incrementAndGet() > capacity) {
+            count.decrementAndGet();
+            return false;
+        }
+        String key = key(e);
+        while (true) {
+            Shard shard = shards.get(route(key));
+            boolean stealable;
+            shard.lock.lock();
+            try {
+                // Группу могли перенести, пока ждали блокировку
+                if (route(key) != shard.index) {
+                    continue;
+                }
+                stealable = shard.enqueue(key, e);
+            } finally {
+                shard.lock.unlock();
+            }
+            if (stealable) {
+                signalIdle(shard);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Место под все помещающиеся элементы занимается одной CAS операцией. Подряд идущие элементы одного сегмента
+     * (например, одного ключа) добавляются под одной блокировкой.
+     */
+    @Override
+    public int offerAll(List<? extends E> elements) {
+        int current;
+        int n;
+        do {
+            current = count.get();
+            n = Math.min(elements.size(), capacity - current);
+            if (n <= 0) {
+                return 0;
+            }
+        } while (!count.compareAndSet(current, current + n));
+
+        int i = 0;
+        String key = key(elements.get(0));
+        while (i < n) {
+            Shard shard = shards.get(route(key));
+            boolean stealable = false;
+            shard.lock.lock();
+            try {
+                // Группу могли перенести, пока ждали блокировку, - тогда снова выбираем сегмент
+                while (i < n && route(key) == shard.index) {
+                    stealable |= shard.enqueue(key, elements.get(i));
+                    if (++i < n) {
+                        key = key(elements.get(i));
+                    }
+                }
+            } finally {
+                shard.lock.unlock();
+            }
+            if (stealable) {
+                signalIdle(shard);
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Будит один ожидающий потребитель другого сегмента, чтобы он перенес к себе группу
+     */
+    private void signalIdle(Shard source) {
+        for (Shard shard : shards) {
+            if (shard != source && shard.waiting) {
+                shard.lock.lock();
+                try {
+                    if (shard.waiting) {
+                        shard.notEmpty.signal();
+                        return;
+                    }
+                } finally {
+                    shard.lock.unlock();
+                }
+            }
+        }
+    }
+
+    @Override
+    public E poll() {
+        for (Shard shard : shards) {
+            if (shard.size > 0) {
+                shard.lock.lock();
+                try {
+                    if (shard.size > 0) {
+                        return shard.dequeue(false);
+                    }
+                } finally {
+                    shard.lock.unlock();
+                }
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public E take() throws InterruptedException {
+        E e;
+        while ((e = poll()) == null) {
+            park();
+        }
+        return e;
+    }
+
+    @Override
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        E e;
+        while ((e = poll()) == null) {
+            if (deadline - System.nanoTime() <= 0) {
+                return null;
+            }
+            park();
+        }
+        return e;
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> c, int maxElements) {
+        int n = 0;
+        for (Shard shard : shards) {
+            shard.lock.lock();
+            try {
+                while (n < maxElements && shard.size > 0) {
+                    c.add(shard.dequeue(false));
+                    n++;
+                }
+            } finally {
+                shard.lock.unlock();
+            }
+        }
+        return n;
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public void put(E e) throws InterruptedException {
+        while (!offer(e)) {
+            park();
+        }
+    }
+
+    @Override
+    public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!offer(e)) {
+            if (deadline - System.nanoTime() <= 0) {
+                return false;
+            }
+            park();
+        }
+        return true;
+    }
+
+    private void park() throws InterruptedException {
+        LockSupport.parkNanos(this, PARK_NANOS);
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+    }
+
+    @Override
+    public E peek() {
+        for (Shard shard : shards) {
+            E e = shard.peek();
+            if (e != null) {
+                return e;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public int size() {
+        return count.get();
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return capacity - count.get();
+    }
+
+    @Override
+    public Iterator<E> iterator() {
+        List<E> snapshot = new ArrayList<>(count.get());
+        for (Shard shard : shards) {
+            shard.snapshot(snapshot);
+        }
+        return new SnapshotIterator<>(snapshot, this::removeElement);
+    }
+
+    /**
+     * Удаляет именно этот элемент, если он еще в очереди, - из сегмента, в котором сейчас находится его группа
+     */
+    private void removeElement(E e) {
+        String key = key(e);
+        while (true) {
+            Shard shard = shards.get(route(key));
+            shard.lock.lock();
+            try {
+                // Группу могли перенести, пока ждали блокировку
+                if (route(key) != shard.index) {
+                    continue;
+                }
+                shard.remove(key, e);
+                return;
+            } finally {
+                shard.lock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ShardedQueue{capacity=" + capacity + ", shards=" + shards.size() + "}";
+    }
+
+    /**
+     * Сегмент очереди. Состояние меняется только под {@link #lock}, {@link #size} и {@link #waiting} читаются
+     * без блокировки.
+     */
+    private class Shard extends AbstractQueue<E> implements BlockingQueue<E> {
+        private final int index;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition notEmpty = lock.newCondition();
+        private final Map<String, Group<E>> groups = new HashMap<>();
+        /**
+         * Группы с элементами в порядке обслуживания
+         */
+        private final ArrayDeque<Group<E>> active = new ArrayDeque<>();
+        /**
+         * Ключи элементов, забранных потребителем после {@link #endBatch(String)}
+         */
+        private final List<String> taken = new ArrayList<>();
+        private volatile int size;
+        private volatile boolean waiting;
+
+        private Shard(int index) {
+            this.index = index;
+        }
+
+        /**
+         * @return у сегмента появилась группа, которую можно перенести, а его потребитель занят
+         */
+        private boolean enqueue(String key, E e) {
+            Group<E> group = groups.get(key);
+            if (group == null) {
+                group = new Group<>(key);
+                groups.put(key, group);
+            }
+            boolean activated = group.elements.isEmpty();
+            if (activated) {
+                active.addLast(group);
+            }
+            group.elements.addLast(e);
+            size++;
+            if (waiting) {
+                notEmpty.signal();
+                return false;
+            }
+            return activated && group.inProgress == 0 && shards.size() > 1;
+        }
+
+        private E dequeue(boolean track) {
+            Group<E> group = active.pollFirst();
+            E e = group.elements.pollFirst();
+            if (!group.elements.isEmpty()) {
+                active.addLast(group);
+            }
+            if (track) {
+                group.inProgress++;
+                taken.add(group.key);
+            } else {
+                removeIfDone(group);
+            }
+            size--;
+            count.decrementAndGet();
+            return e;
+        }
+
+        private void remove(String key, E e) {
+            Group<E> group = groups.get(key);
+            if (group == null) {
+                return;
+            }
+            for (Iterator<E> it = group.elements.iterator(); it.hasNext(); ) {
+                if (it.next() == e) {
+                    it.remove();
+                    if (group.elements.isEmpty()) {
+                        active.remove(group);
+                        removeIfDone(group);
+                    }
+                    size--;
+                    count.decrementAndGet();
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Добавляет элементы сегмента в порядке обслуживания групп
+         */
+        private void snapshot(List<E> snapshot) {
+            lock.lock();
+            try {
+                for (Group<E> group : active) {
+                    snapshot.addAll(group.elements);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void removeIfDone(Group<E> group) {
+            if (group.inProgress == 0 && group.elements.isEmpty()) {
+                groups.remove(group.key);
+                moved.remove(group.key, index);
+            }
+        }
+
+        /**
+         * @return в сегменте есть группы, которые можно перенести
+         */
+        private boolean endBatch(String carriedKey) {
+            boolean kept = false;
+            boolean stealable = false;
+            for (String key : taken) {
+                if (!kept && key.equals(carriedKey)) {
+                    kept = true;
+                    continue;
+                }
+                Group<E> group = groups.get(key);
+                group.inProgress--;
+                removeIfDone(group);
+                stealable |= group.inProgress == 0 && !group.elements.isEmpty();
+            }
+            taken.clear();
+            if (kept) {
+                taken.add(carriedKey);
+            }
+            return stealable;
+        }
+
+        /**
+         * Переносит в этот сегмент необрабатываемую группу из самого заполненного сегмента
+         */
+        private boolean steal() {
+            Shard victim = null;
+            int max = 0;
+            for (Shard shard : shards) {
+                int shardSize = shard.size;
+                if (shard != this && shardSize > max) {
+                    victim = shard;
+                    max = shardSize;
+                }
+            }
+            if (victim == null) {
+                return false;
+            }
+
+            // Блокировки захватываются в порядке номеров сегментов
+            Shard first = index < victim.index ? this : victim;
+            Shard second = first == this ? victim : this;
+            first.lock.lock();
+            second.lock.lock();
+            try {
+                Group<E> group = null;
+                // С конца круга - эти группы владелец обслужил бы последними
+                Iterator<Group<E>> it = victim.active.descendingIterator();
+                while (it.hasNext()) {
+                    Group<E> candidate = it.next();
+                    if (candidate.inProgress == 0) {
+                        group = candidate;
+                        it.remove();
+                        break;
+                    }
+                }
+                if (group == null) {
+                    return false;
+                }
+                victim.groups.remove(group.key);
+                victim.size -= group.elements.size();
+
+                groups.put(group.key, group);
+                active.addLast(group);
+                size += group.elements.size();
+                if (home(group.key) == index) {
+                    moved.remove(group.key);
+                } else {
+                    moved.put(group.key, index);
+                }
+                return true;
+            } finally {
+                second.lock.unlock();
+                first.lock.unlock();
+            }
+        }
+
+        private E pollLocal() {
+            if (size == 0) {
+                return null;
+            }
+            lock.lock();
+            try {
+                return size > 0 ? dequeue(true) : null;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private int drainLocal(Collection<? super E> c, int maxElements) {
+            if (size == 0) {
+                return 0;
+            }
+            lock.lock();
+            try {
+                int n = Math.min(size, maxElements);
+                for (int i = 0; i < n; i++) {
+                    c.add(dequeue(true));
+                }
+                return n;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public E poll() {
+            E e = pollLocal();
+            if (e == null && steal()) {
+                e = pollLocal();
+            }
+            return e;
+        }
+
+        @Override
+        public int drainTo(Collection<? super E> c, int maxElements) {
+            int n = drainLocal(c, maxElements);
+            if (n == 0 && steal()) {
+                n = drainLocal(c, maxElements);
+            }
+            return n;
+        }
+
+        @Override
+        public int drainTo(Collection<? super E> c) {
+            return drainTo(c, Integer.MAX_VALUE);
+        }
+
+        @Override
+        public E take() throws InterruptedException {
+            return await(false, 0);
+        }
+
+        @Override
+        public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+            return await(true, unit.toNanos(timeout));
+        }
+
+        private E await(boolean timed, long nanos) throws InterruptedException {
+            long deadline = timed ? System.nanoTime() + nanos : 0;
+            while (true) {
+                E e = poll();
+                if (e != null) {
+                    return e;
+                }
+                long remaining = timed ? deadline - System.nanoTime() : Long.MAX_VALUE;
+                if (remaining <= 0) {
+                    return null;
+                }
+                lock.lockInterruptibly();
+                try {
+                    if (size == 0) {
+                        waiting = true;
+                        notEmpty.awaitNanos(Math.min(remaining, STEAL_CHECK_NANOS));
+                    }
+                } finally {
+                    waiting = false;
+                    lock.unlock();
+                }
+            }
+        }
+
+        @Override
+        public boolean offer(E e) {
+            return ShardedQueue.this.offer(e);
+        }
+
+        @Override
+        public void put(E e) throws InterruptedException {
+            ShardedQueue.this.put(e);
+        }
+
+        @Override
+        public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException {
+            return ShardedQueue.this.offer(e, timeout, unit);
+        }
+
+        @Override
+        public E peek() {
+            lock.lock();
+            try {
+                Group<E> group = active.peekFirst();
+                return group != null ? group.elements.peekFirst() : null;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public int remainingCapacity() {
+            return ShardedQueue.this.remainingCapacity();
+        }
+
+        @Override
+        public Iterator<E> iterator() {
+            List<E> snapshot = new ArrayList<>(size);
+            snapshot(snapshot);
+            return new SnapshotIterator<>(snapshot, ShardedQueue.this::removeElement);
+        }
+
+        @Override
+        public String toString() {
+            return "ShardedQueue.Shard{index=" + index + ", size=" + size + "}";
+        }
+    }
+}
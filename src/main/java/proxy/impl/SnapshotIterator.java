@@ -0,0 +1,54 @@
+package proxy.impl;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.Consumer;
+
+/**
+ * Слабо согласованный итератор очереди по снимку ее элементов: снимок делается при создании итератора, поэтому
+ * итератор не бросает {@link java.util.ConcurrentModificationException} и не видит последующих изменений очереди.
+ *
+ * <p>{@link #remove()} удаляет текущий элемент из самой очереди, если он еще там, - через {@code remover}. Без
+ * него удаление не поддерживается.
+ *
+ * @author rushan
+ */
+class SnapshotIterator<E> implements Iterator<E> {
+
+    private final List<E> snapshot;
+    private final Consumer<? super E> remover;
+    private int cursor;
+    private E last;
+
+    SnapshotIterator(List<E> snapshot, Consumer<? super E> remover) {
+        this.snapshot = snapshot;
+        this.remover = remover;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return cursor < snapshot.size();
+    }
+
+    @Override
+    public E next() {
+        if (cursor >= snapshot.size()) {
+            throw new NoSuchElementException();
+        }
+        last = snapshot.get(cursor++);
+        return last;
+    }
+
+    @Override
+    public void remove() {
+        if (remover == null) {
+            throw new UnsupportedOperationException("remove");
+        }
+        if (last == null) {
+            throw new IllegalStateException();
+        }
+        remover.accept(last);
+        last = null;
+    }
+}
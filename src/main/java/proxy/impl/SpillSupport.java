@@ -0,0 +1,253 @@
+package proxy.impl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import proxy.api.MessageRejectedException;
+import proxy.api.ServiceNotAvailableException;
+import proxy.metrics.Counter;
+import proxy.metrics.MetricsRegistry;
+import proxy.model.BatchBody;
+import proxy.model.Message;
+import proxy.model.ServiceResponse;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+/**
+ * Очередь на диске {@link AsyncProxy}: сообщения, не поместившиеся в очередь в памяти, дописываются в
+ * {@link DiskSpillQueue} и переносятся обратно, когда очередь в памяти пуста.
+ *
+ * <p>При остановке сообщения из очереди в памяти сохраняются в снимок (формат батча) и при запуске
+ * восстанавливаются первыми, перед сообщениями на диске.
+ *
+ * @author rushan
+ */
+class SpillSupport {
+
+    private static final Logger log = LoggerFactory.getLogger(SpillSupport.class);
+
+    private static final String SNAPSHOT_FILE = "queue.snapshot";
+
+    private final DiskSpillQueue<CompletableFuture<ServiceResponse>> spillQueue;
+    private final Path snapshotFile;
+    /**
+     * Перенос сообщений с диска выполняет один io-поток, чтобы не нарушить порядок
+     */
+    private final ReentrantLock refillLock = new ReentrantLock();
+    /**
+     * Сообщения, оставшиеся у io-потоков при остановке
+     */
+    private final ConcurrentLinkedQueue<MessageTask> leftoverTasks = new ConcurrentLinkedQueue<>();
+
+    private final MetricsRegistry metrics = MetricsRegistry.getDefault();
+    private final Counter rejectedBySpill = metrics.counter("proxy_rejected_total{reason=\"spill\"}",
+            "Messages rejected by the proxy");
+    private final Counter spilledMessages = metrics.counter("proxy_spilled_total",
+            "Messages written to the disk spill queue");
+
+    SpillSupport(Path directory, int segmentSize, long maxBytes) throws IOException {
+        this.spillQueue = new DiskSpillQueue<>(directory, segmentSize, maxBytes,
+                DiskSpillQueue.FLUSH_INTERVAL_MS_DEFAULT);
+        this.snapshotFile = directory.resolve(SNAPSHOT_FILE);
+    }
+
+    boolean isEmpty() {
+        return spillQueue.isEmpty();
+    }
+
+    long size() {
+        return spillQueue.size();
+    }
+
+    /**
+     * Дописывает сообщение на диск.
+     *
+     * @throws MessageRejectedException если очередь на диске заполнена или запись не удалась
+     */
+    void spill(MessageTask task) throws MessageRejectedException {
+        boolean appended;
+        try {
+            appended = spillQueue.append(task.getMessage(), task.getFuture());
+        } catch (IOException e) {
+            log.error("Failed to write message to spill queue. Details: {}", e.getMessage(), e);
+            appended = false;
+        }
+        if (!appended) {
+            rejectedBySpill.inc();
+            throw new MessageRejectedException("The message is rejected - the message queue and the spill queue "
+                    + "are reach the limit");
+        }
+        spilledMessages.inc();
+    }
+
+    /**
+     * Переносит сообщения с диска в очередь в памяти, пока она их принимает. Сообщение извлекается с диска только
+     * после того, как принято очередью, поэтому порядок сохраняется, даже если очередь отказала при свободном месте
+     * (например, заполнена полоса клиента в {@link FairQueue}).
+     */
+    void refill(BlockingQueue<MessageTask> queue) {
+        if (!refillLock.tryLock()) {
+            return;
+        }
+        try {
+            while (queue.remainingCapacity() > 0) {
+                DiskSpillQueue.Entry<CompletableFuture<ServiceResponse>> entry = spillQueue.peek();
+                if (entry == null) {
+                    break;
+                }
+                // У сообщений, восстановленных после перезапуска, клиента нет
+                CompletableFuture<ServiceResponse> future = entry.getAttachment() != null
+                        ? entry.getAttachment()
+                        : new CompletableFuture<>();
+                if (!queue.offer(new MessageTask(entry.getMessage(), future, true))) {
+                    break;
+                }
+                spillQueue.commitPoll();
+            }
+        } catch (IOException e) {
+            log.error("Failed to read messages from spill queue. Details: {}", e.getMessage(), e);
+        } finally {
+            refillLock.unlock();
+        }
+    }
+
+    /**
+     * Дописывает на диск сообщения с диска, не доставленные из-за недоступности сервиса.
+     *
+     * @return сообщения, которые должны быть завершены ошибкой
+     */
+    List<MessageTask> respill(List<MessageTask> tasks, Throwable ex) {
+        if (!(MessageTask.unwrap(ex) instanceof ServiceNotAvailableException)) {
+            return tasks;
+        }
+
+        List<MessageTask> failed = new ArrayList<>();
+        int respilled = 0;
+        for (MessageTask task : tasks) {
+            if (!task.isSpilled() || task.getFuture().isDone()) {
+                failed.add(task);
+                continue;
+            }
+            try {
+                spill(task);
+                respilled++;
+            } catch (MessageRejectedException e) {
+                failed.add(task);
+            }
+        }
+        if (respilled > 0) {
+            log.warn("The service is not available. {} messages are returned to the spill queue", respilled);
+        }
+        return failed;
+    }
+
+    /**
+     * Сообщение, оставшееся у io-потока при остановке, попадет в снимок
+     */
+    void addLeftover(MessageTask task) {
+        leftoverTasks.add(task);
+    }
+
+    /**
+     * Восстанавливает сообщения из снимка очереди в памяти. Они старше сообщений на диске, поэтому идут первыми.
+     */
+    void restoreSnapshot(BlockingQueue<MessageTask> queue) throws IOException {
+        if (!Files.exists(snapshotFile)) {
+            return;
+        }
+
+        int count = 0;
+        try (InputStream is = new BufferedInputStream(Files.newInputStream(snapshotFile));
+             DataInputStream input = new DataInputStream(is))
+        {
+            while (true) {
+                long receivedAt;
+                try {
+                    receivedAt = input.readLong();
+                } catch (EOFException e) {
+                    break;
+                }
+                byte[] data = new byte[input.readInt()];
+                input.readFully(data);
+                MessageTask task = new MessageTask(new Message(Instant.ofEpochMilli(receivedAt), data),
+                        new CompletableFuture<>(), true);
+                if (!queue.offer(task)) {
+                    // Очередь в памяти уменьшилась с прошлого запуска - порядок для остатка не сохраняется
+                    spill(task);
+                }
+                count++;
+            }
+        } catch (MessageRejectedException e) {
+            log.error("Failed to restore all queued messages from {}: the spill queue is full", snapshotFile);
+        }
+        Files.delete(snapshotFile);
+        log.info("Restored {} queued messages from {}", count, snapshotFile);
+    }
+
+    /**
+     * Сохраняет сообщения из очереди в памяти и оставшиеся у io-потоков, затем закрывает очередь на диске.
+     *
+     * @param dropped сообщение отменено или истекло и не сохраняется
+     */
+    void close(BlockingQueue<MessageTask> queue, Predicate<MessageTask> dropped) {
+        saveSnapshot(queue, dropped);
+        try {
+            spillQueue.close();
+        } catch (IOException e) {
+            log.error("Failed to close spill queue", e);
+        }
+    }
+
+    private void saveSnapshot(BlockingQueue<MessageTask> queue, Predicate<MessageTask> dropped) {
+        List<MessageTask> tasks = new ArrayList<>(leftoverTasks);
+        queue.drainTo(tasks);
+        // Сообщения сохраняются, а не отправляются - перегрузка очереди не повод их сбрасывать
+        tasks.removeIf(dropped);
+        if (tasks.isEmpty()) {
+            return;
+        }
+
+        List<Message> messages = tasks.stream().map(MessageTask::getMessage).collect(Collectors.toList());
+        Path tmp = snapshotFile.resolveSibling(SNAPSHOT_FILE + ".tmp");
+        try {
+            try (FileOutputStream fos = new FileOutputStream(tmp.toFile());
+                 BufferedOutputStream os = new BufferedOutputStream(fos))
+            {
+                new BatchBody(messages).writeTo(os);
+                os.flush();
+                fos.getFD().sync();
+            }
+            // Снимок появляется только целиком
+            Files.move(tmp, snapshotFile, StandardCopyOption.ATOMIC_MOVE);
+            log.info("Saved {} queued messages to {}", tasks.size(), snapshotFile);
+        } catch (IOException e) {
+            log.error("Failed to save {} queued messages to {}", tasks.size(), snapshotFile, e);
+        }
+
+        // Клиенты этих сообщений ответа не получат
+        MessageTask.failTasks(tasks, new ServiceNotAvailableException(0, 0, null));
+        MessageTask.releaseMessages(tasks);
+    }
+
+    @Override
+    public String toString() {
+        return spillQueue.toString();
+    }
+}
@@ -0,0 +1,38 @@
+package proxy.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Монотонно растущий счетчик. Построен на {@link LongAdder}: при конкурентном увеличении потоки обновляют разные
+ * ячейки, поэтому счетчик не становится точкой конкуренции.
+ *
+ * @author rushan
+ */
+public class Counter implements Metric {
+
+    private final LongAdder value = new LongAdder();
+
+    public void inc() {
+        value.increment();
+    }
+
+    public void add(long n) {
+        value.add(n);
+    }
+
+    public long get() {
+        return value.sum();
+    }
+
+    @Override
+    public String getType() {
+        return "counter";
+    }
+
+    @Override
+    public void write(String name, Writer writer) throws IOException {
+        writer.write(name + " " + get() + "\n");
+    }
+}
@@ -0,0 +1,33 @@
+package proxy.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.function.LongSupplier;
+
+/**
+ * Текущее значение, вычисляемое в момент выгрузки метрик (например, размер очереди).
+ *
+ * @author rushan
+ */
+public class Gauge implements Metric {
+
+    private final LongSupplier value;
+
+    public Gauge(LongSupplier value) {
+        this.value = value;
+    }
+
+    public long get() {
+        return value.getAsLong();
+    }
+
+    @Override
+    public String getType() {
+        return "gauge";
+    }
+
+    @Override
+    public void write(String name, Writer writer) throws IOException {
+        writer.write(name + " " + get() + "\n");
+    }
+}
@@ -0,0 +1,139 @@
+package proxy.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Гистограмма распределения значений с логарифмическими корзинами (по аналогии с HdrHistogram): каждый интервал
+ * [2^k, 2^(k+1)) делится на {@link #SUB_BUCKETS} равных корзин, поэтому относительная погрешность квантилей не
+ * превышает 1/{@link #SUB_BUCKETS} во всем диапазоне long. Значения меньше {@link #SUB_BUCKETS} учитываются точно.
+ *
+ * <p>Запись значения - один атомарный инкремент корзины и обновление {@link LongAdder} суммы и количества, без
+ * блокировок и выделения памяти. Квантили вычисляются при выгрузке по мгновенному (не строго согласованному)
+ * снимку корзин.
+ *
+ * <p>Выгружается как summary Prometheus: квантили {@link #QUANTILES}, сумма и количество. Значения при выгрузке
+ * умножаются на {@code scale} - например, время записывается в наносекундах, а выгружается в секундах.
+ *
+ * @author rushan
+ */
+public class Histogram implements Metric {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    public static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (Long.SIZE - 1 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    public static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    /**
+     * Масштаб для гистограмм времени, записанного в наносекундах
+     */
+    public static final double NANOS_TO_SECONDS = 1.0 / TimeUnit.SECONDS.toNanos(1);
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final double scale;
+
+    public Histogram() {
+        this(1);
+    }
+
+    public Histogram(double scale) {
+        this.scale = scale;
+    }
+
+    /**
+     * Учитывает значение. Отрицательные значения учитываются как 0.
+     */
+    public void record(long value) {
+        long v = Math.max(value, 0);
+        counts.incrementAndGet(index(v));
+        count.increment();
+        sum.add(v);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getSum() {
+        return sum.sum();
+    }
+
+    /**
+     * Значение квантиля (верхняя граница корзины, в которую он попал), без учета {@code scale}.
+     *
+     * @param quantile от 0 до 1
+     * @return значение или 0, если значений нет
+     */
+    public long getQuantile(double quantile) {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        return quantile(snapshot, total, quantile);
+    }
+
+    private static long quantile(long[] snapshot, long total, double quantile) {
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return upperBound(i);
+            }
+        }
+        return upperBound(snapshot.length - 1);
+    }
+
+    static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = Long.SIZE - 1 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        int sub = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+        return (shift + 1) * SUB_BUCKETS + sub;
+    }
+
+    static long upperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long lower = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        return lower + (1L << shift) - 1;
+    }
+
+    @Override
+    public String getType() {
+        return "summary";
+    }
+
+    @Override
+    public void write(String name, Writer writer) throws IOException {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        for (double q : QUANTILES) {
+            writer.write(name + "{quantile=\"" + q + "\"} " + format(quantile(snapshot, total, q) * scale) + "\n");
+        }
+        writer.write(name + "_sum " + format(getSum() * scale) + "\n");
+        writer.write(name + "_count " + total + "\n");
+    }
+
+    private static String format(double value) {
+        return value == Math.rint(value) && Math.abs(value) < 1e15 ? Long.toString((long) value) : Double.toString(value);
+    }
+}
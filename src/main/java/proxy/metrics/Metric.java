@@ -0,0 +1,24 @@
+package proxy.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Метрика, выгружаемая в текстовом формате Prometheus.
+ *
+ * @author rushan
+ */
+public interface Metric {
+
+    /**
+     * Тип метрики в терминах Prometheus: counter, gauge, summary
+     */
+    String getType();
+
+    /**
+     * Пишет значения метрики (без строк HELP и TYPE).
+     *
+     * @param name имя метрики, возможно с метками: {@code name{label="value"}}
+     */
+    void write(String name, Writer writer) throws IOException;
+}
@@ -0,0 +1,92 @@
+package proxy.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.LongSupplier;
+
+/**
+ * Реестр метрик прокси. Метрики регистрируются по имени, при повторной регистрации счетчика или гистограммы
+ * возвращается уже существующая метрика, а измеритель (gauge) заменяется - он ссылается на последний созданный
+ * объект. Измеритель держит ссылку на измеряемый объект, поэтому владелец удаляет свои измерители при остановке
+ * ({@link #remove(String, Metric)}).
+ *
+ * <p>Имя может содержать метки в формате Prometheus: {@code proxy_rejected_total{reason="queue"}}. Метрики с одним
+ * базовым именем выгружаются под общими строками HELP и TYPE.
+ *
+ * @author rushan
+ */
+public class MetricsRegistry {
+
+    private static final MetricsRegistry DEFAULT = new MetricsRegistry();
+
+    /**
+     * Реестр, используемый компонентами прокси и выгружаемый по пути /metrics.
+     */
+    public static MetricsRegistry getDefault() {
+        return DEFAULT;
+    }
+
+    private static class Entry {
+        private final String help;
+        private final Metric metric;
+
+        private Entry(String help, Metric metric) {
+            this.help = help;
+            this.metric = metric;
+        }
+    }
+
+    /**
+     * Отсортированы по имени, чтобы метрики с одним базовым именем шли подряд
+     */
+    private final Map<String, Entry> metrics = new ConcurrentSkipListMap<>();
+    private final Map<String, Counter> counters = new ConcurrentHashMap<>();
+
+    public Counter counter(String name, String help) {
+        return counters.computeIfAbsent(name, n -> {
+            Counter counter = new Counter();
+            metrics.put(n, new Entry(help, counter));
+            return counter;
+        });
+    }
+
+    public Histogram histogram(String name, String help, double scale) {
+        return (Histogram) metrics.computeIfAbsent(name, n -> new Entry(help, new Histogram(scale))).metric;
+    }
+
+    public Gauge gauge(String name, String help, LongSupplier value) {
+        Gauge gauge = new Gauge(value);
+        metrics.put(name, new Entry(help, gauge));
+        return gauge;
+    }
+
+    /**
+     * Удаляет метрику, если под этим именем зарегистрирована именно она, а не метрика, заменившая ее позже.
+     */
+    public void remove(String name, Metric metric) {
+        metrics.computeIfPresent(name, (n, e) -> e.metric == metric ? null : e);
+        counters.remove(name, metric);
+    }
+
+    /**
+     * Выгружает все метрики в текстовом формате Prometheus (0.0.4).
+     */
+    public void write(Writer writer) throws IOException {
+        String lastBaseName = null;
+        for (Map.Entry<String, Entry> e : metrics.entrySet()) {
+            String name = e.getKey();
+            int labels = name.indexOf('{');
+            String baseName = labels < 0 ? name : name.substring(0, labels);
+            Metric metric = e.getValue().metric;
+            if (!baseName.equals(lastBaseName)) {
+                writer.write("# HELP " + baseName + " " + e.getValue().help + "\n");
+                writer.write("# TYPE " + baseName + " " + metric.getType() + "\n");
+                lastBaseName = baseName;
+            }
+            metric.write(name, writer);
+        }
+    }
+}
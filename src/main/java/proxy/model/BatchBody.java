@@ -0,0 +1,172 @@
+package proxy.model;
+
+import proxy.util.ByteBufferPool;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Тело батч-запроса к сервису, не материализованное в единый буфер. Для каждого сообщения в батче пишется
+ * 12-байтовый заголовок (8 байт timestamp + 4 байта размер данных), за которым следуют данные сообщения.
+ *
+ * <p>Данные сообщений не копируются: при потоковой записи ({@link #writeTo(OutputStream)}) они пишутся в поток
+ * напрямую, а для gather-записи ({@link #toBuffers()}) оборачиваются в {@link ByteBuffer} без копирования.
+ * Тело может быть отправлено повторно (retry) любое количество раз.
+ *
+ * @author rushan
+ */
+public class BatchBody {
+
+    /**
+     * Размер заголовка сообщения в батче: 8 байт на timestamp + 4 байта на размер сообщения
+     */
+    public static final int HEADER_SIZE = 12;
+
+    private static final int COPY_BUFFER_SIZE = 8 * 1024;
+
+    private final List<Message> messages;
+    private final long length;
+
+    /**
+     * Заголовки всех сообщений для gather-записи. Создаются при первом обращении и переиспользуются при повторных
+     * отправках батча.
+     */
+    private volatile ByteBuffer headers;
+
+    public BatchBody(List<Message> messages) {
+        this.messages = messages;
+
+        long len = 0;
+        for (Message m : messages) {
+            len += m.getSize() + HEADER_SIZE;
+        }
+        this.length = len;
+    }
+
+    /**
+     * Размер тела в байтах.
+     */
+    public long getLength() {
+        return length;
+    }
+
+    public List<Message> getMessages() {
+        return messages;
+    }
+
+    /**
+     * Записывает тело в поток. Заголовки пишутся через один небольшой буфер, данные сообщений - напрямую.
+     */
+    public void writeTo(OutputStream os) throws IOException {
+        byte[] headerBytes = new byte[HEADER_SIZE];
+        ByteBuffer header = ByteBuffer.wrap(headerBytes);
+        byte[] copyBuffer = null;
+        for (Message message : messages) {
+            ByteBuffer data = message.getPayload();
+            header.clear();
+            header.putLong(message.getReceivedAt().toEpochMilli());
+            header.putInt(data.remaining());
+            os.write(headerBytes);
+            if (data.hasArray()) {
+                os.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+            } else {
+                // Данные в direct буфере пишутся в поток через массив
+                if (copyBuffer == null) {
+                    copyBuffer = new byte[COPY_BUFFER_SIZE];
+                }
+                while (data.hasRemaining()) {
+                    int len = Math.min(data.remaining(), copyBuffer.length);
+                    data.get(copyBuffer, 0, len);
+                    os.write(copyBuffer, 0, len);
+                }
+            }
+        }
+    }
+
+    /**
+     * Список буферов для gather-записи: заголовок и данные каждого сообщения. При каждом вызове возвращаются новые
+     * буферы (позиции не разделяются), поэтому тело можно отправлять повторно.
+     */
+    public ByteBuffer[] toBuffers() {
+        ByteBuffer allHeaders = headers();
+        ByteBuffer[] buffers = new ByteBuffer[messages.size() * 2];
+        for (int i = 0; i < messages.size(); i++) {
+            ByteBuffer header = allHeaders.duplicate();
+            header.position(i * HEADER_SIZE);
+            header.limit((i + 1) * HEADER_SIZE);
+            buffers[2 * i] = header;
+            buffers[2 * i + 1] = messages.get(i).getPayload();
+        }
+        return buffers;
+    }
+
+    /**
+     * Копирует тело в один массив. Нужно только для вызовов, не умеющих потоковую отправку.
+     */
+    public byte[] toByteArray() {
+        if (length > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Too large batch to materialize: " + length);
+        }
+        ByteBuffer buff = ByteBuffer.allocate((int) length);
+        for (ByteBuffer b : toBuffers()) {
+            buff.put(b);
+        }
+        return buff.array();
+    }
+
+    /**
+     * Разбирает тело в том же формате - например, пакет сообщений, собранный шлюзом. Данные каждого сообщения
+     * копируются в свой буфер из {@code pool}, так что исходный буфер можно освободить сразу после разбора.
+     * Временем получения сообщения считается timestamp из заголовка, если он задан (не 0).
+     *
+     * @throws IllegalArgumentException если тело не соответствует формату
+     */
+    public static List<Message> parse(ByteBuffer body, ByteBufferPool pool, Instant receivedAt, Instant deadline,
+                                      String clientId)
+    {
+        ByteBuffer buffer = body.duplicate();
+        List<Message> result = new ArrayList<>();
+        try {
+            while (buffer.hasRemaining()) {
+                if (buffer.remaining() < HEADER_SIZE) {
+                    throw new IllegalArgumentException("Truncated message header at offset " + buffer.position());
+                }
+                long timestamp = buffer.getLong();
+                int length = buffer.getInt();
+                if (length < 0 || length > buffer.remaining()) {
+                    throw new IllegalArgumentException("Invalid message length " + length + " at offset "
+                            + (buffer.position() - HEADER_SIZE));
+                }
+                ByteBuffer data = buffer.duplicate();
+                data.limit(data.position() + length);
+                buffer.position(buffer.position() + length);
+                result.add(new Message(timestamp != 0 ? Instant.ofEpochMilli(timestamp) : receivedAt,
+                        pool.copyOf(data), deadline, clientId));
+            }
+        } catch (IllegalArgumentException e) {
+            for (Message message : result) {
+                message.release();
+            }
+            throw e;
+        }
+        return result;
+    }
+
+    private ByteBuffer headers() {
+        ByteBuffer result = this.headers;
+        if (result == null) {
+            result = ByteBuffer.allocate(messages.size() * HEADER_SIZE);
+            for (Message message : messages) {
+                result.putLong(message.getReceivedAt().toEpochMilli());
+                result.putInt(message.getSize());
+            }
+            result.flip();
+            this.headers = result;
+        }
+        return result;
+    }
+}
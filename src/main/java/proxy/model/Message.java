@@ -1,5 +1,8 @@
 package proxy.model;
 
+import proxy.util.PooledBuffer;
+
+import java.nio.ByteBuffer;
 import java.time.Instant;
 import java.util.Base64;
 
@@ -13,15 +16,51 @@ import java.util.Base64;
  * возможно, появилась бы необходимость отдельным образом представлять заголовки запроса, здесь этого избегаю
  * для упрощения.
  *
+ * <p>Данные хранятся либо в массиве, либо в буфере из пула ({@link PooledBuffer}) - тогда они доступны без
+ * копирования через {@link #getPayload()}, а владельцы сообщения берут и отдают ссылки на буфер через
+ * {@link #retain()} и {@link #release()}. Для сообщения с массивом эти методы ничего не делают.
+ *
  * @author rushan
  */
 public class Message {
     private final Instant receivedAt;
     private final byte[] data;
+    private final PooledBuffer payload;
+    private final Instant deadline;
+    private final String clientId;
 
     public Message(Instant receivedAt, byte[] data) {
+        this(receivedAt, data, null);
+    }
+
+    /**
+     * @param deadline момент, после которого ответ на сообщение уже не нужен клиенту, или null
+     */
+    public Message(Instant receivedAt, byte[] data, Instant deadline) {
+        this(receivedAt, data, deadline, null);
+    }
+
+    /**
+     * @param deadline момент, после которого ответ на сообщение уже не нужен клиенту, или null
+     * @param clientId идентификатор клиента для справедливого распределения очереди, или null
+     */
+    public Message(Instant receivedAt, byte[] data, Instant deadline, String clientId) {
         this.receivedAt = receivedAt;
         this.data = data;
+        this.payload = null;
+        this.deadline = deadline;
+        this.clientId = clientId;
+    }
+
+    /**
+     * Сообщение с данными в буфере из пула. Ссылка на буфер переходит сообщению.
+     */
+    public Message(Instant receivedAt, PooledBuffer payload, Instant deadline, String clientId) {
+        this.receivedAt = receivedAt;
+        this.data = null;
+        this.payload = payload;
+        this.deadline = deadline;
+        this.clientId = clientId;
     }
 
     /**
@@ -32,16 +71,71 @@ public class Message {
     }
 
     /**
-     * Данные, переданные в сообщении.
+     * Данные, переданные в сообщении. Для сообщения с буфером из пула - копия данных.
      */
     public byte[] getData() {
-        return data;
+        return data != null ? data : payload.toByteArray();
+    }
+
+    /**
+     * Данные сообщения без копирования: позиция 0, limit - размер данных. Данные изменять нельзя.
+     */
+    public ByteBuffer getPayload() {
+        return data != null ? ByteBuffer.wrap(data) : payload.buffer();
+    }
+
+    /**
+     * Размер данных сообщения.
+     */
+    public int getSize() {
+        return data != null ? data.length : payload.length();
+    }
+
+    /**
+     * Берет ссылку на буфер данных - он не вернется в пул до соответствующего {@link #release()}.
+     */
+    public Message retain() {
+        if (payload != null) {
+            payload.retain();
+        }
+        return this;
+    }
+
+    /**
+     * Отдает ссылку на буфер данных.
+     */
+    public void release() {
+        if (payload != null) {
+            payload.release();
+        }
+    }
+
+    /**
+     * Момент, после которого клиент перестает ждать ответ, или null, если клиент ждет без ограничений.
+     */
+    public Instant getDeadline() {
+        return deadline;
+    }
+
+    /**
+     * Идентификатор клиента (например, из заголовка запроса или адрес клиента) или null, если неизвестен.
+     * Сервису не передается.
+     */
+    public String getClientId() {
+        return clientId;
+    }
+
+    /**
+     * Клиент уже не ждет ответа на сообщение - отправлять его сервису бессмысленно.
+     */
+    public boolean isExpired() {
+        return deadline != null && deadline.toEpochMilli() <= System.currentTimeMillis();
     }
 
     /**
      * Тело сообщения в base64 для логгирования
      */
     public String dataToBase64() {
-        return Base64.getEncoder().encodeToString(this.data);
+        return Base64.getEncoder().encodeToString(getData());
     }
 }
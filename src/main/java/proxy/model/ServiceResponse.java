@@ -1,25 +1,45 @@
 package proxy.model;
 
+import proxy.util.PooledBuffer;
+
+import java.nio.ByteBuffer;
 import java.util.Base64;
 
 /**
  * Ответ сервиса. В реальном приложении сюда можно добавить contentType, character encoding и др. заголовки.
  *
+ * <p>Данные, как и у {@link Message}, хранятся либо в массиве, либо в буфере из пула. Ответ с буфером из пула
+ * освобождается ({@link #release()}) получателем после записи клиенту. Если ответ нужно хранить или передать
+ * нескольким получателям, то нужна копия вне пула ({@link #copy()}).
+ *
  * @author rushan
  */
 public class ServiceResponse {
     private final int status;
     private final byte[] data;
+    private final PooledBuffer payload;
 
-    private ServiceResponse(int status, byte[] data) {
+    private ServiceResponse(int status, byte[] data, PooledBuffer payload) {
         this.status = status;
         this.data = data;
+        this.payload = payload;
+    }
+
+    private ServiceResponse(int status, byte[] data) {
+        this(status, data, null);
     }
 
     public static ServiceResponse response(int status, byte[] data) {
         return new ServiceResponse(status, data);
     }
 
+    /**
+     * Ответ с данными в буфере из пула. Ссылка на буфер переходит ответу.
+     */
+    public static ServiceResponse response(int status, PooledBuffer payload) {
+        return new ServiceResponse(status, null, payload);
+    }
+
     public static ServiceResponse ok(byte[] data) {
         return new ServiceResponse(200, data);
     }
@@ -32,14 +52,44 @@ public class ServiceResponse {
         return status;
     }
 
+    /**
+     * Данные ответа. Для ответа с буфером из пула - копия данных.
+     */
     public byte[] getData() {
-        return data;
+        return data != null ? data : payload.toByteArray();
+    }
+
+    /**
+     * Данные ответа без копирования: позиция 0, limit - размер данных. Данные изменять нельзя.
+     */
+    public ByteBuffer getPayload() {
+        return data != null ? ByteBuffer.wrap(data) : payload.buffer();
+    }
+
+    public int getSize() {
+        return data != null ? data.length : payload.length();
+    }
+
+    /**
+     * Ответ с данными вне пула. Ответ с массивом возвращается как есть.
+     */
+    public ServiceResponse copy() {
+        return data != null ? this : new ServiceResponse(status, payload.toByteArray());
+    }
+
+    /**
+     * Отдает ссылку на буфер данных. Для ответа с массивом ничего не делает.
+     */
+    public void release() {
+        if (payload != null) {
+            payload.release();
+        }
     }
 
     /**
      * Тело сообщения в base64 для логгирования
      */
     public String dataToBase64() {
-        return Base64.getEncoder().encodeToString(this.data);
+        return Base64.getEncoder().encodeToString(getData());
     }
 }
@@ -0,0 +1,179 @@
+package proxy.util;
+
+import proxy.metrics.MetricsRegistry;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Пул {@link ByteBuffer} для данных сообщений и ответов сервиса. Буферы разбиты на классы размеров - степени двойки
+ * от {@link #MIN_BUFFER_SIZE} до {@code maxPooledSize}; запрошенный размер округляется вверх до класса. Буферы
+ * меньше {@link #MIN_BUFFER_SIZE} (их выделение дешевле, чем учет в пуле) и больше {@code maxPooledSize} не
+ * переиспользуются. Так крупные тела (в G1 - humongous объекты) не выделяются заново
+ * на каждое сообщение.
+ *
+ * <p>Суммарный размер свободных буферов в пуле ограничен {@code maxPooledBytes} поровну между классами, лишние
+ * возвращенные буферы отдаются сборщику мусора. Буферы могут быть в heap или direct.
+ *
+ * <p>Для чтения и записи через массив (потоки сервлета принимают только {@code byte[]}) пул выдает буферы в heap
+ * ({@link #acquireHeap(int)}) - у direct пула для них свои классы размеров, и бюджет делится между ними поровну.
+ *
+ * @author rushan
+ */
+public class ByteBufferPool {
+
+    public static final int MIN_BUFFER_SIZE = 1024;
+    public static final int MAX_POOLED_SIZE_DEFAULT = 4 * 1024 * 1024;
+    public static final long MAX_POOLED_BYTES_DEFAULT = 64 * 1024 * 1024;
+
+    private static final int MIN_SIZE_SHIFT = Integer.numberOfTrailingZeros(MIN_BUFFER_SIZE);
+
+    private static volatile ByteBufferPool defaultPool =
+            new ByteBufferPool(false, MAX_POOLED_SIZE_DEFAULT, MAX_POOLED_BYTES_DEFAULT);
+
+    /**
+     * Свободные буферы одного размера
+     */
+    private static class SizeClass {
+        private final int size;
+        private final int maxPooled;
+        private final ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger pooled = new AtomicInteger();
+
+        private SizeClass(int size, int maxPooled) {
+            this.size = size;
+            this.maxPooled = maxPooled;
+        }
+    }
+
+    private final boolean direct;
+    private final int maxPooledSize;
+    private final SizeClass[] classes;
+    /**
+     * Классы буферов в heap, у heap пула - те же {@link #classes}
+     */
+    private final SizeClass[] heapClasses;
+    private final AtomicLong pooledBytes = new AtomicLong();
+
+    /**
+     * @param direct         выделять direct буферы
+     * @param maxPooledSize  максимальный размер переиспользуемого буфера, округляется вверх до степени двойки
+     * @param maxPooledBytes максимальный суммарный размер свободных буферов в пуле
+     */
+    public ByteBufferPool(boolean direct, int maxPooledSize, long maxPooledBytes) {
+        this.direct = direct;
+        int classCount = sizeClass(Math.max(maxPooledSize, MIN_BUFFER_SIZE)) + 1;
+        long classBytes = maxPooledBytes / classCount / (direct ? 2 : 1);
+        this.classes = sizeClasses(classCount, classBytes);
+        this.heapClasses = direct ? sizeClasses(classCount, classBytes) : classes;
+        this.maxPooledSize = classes[classCount - 1].size;
+    }
+
+    private static SizeClass[] sizeClasses(int classCount, long classBytes) {
+        SizeClass[] result = new SizeClass[classCount];
+        for (int i = 0; i < classCount; i++) {
+            int size = MIN_BUFFER_SIZE << i;
+            result[i] = new SizeClass(size, (int) Math.min(Integer.MAX_VALUE, Math.max(1, classBytes / size)));
+        }
+        return result;
+    }
+
+    /**
+     * Пул, используемый прокси по умолчанию.
+     */
+    public static ByteBufferPool getDefault() {
+        return defaultPool;
+    }
+
+    /**
+     * Заменяет пул по умолчанию - вызывается при запуске, до обработки сообщений.
+     */
+    public static void setDefault(ByteBufferPool pool) {
+        defaultPool = pool;
+        MetricsRegistry.getDefault().gauge("proxy_buffer_pool_bytes", "Free buffers in the payload buffer pool",
+                pool.pooledBytes::get);
+    }
+
+    private static int sizeClass(int size) {
+        if (size <= MIN_BUFFER_SIZE) {
+            return 0;
+        }
+        return Integer.SIZE - Integer.numberOfLeadingZeros(size - 1) - MIN_SIZE_SHIFT;
+    }
+
+    /**
+     * Буфер для {@code size} байт с одной ссылкой.
+     */
+    public PooledBuffer acquire(int size) {
+        return acquire(size, classes, direct);
+    }
+
+    /**
+     * Буфер в heap для {@code size} байт с одной ссылкой - его {@link ByteBuffer#array()} можно передавать в
+     * потоки ввода-вывода. У heap пула то же, что {@link #acquire(int)}.
+     */
+    public PooledBuffer acquireHeap(int size) {
+        return acquire(size, heapClasses, false);
+    }
+
+    private PooledBuffer acquire(int size, SizeClass[] classes, boolean direct) {
+        if (size < MIN_BUFFER_SIZE || size > maxPooledSize) {
+            return new PooledBuffer(null, allocate(size, direct), size);
+        }
+        SizeClass sizeClass = classes[sizeClass(size)];
+        ByteBuffer buffer = sizeClass.buffers.poll();
+        if (buffer == null) {
+            buffer = allocate(sizeClass.size, direct);
+        } else {
+            sizeClass.pooled.decrementAndGet();
+            pooledBytes.addAndGet(-sizeClass.size);
+        }
+        return new PooledBuffer(this, buffer, size);
+    }
+
+    /**
+     * Буфер с копией данных
+     */
+    public PooledBuffer copyOf(ByteBuffer data) {
+        PooledBuffer result = acquire(data.remaining());
+        result.buffer().put(data.duplicate());
+        return result;
+    }
+
+    void release(ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        if (capacity > maxPooledSize || Integer.bitCount(capacity) != 1 || capacity < MIN_BUFFER_SIZE) {
+            return;
+        }
+        SizeClass sizeClass = (buffer.isDirect() ? classes : heapClasses)[sizeClass(capacity)];
+        if (sizeClass.pooled.incrementAndGet() > sizeClass.maxPooled) {
+            sizeClass.pooled.decrementAndGet();
+            return;
+        }
+        pooledBytes.addAndGet(capacity);
+        sizeClass.buffers.offer(buffer);
+    }
+
+    private static ByteBuffer allocate(int size, boolean direct) {
+        return direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+    }
+
+    public boolean isDirect() {
+        return direct;
+    }
+
+    /**
+     * Суммарный размер свободных буферов в пуле
+     */
+    public long getPooledBytes() {
+        return pooledBytes.get();
+    }
+
+    @Override
+    public String toString() {
+        return "ByteBufferPool{direct=" + direct + ", maxPooledSize=" + maxPooledSize + ", pooledBytes="
+                + pooledBytes.get() + "}";
+    }
+}
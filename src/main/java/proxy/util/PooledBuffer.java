@@ -0,0 +1,95 @@
+package proxy.util;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Данные в буфере из {@link ByteBufferPool} со счетчиком ссылок. Создается с одной ссылкой, каждый владелец,
+ * которому буфер нужен дольше текущего владельца, берет свою ссылку ({@link #retain()}) и по окончании отдает ее
+ * ({@link #release()}). Когда ссылок не остается, буфер возвращается в пул и больше не должен использоваться.
+ *
+ * <p>Незавершенные ссылки не приводят к утечке - такой буфер просто не вернется в пул и будет собран сборщиком
+ * мусора. Лишний {@link #release()} - ошибка, он бросает {@link IllegalStateException}.
+ *
+ * @author rushan
+ */
+public final class PooledBuffer {
+
+    private final ByteBufferPool pool;
+    private final ByteBuffer buffer;
+    private final int length;
+    private final AtomicInteger refCount = new AtomicInteger(1);
+
+    PooledBuffer(ByteBufferPool pool, ByteBuffer buffer, int length) {
+        this.pool = pool;
+        this.buffer = buffer;
+        this.length = length;
+    }
+
+    /**
+     * Буфер вне пула, например, для данных, уже находящихся в массиве
+     */
+    public static PooledBuffer wrap(byte[] data) {
+        return new PooledBuffer(null, ByteBuffer.wrap(data), data.length);
+    }
+
+    /**
+     * Новое представление данных: позиция 0, limit - размер данных. Данные общие для всех представлений.
+     */
+    public ByteBuffer buffer() {
+        if (refCount.get() <= 0) {
+            throw new IllegalStateException("The buffer is already released");
+        }
+        ByteBuffer view = buffer.duplicate();
+        view.clear();
+        view.limit(length);
+        return view;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    /**
+     * Копия данных в новом массиве
+     */
+    public byte[] toByteArray() {
+        byte[] result = new byte[length];
+        buffer().get(result);
+        return result;
+    }
+
+    public PooledBuffer retain() {
+        while (true) {
+            int count = refCount.get();
+            if (count <= 0) {
+                throw new IllegalStateException("The buffer is already released");
+            }
+            if (refCount.compareAndSet(count, count + 1)) {
+                return this;
+            }
+        }
+    }
+
+    /**
+     * @return true, если это была последняя ссылка и буфер возвращен в пул
+     */
+    public boolean release() {
+        int count = refCount.decrementAndGet();
+        if (count < 0) {
+            refCount.incrementAndGet();
+            throw new IllegalStateException("The buffer is already released");
+        }
+        if (count == 0) {
+            if (pool != null) {
+                pool.release(buffer);
+            }
+            return true;
+        }
+        return false;
+    }
+
+    public int refCount() {
+        return refCount.get();
+    }
+}
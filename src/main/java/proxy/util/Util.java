@@ -29,6 +29,23 @@ public class Util {
         return memoryStream.toByteArray();
     }
 
+    /**
+     * Закрывает ресурс, если он {@link AutoCloseable}. Ошибка закрытия, кроме {@link RuntimeException},
+     * передается как {@link IOException}.
+     */
+    public static void close(Object resource) throws IOException {
+        if (!(resource instanceof AutoCloseable)) {
+            return;
+        }
+        try {
+            ((AutoCloseable) resource).close();
+        } catch (IOException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Failed to close " + resource, e);
+        }
+    }
+
     public static Map<String, String> readArguments(String[] args) {
         Map<String, String> params = new HashMap<>();
         String param = null;
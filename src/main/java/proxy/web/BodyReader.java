@@ -0,0 +1,181 @@
+package proxy.web;
+
+import proxy.util.ByteBufferPool;
+import proxy.util.PooledBuffer;
+
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Неблокирующее чтение тела запроса. Данные читаются только тогда, когда они уже получены контейнером, поэтому
+ * медленный клиент не занимает поток веб-сервера на время передачи тела.
+ *
+ * <p>Тело передается в буфере из пула {@link ByteBufferPool}; его освобождает владелец сообщения. Если размер тела
+ * (Content-Length) известен и не больше {@link #PRESIZE_MAX_BYTES}, то данные читаются сразу в буфер итогового
+ * размера (через промежуточный буфер в heap, если буфер прямой). Иначе тело накапливается в буферах
+ * {@link #CHUNK_SIZE} из того же пула по мере поступления данных и в конце один раз копируется в итоговый буфер:
+ * заголовок запроса без тела не должен приводить к выделению памяти под заявленный в нем размер.
+ *
+ * @author rushan
+ */
+class BodyReader implements ReadListener {
+
+    /**
+     * Максимальный размер тела, под который буфер выделяется до чтения данных
+     */
+    static final int PRESIZE_MAX_BYTES = 64 * 1024;
+
+    /**
+     * Размер буферов, в которых накапливается тело
+     */
+    static final int CHUNK_SIZE = 16 * 1024;
+
+    /**
+     * Тело запроса превышает допустимый размер.
+     */
+    static class TooLargeBodyException extends IOException {
+        TooLargeBodyException(long maxLen) {
+            super("Too large stream. Max allowed size (bytes): " + maxLen);
+        }
+    }
+
+    private final ServletInputStream input;
+    private final long contentLength;
+    private final int maxLen;
+    private final ByteBufferPool pool;
+    private final Consumer<PooledBuffer> onBody;
+    private final Consumer<Throwable> onError;
+
+    /**
+     * Тело известного размера и его представление для записи
+     */
+    private PooledBuffer body;
+    private final ByteBuffer bodyView;
+
+    /**
+     * Буферы в heap: части тела неизвестного размера или один промежуточный буфер для прямого {@link #body}.
+     * Последний буфер заполнен на {@link #lastChunkSize} байт
+     */
+    private final List<PooledBuffer> chunks = new ArrayList<>();
+    private int lastChunkSize;
+
+    private int count;
+
+    BodyReader(ServletInputStream input, long contentLength, int maxLen, ByteBufferPool pool,
+               Consumer<PooledBuffer> onBody, Consumer<Throwable> onError)
+    {
+        this.input = input;
+        this.contentLength = contentLength;
+        this.maxLen = maxLen;
+        this.pool = pool;
+        this.onBody = onBody;
+        this.onError = onError;
+
+        if (contentLength >= 0 && contentLength <= PRESIZE_MAX_BYTES) {
+            this.body = pool.acquire((int) contentLength);
+            this.bodyView = body.buffer();
+        } else {
+            this.body = null;
+            this.bodyView = null;
+        }
+    }
+
+    @Override
+    public void onDataAvailable() throws IOException {
+        while (!input.isFinished() && input.isReady()) {
+            int len;
+            if (body != null) {
+                if (count == body.length()) {
+                    // Больше Content-Length контейнер не отдаст, но конец потока нужно прочитать - только после этого
+                    // контейнер вызовет onAllDataRead
+                    if (input.read() != -1) {
+                        throw new IOException("Request body is longer than Content-Length: " + body.length());
+                    }
+                    continue;
+                }
+                if (bodyView.hasArray()) {
+                    len = input.read(bodyView.array(), bodyView.arrayOffset() + count, body.length() - count);
+                } else {
+                    // Прямой буфер: читаем через промежуточный буфер
+                    if (chunks.isEmpty()) {
+                        chunks.add(pool.acquireHeap(CHUNK_SIZE));
+                    }
+                    ByteBuffer chunk = chunks.get(0).buffer();
+                    len = input.read(chunk.array(), chunk.arrayOffset(), Math.min(CHUNK_SIZE, body.length() - count));
+                    if (len > 0) {
+                        bodyView.position(count);
+                        bodyView.put(chunk.array(), chunk.arrayOffset(), len);
+                    }
+                }
+            } else {
+                if (chunks.isEmpty() || lastChunkSize == CHUNK_SIZE) {
+                    chunks.add(pool.acquireHeap(CHUNK_SIZE));
+                    lastChunkSize = 0;
+                }
+                ByteBuffer chunk = chunks.get(chunks.size() - 1).buffer();
+                len = input.read(chunk.array(), chunk.arrayOffset() + lastChunkSize, CHUNK_SIZE - lastChunkSize);
+                if (len > 0) {
+                    lastChunkSize += len;
+                }
+            }
+
+            if (len == -1) {
+                return;
+            }
+            count += len;
+            if (count > maxLen) {
+                throw new TooLargeBodyException(maxLen);
+            }
+            if (contentLength >= 0 && count > contentLength) {
+                throw new IOException("Request body is longer than Content-Length: " + contentLength);
+            }
+        }
+    }
+
+    @Override
+    public void onAllDataRead() throws IOException {
+        if (body != null) {
+            if (count != body.length()) {
+                throw new IOException("Unexpected end of stream: " + count + " of " + body.length() + " bytes");
+            }
+            releaseChunks();
+            PooledBuffer result = body;
+            body = null;
+            onBody.accept(result);
+            return;
+        }
+
+        if (contentLength >= 0 && count != contentLength) {
+            throw new IOException("Unexpected end of stream: " + count + " of " + contentLength + " bytes");
+        }
+        PooledBuffer result = pool.acquire(count);
+        ByteBuffer view = result.buffer();
+        for (int i = 0; i < chunks.size(); i++) {
+            ByteBuffer chunk = chunks.get(i).buffer();
+            chunk.limit(i == chunks.size() - 1 ? lastChunkSize : CHUNK_SIZE);
+            view.put(chunk);
+        }
+        releaseChunks();
+        onBody.accept(result);
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        releaseChunks();
+        if (body != null) {
+            body.release();
+            body = null;
+        }
+        onError.accept(t);
+    }
+
+    private void releaseChunks() {
+        chunks.forEach(PooledBuffer::release);
+        chunks.clear();
+    }
+}
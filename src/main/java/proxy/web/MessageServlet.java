@@ -2,21 +2,38 @@ package proxy.web;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import proxy.api.MessageProxy;
 import proxy.api.MessageRejectedException;
+import proxy.api.MessageShedException;
 import proxy.api.ServiceNotAvailableException;
-import proxy.impl.AsyncProxy;
+import proxy.metrics.Counter;
+import proxy.metrics.Histogram;
+import proxy.metrics.MetricsRegistry;
+import proxy.model.BatchBody;
 import proxy.model.Message;
 import proxy.model.ServiceResponse;
-import proxy.util.Util;
+import proxy.util.ByteBufferPool;
+import proxy.util.PooledBuffer;
 
 import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletInputStream;
 import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.time.Instant;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Сетевой API. Получает сообщение от клиента/устройства и инициирует асинхронное обращение к проксируемому
@@ -28,26 +45,99 @@ import java.util.concurrent.CompletableFuture;
  * и новые запросы повиснут в очереди. При асинхронной обработке они инициируют обращение к сервису и затем
  * станут доступны для обработки новых входящих запросов.
  *
+ * <p>Тело запроса также читается асинхронно ({@link BodyReader}), поэтому медленно передающие данные клиенты
+ * не занимают потоки веб-сервера. Запрос с превышающим допустимый размер Content-Length отклоняется до чтения тела.
+ *
+ * <p>По пути {@code <path>}{@link #BATCH_PATH} принимается пакет сообщений (например, от шлюза, собирающего
+ * сообщения устройств) в формате батча сервиса ({@link BatchBody}): на каждое сообщение 8 байт timestamp, 4 байта
+ * размер и данные. Все сообщения пакета передаются прокси одним вызовом, а ответ пишется потоком по мере получения
+ * ответов на отдельные сообщения, в порядке их получения. Фрейм ответа: 4 байта номер сообщения в пакете, 4 байта
+ * HTTP статус, 4 байта размер и данные. Статус ответа на весь пакет - 200, если пакет разобран.
+ *
+ * <p>Тело сообщения и ответ сервиса хранятся в буферах из {@link ByteBufferPool}: буфер сообщения освобождается
+ * по завершении запроса, буфер ответа - после записи клиенту.
+ *
  * @author rushan
  */
 public class MessageServlet extends HttpServlet {
 
     /**
-     * Максимальный допустимый размер тела запроса (в байтах). При превышении будет отказ.
+     * Максимальный допустимый размер тела запроса (в байтах) по умолчанию. При превышении будет отказ.
      */
-    public static final int MESSAGE_MAX_SIZE_BYTES = Integer.MAX_VALUE;
+    public static final int MESSAGE_MAX_SIZE_BYTES = 16 * 1024 * 1024;
 
     /**
      * Время ожидания ответа проксируемого сервиса. При превышении прокся выдаст отказ.
      */
     public static final long CLIENT_TIMEOUT_MS = 120_000;
 
+    /**
+     * Заголовок с идентификатором клиента по умолчанию - для справедливого распределения очереди между клиентами и
+     * порядка доставки сообщений клиента. Если в запросе не задан, клиент определяется по адресу.
+     */
+    public static final String CLIENT_ID_HEADER = "X-Client-Id";
+
+    /**
+     * Заголовок ответа 503 с причиной отказа: {@link #REASON_QUEUE_FULL} - сообщение не принято в очередь,
+     * {@link #REASON_OVERLOAD} - сброшено из перегруженной очереди, {@link #REASON_SERVICE_UNAVAILABLE} - сервис
+     * недоступен.
+     */
+    public static final String REASON_HEADER = "X-Proxy-Reason";
+    public static final String REASON_QUEUE_FULL = "queue-full";
+    public static final String REASON_OVERLOAD = "overload";
+    public static final String REASON_SERVICE_UNAVAILABLE = "service-unavailable";
+
+    /**
+     * Суффикс пути приема пакета сообщений
+     */
+    public static final String BATCH_PATH = "/batch";
+
+    /**
+     * Размер заголовка фрейма ответа на пакет: номер сообщения, статус и размер данных
+     */
+    public static final int BATCH_RESPONSE_HEADER_SIZE = 12;
+
+    private static final String BATCH_CONTENT_TYPE = "application/octet-stream";
+
+    /**
+     * Размер промежуточного буфера записи данных прямого буфера
+     */
+    private static final int WRITE_CHUNK_SIZE = 16 * 1024;
+
     private static final Logger log = LoggerFactory.getLogger(MessageServlet.class);
 
-    private final AsyncProxy proxy;
+    private final MessageProxy proxy;
+    private final int maxMessageSize;
+    private final String clientIdHeader;
 
-    public MessageServlet(AsyncProxy proxy) {
+    private final MetricsRegistry metrics = MetricsRegistry.getDefault();
+    private final Histogram requestLatency = metrics.histogram("proxy_request_seconds",
+            "Time from client request start to response completion", Histogram.NANOS_TO_SECONDS);
+    private final Histogram requestBytes = metrics.histogram("proxy_request_bytes",
+            "Client message size in bytes", 1);
+    private final Histogram requestBatchSize = metrics.histogram("proxy_request_batch_size",
+            "Messages per client batch request", 1);
+    /**
+     * Ответы клиентам по классу статуса (1xx-5xx), индекс - первая цифра статуса минус 1
+     */
+    private final Counter[] responsesByClass = new Counter[5];
+
+    public MessageServlet(MessageProxy proxy) {
+        this(proxy, MESSAGE_MAX_SIZE_BYTES);
+    }
+
+    public MessageServlet(MessageProxy proxy, int maxMessageSize) {
+        this(proxy, maxMessageSize, CLIENT_ID_HEADER);
+    }
+
+    public MessageServlet(MessageProxy proxy, int maxMessageSize, String clientIdHeader) {
         this.proxy = proxy;
+        this.maxMessageSize = maxMessageSize;
+        this.clientIdHeader = clientIdHeader;
+        for (int i = 0; i < responsesByClass.length; i++) {
+            responsesByClass[i] = metrics.counter("proxy_responses_total{status=\"" + (i + 1) + "xx\"}",
+                    "Client responses by HTTP status class");
+        }
     }
 
     @Override
@@ -58,42 +148,333 @@ public class MessageServlet extends HttpServlet {
             return;
         }
 
-        byte[] messageBody = Util.readMessageBody(req.getInputStream(), MESSAGE_MAX_SIZE_BYTES);
+        long startTime = System.nanoTime();
+        long contentLength = req.getContentLengthLong();
+        // Тело больше Integer.MAX_VALUE не поместится в буфер при любом maxMessageSize
+        if (contentLength > Integer.MAX_VALUE || contentLength > this.maxMessageSize) {
+            // Отклоняем по заголовку, не читая тело
+            resp.setStatus(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+            log.error("The client message is rejected. Too large message: {} bytes", contentLength);
+            countResponse(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+            return;
+        }
 
-        Message message = new Message(Instant.now(), messageBody);
+        String clientId = req.getHeader(clientIdHeader);
+        if (clientId == null || clientId.isEmpty()) {
+            clientId = req.getRemoteAddr();
+        }
+        String messageClientId = clientId;
+        boolean batch = req.getServletPath() != null && req.getServletPath().endsWith(BATCH_PATH);
+        AtomicReference<List<Message>> messagesRef = new AtomicReference<>();
 
+        AsyncContext asyncContext = req.startAsync();
+        // Задаем таймаут - если футура не завершится за TIMEOUT_MS, то запрос будет завершен с
+        // ошибкой (это сделает jetty).
+        asyncContext.setTimeout(CLIENT_TIMEOUT_MS);
+        asyncContext.addListener(new AsyncListener() {
+            @Override
+            public void onComplete(AsyncEvent event) {
+                requestLatency.record(System.nanoTime() - startTime);
+                countResponse(resp.getStatus());
+                // Прокси держит свою ссылку на буфер, пока сообщение в очереди или в батче
+                List<Message> messages = messagesRef.getAndSet(null);
+                if (messages != null) {
+                    messages.forEach(Message::release);
+                }
+            }
+
+            @Override
+            public void onTimeout(AsyncEvent event) {
+            }
+
+            @Override
+            public void onError(AsyncEvent event) {
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent event) {
+            }
+        });
+
+        ServletInputStream input = req.getInputStream();
+        input.setReadListener(new BodyReader(input, contentLength, this.maxMessageSize, ByteBufferPool.getDefault(),
+                body -> {
+                    requestBytes.record(body.length());
+                    Instant receivedAt = Instant.now();
+                    // Клиент перестанет ждать ответ по таймауту asyncContext - после этого сообщение можно не отправлять
+                    Instant deadline = receivedAt.plusMillis(CLIENT_TIMEOUT_MS);
+                    if (batch) {
+                        onBatch(body, receivedAt, deadline, messageClientId, messagesRef, asyncContext, resp);
+                        return;
+                    }
+                    Message message = new Message(receivedAt, body, deadline, messageClientId);
+                    messagesRef.set(Collections.singletonList(message));
+                    onMessage(message, asyncContext, resp);
+                },
+                ex -> {
+                    if (ex instanceof BodyReader.TooLargeBodyException) {
+                        resp.setStatus(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+                    } else {
+                        resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+                    }
+                    log.error("Failed to read client message. Details: {}", ex.getMessage());
+                    asyncContext.complete();
+                }));
+    }
+
+    /**
+     * Статус вне диапазона 100-599 учитывается в ближайшем классе
+     */
+    private void countResponse(int status) {
+        int index = Math.max(0, Math.min(responsesByClass.length - 1, status / 100 - 1));
+        responsesByClass[index].inc();
+    }
+
+    private void onMessage(Message message, AsyncContext asyncContext, HttpServletResponse resp) {
         try {
-            doPostInternal(message, req, resp);
+            doPostInternal(message, asyncContext, resp);
         } catch (MessageRejectedException e) {
             resp.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            resp.setHeader(REASON_HEADER, REASON_QUEUE_FULL);
             log.error("The client message is rejected. Possible reasons: the service is busy or unavailable. Message: {}",
                     message.dataToBase64());
+            asyncContext.complete();
         } catch (Exception e) {
             resp.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
             log.error("Failed to process client message: {}. Details: {}",
                     message.dataToBase64(),
                     e.getMessage(),
                     e);
+            asyncContext.complete();
         }
     }
 
-    private void doPostInternal(Message message, HttpServletRequest req, HttpServletResponse resp)
+    private void onBatch(PooledBuffer body, Instant receivedAt, Instant deadline, String clientId,
+                         AtomicReference<List<Message>> messagesRef, AsyncContext asyncContext,
+                         HttpServletResponse resp)
+    {
+        List<Message> messages;
+        try {
+            messages = BatchBody.parse(body.buffer(), ByteBufferPool.getDefault(), receivedAt, deadline, clientId);
+        } catch (IllegalArgumentException e) {
+            resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            log.error("Failed to parse client batch. Details: {}", e.getMessage());
+            asyncContext.complete();
+            return;
+        } finally {
+            body.release();
+        }
+        messagesRef.set(messages);
+        requestBatchSize.record(messages.size());
+
+        try {
+            writeBatchResponses(proxy.messages(messages), asyncContext, resp);
+        } catch (Exception e) {
+            resp.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            log.error("Failed to process client batch of {} messages. Details: {}", messages.size(), e.getMessage(), e);
+            asyncContext.complete();
+        }
+    }
+
+    /**
+     * Пишет фреймы ответов на сообщения пакета по мере завершения их футур. Запрос завершается после последнего.
+     */
+    private void writeBatchResponses(List<CompletableFuture<ServiceResponse>> futures, AsyncContext asyncContext,
+                                     HttpServletResponse resp) throws IOException
+    {
+        resp.setStatus(HttpServletResponse.SC_OK);
+        resp.setContentType(BATCH_CONTENT_TYPE);
+        if (futures.isEmpty()) {
+            asyncContext.complete();
+            return;
+        }
+        // Обработчик записи задается до первого фрейма - иначе запись была бы блокирующей
+        BatchResponseWriter writer = new BatchResponseWriter(resp.getOutputStream(), asyncContext, futures.size());
+        resp.getOutputStream().setWriteListener(writer);
+
+        asyncContext.addListener(new AsyncListener() {
+            @Override
+            public void onTimeout(AsyncEvent event) {
+                futures.forEach(future -> future.cancel(false));
+            }
+
+            @Override
+            public void onError(AsyncEvent event) {
+                futures.forEach(future -> future.cancel(false));
+            }
+
+            @Override
+            public void onComplete(AsyncEvent event) {
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent event) {
+            }
+        });
+
+        for (int i = 0; i < futures.size(); i++) {
+            int index = i;
+            futures.get(i).whenComplete((serviceResponse, ex) -> {
+                byte[] frame;
+                try {
+                    frame = batchFrame(index, serviceResponse, ex);
+                } finally {
+                    if (serviceResponse != null) {
+                        serviceResponse.release();
+                    }
+                }
+                writer.add(frame);
+            });
+        }
+    }
+
+    /**
+     * Фрейм ответа на сообщение пакета. Данные ответа копируются во фрейм: запись неблокирующая, и контейнер может
+     * использовать переданный массив и после возврата из {@link ServletOutputStream#write(byte[])}.
+     */
+    private static byte[] batchFrame(int index, ServiceResponse serviceResponse, Throwable ex) {
+        ByteBuffer payload = serviceResponse != null ? serviceResponse.getPayload() : ByteBuffer.allocate(0);
+        ByteBuffer frame = ByteBuffer.allocate(BATCH_RESPONSE_HEADER_SIZE + payload.remaining());
+        frame.putInt(index);
+        frame.putInt(serviceResponse != null ? serviceResponse.getStatus() : errorStatus(ex));
+        frame.putInt(payload.remaining());
+        frame.put(payload);
+        return frame.array();
+    }
+
+    /**
+     * Неблокирующая запись фреймов ответа на пакет. Футуры сообщений завершаются в потоках прокси и сервиса - они
+     * только ставят фрейм в очередь и пишут, пока поток ответа готов к записи. Если не готов, оставшиеся фреймы
+     * пишет поток контейнера в {@link #onWritePossible()}. Запрос завершается, когда записан последний фрейм и
+     * запись завершена.
+     */
+    private static final class BatchResponseWriter implements WriteListener {
+
+        private final ServletOutputStream stream;
+        private final AsyncContext asyncContext;
+        private final Queue<byte[]> frames = new ConcurrentLinkedQueue<>();
+        /**
+         * Количество еще не записанных фреймов
+         */
+        private int remaining;
+        private boolean completed;
+
+        private BatchResponseWriter(ServletOutputStream stream, AsyncContext asyncContext, int frameCount) {
+            this.stream = stream;
+            this.asyncContext = asyncContext;
+            this.remaining = frameCount;
+        }
+
+        private void add(byte[] frame) {
+            frames.add(frame);
+            write();
+        }
+
+        @Override
+        public void onWritePossible() {
+            write();
+        }
+
+        @Override
+        public synchronized void onError(Throwable t) {
+            // Клиент отключился или запрос завершен по таймауту
+            log.debug("Failed to write batch response to client stream", t);
+            complete();
+        }
+
+        private void complete() {
+            if (!completed) {
+                completed = true;
+                frames.clear();
+                asyncContext.complete();
+            }
+        }
+
+        /**
+         * Фреймы пишет один поток за раз; {@link ServletOutputStream#isReady()} перед каждой записью
+         */
+        private synchronized void write() {
+            if (completed) {
+                return;
+            }
+            try {
+                while (stream.isReady()) {
+                    byte[] frame = frames.poll();
+                    if (frame == null) {
+                        if (remaining == 0) {
+                            complete();
+                        }
+                        return;
+                    }
+                    stream.write(frame);
+                    remaining--;
+                }
+            } catch (IOException | IllegalStateException e) {
+                onError(e);
+            }
+        }
+    }
+
+    /**
+     * Статус ответа на сообщение, завершенное ошибкой - как при отправке отдельного сообщения
+     */
+    private static int errorStatus(Throwable ex) {
+        if (ex instanceof ServiceNotAvailableException || ex instanceof MessageRejectedException) {
+            return HttpServletResponse.SC_SERVICE_UNAVAILABLE;
+        } else if (ex instanceof CancellationException) {
+            return HttpServletResponse.SC_GATEWAY_TIMEOUT;
+        }
+        return HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
+    }
+
+    private void doPostInternal(Message message, AsyncContext asyncContext, HttpServletResponse resp)
             throws IOException, MessageRejectedException
     {
         // Вызов может бросить MessageRejectedException, если сообщение отклонено
         CompletableFuture<ServiceResponse> serviceResponseFuture = proxy.message(message);
 
-        AsyncContext asyncContext = req.startAsync();
-        // Задаем таймаут - если футура не завершится за TIMEOUT_MS, то запрос будет завершен с
-        // ошибкой (это сделает jetty).
-        asyncContext.setTimeout(CLIENT_TIMEOUT_MS);
-
         ServletOutputStream stream = resp.getOutputStream();
 
+        // При таймауте отменяем футуру - прокси не будет отправлять сообщение сервису, если еще не отправила
+        asyncContext.addListener(new AsyncListener() {
+            @Override
+            public void onTimeout(AsyncEvent event) {
+                serviceResponseFuture.cancel(false);
+            }
+
+            @Override
+            public void onError(AsyncEvent event) {
+                serviceResponseFuture.cancel(false);
+            }
+
+            @Override
+            public void onComplete(AsyncEvent event) {
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent event) {
+            }
+        });
+
         serviceResponseFuture.whenComplete((serviceResponse, ex) -> {
             try {
                 if (ex instanceof ServiceNotAvailableException) {
                     resp.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                    resp.setHeader(REASON_HEADER, REASON_SERVICE_UNAVAILABLE);
+                    return;
+                } else if (ex instanceof MessageShedException) {
+                    // Сообщение слишком долго ждало в перегруженной очереди
+                    resp.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                    resp.setHeader(REASON_HEADER, REASON_OVERLOAD);
+                    return;
+                } else if (ex instanceof MessageRejectedException) {
+                    // Объединенное сообщение отклонено при приеме
+                    resp.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                    resp.setHeader(REASON_HEADER, REASON_QUEUE_FULL);
+                    return;
+                } else if (ex instanceof CancellationException) {
+                    // Таймаут клиента или истек срок сообщения
+                    resp.setStatus(HttpServletResponse.SC_GATEWAY_TIMEOUT);
                     return;
                 } else if (ex != null) {
                     log.error("Unexpected error when sending message to service. Input message: {}",
@@ -111,16 +492,41 @@ public class MessageServlet extends HttpServlet {
                 resp.setCharacterEncoding("UTF-8");
 
                 try {
-                    stream.write(serviceResponse.getData());
+                    writePayload(stream, serviceResponse.getPayload());
                 } catch (IOException e) {
                     log.error("Failed to write service response to client stream, input message: {}, service response: {}",
                             message.dataToBase64(),
                             serviceResponse.dataToBase64(),
                             e);
+                } finally {
+                    serviceResponse.release();
                 }
             } finally {
                 asyncContext.complete();
             }
         });
     }
+
+    /**
+     * Записывает данные буфера; данные прямого буфера копируются через буфер в heap из {@link ByteBufferPool}.
+     * Запись блокирующая, поэтому промежуточный буфер можно переиспользовать сразу после
+     * {@link ServletOutputStream#write(byte[], int, int)}.
+     */
+    private static void writePayload(ServletOutputStream stream, ByteBuffer payload) throws IOException {
+        if (payload.hasArray()) {
+            stream.write(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining());
+            return;
+        }
+        PooledBuffer chunk = ByteBufferPool.getDefault().acquireHeap(WRITE_CHUNK_SIZE);
+        try {
+            ByteBuffer view = chunk.buffer();
+            while (payload.hasRemaining()) {
+                int len = Math.min(WRITE_CHUNK_SIZE, payload.remaining());
+                payload.get(view.array(), view.arrayOffset(), len);
+                stream.write(view.array(), view.arrayOffset(), len);
+            }
+        } finally {
+            chunk.release();
+        }
+    }
 }
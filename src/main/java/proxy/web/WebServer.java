@@ -1,7 +1,10 @@
 package proxy.web;
 
+import org.eclipse.jetty.http2.server.HTTP2CServerConnectionFactory;
 import org.eclipse.jetty.server.Connector;
 import org.eclipse.jetty.server.Handler;
+import org.eclipse.jetty.server.HttpConfiguration;
+import org.eclipse.jetty.server.HttpConnectionFactory;
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.server.ServerConnector;
 import org.eclipse.jetty.server.handler.HandlerList;
@@ -13,26 +16,87 @@ import org.eclipse.jetty.server.session.SessionHandler;
 import org.eclipse.jetty.servlet.ServletContextHandler;
 import org.eclipse.jetty.servlet.ServletHolder;
 import org.eclipse.jetty.util.thread.QueuedThreadPool;
-import proxy.impl.AsyncProxy;
+import proxy.api.MessageProxy;
+import proxy.metrics.MetricsRegistry;
+
+import java.util.concurrent.ThreadFactory;
 
 /**
+ * Веб-сервер прокси. Порт принимает HTTP/1.1 и HTTP/2 без TLS (h2c): как с предварительным знанием о поддержке
+ * HTTP/2, так и через {@code Upgrade: h2c}. По HTTP/2 шлюз может передавать сообщения многих устройств
+ * параллельными потоками (streams) одного соединения; каждый поток обрабатывается сервлетом как отдельный
+ * асинхронный запрос.
+ *
  * @author rushan
  */
 public class WebServer {
+
+    /**
+     * Путь выгрузки метрик в формате Prometheus
+     */
+    public static final String METRICS_PATH = "/metrics";
+
+    /**
+     * Максимальное количество параллельных потоков одного HTTP/2 соединения
+     */
+    public static final int H2C_MAX_CONCURRENT_STREAMS = 1024;
+
     private final Server server;
 
-    public WebServer(int port, String path, int minWebThreads, int maxWebThreads, AsyncProxy proxy) {
-        QueuedThreadPool threadPool = new QueuedThreadPool(maxWebThreads, minWebThreads);
+    public WebServer(int port, String path, int minWebThreads, int maxWebThreads, MessageProxy proxy) {
+        this(port, path, minWebThreads, maxWebThreads, proxy, MessageServlet.MESSAGE_MAX_SIZE_BYTES);
+    }
+
+    public WebServer(int port, String path, int minWebThreads, int maxWebThreads, MessageProxy proxy,
+                     int maxMessageSize)
+    {
+        this(port, path, minWebThreads, maxWebThreads, proxy, maxMessageSize, null);
+    }
+
+    /**
+     * @param threadFactory фабрика потоков jetty, например, виртуальных. Если null - обычные потоки.
+     */
+    public WebServer(int port, String path, int minWebThreads, int maxWebThreads, MessageProxy proxy,
+                     int maxMessageSize, ThreadFactory threadFactory)
+    {
+        this(port, path, minWebThreads, maxWebThreads, proxy, maxMessageSize, threadFactory,
+                MessageServlet.CLIENT_ID_HEADER);
+    }
+
+    /**
+     * @param clientIdHeader заголовок с идентификатором клиента, см. {@link MessageServlet#CLIENT_ID_HEADER}
+     */
+    public WebServer(int port, String path, int minWebThreads, int maxWebThreads, MessageProxy proxy,
+                     int maxMessageSize, ThreadFactory threadFactory, String clientIdHeader)
+    {
+        QueuedThreadPool threadPool = threadFactory == null
+                ? new QueuedThreadPool(maxWebThreads, minWebThreads)
+                : new QueuedThreadPool(maxWebThreads, minWebThreads) {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        return threadFactory.newThread(runnable);
+                    }
+                };
+        if (threadFactory != null) {
+            // Виртуальные потоки могут быть только daemon
+            threadPool.setDaemon(true);
+        }
 
         server = new Server(threadPool);
 
-        ServerConnector connector = new ServerConnector(server);
+        HttpConfiguration httpConfig = new HttpConfiguration();
+        HTTP2CServerConnectionFactory h2c = new HTTP2CServerConnectionFactory(httpConfig);
+        h2c.setMaxConcurrentStreams(H2C_MAX_CONCURRENT_STREAMS);
+        ServerConnector connector = new ServerConnector(server, new HttpConnectionFactory(httpConfig), h2c);
         connector.setPort(port);
         server.setConnectors(new Connector[] { connector });
 
         ServletContextHandler apiContext = new ServletContextHandler();
 
-        apiContext.addServlet(new ServletHolder(new MessageServlet(proxy)), path);
+        ServletHolder messageServlet = new ServletHolder(new MessageServlet(proxy, maxMessageSize, clientIdHeader));
+        apiContext.addServlet(messageServlet, path);
+        apiContext.addServlet(messageServlet, path + MessageServlet.BATCH_PATH);
+        apiContext.addServlet(new ServletHolder(new MetricsServlet(MetricsRegistry.getDefault())), METRICS_PATH);
 
         SessionHandler sessionHandler = new SessionHandler();
         SessionCache cache = new DefaultSessionCache(sessionHandler);
@@ -50,6 +114,10 @@ public class WebServer {
         server.start();
     }
 
+    public void join() throws InterruptedException {
+        server.join();
+    }
+
     public void stop() throws Exception {
         this.server.stop();
     }
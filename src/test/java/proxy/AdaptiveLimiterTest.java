@@ -0,0 +1,78 @@
+package proxy;
+
+import org.junit.Assert;
+import org.junit.Test;
+import proxy.impl.AdaptiveLimiter;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author rushan
+ */
+public class AdaptiveLimiterTest {
+
+    private static final long RTT = TimeUnit.MILLISECONDS.toNanos(10);
+
+    @Test
+    public void testGrowsWhileLatencyIsStable() throws InterruptedException {
+        AdaptiveLimiter limiter = new AdaptiveLimiter(1, 32, 1, 640);
+        Assert.assertEquals(1, limiter.getLimit());
+        Assert.assertEquals(10, limiter.getBatchSize());
+
+        for (int i = 0; i < 200; i++) {
+            limiter.acquire();
+            limiter.onBatchCompleted(RTT, limiter.getBatchSize(), true);
+        }
+        Assert.assertEquals(32, limiter.getLimit());
+        Assert.assertEquals(640, limiter.getBatchSize());
+        Assert.assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    public void testBackoffOnLatencyAndFailure() throws InterruptedException {
+        AdaptiveLimiter limiter = new AdaptiveLimiter(1, 32, 1, 640);
+        for (int i = 0; i < 200; i++) {
+            limiter.acquire();
+            limiter.onBatchCompleted(RTT, limiter.getBatchSize(), true);
+        }
+
+        // Время ответа выросло вчетверо - сервис копит очередь
+        for (int i = 0; i < 10; i++) {
+            limiter.acquire();
+            limiter.onBatchCompleted(4 * RTT, limiter.getBatchSize(), true);
+        }
+        int limit = limiter.getLimit();
+        int batchSize = limiter.getBatchSize();
+        Assert.assertTrue("limit = " + limit, limit < 32);
+        Assert.assertTrue("batchSize = " + batchSize, batchSize < 640);
+
+        limiter.acquire();
+        limiter.onBatchCompleted(RTT, batchSize, false);
+        Assert.assertTrue(limiter.getLimit() < limit);
+        Assert.assertTrue(limiter.getBatchSize() < batchSize);
+    }
+
+    @Test
+    public void testAcquireBlocksAtLimit() throws InterruptedException {
+        AdaptiveLimiter limiter = new AdaptiveLimiter(1, 1, 1, 1);
+        limiter.acquire();
+
+        CountDownLatch acquired = new CountDownLatch(1);
+        Thread thread = new Thread(() -> {
+            try {
+                limiter.acquire();
+                acquired.countDown();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        thread.start();
+        Assert.assertFalse(acquired.await(100, TimeUnit.MILLISECONDS));
+
+        limiter.onBatchCompleted(RTT, 1, true);
+        Assert.assertTrue(acquired.await(1, TimeUnit.SECONDS));
+        Assert.assertEquals(1, limiter.getInFlight());
+        thread.join();
+    }
+}
@@ -0,0 +1,98 @@
+package proxy;
+
+import org.junit.Assert;
+import org.junit.Test;
+import proxy.impl.AdmissionControl;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * @author rushan
+ */
+public class AdmissionControlTest {
+
+    @Test
+    public void testBytesLimit() {
+        AdmissionControl admission = new AdmissionControl(100);
+
+        Assert.assertTrue(admission.tryAcquire(60));
+        Assert.assertTrue(admission.tryAcquire(40));
+        Assert.assertFalse(admission.tryAcquire(1));
+        Assert.assertEquals(100, admission.getUsedBytes());
+
+        admission.release(40);
+        Assert.assertTrue(admission.tryAcquire(30));
+        Assert.assertEquals(90, admission.getUsedBytes());
+    }
+
+    @Test
+    public void testUnlimited() {
+        AdmissionControl admission = new AdmissionControl(0);
+        Assert.assertTrue(admission.tryAcquire(Integer.MAX_VALUE));
+        Assert.assertTrue(admission.tryAcquire(Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void testHeapWatermarks() throws InterruptedException {
+        AtomicReference<Double> heapUsage = new AtomicReference<>(0.5);
+        AdmissionControl admission = new AdmissionControl(1000, 0.9, 0.7, heapUsage::get);
+
+        Assert.assertTrue(admission.tryAcquire(100));
+        Assert.assertTrue(admission.tryAcquire(300));
+
+        // Заполненность heap выше верхней отметки - лимит снижается вдвое от занятого объема, но не ниже
+        // самого крупного сообщения
+        heapUsage.set(0.95);
+        Thread.sleep(AdmissionControl.HEAP_CHECK_INTERVAL_MS + 10);
+        Assert.assertFalse(admission.tryAcquire(1));
+        Assert.assertEquals(300, admission.getLimit());
+
+        // Между отметками лимит не меняется
+        heapUsage.set(0.8);
+        admission.release(300);
+        Thread.sleep(AdmissionControl.HEAP_CHECK_INTERVAL_MS + 10);
+        Assert.assertTrue(admission.tryAcquire(50));
+        Assert.assertFalse(admission.tryAcquire(200));
+        Assert.assertEquals(300, admission.getLimit());
+
+        // Ниже нижней отметки лимит восстанавливается
+        heapUsage.set(0.5);
+        Thread.sleep(AdmissionControl.HEAP_CHECK_INTERVAL_MS + 10);
+        Assert.assertTrue(admission.tryAcquire(500));
+        Assert.assertEquals(1000, admission.getLimit());
+    }
+
+    /**
+     * Заполненность после сборки мусора не меняется до следующей сборки: лимит повторно снижается только после нее
+     */
+    @Test
+    public void testTightenOncePerGc() throws InterruptedException {
+        AtomicLong gcCount = new AtomicLong();
+        AdmissionControl admission = new AdmissionControl(10_000, 0.9, 0.7, () -> 0.95, gcCount::get);
+
+        for (int i = 0; i < 4; i++) {
+            Assert.assertTrue(admission.tryAcquire(1000));
+        }
+        Thread.sleep(AdmissionControl.HEAP_CHECK_INTERVAL_MS + 10);
+        Assert.assertFalse(admission.tryAcquire(1));
+        Assert.assertEquals(2000, admission.getLimit());
+
+        admission.release(3000);
+        for (int i = 0; i < 3; i++) {
+            Thread.sleep(AdmissionControl.HEAP_CHECK_INTERVAL_MS + 10);
+            Assert.assertTrue(admission.tryAcquire(1));
+            Assert.assertEquals(2000, admission.getLimit());
+        }
+
+        // После каждой сборки лимит снижается, но не ниже самого крупного из допущенных сообщений
+        for (int i = 0; i < 10; i++) {
+            gcCount.incrementAndGet();
+            Thread.sleep(AdmissionControl.HEAP_CHECK_INTERVAL_MS + 10);
+            admission.tryAcquire(0);
+        }
+        Assert.assertEquals(1000, admission.getLimit());
+        admission.release(admission.getUsedBytes());
+        Assert.assertTrue(admission.tryAcquire(1000));
+    }
+}
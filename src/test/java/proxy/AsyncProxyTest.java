@@ -6,22 +6,36 @@ import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import proxy.api.MessageRejectedException;
+import proxy.api.ResponseListener;
 import proxy.api.ServiceNotAvailableException;
 import proxy.api.ServiceRetry;
 import proxy.impl.AsyncProxy;
+import proxy.impl.AsyncProxyConfig;
+import proxy.impl.BatchPolicy;
+import proxy.impl.RingBufferQueue;
 import proxy.model.Message;
 import proxy.model.ServiceResponse;
 
+import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * @author rushan
@@ -148,6 +162,43 @@ public class AsyncProxyTest {
         }
     }
 
+    /**
+     * Синхронная ошибка вызова сервиса завершает сообщения батча и освобождает слот батча
+     */
+    @Test
+    public void testSynchronousCallFailure() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        ServiceRetry serviceRetry = new ServiceRetry() {
+            @Override
+            public List<ServiceResponse> call(List<Message> messages) throws IOException,
+                    ServiceNotAvailableException
+            {
+                return echo().call(messages);
+            }
+
+            @Override
+            public CompletableFuture<List<ServiceResponse>> callAsync(List<Message> messages) {
+                if (calls.incrementAndGet() == 1) {
+                    throw new IllegalStateException("Test error");
+                }
+                return ServiceRetry.super.callAsync(messages);
+            }
+        };
+
+        // Один батч "в полете": если слот не освободится, второе сообщение не будет отправлено
+        proxy = new AsyncProxy(serviceRetry, 1, 100, 1, 1);
+
+        CompletableFuture<ServiceResponse> failed = proxy.message(new Message(Instant.now(), TEST_DATA1));
+        try {
+            failed.get(5, TimeUnit.SECONDS);
+            Assert.fail();
+        } catch (ExecutionException e) {
+            Assert.assertEquals(IllegalStateException.class, e.getCause().getClass());
+        }
+        ServiceResponse response = proxy.message(new Message(Instant.now(), TEST_DATA2)).get(5, TimeUnit.SECONDS);
+        Assert.assertArrayEquals(TEST_DATA2, response.getData());
+    }
+
     @Test
     public void testMessageRejected() throws MessageRejectedException, InterruptedException {
         CountDownLatch serviceCall = new CountDownLatch(1);
@@ -179,6 +230,641 @@ public class AsyncProxyTest {
         }
     }
 
+    @Test
+    public void testPipelinedBatches() throws Exception {
+        List<List<Message>> callInputs = new CopyOnWriteArrayList<>();
+        List<CompletableFuture<List<ServiceResponse>>> inFlight = new CopyOnWriteArrayList<>();
+        CountDownLatch allSent = new CountDownLatch(3);
+
+        ServiceRetry serviceRetry = new ServiceRetry() {
+            @Override
+            public List<ServiceResponse> call(List<Message> messages) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public CompletableFuture<List<ServiceResponse>> callAsync(List<Message> messages) {
+                CompletableFuture<List<ServiceResponse>> future = new CompletableFuture<>();
+                callInputs.add(messages);
+                inFlight.add(future);
+                allSent.countDown();
+                return future;
+            }
+        };
+
+        // Один io-поток, но до трех батчей "в полете"
+        proxy = new AsyncProxy(serviceRetry, 1, 100, 1, 3);
+
+        CompletableFuture<ServiceResponse> fut1 = proxy.message(new Message(Instant.now(), TEST_DATA1));
+        CompletableFuture<ServiceResponse> fut2 = proxy.message(new Message(Instant.now(), TEST_DATA2));
+        CompletableFuture<ServiceResponse> fut3 = proxy.message(new Message(Instant.now(), TEST_DATA3));
+        CompletableFuture<ServiceResponse> fut4 = proxy.message(new Message(Instant.now(), TEST_DATA));
+
+        // Три батча отправлены без ожидания ответа на предыдущие, четвертый ждет освобождения места
+        allSent.await();
+        Thread.sleep(50);
+        Assert.assertEquals(3, inFlight.size());
+        Assert.assertFalse(fut1.isDone());
+
+        for (int i = 0; i < 3; i++) {
+            inFlight.get(i).complete(echo().call(callInputs.get(i)));
+        }
+        Assert.assertArrayEquals(TEST_DATA1, fut1.join().getData());
+        Assert.assertArrayEquals(TEST_DATA2, fut2.join().getData());
+        Assert.assertArrayEquals(TEST_DATA3, fut3.join().getData());
+
+        // Место освободилось - последний батч тоже отправлен
+        while (inFlight.size() < 4) {
+            Thread.sleep(10);
+        }
+        inFlight.get(3).complete(echo().call(callInputs.get(3)));
+        Assert.assertArrayEquals(TEST_DATA, fut4.join().getData());
+    }
+
+    @Test
+    public void testAdaptiveLimit() throws Exception {
+        List<List<Message>> callInputs = new CopyOnWriteArrayList<>();
+        List<CompletableFuture<List<ServiceResponse>>> inFlight = new CopyOnWriteArrayList<>();
+
+        ServiceRetry serviceRetry = new ServiceRetry() {
+            @Override
+            public List<ServiceResponse> call(List<Message> messages) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public CompletableFuture<List<ServiceResponse>> callAsync(List<Message> messages) {
+                CompletableFuture<List<ServiceResponse>> future = new CompletableFuture<>();
+                callInputs.add(messages);
+                inFlight.add(future);
+                return future;
+            }
+        };
+
+        // Адаптивный лимит начинается с одного батча из одного сообщения
+        proxy = new AsyncProxy(serviceRetry, new AsyncProxyConfig()
+                .messageQueueLimit(100)
+                .batchPolicy(BatchPolicy.immediate(100))
+                .maxInFlightBatches(3)
+                .adaptiveLimit(true));
+
+        CompletableFuture<ServiceResponse> fut1 = proxy.message(new Message(Instant.now(), TEST_DATA1));
+        CompletableFuture<ServiceResponse> fut2 = proxy.message(new Message(Instant.now(), TEST_DATA2));
+
+        while (inFlight.isEmpty()) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(50);
+        Assert.assertEquals(1, inFlight.size());
+        Assert.assertEquals(1, callInputs.get(0).size());
+
+        inFlight.get(0).complete(echo().call(callInputs.get(0)));
+        Assert.assertArrayEquals(TEST_DATA1, fut1.join().getData());
+
+        while (inFlight.size() < 2) {
+            Thread.sleep(10);
+        }
+        inFlight.get(1).complete(echo().call(callInputs.get(1)));
+        Assert.assertArrayEquals(TEST_DATA2, fut2.join().getData());
+    }
+
+    @Test
+    public void testShardedQueueKeepsKeyOrder() throws Exception {
+        List<List<Message>> callInputs = new CopyOnWriteArrayList<>();
+        List<CompletableFuture<List<ServiceResponse>>> inFlight = new CopyOnWriteArrayList<>();
+
+        ServiceRetry serviceRetry = new ServiceRetry() {
+            @Override
+            public List<ServiceResponse> call(List<Message> messages) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public CompletableFuture<List<ServiceResponse>> callAsync(List<Message> messages) {
+                CompletableFuture<List<ServiceResponse>> future = new CompletableFuture<>();
+                callInputs.add(messages);
+                inFlight.add(future);
+                return future;
+            }
+        };
+
+        // Мест для батчей больше, чем io-потоков, но батчи одного сегмента отправляются по одному
+        proxy = new AsyncProxy(serviceRetry, new AsyncProxyConfig()
+                .ioThreads(2)
+                .messageQueueLimit(100)
+                .batchPolicy(BatchPolicy.immediate(10))
+                .maxInFlightBatches(4)
+                .queueType(AsyncProxyConfig.QueueType.SHARDED));
+
+        CompletableFuture<ServiceResponse> fut1 = proxy.message(new Message(Instant.now(), TEST_DATA1, null, "a"));
+        while (inFlight.isEmpty()) {
+            Thread.sleep(10);
+        }
+        CompletableFuture<ServiceResponse> fut2 = proxy.message(new Message(Instant.now(), TEST_DATA2, null, "a"));
+        CompletableFuture<ServiceResponse> fut3 = proxy.message(new Message(Instant.now(), TEST_DATA3, null, "a"));
+        // Сообщение другого ключа отправляет второй io-поток, не дожидаясь первого батча
+        CompletableFuture<ServiceResponse> other = proxy.message(new Message(Instant.now(), TEST_DATA, null, "b"));
+        while (inFlight.size() < 2) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(50);
+        Assert.assertEquals(2, inFlight.size());
+        Assert.assertArrayEquals(TEST_DATA, callInputs.get(1).get(0).getData());
+        inFlight.get(1).complete(echo().call(callInputs.get(1)));
+        Assert.assertArrayEquals(TEST_DATA, other.join().getData());
+
+        // Следующие сообщения ключа "a" отправлены только после ответа на первое
+        inFlight.get(0).complete(echo().call(callInputs.get(0)));
+        Assert.assertArrayEquals(TEST_DATA1, fut1.join().getData());
+        while (inFlight.size() < 3) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(Arrays.asList("Test2", "Test3"), callInputs.get(2).stream()
+                .map(m -> new String(m.getData(), StandardCharsets.UTF_8)).collect(Collectors.toList()));
+        inFlight.get(2).complete(echo().call(callInputs.get(2)));
+        Assert.assertArrayEquals(TEST_DATA2, fut2.join().getData());
+        Assert.assertArrayEquals(TEST_DATA3, fut3.join().getData());
+    }
+
+    @Test
+    public void testEarlyMessageCompletion() throws Exception {
+        CompletableFuture<Void> batchDone = new CompletableFuture<>();
+        ResponseListener[] listeners = new ResponseListener[1];
+        CountDownLatch sent = new CountDownLatch(1);
+
+        ServiceRetry serviceRetry = new ServiceRetry() {
+            @Override
+            public List<ServiceResponse> call(List<Message> messages) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public CompletableFuture<Void> callAsync(List<Message> messages, ResponseListener listener) {
+                listeners[0] = listener;
+                sent.countDown();
+                return batchDone;
+            }
+        };
+
+        proxy = new AsyncProxy(serviceRetry, 1, 100, 10);
+
+        CompletableFuture<ServiceResponse> fut1 = proxy.message(new Message(Instant.now(), TEST_DATA1));
+        sent.await();
+
+        // Ответ на сообщение получен, батч-ответ еще нет - футура уже завершена
+        listeners[0].onResponse(0, ServiceResponse.ok(TEST_DATA1));
+        Assert.assertTrue(fut1.isDone());
+        Assert.assertArrayEquals(TEST_DATA1, fut1.join().getData());
+
+        // Ошибка после получения ответа не меняет результат
+        batchDone.completeExceptionally(new ServiceNotAvailableException(1, 1, null));
+        Assert.assertArrayEquals(TEST_DATA1, fut1.join().getData());
+    }
+
+    @Test
+    public void testRingQueue() throws MessageRejectedException, InterruptedException {
+        CountDownLatch serviceCall = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ServiceRetry serviceRetry = messages -> {
+            serviceCall.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException("Interrupted");
+            }
+            return echo().call(messages);
+        };
+
+        proxy = new AsyncProxy(serviceRetry, new AsyncProxyConfig()
+                .messageQueueLimit(2)
+                .batchPolicy(BatchPolicy.immediate(10))
+                .queueType(AsyncProxyConfig.QueueType.RING)
+                .waitStrategy(RingBufferQueue.WaitStrategy.SPIN_THEN_PARK));
+
+        CompletableFuture<ServiceResponse> initial = proxy.message(new Message(Instant.now(), TEST_DATA));
+        serviceCall.await();
+
+        CompletableFuture<ServiceResponse> fut1 = proxy.message(new Message(Instant.now(), TEST_DATA1));
+        CompletableFuture<ServiceResponse> fut2 = proxy.message(new Message(Instant.now(), TEST_DATA2));
+        try {
+            proxy.message(new Message(Instant.now(), TEST_DATA3));
+            Assert.fail("Message rejected exception is expected");
+        } catch (MessageRejectedException e) {
+            // Размер очереди == 2
+        }
+
+        release.countDown();
+        Assert.assertArrayEquals(TEST_DATA, initial.join().getData());
+        Assert.assertArrayEquals(TEST_DATA1, fut1.join().getData());
+        Assert.assertArrayEquals(TEST_DATA2, fut2.join().getData());
+        proxy.dispose();
+    }
+
+    /**
+     * Пакет сообщений добавляется в очередь одной операцией: не поместившиеся сообщения отклоняются, остальные
+     * отправляются
+     */
+    @Test
+    public void testMessagesBulk() throws Exception {
+        for (AsyncProxyConfig.QueueType queueType : AsyncProxyConfig.QueueType.values()) {
+            CountDownLatch serviceCall = new CountDownLatch(1);
+            CountDownLatch release = new CountDownLatch(1);
+            ServiceRetry serviceRetry = messages -> {
+                serviceCall.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException("Interrupted");
+                }
+                return echo().call(messages);
+            };
+
+            proxy = new AsyncProxy(serviceRetry, new AsyncProxyConfig()
+                    .ioThreads(1)
+                    .messageQueueLimit(2)
+                    .batchPolicy(BatchPolicy.immediate(10))
+                    .queueType(queueType));
+
+            CompletableFuture<ServiceResponse> initial = proxy.message(new Message(Instant.now(), TEST_DATA));
+            serviceCall.await();
+
+            List<CompletableFuture<ServiceResponse>> futures = proxy.messages(Arrays.asList(
+                    new Message(Instant.now(), TEST_DATA1),
+                    new Message(Instant.now(), TEST_DATA2),
+                    new Message(Instant.now(), TEST_DATA3)));
+            Assert.assertEquals(3, futures.size());
+            try {
+                futures.get(2).join();
+                Assert.fail("Message rejected exception is expected for " + queueType);
+            } catch (CompletionException e) {
+                Assert.assertEquals(MessageRejectedException.class, e.getCause().getClass());
+            }
+
+            release.countDown();
+            Assert.assertArrayEquals(TEST_DATA, initial.join().getData());
+            Assert.assertArrayEquals(TEST_DATA1, futures.get(0).join().getData());
+            Assert.assertArrayEquals(TEST_DATA2, futures.get(1).join().getData());
+            proxy.dispose();
+        }
+    }
+
+    @Test
+    public void testMaxQueueBytes() throws MessageRejectedException, InterruptedException {
+        CountDownLatch serviceCall = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ServiceRetry serviceRetry = messages -> {
+            serviceCall.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException("Interrupted");
+            }
+            return echo().call(messages);
+        };
+
+        // Каждое сообщение TEST_DATA1 занимает 5 + 12 байт: в лимит помещаются два сообщения
+        proxy = new AsyncProxy(serviceRetry, new AsyncProxyConfig()
+                .messageQueueLimit(100)
+                .batchPolicy(BatchPolicy.immediate(1))
+                .maxQueueBytes(40));
+
+        CompletableFuture<ServiceResponse> fut1 = proxy.message(new Message(Instant.now(), TEST_DATA1));
+        serviceCall.await();
+        CompletableFuture<ServiceResponse> fut2 = proxy.message(new Message(Instant.now(), TEST_DATA2));
+        try {
+            proxy.message(new Message(Instant.now(), TEST_DATA3));
+            Assert.fail("Message rejected exception is expected");
+        } catch (MessageRejectedException e) {
+            // Учитывается и сообщение, отправленное сервису, и сообщение в очереди
+        }
+
+        release.countDown();
+        fut1.join();
+        fut2.join();
+
+        // После получения ответов место освобождается
+        Assert.assertArrayEquals(TEST_DATA3, proxy.message(new Message(Instant.now(), TEST_DATA3)).join().getData());
+        proxy.dispose();
+    }
+
+    @Test
+    public void testSpillOverflow() throws Exception {
+        CountDownLatch serviceCall = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<String> delivered = new CopyOnWriteArrayList<>();
+        ServiceRetry serviceRetry = messages -> {
+            serviceCall.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException("Interrupted");
+            }
+            messages.forEach(m -> delivered.add(new String(m.getData(), StandardCharsets.UTF_8)));
+            return echo().call(messages);
+        };
+
+        Path spillDir = Files.createTempDirectory("spill-test");
+        proxy = new AsyncProxy(serviceRetry, new AsyncProxyConfig()
+                .messageQueueLimit(1)
+                .batchPolicy(BatchPolicy.immediate(10))
+                .spill(spillDir, 0)
+                .spillSegmentSize(1024));
+
+        List<CompletableFuture<ServiceResponse>> futures = new ArrayList<>();
+        futures.add(proxy.message(new Message(Instant.now(), TEST_DATA)));
+        serviceCall.await();
+        // Очередь в памяти вмещает одно сообщение, остальные не отклоняются, а уходят на диск
+        futures.add(proxy.message(new Message(Instant.now(), TEST_DATA1)));
+        futures.add(proxy.message(new Message(Instant.now(), TEST_DATA2)));
+        futures.add(proxy.message(new Message(Instant.now(), TEST_DATA3)));
+
+        release.countDown();
+        Assert.assertArrayEquals(TEST_DATA, futures.get(0).join().getData());
+        Assert.assertArrayEquals(TEST_DATA1, futures.get(1).join().getData());
+        Assert.assertArrayEquals(TEST_DATA2, futures.get(2).join().getData());
+        Assert.assertArrayEquals(TEST_DATA3, futures.get(3).join().getData());
+        // Порядок доставки сохраняется
+        Assert.assertEquals(Arrays.asList("Test", "Test1", "Test2", "Test3"), delivered);
+
+        proxy.dispose();
+        deleteDirectory(spillDir);
+    }
+
+    /**
+     * Очередь отказывает при свободном месте (заполнена полоса клиента) - сообщение остается в начале очереди на
+     * диске, а не переносится в ее конец
+     */
+    @Test
+    public void testSpillRefillKeepsOrder() throws Exception {
+        CountDownLatch serviceCall = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<String> delivered = new CopyOnWriteArrayList<>();
+        ServiceRetry serviceRetry = messages -> {
+            serviceCall.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException("Interrupted");
+            }
+            messages.forEach(m -> delivered.add(new String(m.getData(), StandardCharsets.UTF_8)));
+            return echo().call(messages);
+        };
+
+        Path spillDir = Files.createTempDirectory("spill-test");
+        proxy = new AsyncProxy(serviceRetry, new AsyncProxyConfig()
+                .ioThreads(1)
+                .messageQueueLimit(10)
+                .queueType(AsyncProxyConfig.QueueType.FAIR)
+                .fairQueue(1, null)
+                .batchPolicy(BatchPolicy.immediate(1))
+                .spill(spillDir, 0)
+                .spillSegmentSize(1024));
+
+        List<CompletableFuture<ServiceResponse>> futures = new ArrayList<>();
+        futures.add(proxy.message(new Message(Instant.now(), TEST_DATA, null, "a")));
+        serviceCall.await();
+        // В полосе клиента помещается одно сообщение, остальные уходят на диск
+        for (byte[] data : Arrays.asList(TEST_DATA1, TEST_DATA2, TEST_DATA3)) {
+            futures.add(proxy.message(new Message(Instant.now(), data, null, "a")));
+        }
+        futures.add(proxy.message(new Message(Instant.now(), "Test4".getBytes(StandardCharsets.UTF_8), null, "a")));
+
+        release.countDown();
+        for (CompletableFuture<ServiceResponse> future : futures) {
+            future.get(5, TimeUnit.SECONDS);
+        }
+        Assert.assertEquals(Arrays.asList("Test", "Test1", "Test2", "Test3", "Test4"), delivered);
+
+        proxy.dispose();
+        deleteDirectory(spillDir);
+    }
+
+    @Test
+    public void testSnapshotOnDispose() throws Exception {
+        CountDownLatch serviceCall = new CountDownLatch(1);
+        ServiceRetry blocked = messages -> {
+            serviceCall.countDown();
+            try {
+                new CountDownLatch(1).await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            throw new ServiceNotAvailableException(0, 0, null);
+        };
+
+        Path spillDir = Files.createTempDirectory("spill-test");
+        AsyncProxyConfig config = new AsyncProxyConfig()
+                .messageQueueLimit(10)
+                .batchPolicy(BatchPolicy.immediate(10))
+                .spill(spillDir, 0)
+                .spillSegmentSize(1024);
+        proxy = new AsyncProxy(blocked, config);
+        proxy.message(new Message(Instant.now(), TEST_DATA));
+        serviceCall.await();
+        proxy.message(new Message(Instant.now(), TEST_DATA1));
+        proxy.message(new Message(Instant.now(), TEST_DATA2));
+        proxy.dispose();
+
+        // Сообщения из очереди восстанавливаются при запуске и доставляются сервису
+        List<String> delivered = new CopyOnWriteArrayList<>();
+        CountDownLatch deliveredAll = new CountDownLatch(2);
+        proxy = new AsyncProxy(messages -> {
+            messages.forEach(m -> {
+                delivered.add(new String(m.getData(), StandardCharsets.UTF_8));
+                deliveredAll.countDown();
+            });
+            return echo().call(messages);
+        }, config);
+        deliveredAll.await();
+        Assert.assertEquals(Arrays.asList("Test1", "Test2"), delivered);
+
+        proxy.dispose();
+        deleteDirectory(spillDir);
+    }
+
+    /**
+     * При перегрузке очереди (CoDel) сообщения, сохраняемые в снимок при остановке, не сбрасываются
+     */
+    @Test
+    public void testSnapshotIsNotShed() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        CountDownLatch secondCall = new CountDownLatch(1);
+        ServiceRetry slow = messages -> {
+            try {
+                if (calls.incrementAndGet() == 1) {
+                    // Сообщения успевают дольше target прождать в очереди
+                    Thread.sleep(30);
+                    return echo().call(messages);
+                }
+                secondCall.countDown();
+                new CountDownLatch(1).await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            throw new ServiceNotAvailableException(0, 0, null);
+        };
+
+        Path spillDir = Files.createTempDirectory("spill-test");
+        AsyncProxyConfig config = new AsyncProxyConfig()
+                .messageQueueLimit(10)
+                .batchPolicy(BatchPolicy.immediate(1))
+                .codel(1, 1)
+                .spill(spillDir, 0)
+                .spillSegmentSize(1024);
+        proxy = new AsyncProxy(slow, config);
+        proxy.message(new Message(Instant.now(), TEST_DATA));
+        proxy.message(new Message(Instant.now(), TEST_DATA1));
+        proxy.message(new Message(Instant.now(), TEST_DATA2));
+        proxy.message(new Message(Instant.now(), TEST_DATA3));
+        // Второе сообщение извлечено после ожидания дольше target - со следующего интервала очередь перегружена
+        secondCall.await();
+        Thread.sleep(10);
+        proxy.dispose();
+
+        // Восстанавливаем без CoDel - проверяется только то, что попало в снимок
+        AsyncProxyConfig restoreConfig = new AsyncProxyConfig()
+                .messageQueueLimit(10)
+                .batchPolicy(BatchPolicy.immediate(1))
+                .spill(spillDir, 0)
+                .spillSegmentSize(1024);
+        List<String> delivered = new CopyOnWriteArrayList<>();
+        CountDownLatch deliveredAll = new CountDownLatch(2);
+        proxy = new AsyncProxy(messages -> {
+            messages.forEach(m -> {
+                delivered.add(new String(m.getData(), StandardCharsets.UTF_8));
+                deliveredAll.countDown();
+            });
+            return echo().call(messages);
+        }, restoreConfig);
+        Assert.assertTrue(delivered.toString(), deliveredAll.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(Arrays.asList("Test2", "Test3"), delivered);
+
+        proxy.dispose();
+        deleteDirectory(spillDir);
+    }
+
+    private static void deleteDirectory(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @Test
+    public void testSkipCancelledAndExpiredMessages() throws Exception {
+        CountDownLatch serviceCall = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<String> delivered = new CopyOnWriteArrayList<>();
+        ServiceRetry serviceRetry = messages -> {
+            serviceCall.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException("Interrupted");
+            }
+            messages.forEach(m -> delivered.add(new String(m.getData(), StandardCharsets.UTF_8)));
+            return echo().call(messages);
+        };
+
+        proxy = new AsyncProxy(serviceRetry, 1, 100, 10);
+        CompletableFuture<ServiceResponse> first = proxy.message(new Message(Instant.now(), TEST_DATA));
+        serviceCall.await();
+
+        Instant now = Instant.now();
+        CompletableFuture<ServiceResponse> cancelled = proxy.message(new Message(now, TEST_DATA1));
+        CompletableFuture<ServiceResponse> expired = proxy.message(new Message(now, TEST_DATA2, now.plusMillis(50)));
+        CompletableFuture<ServiceResponse> live = proxy.message(new Message(now, TEST_DATA3, now.plusSeconds(60)));
+
+        // Клиент первого сообщения перестал ждать, срок второго истекает, пока io-поток занят
+        cancelled.cancel(false);
+        Thread.sleep(100);
+        release.countDown();
+
+        Assert.assertArrayEquals(TEST_DATA, first.join().getData());
+        Assert.assertArrayEquals(TEST_DATA3, live.join().getData());
+        Assert.assertTrue(expired.isCancelled());
+        Assert.assertEquals(Arrays.asList("Test", "Test3"), delivered);
+        proxy.dispose();
+    }
+
+    @Test
+    public void testLingerBatch() throws Exception {
+        List<List<Message>> callInputs = new CopyOnWriteArrayList<>();
+        ServiceRetry serviceRetry = messages -> {
+            callInputs.add(messages);
+            return echo().call(messages);
+        };
+
+        // Неполный батч ждет новых сообщений до 300мс
+        proxy = new AsyncProxy(serviceRetry, 1, 100, new BatchPolicy(10, 0, 300, 0), 1);
+
+        CompletableFuture<ServiceResponse> fut1 = proxy.message(new Message(Instant.now(), TEST_DATA1));
+        Thread.sleep(50);
+        CompletableFuture<ServiceResponse> fut2 = proxy.message(new Message(Instant.now(), TEST_DATA2));
+        Thread.sleep(50);
+        CompletableFuture<ServiceResponse> fut3 = proxy.message(new Message(Instant.now(), TEST_DATA3));
+
+        fut1.join();
+        fut2.join();
+        fut3.join();
+        Assert.assertEquals(1, callInputs.size());
+        Assert.assertEquals(3, callInputs.get(0).size());
+    }
+
+    @Test
+    public void testMaxBatchBytes() throws Exception {
+        List<List<Message>> callInputs = new CopyOnWriteArrayList<>();
+        CountDownLatch firstCall = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ServiceRetry serviceRetry = messages -> {
+            callInputs.add(messages);
+            firstCall.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException("Interrupted");
+            }
+            return echo().call(messages);
+        };
+
+        // В батч помещается не более двух сообщений "Test1" (2 * (12 + 5) байт)
+        proxy = new AsyncProxy(serviceRetry, 1, 100, new BatchPolicy(10, 2 * (12 + 5), 0, 0), 1);
+
+        CompletableFuture<ServiceResponse> initial = proxy.message(new Message(Instant.now(), TEST_DATA));
+        firstCall.await();
+        List<CompletableFuture<ServiceResponse>> futures = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            futures.add(proxy.message(new Message(Instant.now(), TEST_DATA1)));
+        }
+        release.countDown();
+        initial.join();
+        futures.forEach(CompletableFuture::join);
+
+        // Батчи 1 + 2 + 2 + 1 сообщение
+        Assert.assertEquals(4, callInputs.size());
+        Assert.assertEquals(2, callInputs.get(1).size());
+        Assert.assertEquals(2, callInputs.get(2).size());
+        Assert.assertEquals(1, callInputs.get(3).size());
+    }
+
+    @Test
+    public void testBatchPolicyTargetLatency() {
+        BatchPolicy policy = new BatchPolicy(10, 0, 0, 100);
+        Assert.assertEquals(100_000_000L, policy.flushDeadline(0));
+
+        // Время ответа сервиса сокращает допустимое ожидание
+        policy.onBatchCompleted(30_000_000L);
+        Assert.assertEquals(70_000_000L, policy.flushDeadline(0));
+
+        // Ожидание не больше linger
+        BatchPolicy lingerPolicy = new BatchPolicy(10, 0, 20, 100);
+        Assert.assertEquals(20_000_000L, lingerPolicy.flushDeadline(0));
+
+        // Без linger и целевой латентности батч отправляется сразу
+        Assert.assertEquals(5L, BatchPolicy.immediate(10).flushDeadline(5));
+    }
+
     private ServiceRetry echo() {
         return messages -> messages.stream().map(m -> ServiceResponse.ok(m.getData())).collect(Collectors.toList());
     }
@@ -0,0 +1,149 @@
+package proxy;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.Assert;
+import org.junit.Test;
+import proxy.api.BatchResponseConsumer;
+import proxy.impl.BatchCompression;
+import proxy.impl.BlockingHttpCall;
+import proxy.impl.PooledHttpCall;
+import proxy.impl.ServiceRetrySupport;
+import proxy.model.BatchBody;
+import proxy.model.Message;
+import proxy.util.Util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipException;
+
+/**
+ * @author rushan
+ */
+public class BatchCompressionTest {
+
+    @Test
+    public void testCompressAndDecompress() throws IOException {
+        BatchBody body = testBatch();
+        BatchCompression compression = new BatchCompression(6, 1024);
+        Assert.assertTrue(compression.shouldCompress(body.getLength()));
+        Assert.assertFalse(compression.shouldCompress(1023));
+
+        ByteBuffer compressed = compression.compress(body);
+        Assert.assertTrue(compressed.remaining() < body.getLength() / 10);
+
+        byte[] data = new byte[compressed.remaining()];
+        compressed.get(data);
+        Assert.assertArrayEquals(body.toByteArray(), BatchCompression.decompress(data, "deflate"));
+        // Несжатый ответ возвращается как есть
+        Assert.assertSame(data, BatchCompression.decompress(data, null));
+    }
+
+    /**
+     * Сжатый ответ поступает произвольными частями, в том числе в direct буферах
+     */
+    @Test
+    public void testDecompressByChunks() throws IOException {
+        BatchBody body = testBatch();
+        ByteBuffer compressed = new BatchCompression(1, 0).compress(body);
+
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        List<Integer> statuses = new ArrayList<>();
+        BatchResponseConsumer consumer = BatchCompression.decompressing(new BatchResponseConsumer() {
+            @Override
+            public void onStatus(int status) {
+                statuses.add(status);
+            }
+
+            @Override
+            public void onContent(ByteBuffer chunk) {
+                byte[] bytes = new byte[chunk.remaining()];
+                chunk.get(bytes);
+                result.write(bytes, 0, bytes.length);
+            }
+        });
+
+        consumer.onStatus(200);
+        int i = 0;
+        while (compressed.hasRemaining()) {
+            int len = Math.min(7, compressed.remaining());
+            ByteBuffer chunk = i++ % 2 == 0 ? ByteBuffer.allocateDirect(len) : ByteBuffer.allocate(len);
+            for (int j = 0; j < len; j++) {
+                chunk.put(compressed.get());
+            }
+            chunk.flip();
+            consumer.onContent(chunk);
+        }
+
+        Assert.assertEquals(1, statuses.size());
+        Assert.assertArrayEquals(body.toByteArray(), result.toByteArray());
+    }
+
+    /**
+     * Поврежденный сжатый ответ - не коммуникационная ошибка: батч не отправляется повторно
+     */
+    @Test
+    public void testCorruptedResponseIsNotRetried() throws Exception {
+        byte[] corrupted = "not deflate data".getBytes(StandardCharsets.UTF_8);
+        AtomicInteger calls = new AtomicInteger();
+        HttpServer server = HttpServer.create(new InetSocketAddress(8097), 0);
+        server.createContext("/sendMessage", exchange -> {
+            calls.incrementAndGet();
+            Util.readMessageBody(exchange.getRequestBody(), Integer.MAX_VALUE);
+            exchange.getResponseHeaders().add(BatchCompression.CONTENT_ENCODING, BatchCompression.DEFLATE);
+            exchange.sendResponseHeaders(200, corrupted.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(corrupted);
+            }
+        });
+        server.start();
+
+        List<Message> messages = Collections.singletonList(
+                new Message(Instant.now(), "Test".getBytes(StandardCharsets.UTF_8)));
+        try (PooledHttpCall call = new PooledHttpCall("http://localhost:8097/sendMessage", 1000, 1000, 4);
+             ServiceRetrySupport retrySupport = new ServiceRetrySupport(call, 2, 10, 1000))
+        {
+            try {
+                retrySupport.callAsync(messages).get(5, TimeUnit.SECONDS);
+                Assert.fail();
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof UncheckedIOException);
+            }
+            Assert.assertEquals(1, calls.get());
+
+            // Синхронный вызов читает ответ через InflaterInputStream
+            calls.set(0);
+            try (ServiceRetrySupport blockingRetry = new ServiceRetrySupport(
+                    new BlockingHttpCall("http://localhost:8097/sendMessage", 1000, 1000), 2, 10, 1000))
+            {
+                blockingRetry.call(messages);
+                Assert.fail();
+            } catch (UncheckedIOException e) {
+                Assert.assertTrue(e.getCause() instanceof ZipException);
+            }
+            Assert.assertEquals(1, calls.get());
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    private static BatchBody testBatch() {
+        List<Message> messages = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            messages.add(new Message(Instant.ofEpochMilli(i),
+                    ("{\"device\":\"sensor-" + (i % 10) + "\",\"value\":42}").getBytes(StandardCharsets.UTF_8)));
+        }
+        return new BatchBody(messages);
+    }
+}
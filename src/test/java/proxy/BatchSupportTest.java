@@ -3,13 +3,19 @@ package proxy;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
+import proxy.impl.BatchResponseDecoder;
 import proxy.impl.BatchSupport;
+import proxy.model.BatchBody;
 import proxy.model.Message;
 import proxy.model.ServiceResponse;
+import proxy.util.ByteBufferPool;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
@@ -76,6 +82,33 @@ public class BatchSupportTest {
         Assert.assertEquals(0, byteBuffer.remaining());
     }
 
+    @Test
+    public void testBatchBodyMatchesBatchBuffer() throws IOException {
+        Instant time1 = Instant.now();
+        Instant time2 = time1.plusMillis(1000);
+        List<Message> messages = Arrays.asList(new Message(time1, TEST_BODY),
+                new Message(time2, new byte[0]),
+                new Message(time2, TEST_BODY));
+        byte[] expected = batchSupport.toBatchBuffer(messages);
+
+        BatchBody body = batchSupport.toBatchBody(messages);
+        Assert.assertEquals(expected.length, body.getLength());
+
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        body.writeTo(stream);
+        Assert.assertArrayEquals(expected, stream.toByteArray());
+
+        // Тело можно отправить повторно - буферы не разделяют позиции между вызовами
+        for (int attempt = 0; attempt < 2; attempt++) {
+            ByteBuffer gathered = ByteBuffer.allocate(expected.length);
+            for (ByteBuffer b : body.toBuffers()) {
+                gathered.put(b);
+            }
+            Assert.assertArrayEquals(expected, gathered.array());
+        }
+        Assert.assertArrayEquals(expected, body.toByteArray());
+    }
+
     @Test
     public void testExtractEmptyResponse() {
         List<ServiceResponse> result = batchSupport.splitBatch(ServiceResponse.empty());
@@ -118,4 +151,130 @@ public class BatchSupportTest {
         Assert.assertEquals(TEST_BODY.length, result.get(1).getData().length);
         Assert.assertArrayEquals(TEST_BODY, result.get(1).getData());
     }
+
+    @Test
+    public void testDecodeResponseByChunks() throws IOException {
+        byte[] second = "Test2".getBytes(StandardCharsets.UTF_8);
+        ByteBuffer testBuff = ByteBuffer.allocate(3 * 4 + TEST_BODY.length + second.length);
+        testBuff.putInt(TEST_BODY.length);
+        testBuff.put(TEST_BODY);
+        testBuff.putInt(0);
+        testBuff.putInt(second.length);
+        testBuff.put(second);
+        byte[] response = testBuff.array();
+
+        // Ответ режется на части всеми возможными размерами - в том числе посреди размера фрейма
+        for (int chunkSize = 1; chunkSize <= response.length; chunkSize++) {
+            List<ServiceResponse> result = new ArrayList<>();
+            List<Integer> indexes = new ArrayList<>();
+            BatchResponseDecoder decoder = new BatchResponseDecoder(3, (index, r) -> {
+                indexes.add(index);
+                result.add(r);
+            });
+            decoder.onStatus(200);
+            for (int offset = 0; offset < response.length; offset += chunkSize) {
+                decoder.onContent(ByteBuffer.wrap(response, offset, Math.min(chunkSize, response.length - offset)));
+                // Ответ на первое сообщение доступен сразу после получения его последнего байта
+                if (offset + chunkSize >= 4 + TEST_BODY.length) {
+                    Assert.assertTrue(decoder.getCount() >= 1);
+                }
+            }
+            decoder.finish();
+
+            Assert.assertEquals(Arrays.asList(0, 1, 2), indexes);
+            Assert.assertArrayEquals(TEST_BODY, result.get(0).getData());
+            Assert.assertEquals(0, result.get(1).getData().length);
+            Assert.assertArrayEquals(second, result.get(2).getData());
+            Assert.assertEquals(200, result.get(2).getStatus());
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testDecodeTruncatedResponse() throws IOException {
+        BatchResponseDecoder decoder = new BatchResponseDecoder(1, (index, r) -> { });
+        ByteBuffer testBuff = ByteBuffer.allocate(4 + 2);
+        testBuff.putInt(TEST_BODY.length);
+        testBuff.put(TEST_BODY, 0, 2);
+        testBuff.flip();
+        decoder.onContent(testBuff);
+        decoder.finish();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testDecodeTooManyResponses() throws IOException {
+        BatchResponseDecoder decoder = new BatchResponseDecoder(1, (index, r) -> { });
+        ByteBuffer testBuff = ByteBuffer.allocate(2 * (4 + TEST_BODY.length));
+        testBuff.putInt(TEST_BODY.length);
+        testBuff.put(TEST_BODY);
+        testBuff.putInt(TEST_BODY.length);
+        testBuff.put(TEST_BODY);
+        testBuff.flip();
+        decoder.onContent(testBuff);
+    }
+
+    @Test(expected = IOException.class)
+    public void testDecodeErrorStatus() throws IOException {
+        BatchResponseDecoder decoder = new BatchResponseDecoder(1, (index, r) -> { });
+        decoder.onStatus(502);
+    }
+
+    /**
+     * 4 байта страницы ошибки как размер фрейма: сотни мегабайт, больше ограничения и остатка тела
+     */
+    @Test
+    public void testDecodeInvalidFrameLength() throws IOException {
+        byte[] page = "<html><body>Bad Gateway</body></html>".getBytes(StandardCharsets.UTF_8);
+        BatchResponseDecoder limited = new BatchResponseDecoder(1, (index, r) -> { },
+                ByteBufferPool.getDefault(), 1024 * 1024);
+        limited.onStatus(200);
+        try {
+            limited.onContent(ByteBuffer.wrap(page));
+            Assert.fail();
+        } catch (IOException e) {
+            // ожидаемо
+        }
+
+        BatchResponseDecoder unlimited = new BatchResponseDecoder(1, (index, r) -> { });
+        unlimited.onContentLength(page.length);
+        unlimited.onStatus(200);
+        try {
+            unlimited.onContent(ByteBuffer.wrap(page));
+            Assert.fail();
+        } catch (IOException e) {
+            // ожидаемо
+        }
+    }
+
+    @Test
+    public void testParseClientBatch() {
+        byte[] second = {1, 2, 3};
+        Instant sentAt = Instant.ofEpochMilli(1000);
+        byte[] body = batchSupport.toBatchBuffer(Arrays.asList(new Message(sentAt, TEST_BODY),
+                new Message(sentAt, second)));
+        ByteBufferPool pool = new ByteBufferPool(false, 64 * 1024, 1024 * 1024);
+        Instant now = Instant.now();
+
+        List<Message> messages = BatchBody.parse(ByteBuffer.wrap(body), pool, now, now.plusSeconds(1), "client");
+        Assert.assertEquals(2, messages.size());
+        Assert.assertArrayEquals(TEST_BODY, messages.get(0).getData());
+        Assert.assertArrayEquals(second, messages.get(1).getData());
+        Assert.assertEquals(sentAt, messages.get(1).getReceivedAt());
+        Assert.assertEquals("client", messages.get(1).getClientId());
+        messages.forEach(Message::release);
+    }
+
+    @Test
+    public void testParseTruncatedClientBatch() {
+        byte[] body = batchSupport.toBatchBuffer(Arrays.asList(new Message(Instant.now(), new byte[2000]),
+                new Message(Instant.now(), TEST_BODY)));
+        ByteBufferPool pool = new ByteBufferPool(false, 64 * 1024, 1024 * 1024);
+        try {
+            BatchBody.parse(ByteBuffer.wrap(body, 0, body.length - 1), pool, Instant.now(), null, null);
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            // ожидаемо
+        }
+        // Уже разобранное сообщение возвращено в пул
+        Assert.assertEquals(2048, pool.getPooledBytes());
+    }
 }
@@ -3,7 +3,10 @@ package proxy;
 import com.sun.net.httpserver.HttpServer;
 import org.junit.Assert;
 import org.junit.Test;
+import proxy.impl.BatchCompression;
 import proxy.impl.BlockingHttpCall;
+import proxy.model.BatchBody;
+import proxy.model.Message;
 import proxy.model.ServiceResponse;
 import proxy.util.Util;
 
@@ -14,6 +17,11 @@ import java.net.InetSocketAddress;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
 import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
 
 /**
  * @author rushan
@@ -79,4 +87,80 @@ public class BlockingHttpCallTest {
         BlockingHttpCall call = new BlockingHttpCall("http://baaljdaskdaace:8080/sendMessage", 1000, 100);
         call.call(TEST_REQUEST.getBytes(StandardCharsets.UTF_8));
     }
+
+    /**
+     * Сжатое тело батча и сжатый ответ сервиса
+     */
+    @Test
+    public void testCompressedCall() throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(8092), 0);
+        server.createContext("/sendMessage", exchange -> {
+            if (!"deflate".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+                exchange.sendResponseHeaders(400, -1);
+                return;
+            }
+            byte[] bytes = Util.readMessageBody(new InflaterInputStream(exchange.getRequestBody()), Integer.MAX_VALUE);
+            exchange.getResponseHeaders().add("Content-Encoding", "deflate");
+            exchange.sendResponseHeaders(200, 0);
+            try (OutputStream os = new DeflaterOutputStream(exchange.getResponseBody())) {
+                os.write(bytes);
+            }
+        });
+        server.setExecutor(null);
+        server.start();
+
+        try {
+            BatchBody body = testBatch();
+            BlockingHttpCall call = new BlockingHttpCall("http://localhost:8092/sendMessage", 1000, 1000,
+                    new BatchCompression(6, 0));
+            ServiceResponse echoResponse = call.call(body);
+            Assert.assertEquals(200, echoResponse.getStatus());
+            Assert.assertArrayEquals(body.toByteArray(), echoResponse.getData());
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    /**
+     * Сервис не поддерживает сжатие - батч переотправляется без сжатия
+     */
+    @Test
+    public void testCompressionFallback() throws IOException {
+        AtomicInteger compressedRequests = new AtomicInteger();
+        HttpServer server = HttpServer.create(new InetSocketAddress(8093), 0);
+        server.createContext("/sendMessage", exchange -> {
+            byte[] bytes = Util.readMessageBody(exchange.getRequestBody(), Integer.MAX_VALUE);
+            if (exchange.getRequestHeaders().containsKey("Content-Encoding")) {
+                compressedRequests.incrementAndGet();
+                exchange.sendResponseHeaders(415, -1);
+                return;
+            }
+            exchange.sendResponseHeaders(200, bytes.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(bytes);
+            }
+        });
+        server.setExecutor(null);
+        server.start();
+
+        try {
+            BatchBody body = testBatch();
+            BlockingHttpCall call = new BlockingHttpCall("http://localhost:8093/sendMessage", 1000, 1000,
+                    new BatchCompression(1, 0));
+            Assert.assertArrayEquals(body.toByteArray(), call.call(body).getData());
+            Assert.assertArrayEquals(body.toByteArray(), call.call(body).getData());
+            Assert.assertEquals(1, compressedRequests.get());
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    private static BatchBody testBatch() {
+        byte[] json = "{\"device\":\"sensor-1\",\"value\":42}".getBytes(StandardCharsets.UTF_8);
+        Message[] messages = new Message[1000];
+        for (int i = 0; i < messages.length; i++) {
+            messages[i] = new Message(Instant.ofEpochMilli(i), json);
+        }
+        return new BatchBody(Arrays.asList(messages));
+    }
 }
@@ -0,0 +1,156 @@
+package proxy;
+
+import org.junit.Assert;
+import org.junit.Test;
+import proxy.impl.BatchResponseDecoder;
+import proxy.model.Message;
+import proxy.model.ServiceResponse;
+import proxy.util.ByteBufferPool;
+import proxy.util.PooledBuffer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author rushan
+ */
+public class ByteBufferPoolTest {
+
+    @Test
+    public void testReuseAfterRelease() {
+        ByteBufferPool pool = new ByteBufferPool(false, 64 * 1024, 1024 * 1024);
+        PooledBuffer first = pool.acquire(3000);
+        Assert.assertEquals(3000, first.length());
+        Assert.assertEquals(3000, first.buffer().remaining());
+        byte[] array = first.buffer().array();
+        Assert.assertEquals(4096, array.length);
+
+        Assert.assertTrue(first.release());
+        Assert.assertEquals(4096, pool.getPooledBytes());
+
+        // Тот же класс размера - тот же буфер
+        PooledBuffer second = pool.acquire(4000);
+        Assert.assertSame(array, second.buffer().array());
+        Assert.assertEquals(0, pool.getPooledBytes());
+
+        // Освобожденный буфер больше не используется
+        try {
+            first.buffer();
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            // ожидаемо
+        }
+    }
+
+    /**
+     * Буферы в heap для чтения и записи через массив у direct пула переиспользуются отдельно от прямых
+     */
+    @Test
+    public void testHeapBuffersOfDirectPool() {
+        ByteBufferPool pool = new ByteBufferPool(true, 64 * 1024, 1024 * 1024);
+        PooledBuffer direct = pool.acquire(4096);
+        PooledBuffer heap = pool.acquireHeap(4096);
+        Assert.assertTrue(direct.buffer().isDirect());
+        Assert.assertTrue(heap.buffer().hasArray());
+        byte[] array = heap.buffer().array();
+
+        direct.release();
+        heap.release();
+        Assert.assertEquals(8192, pool.getPooledBytes());
+        Assert.assertSame(array, pool.acquireHeap(4000).buffer().array());
+        Assert.assertTrue(pool.acquire(4000).buffer().isDirect());
+        Assert.assertEquals(0, pool.getPooledBytes());
+    }
+
+    @Test
+    public void testRefCount() {
+        ByteBufferPool pool = new ByteBufferPool(false, 64 * 1024, 1024 * 1024);
+        PooledBuffer buffer = pool.acquire(2048);
+        buffer.retain();
+        Assert.assertEquals(2, buffer.refCount());
+
+        Assert.assertFalse(buffer.release());
+        Assert.assertEquals(0, pool.getPooledBytes());
+        Assert.assertTrue(buffer.release());
+        Assert.assertEquals(2048, pool.getPooledBytes());
+
+        try {
+            buffer.release();
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            // ожидаемо
+        }
+        try {
+            buffer.retain();
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            // ожидаемо
+        }
+        Assert.assertEquals(2048, pool.getPooledBytes());
+    }
+
+    @Test
+    public void testUnpooledSizes() {
+        ByteBufferPool pool = new ByteBufferPool(true, 64 * 1024, 1024 * 1024);
+        PooledBuffer small = pool.acquire(100);
+        PooledBuffer large = pool.acquire(100 * 1024);
+        Assert.assertTrue(small.buffer().isDirect());
+
+        small.release();
+        large.release();
+        Assert.assertEquals(0, pool.getPooledBytes());
+    }
+
+    @Test
+    public void testMessagePayload() {
+        byte[] data = {1, 2, 3};
+        Message message = new Message(Instant.now(), data);
+        // Массив сообщения не копируется, retain/release ничего не делают
+        Assert.assertSame(data, message.getData());
+        message.retain();
+        message.release();
+        message.release();
+
+        ByteBufferPool pool = new ByteBufferPool(true, 64 * 1024, 1024 * 1024);
+        PooledBuffer payload = pool.copyOf(ByteBuffer.wrap(new byte[2000]));
+        Message pooled = new Message(Instant.now(), payload, null, null);
+        Assert.assertEquals(2000, pooled.getSize());
+        Assert.assertEquals(2000, pooled.getPayload().remaining());
+        Assert.assertNotSame(pooled.getData(), pooled.getData());
+
+        pooled.retain();
+        pooled.release();
+        Assert.assertEquals(0, pool.getPooledBytes());
+        pooled.release();
+        Assert.assertEquals(2048, pool.getPooledBytes());
+    }
+
+    @Test
+    public void testDecoderUsesPool() throws IOException {
+        ByteBufferPool pool = new ByteBufferPool(false, 64 * 1024, 1024 * 1024);
+        List<ServiceResponse> responses = new ArrayList<>();
+        BatchResponseDecoder decoder = new BatchResponseDecoder(2, (index, response) -> responses.add(response),
+                pool);
+
+        ByteBuffer body = ByteBuffer.allocate(4 + 1500 + 4 + 10);
+        body.putInt(1500).put(new byte[1500]).putInt(10).put(new byte[10]);
+        body.flip();
+        decoder.onStatus(200);
+        decoder.onContent(body);
+        decoder.finish();
+
+        Assert.assertEquals(2, responses.size());
+        Assert.assertEquals(1500, responses.get(0).getSize());
+        Assert.assertEquals(10, responses.get(1).getPayload().remaining());
+
+        // Копия не связана с пулом
+        ServiceResponse copy = responses.get(0).copy();
+        responses.get(0).release();
+        responses.get(1).release();
+        Assert.assertEquals(2048, pool.getPooledBytes());
+        Assert.assertEquals(1500, copy.getData().length);
+    }
+}
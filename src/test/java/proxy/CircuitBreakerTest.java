@@ -0,0 +1,106 @@
+package proxy;
+
+import org.junit.Assert;
+import org.junit.Test;
+import proxy.impl.CircuitBreaker;
+
+/**
+ * @author rushan
+ */
+public class CircuitBreakerTest {
+
+    @Test
+    public void testOpenAfterConsecutiveFailures() {
+        CircuitBreaker breaker = new CircuitBreaker(3, 10_000, 0);
+
+        breaker.onFailure(breaker.tryAcquire());
+        breaker.onFailure(breaker.tryAcquire());
+        // Успех сбрасывает счетчик ошибок подряд
+        breaker.onSuccess(breaker.tryAcquire());
+        breaker.onFailure(breaker.tryAcquire());
+        breaker.onFailure(breaker.tryAcquire());
+        Assert.assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        CircuitBreaker.Permit permit = breaker.tryAcquire();
+        Assert.assertNotNull(permit);
+
+        breaker.onFailure(permit);
+        Assert.assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        Assert.assertNull(breaker.tryAcquire());
+        Assert.assertFalse(breaker.isCallPermitted());
+    }
+
+    @Test
+    public void testSingleProbe() throws InterruptedException {
+        CircuitBreaker breaker = new CircuitBreaker(1, 50, 0);
+        breaker.onFailure(breaker.tryAcquire());
+        Assert.assertNull(breaker.tryAcquire());
+
+        Thread.sleep(100);
+        Assert.assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        Assert.assertTrue(breaker.isCallPermitted());
+        CircuitBreaker.Permit probe = breaker.tryAcquire();
+        Assert.assertNotNull(probe);
+        // Второй пробный вызов не разрешается
+        Assert.assertNull(breaker.tryAcquire());
+        Assert.assertFalse(breaker.isCallPermitted());
+
+        // Неудачный пробный вызов снова размыкает цепь
+        breaker.onFailure(probe);
+        Assert.assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+
+        Thread.sleep(100);
+        probe = breaker.tryAcquire();
+        Assert.assertNotNull(probe);
+        breaker.onSuccess(probe);
+        Assert.assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        Assert.assertNotNull(breaker.tryAcquire());
+    }
+
+    /**
+     * Вызовы, начатые до размыкания цепи, завершаются во время пробного вызова - их результат не учитывается
+     */
+    @Test
+    public void testLateResultDuringProbe() throws InterruptedException {
+        CircuitBreaker breaker = new CircuitBreaker(1, 50, 0);
+        CircuitBreaker.Permit late = breaker.tryAcquire();
+        CircuitBreaker.Permit lateFailed = breaker.tryAcquire();
+        breaker.onFailure(breaker.tryAcquire());
+
+        Thread.sleep(100);
+        CircuitBreaker.Permit probe = breaker.tryAcquire();
+        Assert.assertNotNull(probe);
+        breaker.onSuccess(late);
+        Assert.assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        breaker.onFailure(lateFailed);
+        Assert.assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        Assert.assertFalse(breaker.isCallPermitted());
+
+        breaker.onSuccess(probe);
+        Assert.assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        // Повторный результат того же пробного вызова ничего не меняет
+        breaker.onFailure(probe);
+        Assert.assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void testRampUp() throws InterruptedException {
+        CircuitBreaker breaker = new CircuitBreaker(1, 0, 60_000);
+        // До первого размыкания нагрузка не ограничивается
+        for (int i = 0; i < 100; i++) {
+            Assert.assertNotNull(breaker.tryAcquire());
+        }
+
+        breaker.onFailure(breaker.tryAcquire());
+        breaker.onSuccess(breaker.tryAcquire());
+
+        // В начале восстановления проходит около MIN_RAMP_UP_FRACTION вызовов
+        int permitted = 0;
+        for (int i = 0; i < 10_000; i++) {
+            if (breaker.tryAcquire() != null) {
+                permitted++;
+            }
+        }
+        Assert.assertTrue("Permitted: " + permitted, permitted > 500 && permitted < 2000);
+        Assert.assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+}
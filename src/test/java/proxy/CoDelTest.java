@@ -0,0 +1,51 @@
+package proxy;
+
+import org.junit.Assert;
+import org.junit.Test;
+import proxy.impl.CoDel;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author rushan
+ */
+public class CoDelTest {
+
+    private static long ms(long ms) {
+        return TimeUnit.MILLISECONDS.toNanos(ms);
+    }
+
+    @Test
+    public void testShedWhenDelayStaysAboveTarget() {
+        CoDel codel = new CoDel(5, 100);
+        long start = System.nanoTime();
+
+        // Весь первый интервал сообщения ждут дольше target, но очередь еще не признана перегруженной
+        for (long t = 0; t < 100; t += 10) {
+            Assert.assertFalse(codel.shouldShed(ms(20), start + ms(t)));
+        }
+        Assert.assertFalse(codel.isOverloaded());
+
+        // Интервал закончился - сообщения, ждавшие дольше target, сбрасываются, остальные - нет
+        Assert.assertTrue(codel.shouldShed(ms(20), start + ms(110)));
+        Assert.assertTrue(codel.isOverloaded());
+        Assert.assertFalse(codel.shouldShed(ms(1), start + ms(120)));
+
+        // В этом интервале очередь хотя бы раз опустела - перегрузка закончилась
+        Assert.assertFalse(codel.shouldShed(ms(20), start + ms(220)));
+        Assert.assertFalse(codel.isOverloaded());
+    }
+
+    @Test
+    public void testShortBurstIsNotShed() {
+        CoDel codel = new CoDel(5, 100);
+        long start = System.nanoTime();
+
+        Assert.assertFalse(codel.shouldShed(ms(1), start + ms(10)));
+        // Всплеск в конце интервала: минимальное время ожидания в интервале было в пределах target
+        for (long t = 50; t < 200; t += 10) {
+            Assert.assertFalse(codel.shouldShed(ms(30), start + ms(t)));
+        }
+        Assert.assertTrue(codel.shouldShed(ms(30), start + ms(200)));
+    }
+}
@@ -0,0 +1,178 @@
+package proxy;
+
+import org.junit.Assert;
+import org.junit.Test;
+import proxy.api.MessageProxy;
+import proxy.impl.CollapsingProxy;
+import proxy.impl.ResponseCache;
+import proxy.model.Message;
+import proxy.model.ServiceResponse;
+import proxy.util.ByteBufferPool;
+import proxy.util.PooledBuffer;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * @author rushan
+ */
+public class CollapsingProxyTest {
+
+    private static final byte[] HEARTBEAT = "heartbeat".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] OTHER = "other".getBytes(StandardCharsets.UTF_8);
+    private static final ServiceResponse RESPONSE = ServiceResponse.ok("ok".getBytes(StandardCharsets.UTF_8));
+
+    /**
+     * Прокси, запоминающая сообщения и футуры ответов на них
+     */
+    private static class RecordingProxy implements MessageProxy {
+        private final List<Message> messages = new CopyOnWriteArrayList<>();
+        private final List<CompletableFuture<ServiceResponse>> futures = new CopyOnWriteArrayList<>();
+
+        @Override
+        public CompletableFuture<ServiceResponse> message(Message message) {
+            CompletableFuture<ServiceResponse> future = new CompletableFuture<>();
+            messages.add(message);
+            futures.add(future);
+            return future;
+        }
+    }
+
+    private static Message message(byte[] data) {
+        // Новый массив - тела сравниваются по содержимому
+        return new Message(Instant.now(), data.clone());
+    }
+
+    @Test
+    public void testCollapseIdenticalMessages() throws Exception {
+        RecordingProxy upstream = new RecordingProxy();
+        CollapsingProxy proxy = new CollapsingProxy(upstream, true, 0, 0, 0);
+
+        CompletableFuture<ServiceResponse> fut1 = proxy.message(message(HEARTBEAT));
+        CompletableFuture<ServiceResponse> fut2 = proxy.message(message(HEARTBEAT));
+        CompletableFuture<ServiceResponse> fut3 = proxy.message(message(OTHER));
+        Assert.assertEquals(2, upstream.messages.size());
+
+        // Отмена одним клиентом не отменяет сообщение для остальных
+        fut1.cancel(false);
+        Assert.assertFalse(upstream.futures.get(0).isCancelled());
+
+        upstream.futures.get(0).complete(RESPONSE);
+        Assert.assertSame(RESPONSE, fut2.join());
+        Assert.assertFalse(fut3.isDone());
+
+        // Ответ получен - следующее такое же сообщение отправляется заново
+        proxy.message(message(HEARTBEAT));
+        Assert.assertEquals(3, upstream.messages.size());
+    }
+
+    @Test
+    public void testCancelWhenAllCallersCancel() throws Exception {
+        RecordingProxy upstream = new RecordingProxy();
+        CollapsingProxy proxy = new CollapsingProxy(upstream, true, 0, 0, 0);
+
+        CompletableFuture<ServiceResponse> fut1 = proxy.message(message(HEARTBEAT));
+        CompletableFuture<ServiceResponse> fut2 = proxy.message(message(HEARTBEAT));
+        fut1.cancel(false);
+        fut2.cancel(false);
+        Assert.assertTrue(upstream.futures.get(0).isCancelled());
+
+        CompletableFuture<ServiceResponse> fut3 = proxy.message(message(HEARTBEAT));
+        Assert.assertEquals(2, upstream.messages.size());
+        upstream.futures.get(1).complete(RESPONSE);
+        Assert.assertSame(RESPONSE, fut3.join());
+    }
+
+    @Test
+    public void testResponseCache() throws Exception {
+        RecordingProxy upstream = new RecordingProxy();
+        CollapsingProxy proxy = new CollapsingProxy(upstream, false, 100, 10, 1024);
+
+        CompletableFuture<ServiceResponse> fut1 = proxy.message(message(HEARTBEAT));
+        upstream.futures.get(0).complete(RESPONSE);
+        Assert.assertSame(RESPONSE, fut1.join());
+
+        Assert.assertSame(RESPONSE, proxy.message(message(HEARTBEAT)).join());
+        Assert.assertEquals(1, upstream.messages.size());
+
+        // Ошибки сервиса не кэшируются
+        proxy.message(message(OTHER));
+        upstream.futures.get(1).complete(ServiceResponse.response(500, new byte[0]));
+        proxy.message(message(OTHER));
+        Assert.assertEquals(3, upstream.messages.size());
+
+        // Срок жизни ответа истек
+        Thread.sleep(150);
+        proxy.message(message(HEARTBEAT));
+        Assert.assertEquals(4, upstream.messages.size());
+    }
+
+    /**
+     * Ответ с буфером из пула кэшируется до того, как получатель освободит его после записи клиенту
+     */
+    @Test
+    public void testCachePooledResponse() throws Exception {
+        ByteBufferPool pool = new ByteBufferPool(false, ByteBufferPool.MAX_POOLED_SIZE_DEFAULT,
+                ByteBufferPool.MAX_POOLED_BYTES_DEFAULT);
+        byte[] data = new byte[ByteBufferPool.MIN_BUFFER_SIZE];
+        Arrays.fill(data, (byte) 1);
+
+        RecordingProxy upstream = new RecordingProxy();
+        CollapsingProxy proxy = new CollapsingProxy(upstream, false, 10_000, 10, 1024 * 1024);
+
+        // Как сервлет: ответ освобождается сразу после записи
+        CompletableFuture<ServiceResponse> fut1 = proxy.message(message(HEARTBEAT));
+        AtomicReference<byte[]> written = new AtomicReference<>();
+        fut1.whenComplete((response, ex) -> {
+            written.set(response.getData());
+            response.release();
+        });
+        PooledBuffer payload = pool.copyOf(ByteBuffer.wrap(data));
+        upstream.futures.get(0).complete(ServiceResponse.response(200, payload));
+        Assert.assertArrayEquals(data, written.get());
+        Assert.assertEquals(0, payload.refCount());
+
+        // Буфер вернулся в пул и перезаписан следующим ответом
+        pool.acquire(data.length).buffer().put(new byte[data.length]);
+
+        CompletableFuture<ServiceResponse> cached = proxy.message(message(HEARTBEAT));
+        Assert.assertEquals(1, upstream.messages.size());
+        Assert.assertArrayEquals(data, cached.join().getData());
+
+        // Отмена получателем отменяет отправку сервису
+        CompletableFuture<ServiceResponse> fut2 = proxy.message(message(OTHER));
+        fut2.cancel(false);
+        Assert.assertTrue(upstream.futures.get(1).isCancelled());
+    }
+
+    @Test
+    public void testCacheEviction() {
+        ResponseCache<String> cache = new ResponseCache<>(10_000, 3, 30);
+        ServiceResponse response = ServiceResponse.ok(new byte[5]);
+
+        cache.put("a", 5, response);
+        cache.put("b", 5, response);
+        cache.put("c", 5, response);
+        Assert.assertEquals(30, cache.getBytes());
+
+        // "a" использовался недавно - вытесняется "b"
+        Assert.assertSame(response, cache.get("a"));
+        cache.put("d", 5, response);
+        Assert.assertNull(cache.get("b"));
+        Assert.assertSame(response, cache.get("a"));
+        Assert.assertEquals(3, cache.size());
+
+        // По размеру: новая запись вытесняет две самые старые
+        cache.put("e", 15, response);
+        Assert.assertEquals(2, cache.size());
+        Assert.assertNull(cache.get("c"));
+        Assert.assertNull(cache.get("d"));
+        Assert.assertEquals(30, cache.getBytes());
+    }
+}
@@ -0,0 +1,179 @@
+package proxy;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import proxy.impl.DiskSpillQueue;
+import proxy.model.Message;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * @author rushan
+ */
+public class DiskSpillQueueTest {
+
+    private static final int SEGMENT_SIZE = 64;
+
+    private Path directory;
+
+    @Before
+    public void init() throws IOException {
+        directory = Files.createTempDirectory("spill-test");
+    }
+
+    @After
+    public void cleanup() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @Test
+    public void testOrderAcrossSegments() throws IOException {
+        try (DiskSpillQueue<String> queue = new DiskSpillQueue<>(directory, SEGMENT_SIZE, 0, 10)) {
+            // В сегмент помещается 3 записи по 16 + 4 байт
+            for (int i = 0; i < 10; i++) {
+                Assert.assertTrue(queue.append(message("m" + i + "_"), "a" + i));
+            }
+            Assert.assertEquals(10, queue.size());
+
+            for (int i = 0; i < 10; i++) {
+                DiskSpillQueue.Entry<String> entry = queue.poll();
+                Assert.assertEquals("m" + i + "_", data(entry.getMessage()));
+                Assert.assertEquals("a" + i, entry.getAttachment());
+            }
+            Assert.assertNull(queue.poll());
+            Assert.assertTrue(queue.isEmpty());
+        }
+        // Прочитанные сегменты удалены
+        Assert.assertTrue(segments().size() <= 1);
+    }
+
+    @Test
+    public void testPeekAndCommit() throws IOException {
+        try (DiskSpillQueue<String> queue = new DiskSpillQueue<>(directory, SEGMENT_SIZE, 0, 10)) {
+            for (int i = 0; i < 4; i++) {
+                queue.append(message("m" + i + "_"), "a" + i);
+            }
+            // Прочитанное, но не извлеченное сообщение остается в начале очереди, в том числе на границе сегментов
+            for (int i = 0; i < 4; i++) {
+                Assert.assertEquals("m" + i + "_", data(queue.peek().getMessage()));
+                DiskSpillQueue.Entry<String> entry = queue.peek();
+                Assert.assertEquals("m" + i + "_", data(entry.getMessage()));
+                Assert.assertEquals("a" + i, entry.getAttachment());
+                Assert.assertEquals(4 - i, queue.size());
+                queue.commitPoll();
+            }
+            Assert.assertNull(queue.peek());
+            try {
+                queue.commitPoll();
+                Assert.fail();
+            } catch (IllegalStateException e) {
+                // ожидаемо
+            }
+        }
+    }
+
+    @Test
+    public void testLargeMessage() throws IOException {
+        try (DiskSpillQueue<String> queue = new DiskSpillQueue<>(directory, SEGMENT_SIZE, 0, 10)) {
+            String large = new String(new char[SEGMENT_SIZE * 2]).replace('\0', 'x');
+            Assert.assertTrue(queue.append(message("small"), null));
+            Assert.assertTrue(queue.append(message(large), null));
+            Assert.assertEquals("small", data(queue.poll().getMessage()));
+            Assert.assertEquals(large, data(queue.poll().getMessage()));
+        }
+    }
+
+    @Test
+    public void testMaxDiskBytes() throws IOException {
+        try (DiskSpillQueue<String> queue = new DiskSpillQueue<>(directory, SEGMENT_SIZE, SEGMENT_SIZE, 10)) {
+            for (int i = 0; i < 3; i++) {
+                Assert.assertTrue(queue.append(message("m" + i + "_"), null));
+            }
+            // Второй сегмент не помещается
+            Assert.assertFalse(queue.append(message("m3_"), null));
+
+            queue.poll();
+            queue.poll();
+            queue.poll();
+            // Сегмент освобожден после прочтения
+            Assert.assertTrue(queue.append(message("m3_"), null));
+        }
+    }
+
+    @Test
+    public void testRecovery() throws IOException {
+        try (DiskSpillQueue<String> queue = new DiskSpillQueue<>(directory, SEGMENT_SIZE, 0, 10)) {
+            for (int i = 0; i < 7; i++) {
+                queue.append(message("m" + i + "_"), "a" + i);
+            }
+            Assert.assertEquals("m0_", data(queue.poll().getMessage()));
+            Assert.assertEquals("m1_", data(queue.poll().getMessage()));
+        }
+
+        try (DiskSpillQueue<String> queue = new DiskSpillQueue<>(directory, SEGMENT_SIZE, 0, 10)) {
+            Assert.assertEquals(5, queue.size());
+            queue.append(message("m7_"), "a7");
+
+            for (int i = 2; i < 8; i++) {
+                DiskSpillQueue.Entry<String> entry = queue.poll();
+                Assert.assertEquals("m" + i + "_", data(entry.getMessage()));
+                // Привязанные объекты не переживают перезапуск
+                Assert.assertEquals(i < 7 ? null : "a7", entry.getAttachment());
+            }
+            Assert.assertNull(queue.poll());
+        }
+    }
+
+    @Test
+    public void testRecoveryStopsOnCorruptedRecord() throws IOException {
+        try (DiskSpillQueue<String> queue = new DiskSpillQueue<>(directory, SEGMENT_SIZE, 0, 10)) {
+            queue.append(message("m0_"), null);
+            queue.append(message("m1_"), null);
+        }
+
+        // Портим данные второй записи - она и все последующие не восстанавливаются
+        try (RandomAccessFile file = new RandomAccessFile(segments().get(0).toFile(), "rw")) {
+            file.seek(19 + 16);
+            file.write('X');
+        }
+
+        try (DiskSpillQueue<String> queue = new DiskSpillQueue<>(directory, SEGMENT_SIZE, 0, 10)) {
+            Assert.assertEquals(1, queue.size());
+            Assert.assertEquals("m0_", data(queue.poll().getMessage()));
+
+            // Запись продолжается с места повреждения
+            queue.append(message("m2_"), null);
+            Assert.assertEquals("m2_", data(queue.poll().getMessage()));
+        }
+    }
+
+    private List<Path> segments() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(f -> f.getFileName().toString().startsWith("segment-")).sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private static Message message(String data) {
+        return new Message(Instant.now(), data.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String data(Message message) {
+        return new String(message.getData(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,123 @@
+package proxy;
+
+import org.junit.Assert;
+import org.junit.Test;
+import proxy.impl.ExecutorServiceCall;
+import proxy.impl.ServiceRetrySupport;
+import proxy.model.Message;
+import proxy.model.ServiceResponse;
+import proxy.util.VirtualThreads;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author rushan
+ */
+public class ExecutorServiceCallTest {
+
+    private static final byte[] TEST_DATA = "test".getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * На Java 21+ - виртуальные потоки, на более старых - обычные
+     */
+    private static ExecutorService executor() {
+        return VirtualThreads.isAvailable() ? VirtualThreads.executor("test-call-") : Executors.newCachedThreadPool();
+    }
+
+    /**
+     * Батч-ответ из одного сообщения с данными TEST_DATA
+     */
+    private static ServiceResponse response() {
+        ByteBuffer buffer = ByteBuffer.allocate(4 + TEST_DATA.length);
+        buffer.putInt(TEST_DATA.length);
+        buffer.put(TEST_DATA);
+        return ServiceResponse.ok(buffer.array());
+    }
+
+    @Test
+    public void testCallDoesNotBlockCaller() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger calls = new AtomicInteger();
+        ExecutorServiceCall call = new ExecutorServiceCall(data -> {
+            calls.incrementAndGet();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            return response();
+        }, executor());
+
+        try (ServiceRetrySupport serviceRetry = new ServiceRetrySupport(call, 1, 10, 1000)) {
+            CompletableFuture<List<ServiceResponse>> first = serviceRetry.callAsync(
+                    Collections.singletonList(new Message(Instant.now(), TEST_DATA)));
+            CompletableFuture<List<ServiceResponse>> second = serviceRetry.callAsync(
+                    Collections.singletonList(new Message(Instant.now(), TEST_DATA)));
+
+            // Оба вызова сервиса выполняются одновременно, вызывающий поток свободен
+            long deadline = System.currentTimeMillis() + 1000;
+            while (calls.get() < 2 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            Assert.assertEquals(2, calls.get());
+            Assert.assertFalse(first.isDone());
+
+            release.countDown();
+            Assert.assertArrayEquals(TEST_DATA, first.get(1, TimeUnit.SECONDS).get(0).getData());
+            Assert.assertArrayEquals(TEST_DATA, second.get(1, TimeUnit.SECONDS).get(0).getData());
+        } finally {
+            call.close();
+        }
+    }
+
+    @Test
+    public void testIOExceptionIsRetried() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        ExecutorServiceCall call = new ExecutorServiceCall(data -> {
+            if (calls.incrementAndGet() == 1) {
+                throw new IOException("Service is not available");
+            }
+            return response();
+        }, executor());
+
+        try (ServiceRetrySupport serviceRetry = new ServiceRetrySupport(call, 1, 10, 1000)) {
+            List<ServiceResponse> responses = serviceRetry.callAsync(
+                    Collections.singletonList(new Message(Instant.now(), TEST_DATA))).get(1, TimeUnit.SECONDS);
+            Assert.assertArrayEquals(TEST_DATA, responses.get(0).getData());
+            Assert.assertEquals(2, calls.get());
+        } finally {
+            call.close();
+        }
+    }
+
+    /**
+     * Error из вызова сервиса завершает футуру, а не теряется в потоке executor'а
+     */
+    @Test
+    public void testErrorCompletesFuture() throws Exception {
+        ExecutorServiceCall call = new ExecutorServiceCall(data -> {
+            throw new StackOverflowError();
+        }, executor());
+
+        try {
+            call.callAsync(TEST_DATA).get(1, TimeUnit.SECONDS);
+            Assert.fail();
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof StackOverflowError);
+        } finally {
+            call.close();
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package proxy;
+
+import org.junit.Assert;
+import org.junit.Test;
+import proxy.impl.FairQueue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Элементы очереди - строки вида "клиент:номер", стоимость элемента - 1.
+ *
+ * @author rushan
+ */
+public class FairQueueTest {
+
+    private static FairQueue<String> queue(int capacity, int laneCapacity, Map<String, Integer> weights) {
+        return new FairQueue<>(capacity, laneCapacity, 1, e -> e.substring(0, e.indexOf(':')), e -> 1, weights);
+    }
+
+    @Test
+    public void testRoundRobinAcrossClients() {
+        FairQueue<String> queue = queue(100, 100, null);
+        for (int i = 0; i < 5; i++) {
+            Assert.assertTrue(queue.offer("a:" + i));
+        }
+        Assert.assertTrue(queue.offer("b:0"));
+        Assert.assertTrue(queue.offer("b:1"));
+        Assert.assertEquals(2, queue.getLaneCount());
+
+        // Сообщения b не ждут, пока будут отправлены все ранее поступившие сообщения a
+        List<String> batch = new ArrayList<>();
+        Assert.assertEquals(4, queue.drainTo(batch, 4));
+        Assert.assertEquals(Arrays.asList("a:0", "b:0", "a:1", "b:1"), batch);
+
+        batch.clear();
+        queue.drainTo(batch);
+        Assert.assertEquals(Arrays.asList("a:2", "a:3", "a:4"), batch);
+        Assert.assertEquals(0, queue.getLaneCount());
+        Assert.assertNull(queue.poll());
+    }
+
+    @Test
+    public void testClientLimit() {
+        FairQueue<String> queue = queue(4, 2, null);
+        Assert.assertTrue(queue.offer("a:0"));
+        Assert.assertTrue(queue.offer("a:1"));
+        // Очередь не заполнена, но клиент a исчерпал свой лимит
+        Assert.assertFalse(queue.offer("a:2"));
+        Assert.assertTrue(queue.offer("b:0"));
+        Assert.assertTrue(queue.offer("c:0"));
+        Assert.assertFalse(queue.offer("d:0"));
+        Assert.assertEquals(0, queue.remainingCapacity());
+
+        Assert.assertEquals("a:0", queue.poll());
+        Assert.assertTrue(queue.offer("a:2"));
+    }
+
+    @Test
+    public void testOfferAll() {
+        FairQueue<String> queue = queue(5, 2, null);
+        Assert.assertTrue(queue.offer("b:0"));
+        // Клиент a исчерпал свой лимит на третьем элементе
+        Assert.assertEquals(2, queue.offerAll(Arrays.asList("a:0", "a:1", "a:2", "c:0")));
+        Assert.assertEquals(2, queue.offerAll(Arrays.asList("c:0", "d:0", "e:0")));
+
+        List<String> all = new ArrayList<>();
+        queue.drainTo(all);
+        Assert.assertEquals(Arrays.asList("b:0", "a:0", "c:0", "d:0", "a:1"), all);
+    }
+
+    @Test
+    public void testIterator() {
+        FairQueue<String> queue = queue(5, 2, null);
+        queue.offerAll(Arrays.asList("a:0", "b:0", "a:1", "c:0"));
+
+        List<String> all = new ArrayList<>(queue);
+        Assert.assertEquals(Arrays.asList("a:0", "a:1", "b:0", "c:0"), all);
+        Assert.assertTrue(queue.contains("c:0"));
+
+        // Удаление освобождает место в очереди и в полосе, опустевшая полоса удаляется
+        Assert.assertTrue(queue.removeIf(e -> e.startsWith("a:") || e.equals("c:0")));
+        Assert.assertEquals(1, queue.size());
+        Assert.assertEquals(1, queue.getLaneCount());
+        Assert.assertEquals(2, queue.offerAll(Arrays.asList("a:2", "a:3")));
+
+        all.clear();
+        queue.drainTo(all);
+        Assert.assertEquals(Arrays.asList("b:0", "a:2", "a:3"), all);
+    }
+
+    @Test
+    public void testWeights() {
+        Map<String, Integer> weights = new HashMap<>();
+        weights.put("a", 3);
+        FairQueue<String> queue = queue(100, 100, weights);
+        for (int i = 0; i < 6; i++) {
+            queue.offer("a:" + i);
+            queue.offer("b:" + i);
+        }
+
+        List<String> batch = new ArrayList<>();
+        queue.drainTo(batch, 8);
+        Assert.assertEquals(Arrays.asList("a:0", "a:1", "a:2", "b:0", "a:3", "a:4", "a:5", "b:1"), batch);
+    }
+
+    @Test
+    public void testDeficitByCost() {
+        // Стоимость - длина номера: большие сообщения клиента a отдаются реже
+        FairQueue<String> queue = new FairQueue<>(100, 100, 2, e -> e.substring(0, e.indexOf(':')),
+                e -> e.length() - 2, Collections.emptyMap());
+        queue.offer("a:xxxx");
+        queue.offer("a:xxxx");
+        for (int i = 0; i < 4; i++) {
+            queue.offer("b:" + i);
+        }
+
+        List<String> batch = new ArrayList<>();
+        queue.drainTo(batch);
+        Assert.assertEquals(Arrays.asList("b:0", "b:1", "a:xxxx", "b:2", "b:3", "a:xxxx"), batch);
+    }
+
+    /**
+     * Элементы во много квантов: круги без извлечения не обходятся по одному
+     */
+    @Test
+    public void testLargeElementsSkipRounds() throws Exception {
+        FairQueue<String> queue = new FairQueue<>(100, 100, 1, e -> e.substring(0, e.indexOf(':')),
+                e -> Integer.parseInt(e.substring(e.indexOf(':') + 1)), Collections.emptyMap());
+        queue.offer("a:2000000000");
+        queue.offer("b:1000000000");
+        queue.offer("c:1000000001");
+        queue.offer("b:1");
+
+        List<String> batch = CompletableFuture.supplyAsync(() -> {
+            List<String> result = new ArrayList<>();
+            queue.drainTo(result);
+            return result;
+        }).get(1, TimeUnit.SECONDS);
+        Assert.assertEquals(Arrays.asList("b:1000000000", "b:1", "c:1000000001", "a:2000000000"), batch);
+    }
+
+    /**
+     * Писатели ждут места по разным причинам: освободившееся место в очереди достается тому, кто может его занять
+     */
+    @Test
+    public void testWakeProducerThatCanProceed() throws Exception {
+        FairQueue<String> queue = queue(2, 1, null);
+        queue.offer("b:0");
+        queue.offer("a:0");
+
+        // Первым ждет писатель в заполненную полосу a, вторым - в свободную полосу c
+        CompletableFuture<Void> laneBlocked = put(queue, "a:1");
+        Thread.sleep(50);
+        CompletableFuture<Void> queueBlocked = put(queue, "c:0");
+        Thread.sleep(50);
+        Assert.assertFalse(queueBlocked.isDone());
+
+        Assert.assertEquals("b:0", queue.poll());
+        queueBlocked.get(1, TimeUnit.SECONDS);
+        Assert.assertFalse(laneBlocked.isDone());
+
+        Assert.assertEquals("a:0", queue.poll());
+        laneBlocked.get(1, TimeUnit.SECONDS);
+    }
+
+    private static CompletableFuture<Void> put(FairQueue<String> queue, String e) {
+        return CompletableFuture.runAsync(() -> {
+            try {
+                queue.put(e);
+            } catch (InterruptedException ex) {
+                throw new IllegalStateException(ex);
+            }
+        });
+    }
+
+    @Test
+    public void testTake() throws Exception {
+        FairQueue<String> queue = queue(10, 10, null);
+        CompletableFuture<String> taken = CompletableFuture.supplyAsync(() -> {
+            try {
+                return queue.take();
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        Thread.sleep(50);
+        Assert.assertFalse(taken.isDone());
+
+        queue.offer("a:0");
+        Assert.assertEquals("a:0", taken.get(1, TimeUnit.SECONDS));
+        Assert.assertNull(queue.poll(10, TimeUnit.MILLISECONDS));
+    }
+}
@@ -1,23 +1,41 @@
 package proxy;
 
 import com.sun.net.httpserver.HttpServer;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.api.ContentResponse;
+import org.eclipse.jetty.client.util.BytesContentProvider;
+import org.eclipse.jetty.http.HttpVersion;
+import org.eclipse.jetty.http2.client.HTTP2Client;
+import org.eclipse.jetty.http2.client.http.HttpClientTransportOverHTTP2;
 import org.junit.Assert;
 import org.junit.Test;
+import proxy.model.BatchBody;
+import proxy.model.Message;
 import proxy.model.ServiceResponse;
 import proxy.util.Util;
+import proxy.web.MessageServlet;
+import proxy.web.WebServer;
 
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.UncheckedIOException;
 import java.net.HttpURLConnection;
 import java.net.InetSocketAddress;
+import java.net.Socket;
 import java.net.URL;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
@@ -101,34 +119,164 @@ public class IntegrationTest {
         proxy.dispose();
     }
 
+    @Test
+    public void testTooLargeMessage() throws InterruptedException, IOException {
+        HashMap<String, String> args = new HashMap<>();
+        args.put("port", "8182");
+        args.put("maxMessageSize", "3");
+        Proxy proxy = new Proxy(args);
+        proxy.start();
+
+        // Content-Length больше допустимого - отказ без чтения тела
+        HttpURLConnection httpCon = (HttpURLConnection) new URL("http://localhost:8182/message").openConnection();
+        httpCon.setDoOutput(true);
+        httpCon.setRequestMethod("POST");
+        try (OutputStream os = httpCon.getOutputStream()) {
+            os.write(TEST_DATA);
+        }
+        Assert.assertEquals(413, httpCon.getResponseCode());
+
+        proxy.dispose();
+    }
+
     /**
-     * Тестовый сервис, который задваивает вход
+     * Заявленный размер тела не выделяется до получения данных. Тело больше
+     * {@link MessageServlet#MESSAGE_MAX_SIZE_BYTES} по умолчанию отклоняется по заголовку.
      */
-    private void createAndStartTestService(int port) throws IOException {
-        HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
-        server.createContext("/sendMessage", exchange -> {
-            byte[] bytes = Util.readMessageBody(exchange.getRequestBody(), Integer.MAX_VALUE);
-            ByteBuffer inputBuff = ByteBuffer.wrap(bytes);
-            List<String> fromProxyList = new ArrayList<>();
-            while (inputBuff.remaining() > 0) {
-                inputBuff.getLong();
-                int len = inputBuff.getInt();
-                byte[] inputData = new byte[len];
-                inputBuff.get(inputData);
-
-                fromProxyList.add(new String(inputData));
+    @Test
+    public void testLargeContentLength() throws Exception {
+        createAndStartTestService(8286);
+
+        HashMap<String, String> args = new HashMap<>();
+        args.put("port", "8186");
+        args.put("serviceUrl", "http://localhost:8286/sendMessage");
+        Proxy proxy = new Proxy(args);
+        proxy.start();
+        try {
+            Assert.assertEquals("HTTP/1.1 413 Payload Too Large", postPartial(8186, 2_147_483_000L));
+            Assert.assertEquals("HTTP/1.1 413 Payload Too Large", postPartial(8186, 5_000_000_000L));
+
+            // Тело больше предвыделяемого размера читается частями по мере поступления
+            byte[] data = new byte[200 * 1024];
+            Arrays.fill(data, (byte) 'x');
+            ServiceResponse response = doResponseToProxy("http://localhost:8186/message", data);
+            Assert.assertEquals(200, response.getStatus());
+            Assert.assertEquals(2 * data.length, response.getData().length);
+        } finally {
+            proxy.dispose();
+        }
+    }
+
+    /**
+     * Отправляет заголовки запроса с заданным Content-Length и первый байт тела, возвращает строку статуса ответа.
+     * Без тела jetty не передает запрос сервлету.
+     */
+    private static String postPartial(int port, long contentLength) throws IOException {
+        try (Socket socket = new Socket("localhost", port)) {
+            socket.setSoTimeout(5000);
+            OutputStream os = socket.getOutputStream();
+            os.write(("POST /message HTTP/1.1\r\nHost: localhost\r\nContent-Length: " + contentLength
+                    + "\r\n\r\nx").getBytes(StandardCharsets.US_ASCII));
+            os.flush();
+            return new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII))
+                    .readLine();
+        }
+    }
+
+    /**
+     * Пакет сообщений от клиента: фреймы ответов пишутся по мере получения ответов сервиса
+     */
+    @Test
+    public void testBatchRequest() throws Exception {
+        createAndStartTestService(8285);
+
+        HashMap<String, String> args = new HashMap<>();
+        args.put("port", "8185");
+        args.put("serviceUrl", "http://localhost:8285/sendMessage");
+        Proxy proxy = new Proxy(args);
+        proxy.start();
+        try {
+            List<Message> messages = IntStream.range(0, 100)
+                    .mapToObj(i -> new Message(Instant.now(), String.valueOf(i).getBytes()))
+                    .collect(Collectors.toList());
+            ServiceResponse response = doResponseToProxy("http://localhost:8185/message" + MessageServlet.BATCH_PATH,
+                    new BatchBody(messages).toByteArray());
+            Assert.assertEquals(200, response.getStatus());
+
+            // Фреймы в порядке получения ответов: номер сообщения, статус, размер и данные
+            ByteBuffer frames = ByteBuffer.wrap(response.getData());
+            boolean[] answered = new boolean[messages.size()];
+            while (frames.hasRemaining()) {
+                int index = frames.getInt();
+                Assert.assertEquals(200, frames.getInt());
+                byte[] data = new byte[frames.getInt()];
+                frames.get(data);
+                String input = new String(messages.get(index).getData());
+                Assert.assertEquals(input + input, new String(data));
+                answered[index] = true;
             }
+            for (boolean a : answered) {
+                Assert.assertTrue(a);
+            }
+        } finally {
+            proxy.dispose();
+        }
+    }
 
-            int inputDataLen = fromProxyList.stream().mapToInt(String::length).sum();
-            ByteBuffer outputBuf = ByteBuffer.allocate(4 * fromProxyList.size() + 2 * inputDataLen);
+    /**
+     * Клиент - прокси - сервис по HTTP/2 без TLS: запросы клиента и батчи идут параллельными потоками соединений
+     */
+    @Test
+    public void testHttp2() throws Exception {
+        // Сервис на веб-сервере прокси, который задваивает вход
+        WebServer service = new WebServer(8284, "/sendMessage", 2, 8,
+                message -> CompletableFuture.completedFuture(ServiceResponse.ok(doubleBatch(message.getData()))));
+        service.start();
+
+        HashMap<String, String> args = new HashMap<>();
+        args.put("port", "8184");
+        args.put("serviceUrl", "http://localhost:8284/sendMessage");
+        args.put("serviceCall", Proxy.SERVICE_CALL_HTTP2);
+        Proxy proxy = new Proxy(args);
+        proxy.start();
+
+        HttpClient client = new HttpClient(new HttpClientTransportOverHTTP2(new HTTP2Client()), null);
+        client.start();
+        try {
+            List<String> inputs = IntStream.range(0, 100).mapToObj(String::valueOf).collect(Collectors.toList());
+            List<ContentResponse> responses = inputs.parallelStream()
+                    .map(input -> {
+                        try {
+                            return client.POST("http://localhost:8184/message")
+                                    .content(new BytesContentProvider(input.getBytes()))
+                                    .timeout(10, TimeUnit.SECONDS)
+                                    .send();
+                        } catch (Exception e) {
+                            throw new IllegalStateException(e);
+                        }
+                    })
+                    .collect(Collectors.toList());
 
-            for (String fromProxy : fromProxyList) {
-                byte[] testResponse = (fromProxy + fromProxy).getBytes();
-                outputBuf.putInt(testResponse.length);
-                outputBuf.put(testResponse);
+            for (int i = 0; i < inputs.size(); i++) {
+                ContentResponse response = responses.get(i);
+                Assert.assertEquals(200, response.getStatus());
+                Assert.assertEquals(HttpVersion.HTTP_2, response.getVersion());
+                Assert.assertEquals(inputs.get(i) + inputs.get(i), new String(response.getContent()));
             }
+        } finally {
+            client.stop();
+            proxy.dispose();
+            service.stop();
+        }
+    }
 
-            byte[] toRet = outputBuf.array();
+    /**
+     * Тестовый сервис, который задваивает вход
+     */
+    private void createAndStartTestService(int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/sendMessage", exchange -> {
+            byte[] toRet = doubleBatch(Util.readMessageBody(exchange.getRequestBody(), Integer.MAX_VALUE));
             exchange.sendResponseHeaders(200, toRet.length);
             try (OutputStream os = exchange.getResponseBody()) {
                 os.write(toRet);
@@ -138,6 +286,32 @@ public class IntegrationTest {
         server.start();
     }
 
+    /**
+     * Батч-ответ, в котором каждое сообщение батча задвоено
+     */
+    private static byte[] doubleBatch(byte[] bytes) {
+        ByteBuffer inputBuff = ByteBuffer.wrap(bytes);
+        List<String> fromProxyList = new ArrayList<>();
+        while (inputBuff.remaining() > 0) {
+            inputBuff.getLong();
+            int len = inputBuff.getInt();
+            byte[] inputData = new byte[len];
+            inputBuff.get(inputData);
+
+            fromProxyList.add(new String(inputData));
+        }
+
+        int inputDataLen = fromProxyList.stream().mapToInt(String::length).sum();
+        ByteBuffer outputBuf = ByteBuffer.allocate(4 * fromProxyList.size() + 2 * inputDataLen);
+
+        for (String fromProxy : fromProxyList) {
+            byte[] testResponse = (fromProxy + fromProxy).getBytes();
+            outputBuf.putInt(testResponse.length);
+            outputBuf.put(testResponse);
+        }
+        return outputBuf.array();
+    }
+
     private ServiceResponse doResponseToProxy(String url, byte[] data) {
         try {
             URL proxyUrl = new URL(url);
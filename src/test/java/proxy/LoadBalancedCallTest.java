@@ -0,0 +1,138 @@
+package proxy;
+
+import org.junit.Assert;
+import org.junit.Test;
+import proxy.api.ServiceCall;
+import proxy.impl.LoadBalancedCall;
+import proxy.model.ServiceResponse;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author rushan
+ */
+public class LoadBalancedCallTest {
+
+    private static final byte[] TEST_DATA = "Test".getBytes();
+
+    @Test
+    public void testLeastOutstanding() throws Exception {
+        CountDownLatch started = new CountDownLatch(2);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger firstCalls = new AtomicInteger();
+        AtomicInteger secondCalls = new AtomicInteger();
+        LoadBalancedCall call = new LoadBalancedCall(Arrays.asList(
+                blockingCall(firstCalls, started, release), blockingCall(secondCalls, started, release)),
+                LoadBalancedCall.Strategy.LEAST_OUTSTANDING, 1000);
+
+        Thread thread1 = new Thread(() -> callQuietly(call));
+        thread1.start();
+        // Второй батч уходит на экземпляр без батчей в ожидании ответа
+        Thread thread2 = new Thread(() -> callQuietly(call));
+        while (firstCalls.get() + secondCalls.get() == 0) {
+            Thread.sleep(1);
+        }
+        thread2.start();
+
+        Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+        release.countDown();
+        thread1.join();
+        thread2.join();
+        Assert.assertEquals(1, firstCalls.get());
+        Assert.assertEquals(1, secondCalls.get());
+    }
+
+    @Test
+    public void testEjectOnFailure() throws Exception {
+        AtomicBoolean firstAvailable = new AtomicBoolean(false);
+        AtomicInteger firstCalls = new AtomicInteger();
+        AtomicInteger secondCalls = new AtomicInteger();
+        ServiceCall first = data -> {
+            firstCalls.incrementAndGet();
+            if (!firstAvailable.get()) {
+                throw new IOException("Test error");
+            }
+            return ServiceResponse.ok(data);
+        };
+        ServiceCall second = data -> {
+            secondCalls.incrementAndGet();
+            return ServiceResponse.ok(data);
+        };
+        LoadBalancedCall call = new LoadBalancedCall(Arrays.asList(first, second),
+                LoadBalancedCall.Strategy.PEAK_EWMA, 200);
+
+        // Ждем, пока первый экземпляр не получит батч и не будет исключен
+        while (firstCalls.get() == 0) {
+            callQuietly(call);
+        }
+        int ejectedCalls = firstCalls.get();
+        for (int i = 0; i < 100; i++) {
+            Assert.assertArrayEquals(TEST_DATA, call.call(TEST_DATA).getData());
+        }
+        Assert.assertEquals(ejectedCalls, firstCalls.get());
+
+        firstAvailable.set(true);
+        Thread.sleep(300);
+        for (int i = 0; i < 100 && firstCalls.get() == ejectedCalls; i++) {
+            call.call(TEST_DATA);
+        }
+        Assert.assertTrue(firstCalls.get() > ejectedCalls);
+    }
+
+    @Test
+    public void testPeakEwmaPrefersFasterEndpoint() throws Exception {
+        AtomicInteger slowCalls = new AtomicInteger();
+        AtomicInteger fastCalls = new AtomicInteger();
+        ServiceCall slow = data -> {
+            slowCalls.incrementAndGet();
+            sleep(20);
+            return ServiceResponse.ok(data);
+        };
+        ServiceCall fast = data -> {
+            fastCalls.incrementAndGet();
+            return ServiceResponse.ok(data);
+        };
+        LoadBalancedCall call = new LoadBalancedCall(Arrays.asList(slow, fast),
+                LoadBalancedCall.Strategy.PEAK_EWMA, 1000);
+
+        for (int i = 0; i < 50; i++) {
+            call.call(TEST_DATA);
+        }
+        Assert.assertTrue("Slow endpoint calls: " + slowCalls.get(), slowCalls.get() <= 2);
+        Assert.assertTrue(fastCalls.get() >= 48);
+    }
+
+    private static ServiceCall blockingCall(AtomicInteger calls, CountDownLatch started, CountDownLatch release) {
+        return data -> {
+            calls.incrementAndGet();
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return ServiceResponse.ok(data);
+        };
+    }
+
+    private static void callQuietly(ServiceCall call) {
+        try {
+            call.call(TEST_DATA);
+        } catch (IOException e) {
+            // Ожидаемая ошибка исключенного экземпляра
+        }
+    }
+
+    private static void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package proxy;
+
+import org.junit.Assert;
+import org.junit.Test;
+import proxy.metrics.Counter;
+import proxy.metrics.Gauge;
+import proxy.metrics.Histogram;
+import proxy.metrics.MetricsRegistry;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author rushan
+ */
+public class MetricsTest {
+
+    @Test
+    public void testHistogramQuantiles() {
+        Histogram histogram = new Histogram();
+        for (long i = 1; i <= 100_000; i++) {
+            histogram.record(i);
+        }
+
+        Assert.assertEquals(100_000, histogram.getCount());
+        Assert.assertEquals(100_000L * 100_001 / 2, histogram.getSum());
+        for (double q : new double[]{0.5, 0.9, 0.99, 0.999}) {
+            long expected = (long) (q * 100_000);
+            long actual = histogram.getQuantile(q);
+            Assert.assertTrue("Quantile " + q + ": " + actual,
+                    actual >= expected && actual <= expected + expected / Histogram.SUB_BUCKETS);
+        }
+    }
+
+    @Test
+    public void testHistogramSmallAndLargeValues() {
+        Histogram histogram = new Histogram();
+        Assert.assertEquals(0, histogram.getQuantile(0.5));
+
+        histogram.record(-5);
+        histogram.record(3);
+        histogram.record(Long.MAX_VALUE);
+        Assert.assertEquals(0, histogram.getQuantile(0.1));
+        Assert.assertEquals(3, histogram.getQuantile(0.5));
+        Assert.assertEquals(Long.MAX_VALUE, histogram.getQuantile(1));
+    }
+
+    @Test
+    public void testConcurrentRecord() throws InterruptedException {
+        Histogram histogram = new Histogram();
+        Counter counter = new Counter();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < 10_000; i++) {
+                    histogram.record(i);
+                    counter.inc();
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertEquals(40_000, histogram.getCount());
+        Assert.assertEquals(40_000, counter.get());
+    }
+
+    @Test
+    public void testPrometheusFormat() throws IOException {
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.counter("test_rejected_total{reason=\"queue\"}", "Rejected messages").add(2);
+        registry.counter("test_rejected_total{reason=\"bytes\"}", "Rejected messages").inc();
+        Assert.assertSame(registry.counter("test_rejected_total{reason=\"bytes\"}", "Rejected messages"),
+                registry.counter("test_rejected_total{reason=\"bytes\"}", "Rejected messages"));
+
+        AtomicLong size = new AtomicLong(7);
+        registry.gauge("test_queue_size", "Queue size", size::get);
+        registry.histogram("test_latency_seconds", "Latency", Histogram.NANOS_TO_SECONDS).record(2_000_000_000L);
+
+        StringWriter out = new StringWriter();
+        registry.write(out);
+        Assert.assertEquals(""
+                + "# HELP test_latency_seconds Latency\n"
+                + "# TYPE test_latency_seconds summary\n"
+                + "test_latency_seconds{quantile=\"0.5\"} 2.013265919\n"
+                + "test_latency_seconds{quantile=\"0.9\"} 2.013265919\n"
+                + "test_latency_seconds{quantile=\"0.99\"} 2.013265919\n"
+                + "test_latency_seconds{quantile=\"0.999\"} 2.013265919\n"
+                + "test_latency_seconds_sum 2\n"
+                + "test_latency_seconds_count 1\n"
+                + "# HELP test_queue_size Queue size\n"
+                + "# TYPE test_queue_size gauge\n"
+                + "test_queue_size 7\n"
+                + "# HELP test_rejected_total Rejected messages\n"
+                + "# TYPE test_rejected_total counter\n"
+                + "test_rejected_total{reason=\"bytes\"} 1\n"
+                + "test_rejected_total{reason=\"queue\"} 2\n", out.toString());
+    }
+
+    @Test
+    public void testRemoveGauge() throws IOException {
+        MetricsRegistry registry = new MetricsRegistry();
+        Gauge stale = registry.gauge("test_queue_size", "Queue size", () -> 1);
+        Gauge current = registry.gauge("test_queue_size", "Queue size", () -> 2);
+
+        // Измеритель, замененный более новым, не удаляет его
+        registry.remove("test_queue_size", stale);
+        StringWriter out = new StringWriter();
+        registry.write(out);
+        Assert.assertTrue(out.toString(), out.toString().contains("test_queue_size 2\n"));
+
+        registry.remove("test_queue_size", current);
+        out = new StringWriter();
+        registry.write(out);
+        Assert.assertEquals("", out.toString());
+    }
+}
@@ -0,0 +1,189 @@
+package proxy;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.Assert;
+import org.junit.Test;
+import proxy.api.ServiceErrorException;
+import proxy.impl.BatchResponseDecoder;
+import proxy.impl.BatchSupport;
+import proxy.impl.CircuitBreaker;
+import proxy.impl.PooledHttpCall;
+import proxy.impl.ServiceRetrySupport;
+import proxy.model.BatchBody;
+import proxy.model.Message;
+import proxy.model.ServiceResponse;
+import proxy.util.Util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author rushan
+ */
+public class PooledHttpCallTest {
+
+    private static final byte[] ERROR_PAGE = ("<html><head><title>502 Bad Gateway</title></head>"
+            + "<body><h1>502 Bad Gateway</h1></body></html>").getBytes(StandardCharsets.UTF_8);
+
+    private static HttpServer startService(int port, int status, byte[] body) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/sendMessage", exchange -> {
+            exchange.getResponseHeaders().add("Content-Type", "text/html");
+            exchange.sendResponseHeaders(status, body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        });
+        server.start();
+        return server;
+    }
+
+    private static BatchBody testBatch() {
+        return new BatchSupport().toBatchBody(Collections.singletonList(
+                new Message(Instant.now(), "Test".getBytes(StandardCharsets.UTF_8))));
+    }
+
+    /**
+     * Страница ошибки балансировщика перед сервисом не разбирается как батч-ответ
+     */
+    @Test
+    public void testErrorPageOnStreamingPath() throws Exception {
+        HttpServer server = startService(8094, 502, ERROR_PAGE);
+        try (PooledHttpCall call = new PooledHttpCall("http://localhost:8094/sendMessage", 1000, 1000, 4)) {
+            List<ServiceResponse> responses = new ArrayList<>();
+            try {
+                call.callAsync(testBatch(), new BatchResponseDecoder(1, (index, r) -> responses.add(r)))
+                        .get(5, TimeUnit.SECONDS);
+                Assert.fail();
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof IOException);
+            }
+            Assert.assertTrue(responses.isEmpty());
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    /**
+     * Тело не в формате батч-ответа при успешном статусе: первые 4 байта не читаются как размер фрейма больше
+     * оставшейся части тела
+     */
+    @Test
+    public void testInvalidFrameLength() throws Exception {
+        HttpServer server = startService(8095, 200, ERROR_PAGE);
+        try (PooledHttpCall call = new PooledHttpCall("http://localhost:8095/sendMessage", 1000, 1000, 4)) {
+            try {
+                call.callAsync(testBatch(), new BatchResponseDecoder(1, (index, r) -> { }))
+                        .get(5, TimeUnit.SECONDS);
+                Assert.fail();
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof IOException);
+            }
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    /**
+     * Ответ 5xx - ошибка вызова, как у {@link proxy.impl.BlockingHttpCall}: батч отправляется повторно
+     */
+    @Test
+    public void testRetryOnServerError() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        HttpServer server = HttpServer.create(new InetSocketAddress(8096), 0);
+        server.createContext("/sendMessage", exchange -> {
+            ByteBuffer batch = ByteBuffer.wrap(Util.readMessageBody(exchange.getRequestBody(), Integer.MAX_VALUE));
+            if (calls.incrementAndGet() == 1) {
+                exchange.sendResponseHeaders(500, ERROR_PAGE.length);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    os.write(ERROR_PAGE);
+                }
+                return;
+            }
+            // Ответ на единственное сообщение - его данные
+            batch.position(8);
+            int length = batch.getInt();
+            ByteBuffer response = ByteBuffer.allocate(4 + length);
+            response.putInt(length).put(batch);
+            exchange.sendResponseHeaders(200, response.capacity());
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(response.array());
+            }
+        });
+        server.start();
+
+        try (PooledHttpCall call = new PooledHttpCall("http://localhost:8096/sendMessage", 1000, 1000, 4);
+             ServiceRetrySupport retrySupport = new ServiceRetrySupport(call, 2, 10, 1000))
+        {
+            Message message = new Message(Instant.now(), "Test".getBytes(StandardCharsets.UTF_8));
+            List<ServiceResponse> responses = retrySupport.callAsync(Collections.singletonList(message))
+                    .get(5, TimeUnit.SECONDS);
+            Assert.assertEquals(2, calls.get());
+            Assert.assertEquals("Test", new String(responses.get(0).getData(), StandardCharsets.UTF_8));
+
+            // Буферизованный ответ - тот же статус ошибки
+            calls.set(0);
+            try {
+                call.callAsync(new byte[0]).get(5, TimeUnit.SECONDS);
+                Assert.fail();
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof IOException);
+            }
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    /**
+     * Ответ 4xx - сервис ответил: батч не отправляется повторно, а автомат защиты не размыкается
+     */
+    @Test
+    public void testClientErrorIsNotRetried() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        HttpServer server = HttpServer.create(new InetSocketAddress(8098), 0);
+        server.createContext("/sendMessage", exchange -> {
+            Util.readMessageBody(exchange.getRequestBody(), Integer.MAX_VALUE);
+            calls.incrementAndGet();
+            exchange.sendResponseHeaders(400, -1);
+            exchange.close();
+        });
+        server.start();
+
+        CircuitBreaker circuitBreaker = new CircuitBreaker(1, 60_000, 0);
+        try (PooledHttpCall call = new PooledHttpCall("http://localhost:8098/sendMessage", 1000, 1000, 4);
+             ServiceRetrySupport retrySupport = new ServiceRetrySupport(call, 2, 10, 1000, circuitBreaker))
+        {
+            Message message = new Message(Instant.now(), "Test".getBytes(StandardCharsets.UTF_8));
+            for (int i = 1; i <= 3; i++) {
+                try {
+                    retrySupport.callAsync(Collections.singletonList(message)).get(5, TimeUnit.SECONDS);
+                    Assert.fail();
+                } catch (ExecutionException e) {
+                    Assert.assertEquals(400, ((ServiceErrorException) e.getCause()).getStatus());
+                }
+                Assert.assertEquals(i, calls.get());
+                Assert.assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+            }
+
+            // Буферизованный ответ - та же ошибка
+            try {
+                call.callAsync(new byte[0]).get(5, TimeUnit.SECONDS);
+                Assert.fail();
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof ServiceErrorException);
+            }
+        } finally {
+            server.stop(0);
+        }
+    }
+}
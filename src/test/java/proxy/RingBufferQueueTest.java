@@ -0,0 +1,192 @@
+package proxy;
+
+import org.junit.Assert;
+import org.junit.Test;
+import proxy.impl.RingBufferQueue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author rushan
+ */
+public class RingBufferQueueTest {
+
+    @Test
+    public void testCapacityAndOrder() {
+        RingBufferQueue<Integer> queue = new RingBufferQueue<>(3, RingBufferQueue.WaitStrategy.PARK);
+
+        // Несколько кругов по буферу
+        for (int round = 0; round < 3; round++) {
+            Assert.assertTrue(queue.offer(1));
+            Assert.assertTrue(queue.offer(2));
+            Assert.assertTrue(queue.offer(3));
+            // Размер очереди - ровно заданный, без округления
+            Assert.assertFalse(queue.offer(4));
+            Assert.assertEquals(3, queue.size());
+
+            Assert.assertEquals(Integer.valueOf(1), queue.peek());
+            Assert.assertEquals(Integer.valueOf(1), queue.poll());
+            Assert.assertEquals(Integer.valueOf(2), queue.poll());
+            Assert.assertEquals(Integer.valueOf(3), queue.poll());
+            Assert.assertNull(queue.poll());
+        }
+    }
+
+    @Test
+    public void testDrainTo() {
+        RingBufferQueue<Integer> queue = new RingBufferQueue<>(4, RingBufferQueue.WaitStrategy.PARK);
+        queue.offer(1);
+        queue.poll();
+        for (int i = 0; i < 4; i++) {
+            queue.offer(i);
+        }
+
+        List<Integer> batch = new ArrayList<>();
+        Assert.assertEquals(3, queue.drainTo(batch, 3));
+        Assert.assertEquals(1, queue.drainTo(batch, 3));
+        Assert.assertEquals(0, queue.drainTo(batch, 3));
+        Assert.assertEquals(4, batch.size());
+        for (int i = 0; i < 4; i++) {
+            Assert.assertEquals(Integer.valueOf(i), batch.get(i));
+        }
+    }
+
+    @Test
+    public void testOfferAll() {
+        RingBufferQueue<Integer> queue = new RingBufferQueue<>(4, RingBufferQueue.WaitStrategy.PARK);
+        queue.offer(0);
+        queue.poll();
+        queue.offer(0);
+
+        // Помещаются только первые три - элементы после первого не поместившегося не добавляются
+        Assert.assertEquals(3, queue.offerAll(Arrays.asList(1, 2, 3, 4)));
+        Assert.assertEquals(0, queue.offerAll(Collections.singletonList(5)));
+        List<Integer> all = new ArrayList<>();
+        Assert.assertEquals(4, queue.drainTo(all));
+        Assert.assertEquals(Arrays.asList(0, 1, 2, 3), all);
+    }
+
+    /**
+     * Итератор обходит снимок очереди, в том числе после перехода позиций на следующий круг
+     */
+    @Test
+    public void testIterator() {
+        RingBufferQueue<Integer> queue = new RingBufferQueue<>(4, RingBufferQueue.WaitStrategy.PARK);
+        queue.offerAll(Arrays.asList(0, 1, 2));
+        queue.poll();
+        queue.offerAll(Arrays.asList(3, 4));
+
+        List<Integer> all = new ArrayList<>();
+        Iterator<Integer> it = queue.iterator();
+        queue.poll();
+        it.forEachRemaining(all::add);
+        Assert.assertEquals(Arrays.asList(1, 2, 3, 4), all);
+        Assert.assertTrue(queue.contains(4));
+        Assert.assertFalse(queue.contains(1));
+        Assert.assertFalse(queue.removeIf(e -> e > 10));
+        try {
+            queue.removeIf(e -> e == 2);
+            Assert.fail();
+        } catch (UnsupportedOperationException e) {
+            // Удаление из середины кольца не поддерживается
+        }
+    }
+
+    @Test
+    public void testPollTimeout() throws InterruptedException {
+        RingBufferQueue<Integer> queue = new RingBufferQueue<>(4, RingBufferQueue.WaitStrategy.SPIN_THEN_PARK);
+        long start = System.nanoTime();
+        Assert.assertNull(queue.poll(50, TimeUnit.MILLISECONDS));
+        Assert.assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+    }
+
+    @Test
+    public void testConcurrentParkStrategy() throws InterruptedException {
+        testConcurrent(RingBufferQueue.WaitStrategy.PARK);
+    }
+
+    @Test
+    public void testConcurrentSpinStrategy() throws InterruptedException {
+        testConcurrent(RingBufferQueue.WaitStrategy.SPIN_THEN_PARK);
+    }
+
+    @Test
+    public void testConcurrentYieldStrategy() throws InterruptedException {
+        testConcurrent(RingBufferQueue.WaitStrategy.YIELD);
+    }
+
+    /**
+     * Несколько писателей и читателей: каждый элемент должен быть получен ровно один раз
+     */
+    private void testConcurrent(RingBufferQueue.WaitStrategy waitStrategy) throws InterruptedException {
+        int producers = 4;
+        int consumers = 3;
+        int perProducer = 20_000;
+        RingBufferQueue<Long> queue = new RingBufferQueue<>(1024, waitStrategy);
+
+        AtomicLong sum = new AtomicLong();
+        AtomicLong count = new AtomicLong();
+        AtomicBoolean stop = new AtomicBoolean();
+        List<Thread> threads = new ArrayList<>();
+        for (int c = 0; c < consumers; c++) {
+            threads.add(new Thread(() -> {
+                List<Long> batch = new ArrayList<>();
+                try {
+                    while (!stop.get()) {
+                        Long first = queue.poll(10, TimeUnit.MILLISECONDS);
+                        if (first == null) {
+                            continue;
+                        }
+                        batch.clear();
+                        batch.add(first);
+                        queue.drainTo(batch, 10);
+                        for (Long v : batch) {
+                            sum.addAndGet(v);
+                            count.incrementAndGet();
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }));
+        }
+        List<Thread> producerThreads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            producerThreads.add(new Thread(() -> {
+                try {
+                    for (long i = 1; i <= perProducer; i++) {
+                        queue.put(i);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        producerThreads.forEach(Thread::start);
+        for (Thread t : producerThreads) {
+            t.join();
+        }
+
+        // Дожидаемся обработки всех элементов, затем останавливаем читателей
+        long expectedCount = (long) producers * perProducer;
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (count.get() < expectedCount && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        stop.set(true);
+        for (Thread t : threads) {
+            t.join(10_000);
+        }
+
+        Assert.assertEquals(expectedCount, count.get());
+        Assert.assertEquals(producers * ((long) perProducer * (perProducer + 1) / 2), sum.get());
+    }
+}
@@ -2,8 +2,13 @@ package proxy;
 
 import org.junit.Assert;
 import org.junit.Test;
+import proxy.api.AsyncServiceCall;
+import proxy.api.CircuitOpenException;
 import proxy.api.ServiceCall;
 import proxy.api.ServiceNotAvailableException;
+import proxy.impl.Backoff;
+import proxy.impl.CircuitBreaker;
+import proxy.impl.RetryBudget;
 import proxy.impl.ServiceRetrySupport;
 import proxy.model.Message;
 import proxy.model.ServiceResponse;
@@ -14,6 +19,12 @@ import java.time.Duration;
 import java.time.Instant;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @author rushan
@@ -186,6 +197,264 @@ public class ServiceRetrySupportTest {
         }
     }
 
+    /**
+     * Асинхронный вызов: ошибки до порога ретраятся без задержки, далее - с ожиданием между попытками
+     */
+    @Test
+    public void testAsyncRetry() {
+        AtomicInteger count = new AtomicInteger();
+        AsyncTestCall call = data -> {
+            CompletableFuture<ServiceResponse> future = new CompletableFuture<>();
+            try {
+                if (count.incrementAndGet() < 4) {
+                    throw new IOException("Test error");
+                }
+                future.complete(echoCall().call(data));
+            } catch (IOException e) {
+                future.completeExceptionally(e);
+            }
+            return future;
+        };
+
+        int timeBetweenCallMs = 300;
+        ServiceRetrySupport invocationSupport = new ServiceRetrySupport(call, 3, timeBetweenCallMs, 10000);
+        Message message = new Message(Instant.now(), TEST_DATA);
+
+        long beforeCall = System.nanoTime();
+        List<ServiceResponse> responses = invocationSupport.callAsync(Collections.singletonList(message)).join();
+        // Только нижняя граница: верхняя зависит от загрузки машины
+        long duration = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - beforeCall);
+        Assert.assertTrue(duration >= timeBetweenCallMs);
+        Assert.assertEquals(4, count.get());
+        Assert.assertEquals("TestTest", new String(responses.get(0).getData()));
+        invocationSupport.close();
+    }
+
+    @Test
+    public void testAsyncServiceNotAvailable() {
+        AsyncTestCall call = data -> {
+            CompletableFuture<ServiceResponse> future = new CompletableFuture<>();
+            future.completeExceptionally(new IOException("Test error"));
+            return future;
+        };
+
+        ServiceRetrySupport invocationSupport = new ServiceRetrySupport(call, 0, 200, 700);
+        Message message = new Message(Instant.now(), TEST_DATA);
+        try {
+            invocationSupport.callAsync(Collections.singletonList(message)).join();
+            Assert.fail("Service not available exception is expected");
+        } catch (CompletionException e) {
+            Assert.assertEquals(ServiceNotAvailableException.class, e.getCause().getClass());
+            Assert.assertEquals(4, ((ServiceNotAvailableException) e.getCause()).getRetryCount());
+        }
+        invocationSupport.close();
+    }
+
+    /**
+     * Повторные попытки прекращаются, когда у всех сообщений батча истек срок
+     */
+    @Test
+    public void testStopRetryOnExpiredDeadline() throws IOException {
+        ServiceCall call = data -> {
+            throw new IOException("Test error");
+        };
+
+        // Без учета срока сообщений попытки продолжались бы 10 секунд
+        ServiceRetrySupport invocationSupport = new ServiceRetrySupport(call, 0, 10, 10_000);
+        Instant now = Instant.now();
+        Message message = new Message(now, TEST_DATA, now.plusMillis(100));
+
+        Instant beforeCall = Instant.now();
+        try {
+            invocationSupport.call(Collections.singletonList(message));
+            Assert.fail("Service not available exception is expected");
+        } catch (ServiceNotAvailableException e) {
+            Assert.assertTrue(Duration.between(beforeCall, Instant.now()).toMillis() < 1000);
+        }
+    }
+
+    @Test
+    public void testAsyncStopRetryOnExpiredDeadline() {
+        AsyncTestCall call = data -> {
+            CompletableFuture<ServiceResponse> future = new CompletableFuture<>();
+            future.completeExceptionally(new IOException("Test error"));
+            return future;
+        };
+
+        ServiceRetrySupport invocationSupport = new ServiceRetrySupport(call, 0, 10, 10_000);
+        Instant now = Instant.now();
+        Message message = new Message(now, TEST_DATA, now.plusMillis(100));
+
+        Instant beforeCall = Instant.now();
+        try {
+            invocationSupport.callAsync(Collections.singletonList(message)).join();
+            Assert.fail("Service not available exception is expected");
+        } catch (CompletionException e) {
+            Assert.assertEquals(ServiceNotAvailableException.class, e.getCause().getClass());
+            Assert.assertTrue(Duration.between(beforeCall, Instant.now()).toMillis() < 1000);
+        }
+        invocationSupport.close();
+    }
+
+    /**
+     * После серии ошибок цепь размыкается: вызовы сразу завершаются ошибкой, не дожидаясь serviceWaitTimeMs,
+     * а после паузы один пробный вызов восстанавливает работу
+     */
+    @Test
+    public void testCircuitBreakerFailFast() throws Exception {
+        AtomicBoolean available = new AtomicBoolean();
+        AtomicInteger calls = new AtomicInteger();
+        ServiceCall echo = echoCall();
+        ServiceCall call = data -> {
+            calls.incrementAndGet();
+            if (!available.get()) {
+                throw new IOException("Test error");
+            }
+            return echo.call(data);
+        };
+        ServiceRetrySupport invocationSupport = new ServiceRetrySupport(call, 1, 10, 10_000,
+                new CircuitBreaker(3, 200, 0));
+        List<Message> messages = Collections.singletonList(new Message(Instant.now(), TEST_DATA));
+
+        Instant beforeCall = Instant.now();
+        try {
+            invocationSupport.call(messages);
+            Assert.fail();
+        } catch (CircuitOpenException e) {
+            Assert.assertEquals(3, e.getRetryCount());
+        }
+        Assert.assertTrue(Duration.between(beforeCall, Instant.now()).toMillis() < 1000);
+        Assert.assertFalse(invocationSupport.isServiceAvailable());
+
+        try {
+            invocationSupport.call(messages);
+            Assert.fail();
+        } catch (CircuitOpenException e) {
+            Assert.assertEquals(3, calls.get());
+        }
+
+        available.set(true);
+        Thread.sleep(250);
+        Assert.assertTrue(invocationSupport.isServiceAvailable());
+        Assert.assertEquals("TestTest", new String(invocationSupport.call(messages).get(0).getData()));
+        Assert.assertEquals(4, calls.get());
+    }
+
+    /**
+     * Синхронный вызов сервиса: поток, выполнивший неудачную попытку, не ожидает следующую
+     */
+    @Test
+    public void testBlockingRetryDoesNotOccupyCaller() {
+        AtomicInteger count = new AtomicInteger();
+        ServiceCall echo = echoCall();
+        ServiceCall call = data -> {
+            if (count.incrementAndGet() < 2) {
+                throw new IOException("Test error");
+            }
+            return echo.call(data);
+        };
+
+        ServiceRetrySupport invocationSupport = new ServiceRetrySupport(call, 0, 300, 10_000);
+        Message message = new Message(Instant.now(), TEST_DATA);
+
+        Instant beforeCall = Instant.now();
+        CompletableFuture<List<ServiceResponse>> future = invocationSupport.callAsync(Collections.singletonList(message));
+        Assert.assertTrue(Duration.between(beforeCall, Instant.now()).toMillis() < 100);
+        Assert.assertFalse(future.isDone());
+
+        List<ServiceResponse> responses = future.join();
+        Assert.assertTrue(Duration.between(beforeCall, Instant.now()).toMillis() >= 300);
+        Assert.assertEquals(2, count.get());
+        Assert.assertEquals("TestTest", new String(responses.get(0).getData()));
+        invocationSupport.close();
+    }
+
+    /**
+     * Закрытие не оставляет вызовы, ожидающие отложенной попытки, незавершенными
+     */
+    @Test
+    public void testCloseCompletesPendingRetries() throws Exception {
+        AtomicInteger count = new AtomicInteger();
+        AsyncTestCall asyncCall = data -> {
+            count.incrementAndGet();
+            CompletableFuture<ServiceResponse> result = new CompletableFuture<>();
+            result.completeExceptionally(new IOException("Test error"));
+            return result;
+        };
+        ServiceCall blockingCall = data -> {
+            count.incrementAndGet();
+            throw new IOException("Test error");
+        };
+
+        for (ServiceCall call : new ServiceCall[] {asyncCall, blockingCall}) {
+            count.set(0);
+            ServiceRetrySupport invocationSupport = new ServiceRetrySupport(call, 0, 10_000, 60_000);
+            Message message = new Message(Instant.now(), TEST_DATA);
+            CompletableFuture<List<ServiceResponse>> future =
+                    invocationSupport.callAsync(Collections.singletonList(message));
+            while (count.get() < 1) {
+                Thread.sleep(1);
+            }
+            Assert.assertFalse(future.isDone());
+
+            invocationSupport.close();
+            try {
+                future.get(1, TimeUnit.SECONDS);
+                Assert.fail("Service not available exception is expected");
+            } catch (ExecutionException e) {
+                Assert.assertEquals(ServiceNotAvailableException.class, e.getCause().getClass());
+            }
+            Assert.assertEquals(1, count.get());
+        }
+    }
+
+    /**
+     * Задержка растет экспоненциально, а общее количество повторов ограничено бюджетом
+     */
+    @Test
+    public void testBackoffAndRetryBudget() {
+        AtomicInteger count = new AtomicInteger();
+        ServiceCall call = data -> {
+            count.incrementAndGet();
+            throw new IOException("Test error");
+        };
+
+        // Бюджет на одну повторную попытку: 1 вызов * 1.0, без резерва в секунду
+        ServiceRetrySupport invocationSupport = new ServiceRetrySupport(call, 0, 100, 10_000, null,
+                new Backoff(2, 0, 0), new RetryBudget(1, 0));
+        Message message = new Message(Instant.now(), TEST_DATA);
+        try {
+            invocationSupport.call(Collections.singletonList(message));
+            Assert.fail("Service not available exception is expected");
+        } catch (Exception e) {
+            Assert.assertEquals(ServiceNotAvailableException.class, e.getClass());
+            Assert.assertEquals(2, ((ServiceNotAvailableException) e).getRetryCount());
+        }
+        Assert.assertEquals(2, count.get());
+        invocationSupport.close();
+
+        Backoff backoff = new Backoff(2, 1000, 0);
+        Assert.assertEquals(100, backoff.delayMs(100, 0, 10_000));
+        Assert.assertEquals(400, backoff.delayMs(100, 2, 10_000));
+        Assert.assertEquals(1000, backoff.delayMs(100, 5, 10_000));
+
+        Backoff jittered = new Backoff(1, 0, 0.5);
+        for (int i = 0; i < 100; i++) {
+            long delay = jittered.delayMs(100, 0, 10_000);
+            Assert.assertTrue(delay >= 50 && delay <= 100);
+        }
+    }
+
+    /**
+     * Вызов, поддерживающий только асинхронный режим
+     */
+    private interface AsyncTestCall extends ServiceCall, AsyncServiceCall {
+        @Override
+        default ServiceResponse call(byte[] data) throws IOException {
+            throw new UnsupportedOperationException();
+        }
+    }
+
     private ServiceCall echoCall() {
         return data -> {
             ByteBuffer inputBuff = ByteBuffer.wrap(data);
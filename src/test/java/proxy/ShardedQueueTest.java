@@ -0,0 +1,165 @@
+package proxy;
+
+import org.junit.Assert;
+import org.junit.Test;
+import proxy.impl.ShardedQueue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Элементы очереди - строки вида "ключ:номер". При двух сегментах ключи "a" и "c" по хэшу попадают в сегмент 1,
+ * "b" - в сегмент 0.
+ *
+ * @author rushan
+ */
+public class ShardedQueueTest {
+
+    private static ShardedQueue<String> queue(int capacity) {
+        return new ShardedQueue<>(capacity, 2, e -> e.substring(0, e.indexOf(':')));
+    }
+
+    @Test
+    public void testKeyAffinity() {
+        ShardedQueue<String> queue = queue(100);
+        for (int i = 0; i < 4; i++) {
+            Assert.assertTrue(queue.offer("a:" + i));
+        }
+        queue.offer("b:0");
+        queue.offer("b:1");
+        Assert.assertEquals(2, queue.getShardSize(0));
+        Assert.assertEquals(4, queue.getShardSize(1));
+
+        // Элементы одного ключа забирает один потребитель по порядку
+        List<String> batch = new ArrayList<>();
+        Assert.assertEquals(4, queue.shard(1).drainTo(batch));
+        Assert.assertEquals(Arrays.asList("a:0", "a:1", "a:2", "a:3"), batch);
+        Assert.assertEquals("b:0", queue.shard(0).poll());
+        Assert.assertEquals(1, queue.size());
+    }
+
+    @Test
+    public void testStealOnlyIdleGroups() {
+        ShardedQueue<String> queue = queue(100);
+        queue.offer("a:0");
+        queue.offer("a:1");
+        queue.offer("c:0");
+        queue.offer("c:1");
+        BlockingQueue<String> shard0 = queue.shard(0);
+        BlockingQueue<String> shard1 = queue.shard(1);
+
+        // Группа a обрабатывается потребителем сегмента 1 - переносится только группа c, целиком
+        Assert.assertEquals("a:0", shard1.poll());
+        Assert.assertEquals("c:0", shard0.poll());
+        Assert.assertEquals("c:1", shard0.poll());
+        Assert.assertNull(shard0.poll());
+        Assert.assertEquals(1, queue.getMovedCount());
+
+        // Пока c обрабатывается в сегменте 0, новые элементы c попадают туда же
+        queue.offer("c:2");
+        Assert.assertEquals(1, queue.getShardSize(0));
+        Assert.assertEquals("c:2", shard0.poll());
+
+        // Обработка a завершена - группу можно переносить
+        queue.endBatch(1, null);
+        Assert.assertEquals("a:1", shard0.poll());
+
+        // Все обработано - ключи возвращаются в свои сегменты
+        queue.endBatch(0, null);
+        Assert.assertEquals(0, queue.getMovedCount());
+        queue.offer("c:3");
+        Assert.assertEquals(1, queue.getShardSize(1));
+    }
+
+    @Test
+    public void testCarriedElementKeepsGroup() {
+        ShardedQueue<String> queue = queue(100);
+        queue.offer("a:0");
+        queue.offer("a:1");
+        BlockingQueue<String> shard0 = queue.shard(0);
+        BlockingQueue<String> shard1 = queue.shard(1);
+
+        // a:0 забран, но отложен до следующего батча - a:1 не должен обогнать его в другом потоке
+        String carried = shard1.poll();
+        queue.endBatch(1, carried);
+        Assert.assertNull(shard0.poll());
+
+        queue.endBatch(1, null);
+        Assert.assertEquals("a:1", shard0.poll());
+    }
+
+    @Test
+    public void testCapacityAndDrain() {
+        ShardedQueue<String> queue = queue(3);
+        Assert.assertTrue(queue.offer("a:0"));
+        Assert.assertTrue(queue.offer("b:0"));
+        Assert.assertTrue(queue.offer("a:1"));
+        Assert.assertFalse(queue.offer("b:1"));
+        Assert.assertEquals(0, queue.remainingCapacity());
+
+        List<String> all = new ArrayList<>();
+        Assert.assertEquals(3, queue.drainTo(all));
+        Assert.assertEquals(Arrays.asList("b:0", "a:0", "a:1"), all);
+        Assert.assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void testOfferAll() {
+        ShardedQueue<String> queue = queue(4);
+        Assert.assertTrue(queue.offer("a:0"));
+        Assert.assertEquals(3, queue.offerAll(Arrays.asList("a:1", "b:0", "c:0", "b:1")));
+        Assert.assertEquals(0, queue.offerAll(Arrays.asList("b:1")));
+        Assert.assertEquals(0, queue.remainingCapacity());
+        Assert.assertEquals(1, queue.getShardSize(0));
+        Assert.assertEquals(3, queue.getShardSize(1));
+
+        List<String> local = new ArrayList<>();
+        Assert.assertEquals(3, queue.shard(1).drainTo(local));
+        Assert.assertEquals(Arrays.asList("a:0", "c:0", "a:1"), local);
+    }
+
+    @Test
+    public void testIterator() {
+        ShardedQueue<String> queue = queue(4);
+        queue.offerAll(Arrays.asList("a:0", "b:0", "a:1", "c:0"));
+
+        Assert.assertEquals(Arrays.asList("b:0", "a:0", "a:1", "c:0"), new ArrayList<>(queue));
+        Assert.assertEquals(Arrays.asList("a:0", "a:1", "c:0"), new ArrayList<>(queue.shard(1)));
+        Assert.assertTrue(queue.contains("c:0"));
+
+        // Удаление через представление сегмента освобождает место во всей очереди
+        Assert.assertTrue(queue.shard(1).removeIf(e -> e.startsWith("a:")));
+        Assert.assertEquals(2, queue.size());
+        Assert.assertEquals(1, queue.getShardSize(1));
+        Assert.assertEquals(2, queue.offerAll(Arrays.asList("a:2", "d:0")));
+
+        List<String> local = new ArrayList<>();
+        queue.shard(1).drainTo(local);
+        Assert.assertEquals(Arrays.asList("c:0", "a:2"), local.subList(0, 2));
+    }
+
+    @Test
+    public void testIdleConsumerIsSignalled() throws Exception {
+        ShardedQueue<String> queue = queue(100);
+        queue.offer("a:0");
+        Assert.assertEquals("a:0", queue.shard(1).poll());
+
+        CompletableFuture<String> taken = CompletableFuture.supplyAsync(() -> {
+            try {
+                return queue.shard(0).take();
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        Thread.sleep(50);
+        Assert.assertFalse(taken.isDone());
+
+        // Потребитель сегмента 1 занят - новую группу забирает ожидающий потребитель сегмента 0
+        queue.offer("c:0");
+        Assert.assertEquals("c:0", taken.get(1, TimeUnit.SECONDS));
+    }
+}